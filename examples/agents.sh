@@ -0,0 +1,35 @@
+#!/bin/sh
+# Runs a configuration with several agents on this machine, to try out
+# coordinatorPort without other machines. The configuration has to set
+# coordinatorPort; numProcesses may be 0 to leave all the work to the agents.
+# If it sets coordinatorSecret, export the same secret in EPFRAMEWORK_SECRET.
+#
+#   agents.sh config.json [agents] [workers per agent] [jar]
+
+CONFIG=$1
+AGENTS=${2:-3}
+WORKERS=${3:-2}
+JAR=${4:-EPFramework-1.0.jar}
+PORT=$(sed -n 's/.*"coordinatorPort" *: *\([0-9]*\).*/\1/p' "$CONFIG")
+
+if [ -z "$PORT" ]
+then
+    echo "$CONFIG does not set coordinatorPort" >&2
+    exit 1
+fi
+
+java -jar "$JAR" "$CONFIG" &
+COORDINATOR=$!
+
+# Give the coordinator time to listen
+sleep 2
+i=0
+while [ $i -lt "$AGENTS" ]
+do
+    java -jar "$JAR" --agent localhost:"$PORT" "$WORKERS" &
+    i=$((i + 1))
+done
+
+# Killing an agent with kill -9 shows its chunks being requeued
+wait $COORDINATOR
+wait
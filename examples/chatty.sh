@@ -0,0 +1,14 @@
+#!/bin/sh
+# Copies a chunk like /bin/cp, but first writes a lot to stderr and stdout,
+# more than a pipe holds, to try out logSize and logRotations. A process
+# whose output is not read would block here. Use it with the arguments "@ $"
+# and set in the environment:
+#
+#   CHATTY_MB  megabytes written to stderr (default 4)
+
+in=$1
+out=$2
+
+head -c $((${CHATTY_MB:-4} * 1024 * 1024)) /dev/zero | tr '\0' 'e' | fold -w 79 >&2
+echo "copying $in"
+cp "$in" "$out"
@@ -0,0 +1,19 @@
+#!/bin/sh
+# Example executable for coprocessMode. Start up work goes before the loop
+# and is done once per worker. Each line on stdin holds the paths of a chunk's
+# in and out files, separated by a tab; reply "ok" once the out file is
+# written, or anything else to report an error. Exit when stdin is closed, or
+# be killed a few seconds later.
+
+# Load reference tables, etc. here
+
+tab=$(printf '\t')
+while IFS=$tab read -r in out
+do
+    if cat "$in" > "$out"
+    then
+        echo ok
+    else
+        echo "could not copy $in"
+    fi
+done
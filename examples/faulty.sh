@@ -0,0 +1,34 @@
+#!/bin/sh
+# Copies a chunk like /bin/cp, but fails now and then, to try out retries and
+# timeouts. Use it with the arguments "@ $" and set in the environment:
+#
+#   FAIL_RATE   percent of runs that exit with an error (default 10)
+#   HANG_RATE   percent of runs that hang in a child process (default 5)
+#   FAIL_MATCH  a string; chunks containing it always fail (default none)
+#
+# A hung run leaves "sleep" running as its child, which is only cleaned up
+# if the whole process tree is killed.
+
+in=$1
+out=$2
+roll=$(( $(od -An -N2 -tu2 /dev/urandom) % 100 ))
+
+if [ -n "$FAIL_MATCH" ] && grep -q -- "$FAIL_MATCH" "$in"
+then
+    echo "$in contains $FAIL_MATCH" >&2
+    exit 3
+fi
+
+if [ "$roll" -lt "${FAIL_RATE:-10}" ]
+then
+    echo "failing $in" >&2
+    exit 1
+fi
+
+if [ "$roll" -lt $(( ${FAIL_RATE:-10} + ${HANG_RATE:-5} )) ]
+then
+    sleep 3600 &
+    wait
+fi
+
+cp "$in" "$out"
@@ -0,0 +1,197 @@
+#!/bin/sh
+# Runs full EPFramework jobs with synthetic.sh over a grid of thread counts and
+# chunk counts, and writes the tables plot.gnuplot reads:
+#
+#   time.dat     one row per thread count, the seconds taken at each chunk
+#                count
+#   speedup.dat  the same, as the speedup over running synthetic.sh on the
+#                whole input
+#   total.dat    time.dat with the serial time as its first row, "Original"
+#   memory.dat   the same layout as time.dat, the framework's peak resident
+#                set in MB
+#
+# Every run does the same total work: the input always has the same records,
+# and only recordsPerChunk changes to make the chunk counts.
+#
+#   scaling.sh [options] out-dir
+#
+#   -n records      records in the input (default 100000)
+#   -c "counts"     chunk counts, one column each (default
+#                   "10 100 1000 10000 100000"); up to one chunk per record
+#   -t "threads"    thread counts, one row each (default "1 2 4 6 8 16")
+#   -w micros       CPU time per record in microseconds (default 100)
+#   -s factor       how many times more work a heavy record has (default 1)
+#   -h percent      percent of records that are heavy (default 10)
+#   -i bytes        bytes of IO per record (default 0)
+#   -o bytes        bytes of output padding per record (default 0)
+#   -r runs         runs averaged per point (default 1)
+#   -x json         more configuration, such as '"pipeMode": true'
+#   -j jar          the framework's jar (default EPFramework-1.0.jar)
+#
+# For a million tiny chunks: scaling.sh -n 1000000 -c "1000 1000000" -w 10 out
+
+RECORDS=100000
+COUNTS="10 100 1000 10000 100000"
+THREADS="1 2 4 6 8 16"
+WORK=100
+SKEW=1
+HEAVY=10
+RUNS=1
+EXTRA=""
+JAR=EPFramework-1.0.jar
+SYN_IO=0
+SYN_OUT=0
+
+while getopts n:c:t:w:s:h:i:o:r:x:j: opt
+do
+    case $opt in
+        n) RECORDS=$OPTARG ;;
+        c) COUNTS=$OPTARG ;;
+        t) THREADS=$OPTARG ;;
+        w) WORK=$OPTARG ;;
+        s) SKEW=$OPTARG ;;
+        h) HEAVY=$OPTARG ;;
+        i) SYN_IO=$OPTARG ;;
+        o) SYN_OUT=$OPTARG ;;
+        r) RUNS=$OPTARG ;;
+        x) EXTRA=", $OPTARG" ;;
+        j) JAR=$OPTARG ;;
+        *) sed -n 's/^#  *-/-/p' "$0" >&2; exit 1 ;;
+    esac
+done
+shift $((OPTIND - 1))
+
+if [ $# -ne 1 ]
+then
+    echo "usage: scaling.sh [options] out-dir" >&2
+    exit 1
+fi
+
+OUT=$(mkdir -p "$1" && cd "$1" && pwd)
+SYNTHETIC=$(cd "$(dirname "$0")" && pwd)/synthetic.sh
+INPUT=$OUT/input
+export SYN_IO SYN_OUT
+
+# The time since the epoch in nanoseconds
+now()
+{
+    date +%s%N
+}
+
+# How many awk loops synthetic.sh does per microsecond of work on this machine
+calibrate()
+{
+    start=$(now)
+    awk 'BEGIN { for (i = 0; i < 10000000; i++) x += i }'
+    end=$(now)
+    awk -v ns=$((end - start)) 'BEGIN { printf "%.2f", 10000000 * 1000 / ns }'
+}
+
+# Runs the framework once and prints its seconds and peak resident set in MB
+run()
+{
+    mkdir -p "$OUT/run"
+    start=$(now)
+    java -jar "$JAR" "$1" > "$OUT/log.txt" 2>&1 &
+    pid=$!
+    peak=0
+    while kill -0 $pid 2> /dev/null
+    do
+        # The high water mark only grows, so the last sample is the peak
+        hwm=$(sed -n 's/^VmHWM:[[:space:]]*\([0-9]*\).*/\1/p' /proc/$pid/status \
+            2> /dev/null)
+        if [ -n "$hwm" ]
+        then
+            peak=$hwm
+        fi
+        sleep 0.2
+    done
+    wait $pid
+    status=$?
+    end=$(now)
+
+    if [ $status -ne 0 ] || [ ! -s "$OUT/run/output" ]
+    then
+        echo "run of $1 failed, see $OUT/log.txt" >&2
+        echo "NaN NaN"
+        return
+    fi
+    awk -v ns=$((end - start)) -v kb="$peak" \
+        'BEGIN { printf "%.3f %.1f\n", ns / 1e9, kb / 1024 }'
+}
+
+SYN_LOOPS_PER_US=$(calibrate)
+export SYN_LOOPS_PER_US
+echo "synthetic.sh does $SYN_LOOPS_PER_US loops per microsecond"
+
+# Make the input; which records are heavy is fixed by the seed, so every run
+# gets the same input
+awk -v n="$RECORDS" -v w="$WORK" -v s="$SKEW" -v h="$HEAVY" 'BEGIN {
+    srand(1)
+    for (i = 0; i < n; i++)
+    {
+        work = w
+        if (rand() * 100 < h)
+        {
+            work = w * s
+        }
+        printf "record %d %d\n\n", i, work
+    }
+}' > "$INPUT"
+
+# The serial baseline: the tool run once on the whole input
+start=$(now)
+"$SYNTHETIC" "$INPUT" "$OUT/original"
+end=$(now)
+ORIGINAL=$(awk -v ns=$((end - start)) 'BEGIN { printf "%.3f", ns / 1e9 }')
+rm -f "$OUT/original"
+echo "Original: ${ORIGINAL}s"
+
+: > "$OUT/time.dat"
+: > "$OUT/speedup.dat"
+: > "$OUT/memory.dat"
+for t in $THREADS
+do
+    times=""
+    speedups=""
+    memory=""
+    for c in $COUNTS
+    do
+        per=$(((RECORDS + c - 1) / c))
+        cat > "$OUT/config.json" <<EOF
+{"inFile": "$INPUT", "split": "^\$", "outFile": "$OUT/run",
+ "execLoc": "$SYNTHETIC", "argument": "@ \$", "numProcesses": $t,
+ "numHeaderLines": 0, "stats": false, "defaultMerge": true,
+ "customMerge": false, "externalMerge": false, "outputFmt": false,
+ "recordsPerChunk": $per$EXTRA}
+EOF
+        sum="0 0"
+        i=0
+        while [ $i -lt "$RUNS" ]
+        do
+            sum=$(echo "$sum $(run "$OUT/config.json")" |
+                awk '$1 == "NaN" || $3 == "NaN" { print "NaN NaN"; next }
+                    { print $1 + $3, $2 + $4 }')
+            rm -rf "$OUT/run"
+            i=$((i + 1))
+        done
+        point=$(echo "$sum" | awk -v r="$RUNS" -v o="$ORIGINAL" '
+            $1 == "NaN" { print "NaN NaN NaN"; next }
+            { printf "%.3f %.4f %.1f", $1 / r, o / ($1 / r), $2 / r }')
+        echo "$t threads, $c chunks: $point"
+        times="$times $(echo "$point" | cut -d' ' -f1)"
+        speedups="$speedups $(echo "$point" | cut -d' ' -f2)"
+        memory="$memory $(echo "$point" | cut -d' ' -f3)"
+    done
+    echo "$t$times" >> "$OUT/time.dat"
+    echo "$t$speedups" >> "$OUT/speedup.dat"
+    echo "$t$memory" >> "$OUT/memory.dat"
+done
+
+{
+    echo "Original$(for c in $COUNTS; do printf ' %s' "$ORIGINAL"; done)"
+    cat "$OUT/time.dat"
+} > "$OUT/total.dat"
+rm -f "$INPUT" "$OUT/config.json"
+cp "$(dirname "$SYNTHETIC")/plot.gnuplot" "$OUT"
+echo "Tables are in $OUT; plot them with: cd $OUT && gnuplot plot.gnuplot"
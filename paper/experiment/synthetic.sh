@@ -0,0 +1,57 @@
+#!/bin/sh
+# A stand-in for a real tool, for scaling runs. Copies its input to its output
+# and, for every "record <n> <work>" line in the input, burns <work>
+# microseconds of CPU, does some IO and pads the output. Use it with the
+# arguments "@ $". Set in the environment:
+#
+#   SYN_LOOPS_PER_US  awk loop iterations per microsecond on this machine,
+#                     as measured by scaling.sh (default 50)
+#   SYN_IO            bytes written to disk and read back per record
+#                     (default 0)
+#   SYN_OUT           bytes of padding added to the output per record
+#                     (default 0)
+#
+# The work of each record is in the input, so the same input costs the same
+# however it is split, and running this on the whole input is the serial
+# baseline.
+
+in=$1
+out=$2
+
+records=$(awk -v lpu="${SYN_LOOPS_PER_US:-50}" -v pad="${SYN_OUT:-0}" \
+    -v out="$out" '
+    BEGIN {
+        printf "" > out
+        line = "x"
+        while (length(line) < pad - 1)
+        {
+            line = line line
+        }
+        line = substr(line, 1, pad - 1)
+    }
+    {
+        print > out
+    }
+    $1 == "record" {
+        work += $3
+        n++
+        if (pad > 0)
+        {
+            print line > out
+        }
+    }
+    END {
+        loops = work * lpu
+        for (i = 0; i < loops; i++)
+        {
+            x += i
+        }
+        print n + 0
+    }' "$in") || exit 1
+
+io=$((records * ${SYN_IO:-0}))
+if [ "$io" -gt 0 ]
+then
+    head -c "$io" /dev/zero > "$out.io" && cat "$out.io" > /dev/null
+    rm -f "$out.io"
+fi
@@ -0,0 +1,225 @@
+package edu.unh.schwartz.epframework;
+
+import edu.unh.schwartz.epframework.worker.ChunkScheduler;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures reading the results back: <code>Chunk.getResult</code> and
+ * <code>getHeader</code> over every chunk, and the default merge of all of
+ * them into one output file, for small and large results kept in memory or
+ * in out files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class MergeBenchmark
+{
+    /**
+     * The number of chunks.
+     */
+    private static final int CHUNKS = 64;
+
+    /**
+     * The index of the default merge method.
+     */
+    private static final int DEFAULT_MERGE = 0;
+
+    /**
+     * The size of each chunk's result in bytes.
+     */
+    @Param({"1024", "65536", "1048576"})
+    private int outputSize;
+
+    /**
+     * Whether the results are kept in memory instead of in out files.
+     */
+    @Param({"false", "true"})
+    private boolean inMemory;
+
+    /**
+     * Makes the chunks.
+     */
+    private ChunkManager cm;
+
+    /**
+     * The chunks, with their results.
+     */
+    private List<Chunk> chunks;
+
+    /**
+     * The scratch root.
+     */
+    private File root;
+
+    /**
+     * The merged output file.
+     */
+    private File output;
+
+    /**
+     * Makes the chunks and gives each a result with a header line.
+     *
+     * @throws IOException if the chunks can not be made
+     * @throws InterruptedException never
+     */
+    @Setup
+    public void setUp() throws IOException, InterruptedException
+    {
+        Chunk.setHeaderLines(1);
+        this.root = Files.createTempDirectory("epframework-bench").toFile();
+        this.output = new File(this.root, "output");
+        final File input = new File(this.root, "input");
+        try (final OutputStream out = new FileOutputStream(input))
+        {
+            for (int i = 0; i < CHUNKS; i++)
+            {
+                out.write(("record " + i + "\n").getBytes());
+            }
+        }
+
+        // Split one record per chunk, keeping hold of the chunks
+        this.chunks = new ArrayList<Chunk>();
+        this.cm = new ChunkManager(0);
+        this.cm.setScratchSpace(new ScratchSpace(this.root.getPath(), null, 0,
+                    0, null));
+        this.cm.split(input.getPath(), new ChunkScheduler()
+        {
+            @Override
+            public void put(final Chunk c)
+            {
+                chunks.add(c);
+            }
+
+            @Override
+            public Chunk take(final int worker)
+            {
+                return null;
+            }
+
+            @Override
+            public void close()
+            {
+                // Nothing to wake
+            }
+
+            @Override
+            public int size()
+            {
+                return chunks.size();
+            }
+        });
+
+        final byte[] result = makeResult(this.outputSize);
+        for (final Chunk c : this.chunks)
+        {
+            if (this.inMemory)
+            {
+                c.setOutput(result);
+            }
+            else
+            {
+                try (final OutputStream out =
+                        new FileOutputStream(c.getOutFileName()))
+                {
+                    out.write(result);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the chunks and the output.
+     */
+    @TearDown
+    public void tearDown()
+    {
+        this.cm.cleanUp();
+        this.output.delete();
+        new File(this.root, "input").delete();
+        this.root.delete();
+    }
+
+    /**
+     * Reads every chunk's result.
+     *
+     * @return the total length of the results
+     */
+    @Benchmark
+    public long getResult()
+    {
+        long total = 0;
+        for (final Chunk c : this.chunks)
+        {
+            total += c.getResult().length();
+        }
+        return total;
+    }
+
+    /**
+     * Reads every chunk's header.
+     *
+     * @return the total length of the headers
+     */
+    @Benchmark
+    public long getHeader()
+    {
+        long total = 0;
+        for (final Chunk c : this.chunks)
+        {
+            total += c.getHeader().length();
+        }
+        return total;
+    }
+
+    /**
+     * Merges every chunk's result into the output file.
+     *
+     * @return the size of the output file
+     */
+    @Benchmark
+    public long defaultMerge()
+    {
+        this.cm.merge(this.output.getPath(), DEFAULT_MERGE);
+        return this.output.length();
+    }
+
+    /**
+     * Makes a result of lines of text starting with a header line.
+     *
+     * @param size - the size in bytes
+     * @return the result
+     */
+    private static byte[] makeResult(final int size)
+    {
+        final StringBuilder sb = new StringBuilder("header\n");
+        int i = 0;
+        while (sb.length() < size)
+        {
+            sb.append("result line ").append(i).append('\n');
+            i++;
+        }
+        return sb.toString().getBytes();
+    }
+}
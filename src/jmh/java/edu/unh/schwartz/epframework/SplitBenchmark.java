@@ -0,0 +1,190 @@
+package edu.unh.schwartz.epframework;
+
+import edu.unh.schwartz.epframework.worker.ChunkScheduler;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how fast <code>ChunkManager.split</code> turns an input file into
+ * chunks, for small and large records and for the usual kinds of split
+ * pattern. The chunks are dropped as they are made, so only the splitting is
+ * measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class SplitBenchmark
+{
+    /**
+     * The size of the input file in bytes.
+     */
+    private static final int INPUT_SIZE = 1 << 20;
+
+    /**
+     * The length of a line in a record.
+     */
+    private static final int LINE_LENGTH = 80;
+
+    /**
+     * Takes the chunks and drops them.
+     */
+    private static final ChunkScheduler SINK = new ChunkScheduler()
+    {
+        @Override
+        public void put(final Chunk c)
+        {
+            // Dropped
+        }
+
+        @Override
+        public Chunk take(final int worker)
+        {
+            return null;
+        }
+
+        @Override
+        public void close()
+        {
+            // Nothing to wake
+        }
+
+        @Override
+        public int size()
+        {
+            return 0;
+        }
+    };
+
+    /**
+     * The size of a record in bytes.
+     */
+    @Param({"100", "10000"})
+    private int recordSize;
+
+    /**
+     * The pattern that ends a record: a blank line, a terminator line as in
+     * GenBank files, or every line.
+     */
+    @Param({"^$", "^//$", "^.*$"})
+    private String pattern;
+
+    /**
+     * Whether the chunks are kept in memory instead of written to in files.
+     */
+    @Param({"true", "false"})
+    private boolean inMemory;
+
+    /**
+     * The input file.
+     */
+    private File input;
+
+    /**
+     * The scratch root the chunks' directories go under.
+     */
+    private File root;
+
+    /**
+     * The manager of the last split, whose chunks are still to be removed.
+     */
+    private ChunkManager cm;
+
+    /**
+     * Writes the input file.
+     *
+     * @throws IOException if it can not be written
+     */
+    @Setup
+    public void setUp() throws IOException
+    {
+        this.root = Files.createTempDirectory("epframework-bench").toFile();
+        this.input = new File(this.root, "input");
+        final StringBuilder line = new StringBuilder();
+        for (int i = 0; i < LINE_LENGTH; i++)
+        {
+            line.append("ACGT".charAt(i % 4));
+        }
+
+        try (final PrintWriter out = new PrintWriter(this.input))
+        {
+            int written = 0;
+            while (written < INPUT_SIZE)
+            {
+                out.println(">record " + written);
+                for (int n = 0; n < this.recordSize; n += LINE_LENGTH)
+                {
+                    out.println(line);
+                }
+                if (this.pattern.equals("^$"))
+                {
+                    out.println();
+                }
+                else if (this.pattern.equals("^//$"))
+                {
+                    out.println("//");
+                }
+                written += this.recordSize;
+            }
+        }
+    }
+
+    /**
+     * Removes the input file.
+     */
+    @TearDown
+    public void tearDown()
+    {
+        this.input.delete();
+        this.root.delete();
+    }
+
+    /**
+     * Removes the chunks of the last split, outside of the measurement.
+     */
+    @TearDown(Level.Invocation)
+    public void cleanUp()
+    {
+        if (this.cm != null)
+        {
+            this.cm.cleanUp();
+            this.cm = null;
+        }
+    }
+
+    /**
+     * Splits the input.
+     *
+     * @return the number of chunks made
+     * @throws IOException if the input can not be split
+     * @throws InterruptedException never
+     */
+    @Benchmark
+    public int split() throws IOException, InterruptedException
+    {
+        this.cm = new ChunkManager(this.pattern, 0);
+        this.cm.setScratchSpace(new ScratchSpace(this.root.getPath(), null, 0,
+                    0, null));
+        this.cm.setInMemory(this.inMemory);
+        this.cm.split(this.input.getPath(), SINK);
+        return this.cm.getNumberOfChunks();
+    }
+}
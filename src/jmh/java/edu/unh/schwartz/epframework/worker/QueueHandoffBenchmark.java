@@ -0,0 +1,160 @@
+package edu.unh.schwartz.epframework.worker;
+
+import edu.unh.schwartz.epframework.Chunk;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures handing chunks from the splitter to the workers: one thread puts
+ * every chunk into a scheduler while the workers take them until it is
+ * closed, as in a run whose chunks take no time at all. The time is for the
+ * whole batch, so it shows the cost per chunk of the scheduler's locking
+ * and, with more workers than cores, of waking them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class QueueHandoffBenchmark
+{
+    /**
+     * The number of chunks handed over per batch.
+     */
+    private static final int CHUNKS = 10000;
+
+    /**
+     * The number of chunks dealt to a worker at a time when stealing.
+     */
+    private static final int BLOCK_SIZE = 4;
+
+    /**
+     * The scheduler: the shared queue or the work stealing one.
+     */
+    @Param({"queue", "stealing"})
+    private String scheduler;
+
+    /**
+     * The number of workers taking chunks.
+     */
+    @Param({"1", "4", "16"})
+    private int workers;
+
+    /**
+     * The most chunks that can be waiting at once.
+     */
+    @Param({"64", "1024"})
+    private int capacity;
+
+    /**
+     * The chunks handed over.
+     */
+    private List<Chunk> chunks;
+
+    /**
+     * Runs the workers.
+     */
+    private ExecutorService pool;
+
+    /**
+     * Makes the chunks and starts the workers' threads.
+     */
+    @Setup
+    public void setUp()
+    {
+        this.chunks = new ArrayList<Chunk>();
+        for (int i = 0; i < CHUNKS; i++)
+        {
+            final Chunk c = new Chunk("chunk" + i, null);
+            c.setIndex(i);
+            c.setCost(i % 100);
+            this.chunks.add(c);
+        }
+        this.pool = Executors.newFixedThreadPool(this.workers);
+    }
+
+    /**
+     * Stops the workers' threads.
+     */
+    @TearDown
+    public void tearDown()
+    {
+        this.pool.shutdownNow();
+    }
+
+    /**
+     * Hands every chunk over to the workers.
+     *
+     * @return the number of chunks taken
+     * @throws InterruptedException if the handoff is interrupted
+     * @throws ExecutionException if a worker fails
+     */
+    @Benchmark
+    public int handoff() throws InterruptedException, ExecutionException
+    {
+        final ChunkScheduler queue = makeScheduler();
+        final List<Future<Integer>> taken = new ArrayList<Future<Integer>>();
+        for (int i = 0; i < this.workers; i++)
+        {
+            final int id = i;
+            taken.add(this.pool.submit(new Callable<Integer>()
+            {
+                @Override
+                public Integer call() throws InterruptedException
+                {
+                    int n = 0;
+                    while (queue.take(id) != null)
+                    {
+                        n++;
+                    }
+                    return n;
+                }
+            }));
+        }
+
+        for (final Chunk c : this.chunks)
+        {
+            queue.put(c);
+        }
+        queue.close();
+
+        int total = 0;
+        for (final Future<Integer> f : taken)
+        {
+            total += f.get();
+        }
+        return total;
+    }
+
+    /**
+     * @return a new, empty scheduler of the kind being measured
+     */
+    private ChunkScheduler makeScheduler()
+    {
+        if (this.scheduler.equals("stealing"))
+        {
+            return new WorkStealingScheduler(this.workers, BLOCK_SIZE,
+                    this.capacity);
+        }
+        return new ChunkQueue(this.capacity);
+    }
+}
@@ -0,0 +1,242 @@
+package edu.unh.schwartz.epframework;
+
+import edu.unh.schwartz.epframework.worker.ChunkListener;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Decides how many records are packed into each chunk. A chunk is full once it
+ * holds the configured number of records or reaches the target size in bytes.
+ *
+ * In adaptive mode the number of records is tuned while the run goes on. The
+ * runtimes of the finished chunks are fit to <code>overhead + perRecord *
+ * records</code>, and the batch grows until starting the executable costs no
+ * more than a tenth of a chunk's runtime, or shrinks if the chunks are larger
+ * than that needs. The first chunks alternate between one and two batches'
+ * worth of records so the fit has something to work with.
+ */
+final class BatchSizer implements ChunkListener
+{
+    /**
+     * The Log.
+     */
+    private static final Log LOG = LogFactory.getLog(BatchSizer.class);
+
+    /**
+     * The share of a chunk's runtime that may be spent starting the process.
+     */
+    private static final double MAX_OVERHEAD = 0.1;
+
+    /**
+     * The number of finished chunks needed before the batch is resized.
+     */
+    private static final int MIN_SAMPLES = 8;
+
+    /**
+     * The most the batch grows or shrinks by in one step.
+     */
+    private static final int MAX_STEP = 2;
+
+    /**
+     * The largest batch adaptive mode will use.
+     */
+    private static final int MAX_RECORDS = 1 << 16;
+
+    /**
+     * The number of records per chunk.
+     */
+    private volatile int records;
+
+    /**
+     * The target size of a chunk in bytes, or 0 for no target.
+     */
+    private final long targetBytes;
+
+    /**
+     * True iff the number of records is tuned from the runtimes.
+     */
+    private final boolean adaptive;
+
+    /**
+     * The number of records in each of the first chunks, taken from an
+     * earlier attempt at the run.
+     */
+    private int[] replayed = new int[0];
+
+    /**
+     * The number of chunks made so far, used to alternate the probe sizes.
+     */
+    private int made;
+
+    /**
+     * The number of chunks finished.
+     */
+    private int samples;
+
+    /**
+     * The number of chunks finished since the last resize.
+     */
+    private int sinceResize;
+
+    /**
+     * Sum of the records of the finished chunks.
+     */
+    private double sumX;
+
+    /**
+     * Sum of the runtimes of the finished chunks.
+     */
+    private double sumY;
+
+    /**
+     * Sum of the squared records of the finished chunks.
+     */
+    private double sumXX;
+
+    /**
+     * Sum of records times runtime of the finished chunks.
+     */
+    private double sumXY;
+
+    /**
+     * Constructs a sizer.
+     *
+     * @param records - the number of records per chunk
+     * @param targetBytes - the target size of a chunk in bytes, or 0
+     * @param adaptive - true iff the number of records should be tuned
+     */
+    BatchSizer(final int records, final long targetBytes,
+            final boolean adaptive)
+    {
+        this.records = Math.max(1, records);
+        this.targetBytes = targetBytes;
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Checks whether a chunk being built should be closed.
+     *
+     * @param count - the number of records in the chunk so far
+     * @param bytes - the size of the chunk so far
+     * @return true iff the chunk is full
+     */
+    boolean isFull(final int count, final long bytes)
+    {
+        if (this.made < this.replayed.length)
+        {
+            return count >= this.replayed[this.made];
+        }
+
+        int limit = this.records;
+        if (this.adaptive && this.made < MIN_SAMPLES)
+        {
+            // Give the fit two different sizes to compare
+            limit = limit * (1 + this.made % 2);
+        }
+
+        return count >= limit
+            || (this.targetBytes > 0 && bytes >= this.targetBytes);
+    }
+
+    /**
+     * Makes the first chunks the same as those of an earlier attempt at the
+     * run, so their results can be picked up again.
+     *
+     * @param sizes - the number of records in each chunk, in input order
+     */
+    void replay(final List<Integer> sizes)
+    {
+        this.replayed = new int[sizes.size()];
+        for (int i = 0; i < this.replayed.length; i++)
+        {
+            this.replayed[i] = sizes.get(i);
+        }
+    }
+
+    /**
+     * Tells the sizer that a chunk was made.
+     */
+    void chunkMade()
+    {
+        this.made++;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void chunkFailed(final Chunk c)
+    {
+        // A failed chunk says nothing about how long a batch takes
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void chunkFinished(final Chunk c)
+    {
+        if (!this.adaptive)
+        {
+            return;
+        }
+
+        final double x = c.getRecords();
+        final double y = c.getRuntime();
+        this.sumX += x;
+        this.sumY += y;
+        this.sumXX += x * x;
+        this.sumXY += x * y;
+        this.samples++;
+        this.sinceResize++;
+
+        if (this.sinceResize >= MIN_SAMPLES)
+        {
+            this.sinceResize = 0;
+            resize();
+        }
+    }
+
+    /**
+     * Fits the runtimes seen so far and picks a new number of records.
+     */
+    private void resize()
+    {
+        final double n = this.samples;
+        final double var = n * this.sumXX - this.sumX * this.sumX;
+        if (var <= 0)
+        {
+            // Every chunk had the same size so there is nothing to fit yet
+            return;
+        }
+
+        final double perRecord = (n * this.sumXY - this.sumX * this.sumY) / var;
+        final double overhead = (this.sumY - perRecord * this.sumX) / n;
+
+        final int current = this.records;
+        int next;
+        if (perRecord <= 0)
+        {
+            // The records are too small to measure, so the overhead dominates
+            next = current * MAX_STEP;
+        }
+        else
+        {
+            final double best =
+                overhead * (1 - MAX_OVERHEAD) / (MAX_OVERHEAD * perRecord);
+            next = (int) Math.ceil(Math.max(1, best));
+            next = Math.max(current / MAX_STEP, Math.min(current * MAX_STEP,
+                        next));
+        }
+        next = Math.max(1, Math.min(MAX_RECORDS, next));
+
+        if (next != current)
+        {
+            LOG.info("Records per chunk " + current + " -> " + next
+                    + " (overhead " + (long) overhead + "ms, "
+                    + perRecord + "ms per record)");
+            this.records = next;
+        }
+    }
+}
@@ -1,10 +1,25 @@
 package edu.unh.schwartz.epframework;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -24,10 +39,40 @@ public final class Chunk implements Comparable<Chunk>
      */
     private static final Log LOG = LogFactory.getLog(Chunk.class);
 
+    /**
+     * The size of the buffer used to scan and copy the output file.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     /**
      * The runtime of the chunk in millis.
      */
     private long runtime;
+
+    /**
+     * The user CPU time of the chunk's processes in millis.
+     */
+    private long userTime;
+
+    /**
+     * The system CPU time of the chunk's processes in millis.
+     */
+    private long systemTime;
+
+    /**
+     * The largest resident set of the chunk's processes in bytes.
+     */
+    private long peakRss;
+
+    /**
+     * The bytes the chunk's processes read.
+     */
+    private long bytesRead;
+
+    /**
+     * The bytes the chunk's processes wrote.
+     */
+    private long bytesWritten;
     
     /**
      * The name of the chunk.
@@ -39,6 +84,50 @@ public final class Chunk implements Comparable<Chunk>
      */
     private File directory;
 
+    /**
+     * The number of input records packed into the chunk.
+     */
+    private int records = 1;
+
+    /**
+     * The position of the chunk in the input.
+     */
+    private int index;
+
+    /**
+     * The expected cost of running the chunk. Chunks with larger costs are run
+     * first.
+     */
+    private double cost;
+
+    /**
+     * The content of the chunk if it is kept in memory instead of in the in
+     * file.
+     */
+    private byte[] content;
+
+    /**
+     * The size of the content kept in memory, or -1 if the content is in the
+     * in file.
+     */
+    private long contentSize = -1;
+
+    /**
+     * The result of the run if it is kept in memory instead of in the out
+     * file.
+     */
+    private byte[] output;
+
+    /**
+     * The hash that identifies the chunk's result, or null if it has none.
+     */
+    private String key;
+
+    /**
+     * Why the chunk failed for good, or null if it has not.
+     */
+    private volatile String failure;
+
     /**
      * Constructs a chunk.
      * @param name - the name of the chunk
@@ -83,6 +172,354 @@ public final class Chunk implements Comparable<Chunk>
         this.runtime = runtime;
     }
 
+    /**
+     * Set what the chunk's processes used.
+     * @param user - the user CPU time in milliseconds
+     * @param system - the system CPU time in milliseconds
+     * @param rss - the largest resident set in bytes
+     * @param read - the bytes read
+     * @param written - the bytes written
+     */
+    public void setUsage(final long user, final long system, final long rss,
+            final long read, final long written)
+    {
+        this.userTime = user;
+        this.systemTime = system;
+        this.peakRss = rss;
+        this.bytesRead = read;
+        this.bytesWritten = written;
+    }
+
+    /**
+     * @return the user CPU time of the chunk's processes in milliseconds
+     */
+    public long getUserTime()
+    {
+        return this.userTime;
+    }
+
+    /**
+     * @return the system CPU time of the chunk's processes in milliseconds
+     */
+    public long getSystemTime()
+    {
+        return this.systemTime;
+    }
+
+    /**
+     * @return the largest resident set of the chunk's processes in bytes
+     */
+    public long getPeakRss()
+    {
+        return this.peakRss;
+    }
+
+    /**
+     * @return the bytes the chunk's processes read
+     */
+    public long getBytesRead()
+    {
+        return this.bytesRead;
+    }
+
+    /**
+     * @return the bytes the chunk's processes wrote
+     */
+    public long getBytesWritten()
+    {
+        return this.bytesWritten;
+    }
+
+    /**
+     * @return the number of input records packed into the chunk
+     */
+    public int getRecords()
+    {
+        return this.records;
+    }
+
+    /**
+     * Set the number of input records packed into the chunk.
+     * @param records - the number of records
+     */
+    public void setRecords(final int records)
+    {
+        this.records = records;
+    }
+
+    /**
+     * @return the position of the chunk in the input
+     */
+    public int getIndex()
+    {
+        return this.index;
+    }
+
+    /**
+     * Set the position of the chunk in the input.
+     * @param index - the position of the chunk
+     */
+    public void setIndex(final int index)
+    {
+        this.index = index;
+    }
+
+    /**
+     * @return the expected cost of running the chunk
+     */
+    public double getCost()
+    {
+        return this.cost;
+    }
+
+    /**
+     * Set the expected cost of running the chunk.
+     * @param cost - the expected cost, such as the runtime in milliseconds
+     */
+    public void setCost(final double cost)
+    {
+        this.cost = cost;
+    }
+
+    /**
+     * @return the size of the input in bytes
+     */
+    public long getInputSize()
+    {
+        if (this.contentSize >= 0)
+        {
+            return this.contentSize;
+        }
+        return new File(getInFileName()).length();
+    }
+
+    /**
+     * @return the size of the result in bytes, or 0 if there is none
+     */
+    public long getOutputSize()
+    {
+        if (this.output != null)
+        {
+            return this.output.length;
+        }
+        return size(new File(getOutFileName()));
+    }
+
+    /**
+     * Keeps the content of the chunk in memory instead of in the in file.
+     * @param content - the content of the chunk
+     */
+    public void setContent(final byte[] content)
+    {
+        this.content = content;
+        this.contentSize = content.length;
+    }
+
+    /**
+     * Frees the content kept in memory once it is no longer needed.
+     */
+    public void dropContent()
+    {
+        this.content = null;
+    }
+
+    /**
+     * Keeps the result of the run in memory instead of in the out file.
+     * @param output - the result of the run
+     */
+    public void setOutput(final byte[] output)
+    {
+        this.output = output;
+    }
+
+    /**
+     * @return the hash that identifies the chunk's result, or null
+     */
+    public String getKey()
+    {
+        return this.key;
+    }
+
+    /**
+     * Set the hash that identifies the chunk's result.
+     * @param key - the hash of the content and the command line
+     */
+    public void setKey(final String key)
+    {
+        this.key = key;
+    }
+
+    /**
+     * Marks the chunk as failed for good, so it is left out of the merge.
+     * @param reason - why it failed
+     */
+    public void setFailure(final String reason)
+    {
+        this.failure = String.valueOf(reason);
+    }
+
+    /**
+     * @return why the chunk failed for good, or null if it has not
+     */
+    public String getFailure()
+    {
+        return this.failure;
+    }
+
+    /**
+     * @return true iff the chunk failed for good
+     */
+    public boolean hasFailed()
+    {
+        return this.failure != null;
+    }
+
+    /**
+     * Throws away what a failed run left of the result, before the chunk is
+     * run again.
+     */
+    public void resetResult()
+    {
+        this.output = null;
+        delete(new File(getOutFileName()));
+    }
+
+    /**
+     * Takes the result of another chunk with the same content as its own.
+     * @param other - the chunk that was run
+     */
+    public void copyResultFrom(final Chunk other)
+    {
+        if (other.output != null)
+        {
+            this.output = other.output;
+            return;
+        }
+
+        this.directory.mkdirs();
+        try
+        {
+            Files.copy(Paths.get(other.getOutFileName()), 
+                    Paths.get(getOutFileName()), 
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (IOException e)
+        {
+            LOG.error("copyResultFrom: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Takes the result of an earlier run of the same content, linking to its
+     * out file if possible instead of copying it.
+     * @param out - the out file of the earlier run
+     * @throws IOException if the result can not be linked or copied
+     */
+    public void adoptResult(final File out) throws IOException
+    {
+        this.directory.mkdirs();
+        final Path target = Paths.get(getOutFileName());
+        Files.deleteIfExists(target);
+        try
+        {
+            Files.createLink(target, out.toPath());
+        }
+        catch (IOException|UnsupportedOperationException e)
+        {
+            Files.copy(out.toPath(), target);
+        }
+    }
+
+    /**
+     * Takes the result of a backup run of this chunk. A result in the out file
+     * is renamed over this chunk's out file in one step, so a reader sees
+     * either the old file or the whole new one.
+     * @param other - the chunk that ran the backup
+     * @throws IOException if the out file can not be moved
+     */
+    public void takeResult(final Chunk other) throws IOException
+    {
+        this.output = other.output;
+        final Path out = Paths.get(other.getOutFileName());
+        if (this.output == null && Files.exists(out))
+        {
+            this.directory.mkdirs();
+            Files.move(out, Paths.get(getOutFileName()),
+                    StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Writes the result of the run, from memory or the out file, to a file.
+     * @param f - the file to write to
+     * @throws IOException if the result can not be copied
+     */
+    public void saveResult(final File f) throws IOException
+    {
+        if (this.output != null)
+        {
+            Files.write(f.toPath(), this.output);
+        }
+        else
+        {
+            Files.copy(Paths.get(getOutFileName()), f.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @return a stream of the content of the chunk, from memory or the in file
+     * @throws IOException if the in file can not be opened
+     */
+    public InputStream openInput() throws IOException
+    {
+        if (this.content != null)
+        {
+            return new ByteArrayInputStream(this.content);
+        }
+        return new FileInputStream(getInFileName());
+    }
+
+    /**
+     * @return a stream of the raw result of the run, header included, from
+     * memory or the out file
+     * @throws IOException if the out file can not be opened
+     */
+    public InputStream openOutput() throws IOException
+    {
+        final byte[] out = this.output;
+        if (out != null)
+        {
+            return new ByteArrayInputStream(out);
+        }
+        return new FileInputStream(getOutFileName());
+    }
+
+    /**
+     * Writes a result kept in memory to the out file, for merges that read
+     * the out files themselves.
+     */
+    public void spill()
+    {
+        if (this.output == null)
+        {
+            return;
+        }
+
+        this.directory.mkdirs();
+        try (final FileOutputStream fos = 
+                new FileOutputStream(getOutFileName()))
+        {
+            fos.write(this.output);
+            this.output = null;
+        }
+        catch (IOException e)
+        {
+            LOG.error("spill: " + e.getMessage());
+        }
+    }
+
     /**
      * @return the directory where the content is saved
      */
@@ -97,9 +534,32 @@ public final class Chunk implements Comparable<Chunk>
     public void clean()
     {
         delete(this.directory);
+        this.content = null;
+        this.output = null;
         this.runtime = 0;
     }
 
+    /**
+     * Adds up the size of a file or of the files in a directory.
+     *
+     * @param file - the file or directory
+     * @return the size in bytes
+     */
+    private static long size(final File file)
+    {
+        final File[] files = file.listFiles();
+        if (files == null)
+        {
+            return file.length();
+        }
+        long total = 0;
+        for (final File f : files)
+        {
+            total += size(f);
+        }
+        return total;
+    }
+
     /**
      * Recursively deletes file system rooted at file.
      *
@@ -125,8 +585,7 @@ public final class Chunk implements Comparable<Chunk>
     {
         final StringBuilder sb = new StringBuilder();
         
-        try(final BufferedReader br = 
-                new BufferedReader(new FileReader(getOutFileName())))
+        try(final BufferedReader br = new BufferedReader(openResult()))
         {
             // Read the header lines
             for (int i = 0; i < headerLines; i++)
@@ -150,8 +609,7 @@ public final class Chunk implements Comparable<Chunk>
     {
         final StringBuilder sb = new StringBuilder();
         
-        try(final BufferedReader br = 
-                new BufferedReader(new FileReader(getOutFileName())))
+        try(final BufferedReader br = new BufferedReader(openResult()))
         {
             // Skip the header lines
             for (int i = 0; i < headerLines; i++)
@@ -176,6 +634,281 @@ public final class Chunk implements Comparable<Chunk>
         return sb.toString();
     }
 
+    /**
+     * @return a reader of the result, from memory or the out file
+     * @throws IOException if the out file can not be opened
+     */
+    private Reader openResult() throws IOException
+    {
+        // The result may be spilled at the same time
+        final byte[] out = this.output;
+        if (out != null)
+        {
+            return new InputStreamReader(new ByteArrayInputStream(out));
+        }
+        return new FileReader(getOutFileName());
+    }
+
+    /**
+     * Copies the result of the run on the chunk to a channel without reading
+     * it into memory. The header lines are skipped and a newline is added if
+     * the result does not end with one. The rest is handed to the channel as
+     * is with <code>FileChannel.transferTo</code>, unless it has a '\r', in
+     * which case it is copied through a buffer and every "\r\n" or "\r" is
+     * turned into "\n" on the way, the same bytes as <code>getResult()</code>.
+     *
+     * @param out - the channel to write the result to
+     * @throws IOException if the output file can not be read or the channel
+     * can not be written
+     */
+    public void transferResult(final WritableByteChannel out) 
+        throws IOException
+    {
+        // The result may be spilled at the same time
+        final byte[] kept = this.output;
+        if (kept != null)
+        {
+            // Small enough to have been kept in memory
+            final int start = skipHeader(kept);
+            if (start >= kept.length)
+            {
+                return;
+            }
+            if (hasCr(kept, start, kept.length))
+            {
+                copyLines(Channels.newChannel(new ByteArrayInputStream(kept,
+                                start, kept.length - start)), out,
+                        ByteBuffer.allocate(BUFFER_SIZE));
+                return;
+            }
+            out.write(ByteBuffer.wrap(kept, start, kept.length - start));
+            if (kept[kept.length - 1] != '\n')
+            {
+                out.write(ByteBuffer.wrap(new byte[] {'\n'}));
+            }
+            return;
+        }
+
+        try (final FileChannel in = FileChannel.open(
+                    Paths.get(getOutFileName()), StandardOpenOption.READ))
+        {
+            final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+            final long start = skipHeader(in, buf);
+            final long size = in.size();
+            if (start >= size)
+            {
+                return;
+            }
+
+            if (hasCr(in, start, buf))
+            {
+                in.position(start);
+                copyLines(in, out, buf);
+                return;
+            }
+
+            long pos = start;
+            while (pos < size)
+            {
+                pos += in.transferTo(pos, size - pos, out);
+            }
+
+            // Every line of the result ends with a newline
+            buf.clear();
+            buf.limit(1);
+            in.read(buf, size - 1);
+            if (buf.get(0) != '\n')
+            {
+                out.write(ByteBuffer.wrap(new byte[] {'\n'}));
+            }
+        }
+    }
+
+    /**
+     * Finds where the result starts in a result kept in memory.
+     *
+     * @param b - the result
+     * @return the index of the first byte after the header lines
+     */
+    private static int skipHeader(final byte[] b)
+    {
+        int pos = 0;
+        int lines = 0;
+        while (lines < headerLines && pos < b.length)
+        {
+            final byte c = b[pos];
+            pos++;
+            if (c == '\r' || c == '\n')
+            {
+                lines++;
+            }
+            if (c == '\r' && pos < b.length && b[pos] == '\n')
+            {
+                pos++;
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * Finds where the result starts in the output file.
+     *
+     * @param in - the output file
+     * @param buf - a buffer to read with
+     * @return the position of the first byte after the header lines
+     * @throws IOException if the output file can not be read
+     */
+    private static long skipHeader(final FileChannel in, final ByteBuffer buf)
+        throws IOException
+    {
+        long pos = 0;
+        int lines = 0;
+        boolean cr = false;
+        boolean done = headerLines == 0;
+        while (!done)
+        {
+            buf.clear();
+            final int n = in.read(buf, pos);
+            if (n <= 0)
+            {
+                break;
+            }
+
+            for (int i = 0; i < n && !done; i++)
+            {
+                final byte b = buf.get(i);
+                if (cr && b == '\n')
+                {
+                    // The rest of a \r\n line ending
+                    cr = false;
+                    pos++;
+                }
+                else if (lines == headerLines)
+                {
+                    done = true;
+                }
+                else
+                {
+                    cr = b == '\r';
+                    if (cr || b == '\n')
+                    {
+                        lines++;
+                    }
+                    pos++;
+                    done = lines == headerLines && !cr;
+                }
+            }
+        }
+        return pos;
+    }
+
+    /**
+     * @param b - a result kept in memory
+     * @param from - the first byte to look at
+     * @param to - the byte after the last one to look at
+     * @return true iff there is a '\r' between the two
+     */
+    private static boolean hasCr(final byte[] b, final int from, final int to)
+    {
+        for (int i = from; i < to; i++)
+        {
+            if (b[i] == '\r')
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Looks for a '\r' in the output file, a buffer at a time. The file was
+     * just written, so this reads it from the page cache, and it stops at the
+     * first one found.
+     *
+     * @param in - the output file
+     * @param from - the position to start looking at
+     * @param buf - a buffer with a backing array to read with
+     * @return true iff there is a '\r' from the position on
+     * @throws IOException if the output file can not be read
+     */
+    private static boolean hasCr(final FileChannel in, final long from,
+            final ByteBuffer buf) throws IOException
+    {
+        final byte[] b = buf.array();
+        long pos = from;
+        buf.clear();
+        int n = in.read(buf, pos);
+        while (n > 0)
+        {
+            if (hasCr(b, 0, n))
+            {
+                return true;
+            }
+            pos += n;
+            buf.clear();
+            n = in.read(buf, pos);
+        }
+        return false;
+    }
+
+    /**
+     * Copies the rest of a channel to another a buffer at a time, ending every
+     * line with a newline like <code>BufferedReader.readLine</code> would.
+     *
+     * @param in - the channel to copy from
+     * @param out - the channel to copy to
+     * @param buf - a buffer to read with
+     * @throws IOException if the channel can not be read or the other can not
+     * be written
+     */
+    private static void copyLines(final ReadableByteChannel in,
+            final WritableByteChannel out, final ByteBuffer buf)
+        throws IOException
+    {
+        final ByteBuffer lines = ByteBuffer.allocate(buf.capacity());
+        boolean cr = false;
+        byte last = '\n';
+        buf.clear();
+        int n = in.read(buf);
+        while (n >= 0)
+        {
+            for (int i = 0; i < n; i++)
+            {
+                final byte b = buf.get(i);
+                if (!(cr && b == '\n'))
+                {
+                    cr = b == '\r';
+                    if (cr)
+                    {
+                        last = '\n';
+                    }
+                    else
+                    {
+                        last = b;
+                    }
+                    lines.put(last);
+                }
+                else
+                {
+                    cr = false;
+                }
+            }
+            lines.flip();
+            while (lines.hasRemaining())
+            {
+                out.write(lines);
+            }
+            lines.clear();
+            buf.clear();
+            n = in.read(buf);
+        }
+
+        if (last != '\n')
+        {
+            out.write(ByteBuffer.wrap(new byte[] {'\n'}));
+        }
+    }
+
     /**
      * Creates the output file for use my the worker.
      *
@@ -227,12 +960,20 @@ public final class Chunk implements Comparable<Chunk>
     }
 
     /**
+     * Orders the chunks so the most expensive one comes first. Chunks with the
+     * same cost keep their input order.
+     *
      * {@inheritDoc}
      */
     @Override 
     public int compareTo(final Chunk c) 
     {
-        return 0;
+        int cmp = Double.compare(c.cost, this.cost);
+        if (cmp == 0)
+        {
+            cmp = Integer.compare(this.index, c.index);
+        }
+        return cmp;
     }
 
     /**
@@ -1,14 +1,19 @@
 package edu.unh.schwartz.epframework;
 
+import edu.unh.schwartz.epframework.worker.ChunkListener;
+import edu.unh.schwartz.epframework.worker.ChunkScheduler;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.concurrent.PriorityBlockingQueue;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -23,7 +28,8 @@ public final class ChunkManager
     {
         DEFAULT,
         JAVA,
-        EXTERNAL
+        EXTERNAL,
+        STREAMING
     }
 
     /**
@@ -42,11 +48,6 @@ public final class ChunkManager
      */
     private static final String EXTERNAL_MERGE_EXEC_NAME = "./merger";
 
-    /**
-     * The root diractory for the chunks.
-     */
-    private static final String ROOTDIR = "/tmp/";
-
     /**
      * The pattern used to split the input file.
      */
@@ -62,6 +63,48 @@ public final class ChunkManager
      */
     private int headerLines;
 
+    /**
+     * Decides how many records go in each chunk.
+     */
+    private BatchSizer batcher;
+
+    /**
+     * The merge running alongside the workers, if the streaming merge is used.
+     */
+    private StreamingMerge streamer;
+
+    /**
+     * True iff the content of new chunks is kept in memory instead of written
+     * to in files.
+     */
+    private boolean inMemory;
+
+    /**
+     * Finds the chunks that do not have to be run, or null.
+     */
+    private ResultCache cache;
+
+    /**
+     * Decides where the directory of each chunk goes.
+     */
+    private ScratchSpace scratch;
+
+    /**
+     * Records the run so it can be resumed, or null.
+     */
+    private Journal journal;
+
+    /**
+     * The number of chunk directories named so far, which keeps the names of
+     * chunks with the same content apart.
+     */
+    private final AtomicInteger named = new AtomicInteger();
+
+    /**
+     * Estimates the cost of each chunk, or null to use the input size.
+     */
+    private RuntimeModel model;
+
     /**
      * Constructs a manipulator with the default pattern and 0 header lines.
      */
@@ -92,80 +135,357 @@ public final class ChunkManager
     {
         this.pattern = Pattern.compile(regex);
         this.headerLines = headerLines;
+        this.batcher = new BatchSizer(1, 0, false);
+    }
+
+    /**
+     * Set how records are packed into chunks. By default every record gets its
+     * own chunk.
+     *
+     * @param batcher - decides how many records go in each chunk
+     */
+    void setBatchSizer(final BatchSizer batcher)
+    {
+        this.batcher = batcher;
     }
 
     /**
-     * Splits the file and creates chunks.
+     * Set the model used to estimate the cost of each chunk.
+     *
+     * @param model - the model
+     */
+    void setRuntimeModel(final RuntimeModel model)
+    {
+        this.model = model;
+    }
+
+    /**
+     * @return the sizer that decides how many records go in each chunk
+     */
+    BatchSizer getBatchSizer()
+    {
+        return this.batcher;
+    }
+
+    /**
+     * Splits the file and creates chunks. Each chunk is handed to the queue as
+     * soon as its input file is written so the workers can start on it while
+     * the rest of the file is still being split.
      *
      * @param fileName - the name of the file
+     * @param queue - the queue to hand the chunks to
      * @throws IOException - when there is any kind of problem with the input
+     * @throws InterruptedException - if interrupted while waiting on the queue
      */
-    public void split(final String fileName) throws IOException 
+    public void split(final String fileName, final ChunkScheduler queue) 
+        throws IOException, InterruptedException
     {
         this.chunks = new ArrayList<Chunk>();
 
+        // The record being read and the full records not yet in a chunk
         StringBuilder sb = new StringBuilder();
+        StringBuilder batch = new StringBuilder();
+        int records = 0;
+
+        // The sizes of both once written, which the chunk size is in
+        long recordBytes = 0;
+        long batchBytes = 0;
         
         final File f = new File(fileName);
-        final BufferedReader reader = new BufferedReader(new FileReader(f));
-        String line = reader.readLine();
-        while (line != null)
+        try (final BufferedReader reader = 
+                new BufferedReader(new FileReader(f)))
         {
-            sb.append(line);
-            if (pattern.matcher(line).matches())
+            String line = reader.readLine();
+            while (line != null)
             {
-                // Save the chunk
-                final String content = sb.toString();
-                final String name = Integer.toString(content.hashCode());
-
-                // Make a directory for that file
-                final File dir = new File(ROOTDIR + name);
-                dir.mkdir();
-
-                // Write the content to a file
-                final PrintWriter inWriter = 
-                    new PrintWriter(dir.getAbsolutePath() + "/in");
-                inWriter.println(content);
-                inWriter.close();
+                sb.append(line);
+                recordBytes += line.getBytes().length;
+                if (pattern.matcher(line).matches())
+                {
+                    // Add the record to the batch
+                    if (records > 0)
+                    {
+                        batch.append("\n");
+                        batchBytes++;
+                    }
+                    batch.append(sb);
+                    batchBytes += recordBytes;
+                    records++;
+                    sb = new StringBuilder();
+                    recordBytes = 0;
 
-                this.chunks.add(new Chunk(name, dir));
+                    // Save the chunk once it is full
+                    if (this.batcher.isFull(records, batchBytes))
+                    {
+                        this.batcher.chunkMade();
+                        addChunk(makeChunk(batch.toString(), records,
+                                    batchBytes), queue);
+                        batch = new StringBuilder();
+                        batchBytes = 0;
+                        records = 0;
+                    }
+                }
+                else
+                {
+                    sb.append("\n");
+                    recordBytes++;
+                }
 
-                sb = new StringBuilder();
-            }
-            else
-            {
-                sb.append("\n");
+                line = reader.readLine();
             }
+        }
 
-            line = reader.readLine();
+        // Save the records left over in a partial batch
+        if (records > 0)
+        {
+            addChunk(makeChunk(batch.toString(), records, batchBytes),
+                    queue);
         }
     }
 
+    /**
+     * Splits the file the same way as <code>split</code> but memory-maps it and
+     * uses all of the cores to find the records and write their input files.
+     * The chunks are still handed to the queue in the order of the input.
+     *
+     * @param fileName - the name of the file
+     * @param queue - the queue to hand the chunks to
+     * @throws IOException - when there is any kind of problem with the input
+     * @throws InterruptedException - if interrupted while waiting on the queue
+     */
+    public void splitParallel(final String fileName, 
+            final ChunkScheduler queue) throws IOException, InterruptedException
+    {
+        this.chunks = new ArrayList<Chunk>();
+
+        final ParallelSplitter ps = new ParallelSplitter(this, this.pattern,
+                Runtime.getRuntime().availableProcessors());
+        ps.split(new File(fileName), queue);
+    }
+
     /**
      * Make chunks for the pre-split input files.
      * @param dir - the directory of pre-split files
+     * @param queue - the queue to hand the chunks to
      * @throws IOException if there is any problem with the files in the
      * directory
+     * @throws InterruptedException - if interrupted while waiting on the queue
      */
-    public void splitFiles(final String dir) throws IOException
+    public void splitFiles(final String dir, final ChunkScheduler queue) 
+        throws IOException, InterruptedException
     {
         this.chunks = new ArrayList<Chunk>();
 
         final File directory = new File(dir);
         for (File i : directory.listFiles())
         {
-            final File d = new File(ROOTDIR + i.getName());
+            final File d = this.scratch.newDirectory(i.getName(), i.length());
             d.mkdir();
-            this.chunks.add(new Chunk(i, d));
+            addChunk(new Chunk(i, d), queue);
+        }
+    }
+
+    /**
+     * Creates the directory for a chunk and writes its input file.
+     *
+     * @param content - the records that make up the chunk
+     * @param records - the number of records in the content
+     * @param size - the size of the content in bytes, as measured by the
+     * split
+     * @return the new chunk
+     * @throws FileNotFoundException if the input file can not be created
+     */
+    Chunk makeChunk(final String content, final int records, final long size)
+        throws FileNotFoundException
+    {
+        final long start = Trace.now();
+        final String name = content.hashCode() + "-" 
+            + this.named.getAndIncrement();
+        final File dir = this.scratch.newDirectory(name, size);
+        final Chunk c = new Chunk(name, dir);
+        c.setRecords(records);
+
+        if (this.inMemory || this.cache != null)
+        {
+            final byte[] bytes = (content + System.lineSeparator()).getBytes();
+            if (this.cache != null)
+            {
+                c.setKey(this.cache.key(bytes));
+            }
+
+            if (this.inMemory)
+            {
+                // The directory is only made if the result has to be spilled
+                c.setContent(bytes);
+                Trace.record("split", c, start);
+                return c;
+            }
+        }
+
+        // Make a directory for that file
+        dir.mkdir();
+
+        // Write the content to a file
+        final PrintWriter inWriter = 
+            new PrintWriter(dir.getAbsolutePath() + "/in");
+        inWriter.println(content);
+        inWriter.close();
+
+        Trace.record("split", c, start);
+        return c;
+    }
+
+    /**
+     * Records a new chunk in input order, estimates its cost and hands it to
+     * the workers.
+     *
+     * @param c - the new chunk
+     * @param queue - the queue to hand the chunk to
+     * @throws InterruptedException - if interrupted while waiting on the queue
+     */
+    void addChunk(final Chunk c, final ChunkScheduler queue) 
+        throws InterruptedException
+    {
+        c.setIndex(this.chunks.size());
+        if (this.model == null)
+        {
+            c.setCost(c.getInputSize());
+        }
+        else
+        {
+            c.setCost(this.model.estimate(c));
+        }
+
+        this.chunks.add(c);
+        if (this.journal != null && this.journal.split(c))
+        {
+            // Finished by an earlier attempt at the run
+            resumed(c);
+            return;
+        }
+
+        if (this.cache != null && c.getKey() == null)
+        {
+            try
+            {
+                c.setKey(this.cache.key(c));
+            }
+            catch (IOException e)
+            {
+                LOG.error("addChunk: " + e.getMessage());
+            }
+        }
+
+        // Only run the chunks whose result is not already known
+        if (c.getKey() == null || !this.cache.lookup(c))
+        {
+            Trace.queued(c);
+            queue.put(c);
         }
     }
     
     /**
-     * @return the chunks as a thread-safe queue
+     * Passes on a chunk taken from an earlier attempt at the run to those who
+     * would have heard about it from a worker.
+     *
+     * @param c - the chunk
+     */
+    private void resumed(final Chunk c)
+    {
+        if (this.cache != null)
+        {
+            if (c.getKey() == null)
+            {
+                try
+                {
+                    c.setKey(this.cache.key(c));
+                }
+                catch (IOException e)
+                {
+                    LOG.error("resumed: " + e.getMessage());
+                }
+            }
+            this.cache.chunkFinished(c);
+        }
+        if (this.streamer != null)
+        {
+            this.streamer.chunkFinished(c);
+        }
+    }
+
+    /**
+     * @return the number of chunks made by the last split
+     */
+    public int getNumberOfChunks()
+    {
+        return this.chunks.size();
+    }
+
+    /**
+     * Set whether the content of new chunks is kept in memory instead of
+     * written to in files, for executables that read their chunk from stdin.
+     *
+     * @param inMemory - true iff the content should be kept in memory
+     */
+    public void setInMemory(final boolean inMemory)
+    {
+        this.inMemory = inMemory;
+    }
+
+    /**
+     * Set where the directories of the chunks go. Must be set before the
+     * split.
+     *
+     * @param scratch - the scratch space for the run
+     */
+    void setScratchSpace(final ScratchSpace scratch)
+    {
+        this.scratch = scratch;
+    }
+
+    /**
+     * Set the journal that records the run so it can be resumed.
+     *
+     * @param journal - the journal
+     */
+    void setJournal(final Journal journal)
+    {
+        this.journal = journal;
+    }
+
+    /**
+     * Set the cache used to skip chunks whose result is already known.
+     *
+     * @param cache - the cache
+     */
+    void setResultCache(final ResultCache cache)
+    {
+        this.cache = cache;
+    }
+
+    /**
+     * Starts merging before the workers run if the merge method allows it.
+     * The streaming merge writes each result as soon as it and the results
+     * before it are done.
+     *
+     * @param fileName - the name of the output file
+     * @param mergeMethod - the type of merge the user specified
+     * @return the listener to tell about finished chunks, or null if the merge
+     * method only runs after the workers
      */
-    public PriorityBlockingQueue<Chunk> getChunks()
+    public ChunkListener startMerge(final String fileName, 
+            final int mergeMethod)
     {
-        return new PriorityBlockingQueue<Chunk>(this.chunks);
+        if (MergeMethod.values()[mergeMethod] == MergeMethod.STREAMING)
+        {
+            this.streamer = new StreamingMerge(fileName);
+            this.streamer.start();
+            if (this.cache != null)
+            {
+                this.cache.addListener(this.streamer);
+            }
+        }
+        return this.streamer;
     }
 
     /**
@@ -176,6 +496,7 @@ public final class ChunkManager
      */
     public void merge(final String fileName, final int mergeMethod)
     {
+        final long start = Trace.now();
         switch (MergeMethod.values()[mergeMethod])
         {
             case DEFAULT:
@@ -185,27 +506,44 @@ public final class ChunkManager
                 customMerge(fileName);
                 break;
             case EXTERNAL:
+                for (final Chunk c : succeeded())
+                {
+                    c.spill();
+                }
                 externalMerge(fileName);
                 break;
+            case STREAMING:
+                this.streamer.finish(this.chunks);
+                break;
             default:
                 LOG.fatal("Illegal Merge Method");
                 assert(false);
         }
+        Trace.record("merge", null, start);
     }
 
     private void defaultMerge(final String fileName)
     {
         LOG.info("Using Default Merge");
-        try(final PrintWriter writer = new PrintWriter(fileName))
+        try(final FileOutputStream fos = new FileOutputStream(fileName);
+            final FileChannel out = fos.getChannel())
         {
-            writer.print(this.chunks.get(0).getHeader());
+            // The header of a failed chunk may be missing or wrong
+            final List<Chunk> done = succeeded();
+            if (!done.isEmpty())
+            {
+                out.write(ByteBuffer.wrap(done.get(0).getHeader().getBytes()));
+            }
 
-            for (final Chunk c : this.chunks)
+            // Copy each result straight from its out file
+            for (final Chunk c : done)
             {
-                writer.print(c.getResult());
+                final long start = Trace.now();
+                c.transferResult(out);
+                Trace.record("write", c, start);
             }
         }
-        catch (FileNotFoundException e)
+        catch (IOException e)
         {
             LOG.fatal("merge: " + e.getMessage());
         }
@@ -214,7 +552,7 @@ public final class ChunkManager
     private void customMerge(final String fileName)
     {
         LOG.info("Using Custom Merge");
-        CustomMerge.merge(fileName, this.chunks);
+        CustomMerge.merge(fileName, succeeded());
     }
 
     private void externalMerge(final String fileName) 
@@ -224,7 +562,7 @@ public final class ChunkManager
         // Prepare the args
         final List<String> commands = new ArrayList<String>();
         commands.add(EXTERNAL_MERGE_EXEC_NAME);
-        for (final Chunk c : this.chunks)
+        for (final Chunk c : succeeded())
         {
             commands.add(c.getDirectory().getAbsolutePath());
         }
@@ -248,6 +586,63 @@ public final class ChunkManager
         }
     }
     
+    /**
+     * @return the chunks that did not fail, in order
+     */
+    private List<Chunk> succeeded()
+    {
+        final List<Chunk> list = new ArrayList<Chunk>(this.chunks.size());
+        for (final Chunk c : this.chunks)
+        {
+            if (!c.hasFailed())
+            {
+                list.add(c);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Reports the chunks that failed for good and were left out of the
+     * merge, in a CSV file 'failures.csv' in the output directory.
+     * @param outDir - the directory to output the file to
+     * @return the number of chunks that failed
+     */
+    public int reportFailures(final String outDir)
+    {
+        final List<Chunk> failed = new ArrayList<Chunk>();
+        for (final Chunk c : this.chunks)
+        {
+            if (c.hasFailed())
+            {
+                failed.add(c);
+            }
+        }
+        if (failed.isEmpty())
+        {
+            return 0;
+        }
+
+        LOG.warn(failed.size() + " of " + this.chunks.size()
+                + " chunks failed and were left out of the output");
+        try(final PrintWriter out = new PrintWriter(outDir + "/failures.csv"))
+        {
+            out.println("Chunk #,Index,Reason");
+            for (final Chunk c : failed)
+            {
+                // Keep the reason in one field
+                final String reason = c.getFailure().replace('"', '\'');
+                out.println(c.hashCode() + "," + c.getIndex() + ",\""
+                        + reason + "\"");
+            }
+        }
+        catch (IOException e)
+        {
+            LOG.error("reportFailures: " + e.getMessage());
+        }
+        return failed.size();
+    }
+
     /**
      * Cleans up the chunks and temp out files and directories.
      */
@@ -255,8 +650,11 @@ public final class ChunkManager
     {
         for (final Chunk c : this.chunks)
         {
+            final long start = Trace.now();
             c.clean();
+            Trace.record("cleanup", c, start);
         }
+        this.scratch.clean();
     }
 
     /**
@@ -271,7 +669,9 @@ public final class ChunkManager
         try(final PrintWriter statsOut = new PrintWriter(outDir + "/stats.csv"))
         {
             final String comma = ",";
-            final String header = "Chunk #,Runtime(ms)";
+            final String header = "Chunk #,Runtime(ms),Records,In Bytes,"
+                + "Out Bytes,User CPU(ms),System CPU(ms),Peak RSS,Bytes Read,"
+                + "Bytes Written";
             statsOut.print(workerStats);
             LOG.debug(workerStats);
 
@@ -282,6 +682,14 @@ public final class ChunkManager
                 final Chunk c = this.chunks.get(i);
                 final StringBuilder sb = new StringBuilder();
                 sb.append(c.hashCode()).append(comma).append(c.getRuntime());
+                sb.append(comma).append(c.getRecords());
+                sb.append(comma).append(c.getInputSize());
+                sb.append(comma).append(c.getOutputSize());
+                sb.append(comma).append(c.getUserTime());
+                sb.append(comma).append(c.getSystemTime());
+                sb.append(comma).append(c.getPeakRss());
+                sb.append(comma).append(c.getBytesRead());
+                sb.append(comma).append(c.getBytesWritten());
                 statsOut.println(sb.toString());
                 LOG.debug(sb.toString());
             }
@@ -0,0 +1,61 @@
+package edu.unh.schwartz.epframework;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Makes the SHA-256 digests that files kept between runs are named and
+ * checked by.
+ */
+final class Digests
+{
+    /**
+     * The digest algorithm.
+     */
+    private static final String ALGORITHM = "SHA-256";
+
+    /**
+     * The digits used to print the digests.
+     */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Not instantiable.
+     */
+    private Digests()
+    {
+    }
+
+    /**
+     * @return a new digest
+     */
+    static MessageDigest create()
+    {
+        try
+        {
+            return MessageDigest.getInstance(ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // Every Java platform is required to have SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Prints a digest in hexadecimal.
+     *
+     * @param hash - the digest
+     * @return the digest as a string of hex digits
+     */
+    static String toHex(final byte[] hash)
+    {
+        final char[] out = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++)
+        {
+            out[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+            out[2 * i + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(out);
+    }
+}
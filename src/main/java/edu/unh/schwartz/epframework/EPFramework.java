@@ -2,9 +2,13 @@ package edu.unh.schwartz.epframework;
 
 import edu.unh.schwartz.epframework.config.Configuration;
 import edu.unh.schwartz.epframework.config.ConfigWizard;
+import edu.unh.schwartz.epframework.worker.Agent;
+import edu.unh.schwartz.epframework.worker.ChunkListener;
+import edu.unh.schwartz.epframework.worker.ChunkQueue;
+import edu.unh.schwartz.epframework.worker.ChunkScheduler;
+import edu.unh.schwartz.epframework.worker.WorkStealingScheduler;
 import edu.unh.schwartz.epframework.worker.WorkerPool;
 import java.io.IOException;
-import java.util.concurrent.PriorityBlockingQueue;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -38,47 +42,197 @@ final class EPFramework
     {
         Chunk.setHeaderLines(config.getNumHeaderLines());
 
-        ChunkManager cm = null;
-        try
+        final ChunkManager cm;
+        if (config.getInputFile() == null)
+        {
+            cm = new ChunkManager(config.getNumHeaderLines());
+        }
+        else
+        {
+            cm = new ChunkManager(config.getSplitPattern(), 
+                    config.getNumHeaderLines());
+        }
+
+        // Pick up where an interrupted run left off. Results in output
+        // directories are not journaled.
+        final Journal journal;
+        String runId = null;
+        if (config.useJournal() && !config.getOutputSetting())
         {
-            if (config.getInputFile() == null)
+            try
             {
-                // Make a chunk for each presplit file
-                LOG.info("Loading chunks from directory");
-                cm = new ChunkManager(config.getNumHeaderLines());
-                cm.splitFiles(config.getInputDirectory());
+                journal = new Journal(config.getOutputDirectory() + "/journal",
+                        config);
             }
-            else
+            catch (IOException e)
             {
-                // Read in the input file and get the chunks
-                LOG.info("Reading chunks from input file");
-                cm = new ChunkManager(config.getSplitPattern(), 
-                        config.getNumHeaderLines());
-
-                cm.split(config.getInputFile());
+                LOG.fatal("journal: " + e.getMessage());
+                return;
             }
+            runId = journal.getRunId();
+            cm.setJournal(journal);
+        }
+        else
+        {
+            journal = null;
+        }
+
+        // Spread the chunks over the scratch directories
+        try
+        {
+            cm.setScratchSpace(new ScratchSpace(
+                        config.getScratchDirectories(),
+                        config.getFastScratchDirectory(),
+                        config.getFastScratchSize(),
+                        config.getFastScratchReserve(), runId));
         }
         catch (IOException e)
+        {
+            LOG.fatal("scratch: " + e.getMessage());
+            return;
+        }
+
+        // Keep the chunks off the disk if they are piped through the executable
+        cm.setInMemory(config.usePipeMode() && !config.useCoprocessMode());
+
+        // Skip the chunks whose results are already known. Results in output
+        // directories are not cached.
+        final ResultCache cache;
+        if ((config.useResultCache() || config.useDeduplication())
+                && !config.getOutputSetting())
+        {
+            String cacheDir = null;
+            if (config.useResultCache())
+            {
+                cacheDir = config.getCacheDirectory();
+            }
+            cache = new ResultCache(cacheDir, config);
+            cm.setResultCache(cache);
+            if (journal != null)
+            {
+                cache.addListener(journal);
+            }
+        }
+        else
+        {
+            cache = null;
+        }
+
+        // Pack the records into chunks
+        final BatchSizer batcher = new BatchSizer(config.getRecordsPerChunk(),
+                config.getChunkSize(), config.useAdaptiveBatching());
+        cm.setBatchSizer(batcher);
+        if (journal != null)
+        {
+            batcher.replay(journal.getBoundaries());
+        }
+
+        // Run the chunks expected to take longest first
+        final RuntimeModel model = new RuntimeModel(config.getModelDirectory(),
+                config.getExecutable(), config.getArguments());
+        cm.setRuntimeModel(model);
+
+        if (config.makeTrace())
+        {
+            Trace.start(config.getOutputDirectory() + "/trace.json");
+        }
+
+        // Split on its own thread so the workers start on the first chunk
+        // instead of waiting for the whole input to be split
+        int queueSize = config.getQueueSize();
+        if (config.useAdaptiveBatching())
+        {
+            // Keep the splitter close behind the workers so new batch sizes
+            // take effect quickly
+            queueSize = Math.min(queueSize, 2 * config.getPoolSize());
+        }
+        final ChunkScheduler chunks;
+        if (config.useWorkStealing())
+        {
+            chunks = new WorkStealingScheduler(config.getPoolSize(),
+                    config.getStealBlockSize(), queueSize);
+        }
+        else
+        {
+            chunks = new ChunkQueue(queueSize);
+        }
+        final Splitter splitter = new Splitter(cm, config, chunks);
+        final WorkerPool wp = new WorkerPool(config, chunks);
+        wp.setPeakRss(model.getPeakRss());
+        wp.addListener(batcher);
+        wp.addListener(model);
+
+        // Journal a chunk before the cache hands its result to the chunks
+        // with the same content, so they can point to its out file
+        if (journal != null)
+        {
+            wp.addListener(journal);
+        }
+        if (cache != null)
+        {
+            wp.addListener(cache);
+        }
+
+        // Merge alongside the workers if the merge method allows it
+        final String outFile = config.getOutputDirectory() + "/output";
+        final ChunkListener merger = cm.startMerge(outFile, 
+                config.getMergeMethod());
+        if (merger != null)
+        {
+            wp.addListener(merger);
+        }
+        splitter.start();
+
+        // Start the workers
+        wp.start();
+
+        try
+        {
+            splitter.join();
+        }
+        catch (InterruptedException e)
         {
             LOG.fatal("split: " + e.getMessage());
             return;
         }
 
-        // Get the chunks made my the chunkmanager
-        final PriorityBlockingQueue<Chunk> chunks = cm.getChunks();
-        if (chunks.size() == 0)
+        if (splitter.hasFailed())
+        {
+            return;
+        }
+        else if (cm.getNumberOfChunks() == 0)
         {
             LOG.fatal("Incorrect chunk pattern or empty input file");
             return;
         }
 
-        // Start the workers
-        final WorkerPool wp = new WorkerPool(config, chunks);
-        wp.start();
+        // Learn from this run's runtimes for the next one
+        model.setPeakRss(wp.getPeakRss());
+        model.save();
 
         // Merge the results back together
-        cm.merge(config.getOutputDirectory() + "/output", 
-            config.getMergeMethod());
+        cm.merge(outFile, config.getMergeMethod());
+        final int failed = cm.reportFailures(config.getOutputDirectory());
+        if (cache != null)
+        {
+            cache.trim();
+        }
+        boolean keep = false;
+        if (journal != null)
+        {
+            if (failed == 0)
+            {
+                journal.finish();
+            }
+            else
+            {
+                // Failed chunks are not journaled, so running again
+                // retries only them
+                LOG.info("Keeping the journal so that running again retries "
+                        + "the failed chunks");
+                keep = true;
+            }
+        }
 
         // Make stats if instructed to 
         if (config.makeStats())
@@ -86,8 +240,12 @@ final class EPFramework
             LOG.info("Printing stats");
             cm.printStats(wp.getStats(), config.getOutputDirectory());
         }
-        LOG.info("Cleaning up");
-        cm.cleanUp();
+        if (!keep)
+        {
+            LOG.info("Cleaning up");
+            cm.cleanUp();
+        }
+        Trace.finish();
     }
 
     /**
@@ -124,11 +282,49 @@ final class EPFramework
                 LOG.fatal("Invalid Configuration File");
             }
         }
+        // Run chunks for a coordinator on another machine
+        else if (args[0].equals("--agent") && args.length <= 3)
+        {
+            runAgent(args);
+        }
         else
         {
             System.err.print("Usage:\n\tTakes only one option args:\n\t\t");
             System.err.print("- The configuration file's location\n\n");
             System.err.println("No arguments will bring up the wizard");
+            System.err.print("\t--agent host:port [workers] runs chunks for ");
+            System.err.println("the coordinator at host:port, with the");
+            System.err.print("\t\tsecret in " + Agent.SECRET_ENV);
+            System.err.println(" if the coordinator has one");
+        }
+    }
+
+    /**
+     * Runs as an agent for a coordinator.
+     *
+     * @param args - --agent, host:port and optionally the number of workers
+     */
+    private static void runAgent(final String[] args)
+    {
+        final int colon = args[1].lastIndexOf(':');
+        int workers = Runtime.getRuntime().availableProcessors();
+        try
+        {
+            if (args.length == 3)
+            {
+                workers = Integer.parseInt(args[2]);
+            }
+            new Agent(args[1].substring(0, colon),
+                    Integer.parseInt(args[1].substring(colon + 1)),
+                    workers, System.getenv(Agent.SECRET_ENV)).run();
+        }
+        catch (NumberFormatException|StringIndexOutOfBoundsException e)
+        {
+            LOG.fatal("Invalid agent address " + args[1]);
+        }
+        catch (IOException e)
+        {
+            LOG.fatal("agent: " + e.getMessage());
         }
     }
 }
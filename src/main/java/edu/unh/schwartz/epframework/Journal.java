@@ -0,0 +1,466 @@
+package edu.unh.schwartz.epframework;
+
+import edu.unh.schwartz.epframework.config.Configuration;
+import edu.unh.schwartz.epframework.worker.ChunkListener;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Append-only record of a run so that an interrupted run can be picked up
+ * where it left off. The journal starts with a line identifying the
+ * configuration, followed by one line per chunk as it is split:
+ *
+ * <pre>split &lt;index&gt; &lt;records&gt; &lt;content hash&gt;</pre>
+ *
+ * and one line per chunk as it finishes:
+ *
+ * <pre>done &lt;index&gt; &lt;size&gt; &lt;crc32&gt; &lt;out file&gt;</pre>
+ *
+ * When a run with the same configuration finds a journal, the input is split
+ * again with the same number of records per chunk. A chunk whose content hash
+ * matches and whose old out file still has the journaled size and checksum
+ * takes that result instead of being run. A chunk that got its result from
+ * the cache is journaled the same way, and one given the result of a chunk
+ * with the same content in the run points to that chunk's out file. The
+ * journal is removed once the run has been merged.
+ */
+final class Journal implements ChunkListener
+{
+    /**
+     * The Log.
+     */
+    private static final Log LOG = LogFactory.getLog(Journal.class);
+
+    /**
+     * The first word of the journal.
+     */
+    private static final String MAGIC = "epframework-journal";
+
+    /**
+     * The size of the buffer used to read the content and the out files.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The journal file.
+     */
+    private final File file;
+
+    /**
+     * The hash of the configuration.
+     */
+    private final String id;
+
+    /**
+     * The chunks of the earlier attempts, by index.
+     */
+    private final Map<Integer, Entry> entries;
+
+    /**
+     * The size, checksum and out file journaled for each result key, for the
+     * chunks given the same result.
+     */
+    private final Map<String, String> results;
+
+    /**
+     * Appends to the journal.
+     */
+    private final PrintWriter out;
+
+    /**
+     * The number of chunks that were picked up from earlier attempts.
+     */
+    private int resumed;
+
+    /**
+     * Opens the journal for a run, reading what earlier attempts with the
+     * same configuration did.
+     *
+     * @param fileName - the journal file
+     * @param config - the configuration of the run
+     * @throws IOException if the journal can not be read or written
+     */
+    Journal(final String fileName, final Configuration config)
+        throws IOException
+    {
+        this.file = new File(fileName);
+        this.id = identify(config);
+        this.entries = new HashMap<Integer, Entry>();
+        this.results = new HashMap<String, String>();
+
+        boolean same = false;
+        if (this.file.exists())
+        {
+            same = load();
+            if (same)
+            {
+                LOG.info("Resuming from " + this.file + " with "
+                        + this.entries.size() + " chunks split");
+            }
+            else
+            {
+                LOG.warn("Starting a new journal, the configuration changed");
+                this.entries.clear();
+            }
+        }
+
+        this.file.getParentFile().mkdirs();
+        this.out = new PrintWriter(new FileWriter(this.file, same));
+        if (!same)
+        {
+            this.out.println(MAGIC + " " + this.id);
+            this.out.flush();
+        }
+    }
+
+    /**
+     * @return a short name for the configuration, so the scratch directories
+     * of the run can be found again
+     */
+    String getRunId()
+    {
+        return this.id.substring(0, 16);
+    }
+
+    /**
+     * @return the number of records in each chunk split by earlier attempts,
+     * in input order
+     */
+    List<Integer> getBoundaries()
+    {
+        final List<Integer> sizes = new ArrayList<Integer>();
+        Entry e = this.entries.get(0);
+        while (e != null)
+        {
+            sizes.add(e.records);
+            e = this.entries.get(sizes.size());
+        }
+        return sizes;
+    }
+
+    /**
+     * Records a chunk that was split and checks whether an earlier attempt
+     * already finished it. If it did, the chunk takes the old result.
+     *
+     * @param c - the chunk, with its index set
+     * @return true iff the chunk does not have to be run
+     */
+    boolean split(final Chunk c)
+    {
+        final String hash;
+        try
+        {
+            hash = hash(c);
+        }
+        catch (IOException e)
+        {
+            LOG.error("split: " + e.getMessage());
+            return false;
+        }
+
+        synchronized (this)
+        {
+            this.out.println("split " + c.getIndex() + " " + c.getRecords()
+                    + " " + hash);
+            this.out.flush();
+        }
+
+        final Entry e = this.entries.get(c.getIndex());
+        if (e == null || e.outFile == null || !e.hash.equals(hash)
+                || !intact(e))
+        {
+            return false;
+        }
+
+        try
+        {
+            c.adoptResult(new File(e.outFile));
+        }
+        catch (IOException ex)
+        {
+            LOG.error("split: " + ex.getMessage());
+            return false;
+        }
+
+        synchronized (this)
+        {
+            this.resumed++;
+        }
+        return true;
+    }
+
+    /**
+     * Records a chunk that finished, with the size and checksum of its out
+     * file. A result kept in memory is written to the out file first. A
+     * chunk given the result of one already journaled points to its out
+     * file instead.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void chunkFinished(final Chunk c)
+    {
+        final String key = c.getKey();
+        if (key != null)
+        {
+            synchronized (this)
+            {
+                final String result = this.results.get(key);
+                if (result != null)
+                {
+                    this.out.println("done " + c.getIndex() + " " + result);
+                    this.out.flush();
+                    return;
+                }
+            }
+        }
+
+        c.spill();
+        final File f = new File(c.getOutFileName());
+        try
+        {
+            final String result = f.length() + " " + checksum(f) + " "
+                + f.getAbsolutePath();
+            synchronized (this)
+            {
+                if (key != null)
+                {
+                    this.results.put(key, result);
+                }
+                this.out.println("done " + c.getIndex() + " " + result);
+                this.out.flush();
+            }
+        }
+        catch (IOException e)
+        {
+            LOG.error("chunkFinished: " + e.getMessage());
+        }
+    }
+
+    /**
+     * A failed chunk is not recorded as done, so a resumed run tries it
+     * again.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void chunkFailed(final Chunk c)
+    {
+        // Nothing to record
+    }
+
+    /**
+     * Closes and removes the journal once the run has been merged.
+     */
+    void finish()
+    {
+        LOG.info(this.resumed + " chunks were resumed");
+        this.out.close();
+        if (!this.file.delete())
+        {
+            LOG.warn("Could not remove " + this.file);
+        }
+    }
+
+    /**
+     * Reads the journal of the earlier attempts.
+     *
+     * @return true iff the journal is for the same configuration
+     * @throws IOException if the journal can not be read
+     */
+    private boolean load() throws IOException
+    {
+        try (final BufferedReader br =
+                new BufferedReader(new FileReader(this.file)))
+        {
+            String line = br.readLine();
+            if (line == null || !line.equals(MAGIC + " " + this.id))
+            {
+                return false;
+            }
+
+            line = br.readLine();
+            while (line != null)
+            {
+                final String[] parts = line.split(" ", 5);
+                try
+                {
+                    if (parts[0].equals("split") && parts.length == 4)
+                    {
+                        final int index = Integer.parseInt(parts[1]);
+                        Entry e = this.entries.get(index);
+                        if (e == null || !e.hash.equals(parts[3]))
+                        {
+                            e = new Entry();
+                            this.entries.put(index, e);
+                        }
+                        e.records = Integer.parseInt(parts[2]);
+                        e.hash = parts[3];
+                    }
+                    else if (parts[0].equals("done") && parts.length == 5)
+                    {
+                        final Entry e =
+                            this.entries.get(Integer.parseInt(parts[1]));
+                        if (e != null)
+                        {
+                            e.size = Long.parseLong(parts[2]);
+                            e.crc = Long.parseLong(parts[3]);
+                            e.outFile = parts[4];
+                        }
+                    }
+                }
+                catch (NumberFormatException e)
+                {
+                    // The last line may have been cut off
+                    LOG.warn("Skipping journal line: " + line);
+                }
+                line = br.readLine();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Checks that an old out file is still the one that was journaled.
+     *
+     * @param e - the journaled chunk
+     * @return true iff the out file has the journaled size and checksum
+     */
+    private static boolean intact(final Entry e)
+    {
+        final File f = new File(e.outFile);
+        try
+        {
+            return f.isFile() && f.length() == e.size && checksum(f) == e.crc;
+        }
+        catch (IOException ex)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Computes the CRC32 of a file.
+     *
+     * @param f - the file
+     * @return the checksum
+     * @throws IOException if the file can not be read
+     */
+    private static long checksum(final File f) throws IOException
+    {
+        final CRC32 crc = new CRC32();
+        final byte[] buf = new byte[BUFFER_SIZE];
+        try (final InputStream in = new FileInputStream(f))
+        {
+            int n = in.read(buf);
+            while (n >= 0)
+            {
+                crc.update(buf, 0, n);
+                n = in.read(buf);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Hashes the content of a chunk.
+     *
+     * @param c - the chunk
+     * @return the hash in hexadecimal
+     * @throws IOException if the content can not be read
+     */
+    private static String hash(final Chunk c) throws IOException
+    {
+        final MessageDigest md = Digests.create();
+        final byte[] buf = new byte[BUFFER_SIZE];
+        try (final InputStream in = c.openInput())
+        {
+            int n = in.read(buf);
+            while (n >= 0)
+            {
+                md.update(buf, 0, n);
+                n = in.read(buf);
+            }
+        }
+        return Digests.toHex(md.digest());
+    }
+
+    /**
+     * Hashes the parts of the configuration that decide the chunks and their
+     * results.
+     *
+     * @param config - the configuration
+     * @return the hash in hexadecimal
+     */
+    private static String identify(final Configuration config)
+    {
+        final StringBuilder sb = new StringBuilder();
+        if (config.getInputFile() == null)
+        {
+            sb.append(new File(config.getInputDirectory()).getAbsolutePath());
+        }
+        else
+        {
+            final File in = new File(config.getInputFile());
+            sb.append(in.getAbsolutePath()).append('\n');
+            sb.append(in.length()).append('\n');
+            sb.append(in.lastModified());
+        }
+        sb.append('\n').append(config.getSplitPattern());
+        sb.append('\n').append(new File(config.getExecutable())
+                .getAbsolutePath());
+        sb.append('\n').append(config.getArguments());
+        sb.append('\n').append(config.usePipeMode());
+        sb.append('\n').append(config.useCoprocessMode());
+        sb.append('\n').append(config.useStdoutResult());
+
+        final MessageDigest md = Digests.create();
+        md.update(sb.toString().getBytes());
+        return Digests.toHex(md.digest());
+    }
+
+    /**
+     * What the journal says about one chunk.
+     */
+    private static final class Entry
+    {
+        /**
+         * The number of records in the chunk.
+         */
+        private int records;
+
+        /**
+         * The hash of the chunk's content.
+         */
+        private String hash;
+
+        /**
+         * The size of the out file.
+         */
+        private long size;
+
+        /**
+         * The CRC32 of the out file.
+         */
+        private long crc;
+
+        /**
+         * The out file, or null if the chunk did not finish.
+         */
+        private String outFile;
+    }
+}
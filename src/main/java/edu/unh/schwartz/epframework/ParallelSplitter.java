@@ -0,0 +1,519 @@
+package edu.unh.schwartz.epframework;
+
+import edu.unh.schwartz.epframework.worker.ChunkScheduler;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.regex.Pattern;
+
+/**
+ * Splits a large input file on several threads. The file is memory-mapped and
+ * cut into byte ranges, and each range is scanned in parallel for the lines
+ * that match the split pattern. The records between those lines are then
+ * written to their chunks' input files in parallel and handed to the
+ * <code>ChunkManager</code> in input order, so the chunks are the same as the
+ * ones made by <code>ChunkManager.split</code>.
+ *
+ * Lines may end with "\n" or "\r\n" and the input must use a charset where
+ * those are single bytes, which holds for ASCII and UTF-8.
+ */
+final class ParallelSplitter
+{
+    /**
+     * The smallest byte range that is scanned by a single task.
+     */
+    private static final long MIN_RANGE = 1 << 20;
+
+    /**
+     * The largest byte range that is scanned by a single task. A scan maps
+     * from its range to the end of the file, and a mapping holds at most
+     * <code>Integer.MAX_VALUE</code> bytes, so this leaves room past the end
+     * of the range for the last line that starts in it.
+     */
+    private static final long MAX_RANGE = 1 << 30;
+
+    /**
+     * The number of chunk writes that may be outstanding per thread.
+     */
+    private static final int WRITES_PER_THREAD = 4;
+
+    /**
+     * The newline byte.
+     */
+    private static final byte LF = '\n';
+
+    /**
+     * The carriage return byte.
+     */
+    private static final byte CR = '\r';
+
+    /**
+     * The manager that the chunks are made for.
+     */
+    private final ChunkManager cm;
+
+    /**
+     * The pattern of the last line of a record.
+     */
+    private final Pattern pattern;
+
+    /**
+     * The number of threads to use.
+     */
+    private final int parallelism;
+
+    /**
+     * The charset the input is read with, the same one that
+     * <code>FileReader</code> uses.
+     */
+    private final Charset charset;
+
+    /**
+     * The input file being split.
+     */
+    private FileChannel channel;
+
+    /**
+     * Constructs a splitter.
+     *
+     * @param cm - the manager that the chunks are made for
+     * @param pattern - the pattern of the last line of a record
+     * @param parallelism - the number of threads to use
+     */
+    ParallelSplitter(final ChunkManager cm, final Pattern pattern,
+            final int parallelism)
+    {
+        this.cm = cm;
+        this.pattern = pattern;
+        this.parallelism = Math.max(1, parallelism);
+        this.charset = Charset.defaultCharset();
+    }
+
+    /**
+     * Splits the file into chunks and hands them to the queue in input order.
+     *
+     * @param file - the input file
+     * @param queue - the queue to hand the chunks to
+     * @throws IOException - when there is any kind of problem with the input
+     * @throws InterruptedException - if interrupted while waiting on the queue
+     */
+    void split(final File file, final ChunkScheduler queue)
+        throws IOException, InterruptedException
+    {
+        final ForkJoinPool pool = new ForkJoinPool(this.parallelism);
+        try (final RandomAccessFile raf = new RandomAccessFile(file, "r"))
+        {
+            this.channel = raf.getChannel();
+            final long size = this.channel.size();
+
+            // Find where every record ends
+            final long range = Math.min(MAX_RANGE, Math.max(MIN_RANGE,
+                    size / (this.parallelism * WRITES_PER_THREAD)));
+            final ScanTask scan = new ScanTask(0, size, size, range);
+            final long[] ends = pool.invoke(scan);
+            if (scan.error != null)
+            {
+                throw scan.error;
+            }
+
+            // Batch and write the records while keeping the chunks in input
+            // order
+            final BatchSizer batcher = this.cm.getBatchSizer();
+            final Deque<WriteTask> pending = new ArrayDeque<WriteTask>();
+            final int window = this.parallelism * WRITES_PER_THREAD;
+            final long[] crlfs = scan.crlfs;
+            long start = 0;
+            long startCrlfs = 0;
+            int records = 0;
+            for (int i = 0; i < ends.length; i++)
+            {
+                records++;
+
+                // Sized as split writes the records, with bare newlines and
+                // none after the last line
+                final long bytes = ends[i] - start - (crlfs[i] - startCrlfs)
+                    - 1;
+                if (batcher.isFull(records, bytes) || i == ends.length - 1)
+                {
+                    batcher.chunkMade();
+                    pending.add((WriteTask) pool.submit(
+                                new WriteTask(start, ends[i], records)));
+                    start = ends[i];
+                    startCrlfs = crlfs[i];
+                    records = 0;
+                }
+
+                if (pending.size() >= window)
+                {
+                    this.cm.addChunk(pending.remove().getChunk(), queue);
+                }
+            }
+
+            while (!pending.isEmpty())
+            {
+                this.cm.addChunk(pending.remove().getChunk(), queue);
+            }
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Maps part of the input file.
+     *
+     * @param from - the offset of the first byte
+     * @param to - the offset past the last byte wanted
+     * @return the mapped bytes, which may stop short of <code>to</code> for
+     * very large mappings
+     * @throws IOException if the file can not be mapped
+     */
+    private MappedByteBuffer map(final long from, final long to)
+        throws IOException
+    {
+        final long length = Math.min(to - from, Integer.MAX_VALUE);
+        return this.channel.map(FileChannel.MapMode.READ_ONLY, from, length);
+    }
+
+    /**
+     * Finds the offsets just past the end of the records whose last lines
+     * start in a byte range, and counts the lines that end with "\r\n".
+     */
+    private final class ScanTask extends RecursiveTask<long[]>
+    {
+        /**
+         * The first offset of the range.
+         */
+        private final long from;
+
+        /**
+         * The offset past the end of the range.
+         */
+        private final long to;
+
+        /**
+         * The size of the file.
+         */
+        private final long size;
+
+        /**
+         * The largest range scanned without forking.
+         */
+        private final long range;
+
+        /**
+         * The number of lines ending with "\r\n" from the start of the range
+         * to each of the offsets found.
+         */
+        private long[] crlfs = new long[0];
+
+        /**
+         * The number of lines ending with "\r\n" that start in the range.
+         */
+        private long crlfTotal;
+
+        /**
+         * The problem reading the file, if any.
+         */
+        private IOException error;
+
+        /**
+         * Constructs a scan of a range.
+         *
+         * @param from - the first offset of the range
+         * @param to - the offset past the end of the range
+         * @param size - the size of the file
+         * @param range - the largest range scanned without forking
+         */
+        private ScanTask(final long from, final long to, final long size,
+                final long range)
+        {
+            this.from = from;
+            this.to = to;
+            this.size = size;
+            this.range = range;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected long[] compute()
+        {
+            long[] ends = new long[0];
+            if (this.to - this.from > this.range)
+            {
+                final long mid = this.from + (this.to - this.from) / 2;
+                final ScanTask left =
+                    new ScanTask(this.from, mid, this.size, this.range);
+                final ScanTask right =
+                    new ScanTask(mid, this.to, this.size, this.range);
+                ForkJoinTask.invokeAll(left, right);
+                this.error = firstError(left.error, right.error);
+                if (this.error == null)
+                {
+                    ends = concat(left.join(), right.join(), 0);
+                    this.crlfs = concat(left.crlfs, right.crlfs,
+                            left.crlfTotal);
+                    this.crlfTotal = left.crlfTotal + right.crlfTotal;
+                }
+            }
+            else
+            {
+                try
+                {
+                    ends = scan();
+                }
+                catch (IOException e)
+                {
+                    this.error = e;
+                }
+            }
+            return ends;
+        }
+
+        /**
+         * Scans the lines that start in the range.
+         *
+         * @return the offsets past the end of the matching lines
+         * @throws IOException if the file can not be mapped
+         */
+        private long[] scan() throws IOException
+        {
+            long[] ends = new long[16];
+            long[] crlfCounts = new long[16];
+            int count = 0;
+
+            // Map from the byte before the range to tell if a line starts there
+            final long base = Math.max(0, this.from - 1);
+            final MappedByteBuffer buf = map(base, this.size);
+            int pos = (int) (this.from - base);
+            if (this.from > 0 && buf.get(0) != LF)
+            {
+                pos = nextLine(buf, pos);
+            }
+
+            while (pos < buf.limit() && base + pos < this.to)
+            {
+                int lineEnd = pos;
+                while (lineEnd < buf.limit() && buf.get(lineEnd) != LF)
+                {
+                    lineEnd++;
+                }
+                if (lineEnd == buf.limit() && base + lineEnd < this.size)
+                {
+                    throw new IOException("Line at " + (base + pos)
+                            + " is too long to map");
+                }
+
+                if (lineEnd < buf.limit() && lineEnd > pos
+                        && buf.get(lineEnd - 1) == CR)
+                {
+                    this.crlfTotal++;
+                }
+
+                if (matches(buf, pos, lineEnd))
+                {
+                    if (count == ends.length)
+                    {
+                        ends = Arrays.copyOf(ends, count * 2);
+                        crlfCounts = Arrays.copyOf(crlfCounts, count * 2);
+                    }
+                    ends[count] = Math.min(base + lineEnd + 1, this.size);
+                    crlfCounts[count] = this.crlfTotal;
+                    count++;
+                }
+                pos = lineEnd + 1;
+            }
+
+            this.crlfs = Arrays.copyOf(crlfCounts, count);
+            return Arrays.copyOf(ends, count);
+        }
+
+        /**
+         * Finds the start of the next line.
+         *
+         * @param buf - the mapped bytes
+         * @param start - where to start looking
+         * @return the offset just past the next newline
+         */
+        private int nextLine(final MappedByteBuffer buf, final int start)
+        {
+            int pos = start;
+            while (pos < buf.limit() && buf.get(pos) != LF)
+            {
+                pos++;
+            }
+            return pos + 1;
+        }
+
+        /**
+         * Checks a line against the split pattern.
+         *
+         * @param buf - the mapped bytes
+         * @param start - the offset of the first byte of the line
+         * @param end - the offset of the newline, or the end of the file
+         * @return true iff the line ends a record
+         */
+        private boolean matches(final MappedByteBuffer buf, final int start,
+                final int end)
+        {
+            int last = end;
+            if (last > start && buf.get(last - 1) == CR)
+            {
+                last--;
+            }
+
+            final byte[] line = new byte[last - start];
+            for (int i = 0; i < line.length; i++)
+            {
+                line[i] = buf.get(start + i);
+            }
+            return ParallelSplitter.this.pattern.matcher(
+                    new String(line, ParallelSplitter.this.charset)).matches();
+        }
+    }
+
+    /**
+     * Writes the input file of the chunk for a batch of records.
+     */
+    private final class WriteTask extends RecursiveTask<Chunk>
+    {
+        /**
+         * The offset of the first byte of the first record.
+         */
+        private final long start;
+
+        /**
+         * The offset past the end of the last record.
+         */
+        private final long end;
+
+        /**
+         * The number of records in the batch.
+         */
+        private final int records;
+
+        /**
+         * The problem writing the chunk, if any.
+         */
+        private IOException error;
+
+        /**
+         * Constructs a write of a batch of records.
+         *
+         * @param start - the offset of the first byte of the first record
+         * @param end - the offset past the end of the last record
+         * @param records - the number of records in the batch
+         */
+        private WriteTask(final long start, final long end, final int records)
+        {
+            this.start = start;
+            this.end = end;
+            this.records = records;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        protected Chunk compute()
+        {
+            Chunk c = null;
+            try
+            {
+                final MappedByteBuffer buf = map(this.start, this.end);
+                if (buf.limit() < this.end - this.start)
+                {
+                    throw new IOException("Record at " + this.start
+                            + " is too long to map");
+                }
+
+                final byte[] bytes = new byte[buf.limit()];
+                buf.get(bytes);
+                String content = new String(bytes,
+                        ParallelSplitter.this.charset);
+
+                // Match the lines joined by BufferedReader in split
+                if (content.endsWith("\n"))
+                {
+                    content = content.substring(0, content.length() - 1);
+                }
+                if (content.endsWith("\r"))
+                {
+                    content = content.substring(0, content.length() - 1);
+                }
+                if (content.indexOf(CR) >= 0)
+                {
+                    content = content.replace("\r\n", "\n").replace('\r', '\n');
+                }
+                c = ParallelSplitter.this.cm.makeChunk(content,
+                        this.records, bytes.length);
+            }
+            catch (IOException e)
+            {
+                this.error = e;
+            }
+            return c;
+        }
+
+        /**
+         * Waits for the write to finish.
+         *
+         * @return the chunk for the record
+         * @throws IOException if the chunk could not be written
+         */
+        private Chunk getChunk() throws IOException
+        {
+            final Chunk c = join();
+            if (this.error != null)
+            {
+                throw this.error;
+            }
+            return c;
+        }
+    }
+
+    /**
+     * @param a - the first error, or null
+     * @param b - the second error, or null
+     * @return the first error that is not null
+     */
+    private static IOException firstError(final IOException a,
+            final IOException b)
+    {
+        IOException e = a;
+        if (e == null)
+        {
+            e = b;
+        }
+        return e;
+    }
+
+    /**
+     * @param a - the first array
+     * @param b - the second array
+     * @param shift - what to add to the contents of b
+     * @return the contents of a followed by the shifted contents of b
+     */
+    private static long[] concat(final long[] a, final long[] b,
+            final long shift)
+    {
+        final long[] c = Arrays.copyOf(a, a.length + b.length);
+        for (int i = 0; i < b.length; i++)
+        {
+            c[a.length + i] = b[i] + shift;
+        }
+        return c;
+    }
+}
@@ -0,0 +1,432 @@
+package edu.unh.schwartz.epframework;
+
+import edu.unh.schwartz.epframework.config.Configuration;
+import edu.unh.schwartz.epframework.worker.ChunkListener;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Finds chunks whose result is already known so they do not have to be run.
+ * Each chunk is keyed by the SHA-256 hash of the executable, its arguments,
+ * how it is run and the chunk's content.
+ *
+ * Within a run, only the first chunk with a key is run and the others with
+ * the same key are given its result when it finishes. If a cache directory is
+ * given, results are also kept there between runs under their key. Looking up
+ * a result marks it as recently used, and the least recently used results are
+ * removed at the end of the run once the cache is over its size.
+ */
+final class ResultCache implements ChunkListener
+{
+    /**
+     * The Log.
+     */
+    private static final Log LOG = LogFactory.getLog(ResultCache.class);
+
+    /**
+     * The size of the buffer used to hash the content of a chunk.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The directory the results are kept in between runs, or null.
+     */
+    private final File dir;
+
+    /**
+     * The most bytes kept in the directory.
+     */
+    private final long maxBytes;
+
+    /**
+     * The hash of the executable and its arguments, the start of every key.
+     */
+    private final MessageDigest prefix;
+
+    /**
+     * The chunk being run for each key, with the chunks waiting on it.
+     */
+    private final Map<String, List<Chunk>> waiting;
+
+    /**
+     * The chunk that was run for each key that has finished.
+     */
+    private final Map<String, Chunk> done;
+
+    /**
+     * The listeners to tell about chunks that get their result from the
+     * cache.
+     */
+    private final List<ChunkListener> listeners;
+
+    /**
+     * The number of chunks that did not have to be run.
+     */
+    private int hits;
+
+    /**
+     * Constructs a cache.
+     *
+     * @param dir - the directory to keep results in between runs, or null to
+     * only share results within the run
+     * @param config - the configuration of the run
+     */
+    ResultCache(final String dir, final Configuration config)
+    {
+        this.maxBytes = config.getCacheSize();
+        this.waiting = new HashMap<String, List<Chunk>>();
+        this.done = new HashMap<String, Chunk>();
+        this.listeners = new ArrayList<ChunkListener>();
+        this.prefix = Digests.create();
+
+        // The executable is identified by its content so a rebuilt executable
+        // does not get old results
+        final File exec = new File(config.getExecutable());
+        try (final InputStream in = Files.newInputStream(exec.toPath()))
+        {
+            final byte[] buf = new byte[BUFFER_SIZE];
+            int n = in.read(buf);
+            while (n >= 0)
+            {
+                this.prefix.update(buf, 0, n);
+                n = in.read(buf);
+            }
+        }
+        catch (IOException e)
+        {
+            LOG.warn("ResultCache: " + e.getMessage());
+            this.prefix.reset();
+            this.prefix.update(exec.getAbsolutePath().getBytes());
+        }
+        this.prefix.update((byte) 0);
+        this.prefix.update(config.getArguments().getBytes());
+
+        this.prefix.update((byte) 0);
+
+        // The same executable gives other results when run another way
+        final String mode = config.usePipeMode() + " "
+            + config.useCoprocessMode() + " " + config.useStdoutResult();
+        this.prefix.update(mode.getBytes());
+        this.prefix.update((byte) 0);
+
+        if (dir == null)
+        {
+            this.dir = null;
+        }
+        else
+        {
+            this.dir = new File(dir);
+            this.dir.mkdirs();
+        }
+    }
+
+    /**
+     * Adds a listener to tell about chunks that get their result from the
+     * cache instead of a worker. Must be added before the split.
+     *
+     * @param l - the listener
+     */
+    void addListener(final ChunkListener l)
+    {
+        this.listeners.add(l);
+    }
+
+    /**
+     * Makes the key for a chunk's content.
+     *
+     * @param content - the content of the chunk
+     * @return the key
+     */
+    String key(final byte[] content)
+    {
+        final MessageDigest md = startKey();
+        md.update(content);
+        return Digests.toHex(md.digest());
+    }
+
+    /**
+     * Makes the key for a chunk from its content.
+     *
+     * @param c - the chunk
+     * @return the key
+     * @throws IOException if the content can not be read
+     */
+    String key(final Chunk c) throws IOException
+    {
+        final MessageDigest md = startKey();
+        final byte[] buf = new byte[BUFFER_SIZE];
+        try (final InputStream in = c.openInput())
+        {
+            int n = in.read(buf);
+            while (n >= 0)
+            {
+                md.update(buf, 0, n);
+                n = in.read(buf);
+            }
+        }
+        return Digests.toHex(md.digest());
+    }
+
+    /**
+     * Looks for the result of a chunk. A chunk with the same key as one being
+     * run is held until that one finishes.
+     *
+     * @param c - the chunk, with its key set
+     * @return true iff the chunk does not have to be run
+     */
+    boolean lookup(final Chunk c)
+    {
+        final String key = c.getKey();
+        if (fetch(c))
+        {
+            found(c);
+            return true;
+        }
+
+        final Chunk leader;
+        synchronized (this)
+        {
+            leader = this.done.get(key);
+            if (leader == null)
+            {
+                final List<Chunk> w = this.waiting.get(key);
+                if (w == null)
+                {
+                    // The first chunk with this key, so it has to be run
+                    this.waiting.put(key, new ArrayList<Chunk>());
+                    return false;
+                }
+                w.add(c);
+                this.hits++;
+                return true;
+            }
+        }
+
+        c.copyResultFrom(leader);
+        found(c);
+        return true;
+    }
+
+    /**
+     * Stores the result of a chunk that was run and hands it to the chunks
+     * that were waiting on it.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void chunkFinished(final Chunk c)
+    {
+        final String key = c.getKey();
+        if (key == null)
+        {
+            return;
+        }
+        store(c);
+
+        final List<Chunk> followers;
+        synchronized (this)
+        {
+            followers = this.waiting.remove(key);
+            this.done.put(key, c);
+        }
+
+        if (followers != null)
+        {
+            for (final Chunk f : followers)
+            {
+                f.copyResultFrom(c);
+                for (final ChunkListener l : this.listeners)
+                {
+                    l.chunkFinished(f);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fails the chunks that were waiting on a chunk that failed, since they
+     * would fail the same way.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void chunkFailed(final Chunk c)
+    {
+        final String key = c.getKey();
+        if (key == null)
+        {
+            return;
+        }
+
+        final List<Chunk> followers;
+        synchronized (this)
+        {
+            followers = this.waiting.remove(key);
+        }
+
+        if (followers != null)
+        {
+            for (final Chunk f : followers)
+            {
+                f.setFailure(c.getFailure());
+                for (final ChunkListener l : this.listeners)
+                {
+                    l.chunkFailed(f);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the least recently used results until the cache directory is
+     * no larger than its limit.
+     */
+    void trim()
+    {
+        LOG.info(this.hits + " chunks did not have to be run");
+        if (this.dir == null)
+        {
+            return;
+        }
+
+        final File[] files = this.dir.listFiles();
+        if (files == null)
+        {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>()
+        {
+            @Override
+            public int compare(final File a, final File b)
+            {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+
+        long total = 0;
+        for (final File f : files)
+        {
+            total += f.length();
+        }
+        for (int i = 0; i < files.length && total > this.maxBytes; i++)
+        {
+            total -= files[i].length();
+            if (!files[i].delete())
+            {
+                LOG.warn("Could not remove " + files[i]);
+            }
+        }
+    }
+
+    /**
+     * Records a chunk that did not have to be run.
+     *
+     * @param c - the chunk
+     */
+    private void found(final Chunk c)
+    {
+        synchronized (this)
+        {
+            this.hits++;
+        }
+        for (final ChunkListener l : this.listeners)
+        {
+            l.chunkFinished(c);
+        }
+    }
+
+    /**
+     * Copies a result kept from an earlier run into a chunk's out file.
+     *
+     * @param c - the chunk
+     * @return true iff the result was in the cache
+     */
+    private boolean fetch(final Chunk c)
+    {
+        if (this.dir == null)
+        {
+            return false;
+        }
+
+        final File cached = new File(this.dir, c.getKey());
+        if (!cached.exists())
+        {
+            return false;
+        }
+
+        c.getDirectory().mkdirs();
+        try
+        {
+            Files.copy(cached.toPath(), new File(c.getOutFileName()).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+            cached.setLastModified(System.currentTimeMillis());
+            return true;
+        }
+        catch (IOException e)
+        {
+            LOG.error("fetch: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Keeps the result of a chunk for later runs.
+     *
+     * @param c - the chunk that was run
+     */
+    private void store(final Chunk c)
+    {
+        if (this.dir == null)
+        {
+            return;
+        }
+
+        // Write to a temporary file first so a cached result is never partial
+        final File cached = new File(this.dir, c.getKey());
+        final File tmp = new File(this.dir, c.getKey() + "."
+                + Thread.currentThread().getId() + ".tmp");
+        try
+        {
+            c.saveResult(tmp);
+            Files.move(tmp.toPath(), cached.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            LOG.error("store: " + e.getMessage());
+            tmp.delete();
+        }
+    }
+
+    /**
+     * @return a digest that has already hashed the executable, its arguments
+     * and how it is run
+     */
+    private MessageDigest startKey()
+    {
+        try
+        {
+            synchronized (this.prefix)
+            {
+                return (MessageDigest) this.prefix.clone();
+            }
+        }
+        catch (CloneNotSupportedException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package edu.unh.schwartz.epframework;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import edu.unh.schwartz.epframework.worker.ChunkListener;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Estimates how long the executable will take on a chunk so the longest chunks
+ * can be started first. The estimate is learned from the runtimes of the chunks
+ * of earlier runs with the same executable, fit to <code>a + b * bytes + c *
+ * records</code>. The sums behind the fit are kept in a small JSON file per
+ * executable and arguments, named by their digest, and updated at the end of
+ * every run. The file is in the output directory unless another directory is
+ * configured, so runs learn from the earlier runs into the same place. Until
+ * there is enough data, the size of the chunk's input file is used as its
+ * cost.
+ */
+final class RuntimeModel implements ChunkListener
+{
+    /**
+     * The Log.
+     */
+    private static final Log LOG = LogFactory.getLog(RuntimeModel.class);
+
+    /**
+     * The number of runtimes needed before the fit is used.
+     */
+    private static final int MIN_SAMPLES = 16;
+
+    /**
+     * The number of sums kept for the fit.
+     */
+    private static final int SUMS = 9;
+
+    /**
+     * The names of the sums in the model file.
+     */
+    private static final String[] NAMES = {"n", "x", "r", "y", "xx", "xr",
+        "rr", "xy", "ry",};
+
+    /**
+     * The name of the peak resident set in the model file.
+     */
+    private static final String PEAK_RSS = "peakRss";
+
+    /**
+     * The file the model is kept in.
+     */
+    private final File file;
+
+    /**
+     * The executable the model is for.
+     */
+    private final String executable;
+
+    /**
+     * The sums of earlier runs, in the order of <code>NAMES</code>.
+     */
+    private final double[] sums;
+
+    /**
+     * The sums of the current run, in the order of <code>NAMES</code>.
+     */
+    private final double[] current;
+
+    /**
+     * The fitted coefficients a, b and c, or null if there is no fit.
+     */
+    private double[] fit;
+
+    /**
+     * The largest peak resident set of the executable seen, in bytes.
+     */
+    private long peakRss;
+
+    /**
+     * Loads the model for an executable.
+     *
+     * @param dir - the directory the models are kept in
+     * @param executable - the path to the executable
+     * @param arguments - the arguments for the executable
+     */
+    RuntimeModel(final String dir, final String executable,
+            final String arguments)
+    {
+        this.executable = new File(executable).getAbsolutePath();
+
+        // The same tool costs differently with other arguments
+        final MessageDigest md = Digests.create();
+        md.update(this.executable.getBytes());
+        md.update((byte) 0);
+        md.update(arguments.getBytes());
+        this.file = new File(dir, "model-" + Digests.toHex(md.digest())
+                + ".json");
+        this.sums = new double[SUMS];
+        this.current = new double[SUMS];
+
+        if (this.file.exists())
+        {
+            try
+            {
+                load();
+                this.fit = solve(this.sums);
+            }
+            catch (IOException e)
+            {
+                LOG.error("RuntimeModel: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Estimates the cost of running a chunk.
+     *
+     * @param c - the chunk
+     * @return the expected runtime in milliseconds, or the size of the input
+     * if there is no model yet
+     */
+    double estimate(final Chunk c)
+    {
+        final double bytes = c.getInputSize();
+        double cost = bytes;
+        if (this.fit != null)
+        {
+            cost = this.fit[0] + this.fit[1] * bytes
+                + this.fit[2] * c.getRecords();
+        }
+        return cost;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void chunkFailed(final Chunk c)
+    {
+        // A failed chunk's runtime would only mislead the model
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void chunkFinished(final Chunk c)
+    {
+        synchronized (this.current)
+        {
+            add(this.current, c.getInputSize(), c.getRecords(),
+                    c.getRuntime());
+        }
+    }
+
+    /**
+     * @return the largest peak resident set of the executable seen in earlier
+     * runs, in bytes, or 0 if it was never measured
+     */
+    long getPeakRss()
+    {
+        return this.peakRss;
+    }
+
+    /**
+     * Records the peak resident set of the executable seen in this run.
+     *
+     * @param peak - the peak in bytes
+     */
+    void setPeakRss(final long peak)
+    {
+        this.peakRss = Math.max(this.peakRss, peak);
+    }
+
+    /**
+     * Adds the runtimes of this run to the model and saves it.
+     */
+    void save()
+    {
+        synchronized (this.current)
+        {
+            for (int i = 0; i < SUMS; i++)
+            {
+                this.sums[i] += this.current[i];
+                this.current[i] = 0;
+            }
+        }
+
+        final File dir = this.file.getParentFile();
+        dir.mkdirs();
+
+        // Write to a temporary file first so a run that is killed, or another
+        // run saving at the same time, never leaves a partial model
+        File tmp = null;
+        try
+        {
+            tmp = File.createTempFile(this.file.getName(), ".tmp", dir);
+            final JsonFactory jf = new JsonFactory();
+            try (final JsonGenerator jg = jf.createGenerator(tmp,
+                        JsonEncoding.UTF8))
+            {
+                jg.writeStartObject();
+                jg.writeStringField("executable", this.executable);
+                for (int i = 0; i < SUMS; i++)
+                {
+                    jg.writeNumberField(NAMES[i], this.sums[i]);
+                }
+                jg.writeNumberField(PEAK_RSS, this.peakRss);
+                jg.writeEndObject();
+            }
+            Files.move(tmp.toPath(), this.file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            LOG.error("save: " + e.getMessage());
+            if (tmp != null)
+            {
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Reads the sums of earlier runs from the model file.
+     *
+     * @throws IOException if the file can not be read
+     */
+    private void load() throws IOException
+    {
+        final JsonFactory jf = new JsonFactory();
+        try (final JsonParser jp = jf.createParser(this.file))
+        {
+            jp.nextToken();
+            while (jp.nextToken() != JsonToken.END_OBJECT)
+            {
+                final String fieldName = jp.getCurrentName();
+                jp.nextToken();
+                if (PEAK_RSS.equals(fieldName))
+                {
+                    this.peakRss = jp.getLongValue();
+                }
+                for (int i = 0; i < SUMS; i++)
+                {
+                    if (NAMES[i].equals(fieldName))
+                    {
+                        this.sums[i] = jp.getDoubleValue();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a runtime to a set of sums.
+     *
+     * @param s - the sums
+     * @param x - the size of the chunk's input in bytes
+     * @param r - the number of records in the chunk
+     * @param y - the runtime of the chunk in milliseconds
+     */
+    private static void add(final double[] s, final double x, final double r,
+            final double y)
+    {
+        s[0] += 1;
+        s[1] += x;
+        s[2] += r;
+        s[3] += y;
+        s[4] += x * x;
+        s[5] += x * r;
+        s[6] += r * r;
+        s[7] += x * y;
+        s[8] += r * y;
+    }
+
+    /**
+     * Solves the least squares fit for a set of sums. If every chunk had the
+     * same number of records, the records are left out of the fit.
+     *
+     * @param s - the sums
+     * @return the coefficients a, b and c, or null if there is no fit
+     */
+    private static double[] solve(final double[] s)
+    {
+        if (s[0] < MIN_SAMPLES)
+        {
+            return null;
+        }
+
+        // The normal equations for a + b * x + c * r = y
+        final double[][] m = {
+            {s[0], s[1], s[2], s[3]},
+            {s[1], s[4], s[5], s[7]},
+            {s[2], s[5], s[6], s[8]},
+        };
+        double[] coef = eliminate(m, 3);
+        if (coef == null)
+        {
+            final double[][] m2 = {
+                {s[0], s[1], s[3]},
+                {s[1], s[4], s[7]},
+            };
+            final double[] ab = eliminate(m2, 2);
+            if (ab != null)
+            {
+                coef = new double[] {ab[0], ab[1], 0};
+            }
+        }
+        return coef;
+    }
+
+    /**
+     * Solves a small linear system by Gaussian elimination.
+     *
+     * @param m - the augmented matrix, which is changed
+     * @param size - the number of unknowns
+     * @return the solution or null if the system is singular
+     */
+    private static double[] eliminate(final double[][] m, final int size)
+    {
+        // Measure singularity against each variable's own sum of squares
+        final double eps = 1e-9;
+        final double[] scale = new double[size];
+        for (int i = 0; i < size; i++)
+        {
+            scale[i] = Math.abs(m[i][i]);
+        }
+
+        for (int col = 0; col < size; col++)
+        {
+            // Pivot on the largest entry left in the column
+            int pivot = col;
+            for (int row = col + 1; row < size; row++)
+            {
+                if (Math.abs(m[row][col]) > Math.abs(m[pivot][col]))
+                {
+                    pivot = row;
+                }
+            }
+            if (Math.abs(m[pivot][col]) <= eps * scale[col])
+            {
+                return null;
+            }
+            final double[] tmp = m[col];
+            m[col] = m[pivot];
+            m[pivot] = tmp;
+
+            for (int row = 0; row < size; row++)
+            {
+                if (row != col)
+                {
+                    final double f = m[row][col] / m[col][col];
+                    for (int k = col; k <= size; k++)
+                    {
+                        m[row][k] -= f * m[col][k];
+                    }
+                }
+            }
+        }
+
+        final double[] x = new double[size];
+        for (int i = 0; i < size; i++)
+        {
+            x[i] = m[i][size] / m[i][i];
+        }
+        return x;
+    }
+}
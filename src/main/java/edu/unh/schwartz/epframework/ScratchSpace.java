@@ -0,0 +1,190 @@
+package edu.unh.schwartz.epframework;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Decides where the directory of each chunk goes. Each run gets its own
+ * directory under every scratch root, so runs can not collide. A run that is
+ * journaled keeps its directories under a fixed name so that a resumed run
+ * can find the results of the earlier attempts, and removes them all once it
+ * is done.
+ *
+ * Chunks are spread across the scratch roots in turn so their IO is striped
+ * over several disks. If a fast, memory-backed root such as
+ * <code>/dev/shm</code> is given, small chunks go there first, until its free
+ * space falls to the reserve.
+ */
+final class ScratchSpace
+{
+    /**
+     * The Log.
+     */
+    private static final Log LOG = LogFactory.getLog(ScratchSpace.class);
+
+    /**
+     * The prefix of the directory made for the run under each root.
+     */
+    private static final String PREFIX = "epframework-";
+
+    /**
+     * The run's directories on the scratch roots.
+     */
+    private final List<File> dirs;
+
+    /**
+     * The directories removed once the run is done.
+     */
+    private final List<File> bases;
+
+    /**
+     * The run's directory on the fast root, or null.
+     */
+    private final File fast;
+
+    /**
+     * The largest chunk in bytes put on the fast root.
+     */
+    private final long smallSize;
+
+    /**
+     * The bytes kept free on the fast root.
+     */
+    private final long reserve;
+
+    /**
+     * The number of chunks put on the scratch roots so far.
+     */
+    private final AtomicInteger next;
+
+    /**
+     * Makes the run's directories.
+     *
+     * @param roots - the scratch roots, separated by the path separator
+     * @param fastRoot - the fast root, or null
+     * @param smallSize - the largest chunk in bytes to put on the fast root
+     * @param reserve - the bytes to keep free on the fast root
+     * @param runId - the fixed name of the run, or null for a new one
+     * @throws IOException if no directory could be made on any scratch root
+     */
+    ScratchSpace(final String roots, final String fastRoot,
+            final long smallSize, final long reserve, final String runId)
+        throws IOException
+    {
+        this.dirs = new ArrayList<File>();
+        this.bases = new ArrayList<File>();
+        for (final String r : roots.split(File.pathSeparator))
+        {
+            final File d = makeRunDirectory(r, runId);
+            if (d != null)
+            {
+                this.dirs.add(d);
+            }
+        }
+        if (this.dirs.isEmpty())
+        {
+            throw new IOException("No usable scratch directory in " + roots);
+        }
+
+        if (fastRoot == null)
+        {
+            this.fast = null;
+        }
+        else
+        {
+            this.fast = makeRunDirectory(fastRoot, runId);
+        }
+        this.smallSize = smallSize;
+        this.reserve = reserve;
+        this.next = new AtomicInteger();
+    }
+
+    /**
+     * Picks the directory for a chunk. The directory is not made.
+     *
+     * @param name - the name of the chunk
+     * @param size - the size of the chunk's content in bytes
+     * @return the directory for the chunk
+     */
+    File newDirectory(final String name, final long size)
+    {
+        // Leave room for the result as well as the content
+        if (this.fast != null && size <= this.smallSize
+                && this.fast.getUsableSpace() - 2 * size > this.reserve)
+        {
+            return new File(this.fast, name);
+        }
+
+        final int i = (this.next.getAndIncrement() & Integer.MAX_VALUE)
+            % this.dirs.size();
+        return new File(this.dirs.get(i), name);
+    }
+
+    /**
+     * Removes the run's directories once the chunks have been cleaned up.
+     */
+    void clean()
+    {
+        for (final File d : this.bases)
+        {
+            delete(d);
+        }
+    }
+
+    /**
+     * Makes the run's directory under a root. A named run gets a new
+     * directory for this attempt inside the directory of the run.
+     *
+     * @param root - the root
+     * @param runId - the fixed name of the run, or null
+     * @return the directory or null if it could not be made
+     */
+    private File makeRunDirectory(final String root, final String runId)
+    {
+        try
+        {
+            if (runId == null)
+            {
+                final File d = Files.createTempDirectory(
+                        new File(root).toPath(), PREFIX).toFile();
+                this.bases.add(d);
+                return d;
+            }
+
+            final File base = new File(root, PREFIX + runId);
+            Files.createDirectories(base.toPath());
+            this.bases.add(base);
+            return Files.createTempDirectory(base.toPath(), "attempt-")
+                .toFile();
+        }
+        catch (IOException e)
+        {
+            LOG.error("makeRunDirectory: " + root + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Removes a directory and anything left in it.
+     *
+     * @param file - the directory
+     */
+    private static void delete(final File file)
+    {
+        final File[] files = file.listFiles();
+        if (files != null)
+        {
+            for (final File f : files)
+            {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,105 @@
+package edu.unh.schwartz.epframework;
+
+import edu.unh.schwartz.epframework.config.Configuration;
+import edu.unh.schwartz.epframework.worker.ChunkScheduler;
+import java.io.IOException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Producer stage of the run. Splits the input with the
+ * <code>ChunkManager</code> and feeds each chunk to the <code>Worker</code>s as
+ * soon as it is written, closing the queue once the input is exhausted.
+ */
+final class Splitter extends Thread
+{
+    /**
+     * The Log.
+     */
+    private static final Log LOG = LogFactory.getLog(Splitter.class);
+
+    /**
+     * The manager that makes the chunks.
+     */
+    private final ChunkManager cm;
+
+    /**
+     * The instructions for the run.
+     */
+    private final Configuration config;
+
+    /**
+     * The queue the workers take chunks from.
+     */
+    private final ChunkScheduler queue;
+
+    /**
+     * True iff the split did not finish.
+     */
+    private volatile boolean failed;
+
+    /**
+     * Constructs the splitter.
+     *
+     * @param cm - the manager that makes the chunks
+     * @param config - the instructions for the run
+     * @param queue - the queue the workers take chunks from
+     */
+    Splitter(final ChunkManager cm, final Configuration config,
+            final ChunkScheduler queue)
+    {
+        super("Splitter");
+        this.cm = cm;
+        this.config = config;
+        this.queue = queue;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run()
+    {
+        try
+        {
+            if (this.config.getInputFile() == null)
+            {
+                // Make a chunk for each presplit file
+                LOG.info("Loading chunks from directory");
+                this.cm.splitFiles(this.config.getInputDirectory(),
+                        this.queue);
+            }
+            else if (this.config.splitInParallel())
+            {
+                // Map the input file and split it on every core
+                LOG.info("Splitting input file in parallel");
+                this.cm.splitParallel(this.config.getInputFile(), this.queue);
+            }
+            else
+            {
+                // Read in the input file and get the chunks
+                LOG.info("Reading chunks from input file");
+                this.cm.split(this.config.getInputFile(), this.queue);
+            }
+            LOG.info("Split finished");
+        }
+        catch (IOException|InterruptedException e)
+        {
+            LOG.fatal("split: " + e.getMessage());
+            this.failed = true;
+        }
+        finally
+        {
+            // Let the workers finish whatever has been queued
+            this.queue.close();
+        }
+    }
+
+    /**
+     * @return true iff the split did not finish
+     */
+    boolean hasFailed()
+    {
+        return this.failed;
+    }
+}
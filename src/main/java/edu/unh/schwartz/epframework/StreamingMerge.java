@@ -0,0 +1,204 @@
+package edu.unh.schwartz.epframework;
+
+import edu.unh.schwartz.epframework.worker.ChunkListener;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Merges the results while the <code>Worker</code>s are still running. Each
+ * chunk's result is written to the output file as soon as it and every chunk
+ * before it have finished, so the output is nearly complete by the time the
+ * last process exits.
+ *
+ * Chunks that finish ahead of their turn wait until it comes. Their results
+ * are already in their out files, so only the chunks are kept, and each
+ * result is copied to the output file with <code>transferResult</code> once
+ * its turn comes.
+ */
+final class StreamingMerge extends Thread implements ChunkListener
+{
+    /**
+     * The Log.
+     */
+    private static final Log LOG = LogFactory.getLog(StreamingMerge.class);
+
+    /**
+     * Marks the end of the finished chunks.
+     */
+    private static final Chunk END = new Chunk("end", new File(""));
+
+    /**
+     * The chunks that have finished, in the order they finished.
+     */
+    private final BlockingQueue<Chunk> finished;
+
+    /**
+     * The chunks waiting their turn, by index.
+     */
+    private final Map<Integer, Chunk> held;
+
+    /**
+     * The output file.
+     */
+    private final String fileName;
+
+    /**
+     * Every chunk of the run in input order, set once the workers are done.
+     */
+    private volatile List<Chunk> all;
+
+    /**
+     * The index of the next chunk to write.
+     */
+    private int next;
+
+    /**
+     * True once the header has been written.
+     */
+    private boolean headed;
+
+    /**
+     * Constructs the merge.
+     *
+     * @param fileName - the name of the output file
+     */
+    StreamingMerge(final String fileName)
+    {
+        super("StreamingMerge");
+        this.fileName = fileName;
+        this.finished = new LinkedBlockingQueue<Chunk>();
+        this.held = new HashMap<Integer, Chunk>();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void chunkFinished(final Chunk c)
+    {
+        this.finished.add(c);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void chunkFailed(final Chunk c)
+    {
+        // Its turn still has to come, it just writes nothing
+        this.finished.add(c);
+    }
+
+    /**
+     * Writes whatever has not been written yet and waits for the output file
+     * to be complete.
+     *
+     * @param chunks - every chunk of the run in input order
+     */
+    void finish(final List<Chunk> chunks)
+    {
+        this.all = chunks;
+        this.finished.add(END);
+        try
+        {
+            join();
+        }
+        catch (InterruptedException e)
+        {
+            LOG.fatal("finish: " + e.getMessage());
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run()
+    {
+        LOG.info("Using Streaming Merge");
+        try (final FileOutputStream fos = new FileOutputStream(this.fileName);
+            final FileChannel out = fos.getChannel())
+        {
+            Chunk c = this.finished.take();
+            while (c != END)
+            {
+                if (c.getIndex() == this.next)
+                {
+                    write(out, c);
+                    drain(out);
+                }
+                else
+                {
+                    this.held.put(c.getIndex(), c);
+                }
+                c = this.finished.take();
+            }
+
+            // Write the rest, including any chunk that never reported in
+            final List<Chunk> chunks = this.all;
+            while (this.next < chunks.size())
+            {
+                write(out, chunks.get(this.next));
+            }
+            LOG.info("Finished streaming merge");
+        }
+        catch (IOException|InterruptedException e)
+        {
+            LOG.fatal("merge: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the held chunks whose turn has come.
+     *
+     * @param out - the output file
+     * @throws IOException if a result can not be copied
+     */
+    private void drain(final FileChannel out) throws IOException
+    {
+        Chunk c = this.held.remove(this.next);
+        while (c != null)
+        {
+            write(out, c);
+            c = this.held.remove(this.next);
+        }
+    }
+
+    /**
+     * Writes the result of the next chunk, after the header if it is the
+     * first to have succeeded.
+     *
+     * @param out - the output file
+     * @param c - the chunk
+     * @throws IOException if the result can not be copied
+     */
+    private void write(final FileChannel out, final Chunk c)
+        throws IOException
+    {
+        if (c.hasFailed())
+        {
+            // Left out of the output
+            this.next++;
+            return;
+        }
+        if (!this.headed)
+        {
+            out.write(ByteBuffer.wrap(c.getHeader().getBytes()));
+            this.headed = true;
+        }
+        final long start = Trace.now();
+        c.transferResult(out);
+        Trace.record("write", c, start);
+        this.next++;
+    }
+}
@@ -0,0 +1,285 @@
+package edu.unh.schwartz.epframework;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Records a timeline of the run in the Chrome trace event format, to be
+ * loaded in chrome://tracing or Perfetto. Each step of a chunk's life is an
+ * event on the thread that did it: split, spawn, execute, drain, merge and
+ * cleanup, with the workers' chunk runs around their steps. The time a chunk
+ * waits in the scheduler is an async event, as it spans threads. Times are
+ * taken with <code>System.nanoTime</code>.
+ *
+ * Events are kept in memory and written once the run is over, so recording
+ * one only adds it to a lock-free queue. When tracing is off nothing is
+ * recorded.
+ */
+public final class Trace
+{
+    /**
+     * The Log.
+     */
+    private static final Log LOG = LogFactory.getLog(Trace.class);
+
+    /**
+     * The process id in the trace.
+     */
+    private static final int PID = 1;
+
+    /**
+     * The events recorded so far.
+     */
+    private static final Queue<Event> EVENTS =
+        new ConcurrentLinkedQueue<Event>();
+
+    /**
+     * The names of the threads that recorded events, by thread id.
+     */
+    private static final Map<Long, String> THREADS =
+        new ConcurrentHashMap<Long, String>();
+
+    /**
+     * When each queued chunk was handed to the workers.
+     */
+    private static final Map<Chunk, Long> QUEUED =
+        new ConcurrentHashMap<Chunk, Long>();
+
+    /**
+     * The file the trace is written to, or null if tracing is off.
+     */
+    private static volatile String fileName;
+
+    /**
+     * The time the trace starts at.
+     */
+    private static long base;
+
+    /**
+     * Not instantiable.
+     */
+    private Trace()
+    {
+    }
+
+    /**
+     * Starts recording.
+     *
+     * @param file - the file the trace is written to when it is finished
+     */
+    public static void start(final String file)
+    {
+        base = System.nanoTime();
+        fileName = file;
+    }
+
+    /**
+     * @return the time to pass to <code>record</code> once a step is over
+     */
+    public static long now()
+    {
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a step that started at the given time and is over now.
+     *
+     * @param name - the name of the step
+     * @param c - the chunk the step was for, or null
+     * @param start - when the step started, from <code>now</code>
+     */
+    public static void record(final String name, final Chunk c,
+            final long start)
+    {
+        if (fileName == null)
+        {
+            return;
+        }
+        final Thread t = Thread.currentThread();
+        THREADS.put(t.getId(), t.getName());
+        EVENTS.add(new Event(name, 'X', start, System.nanoTime() - start,
+                    t.getId(), c));
+    }
+
+    /**
+     * Records that a chunk was handed to the workers.
+     *
+     * @param c - the chunk
+     */
+    public static void queued(final Chunk c)
+    {
+        if (fileName != null)
+        {
+            QUEUED.put(c, System.nanoTime());
+        }
+    }
+
+    /**
+     * Records that a worker took a chunk, ending its wait in the scheduler.
+     *
+     * @param c - the chunk
+     */
+    public static void taken(final Chunk c)
+    {
+        if (fileName == null)
+        {
+            return;
+        }
+        final Long start = QUEUED.remove(c);
+        if (start != null)
+        {
+            final long tid = Thread.currentThread().getId();
+            EVENTS.add(new Event("queue", 'b', start, 0, tid, c));
+            EVENTS.add(new Event("queue", 'e', System.nanoTime(), 0, tid, c));
+        }
+    }
+
+    /**
+     * Writes the trace and stops recording.
+     */
+    public static void finish()
+    {
+        final String file = fileName;
+        if (file == null)
+        {
+            return;
+        }
+        fileName = null;
+
+        final JsonFactory jsonFactory = new JsonFactory();
+        try (final JsonGenerator jg = jsonFactory.createGenerator(
+                    new File(file), JsonEncoding.UTF8))
+        {
+            jg.writeStartObject();
+            jg.writeArrayFieldStart("traceEvents");
+            for (final Map.Entry<Long, String> e : THREADS.entrySet())
+            {
+                jg.writeStartObject();
+                jg.writeStringField("name", "thread_name");
+                jg.writeStringField("ph", "M");
+                jg.writeNumberField("pid", PID);
+                jg.writeNumberField("tid", e.getKey());
+                jg.writeObjectFieldStart("args");
+                jg.writeStringField("name", e.getValue());
+                jg.writeEndObject();
+                jg.writeEndObject();
+            }
+            for (final Event e : EVENTS)
+            {
+                e.write(jg);
+            }
+            jg.writeEndArray();
+            jg.writeStringField("displayTimeUnit", "ms");
+            jg.writeEndObject();
+            LOG.info("Wrote " + EVENTS.size() + " trace events to " + file);
+        }
+        catch (IOException e)
+        {
+            LOG.error("finish: " + e.getMessage());
+        }
+        EVENTS.clear();
+        THREADS.clear();
+        QUEUED.clear();
+    }
+
+    /**
+     * A recorded event.
+     */
+    private static final class Event
+    {
+        /**
+         * The name of the step.
+         */
+        private final String name;
+
+        /**
+         * The phase: 'X' for a step, 'b' and 'e' for the ends of a wait.
+         */
+        private final char phase;
+
+        /**
+         * When it started, in nanoseconds.
+         */
+        private final long start;
+
+        /**
+         * How long it took, in nanoseconds.
+         */
+        private final long duration;
+
+        /**
+         * The id of the thread that recorded it.
+         */
+        private final long tid;
+
+        /**
+         * The chunk it was for, or null.
+         */
+        private final Chunk chunk;
+
+        /**
+         * Constructs an event.
+         *
+         * @param name - the name of the step
+         * @param phase - the phase
+         * @param start - when it started, in nanoseconds
+         * @param duration - how long it took, in nanoseconds
+         * @param tid - the id of the thread that recorded it
+         * @param chunk - the chunk it was for, or null
+         */
+        Event(final String name, final char phase, final long start,
+                final long duration, final long tid, final Chunk chunk)
+        {
+            this.name = name;
+            this.phase = phase;
+            this.start = start;
+            this.duration = duration;
+            this.tid = tid;
+            this.chunk = chunk;
+        }
+
+        /**
+         * Writes the event in the trace event format, with times in
+         * microseconds.
+         *
+         * @param jg - the generator
+         * @throws IOException if it can not be written
+         */
+        void write(final JsonGenerator jg) throws IOException
+        {
+            jg.writeStartObject();
+            jg.writeStringField("name", this.name);
+            jg.writeStringField("ph", String.valueOf(this.phase));
+            jg.writeNumberField("ts", (this.start - base) / 1000.0);
+            if (this.phase == 'X')
+            {
+                jg.writeNumberField("dur", this.duration / 1000.0);
+            }
+            else
+            {
+                // Async events are matched up by their category and id
+                jg.writeStringField("cat", "scheduler");
+                jg.writeNumberField("id", this.chunk.getIndex());
+            }
+            jg.writeNumberField("pid", PID);
+            jg.writeNumberField("tid", this.tid);
+            if (this.chunk != null)
+            {
+                jg.writeObjectFieldStart("args");
+                jg.writeStringField("chunk", this.chunk.getName());
+                jg.writeNumberField("index", this.chunk.getIndex());
+                jg.writeEndObject();
+            }
+            jg.writeEndObject();
+        }
+    }
+}
@@ -238,20 +238,25 @@ public final class ConfigWizard
             final JRadioButton jRadioDefault = new JRadioButton("Default");
             final JRadioButton jRadioCustom = new JRadioButton("Custom");
             final JRadioButton jRadioExternal = new JRadioButton("External");
+            final JRadioButton jRadioStreaming = 
+                new JRadioButton("Streaming");
 
             jRadioDefault.setName(Configuration.DEFAULT_MERGE_KEY);
             jRadioCustom.setName(Configuration.CUSTOM_MERGE_KEY);
             jRadioExternal.setName(Configuration.EXTERNAL_MERGE_KEY);
+            jRadioStreaming.setName(Configuration.STREAMING_MERGE_KEY);
 
             final ButtonGroup group = new ButtonGroup();
             group.add(jRadioDefault);
             group.add(jRadioCustom);
             group.add(jRadioExternal);
+            group.add(jRadioStreaming);
 
             add(new JLabel("Select the merge method"));
             add(jRadioDefault);
             add(jRadioCustom);
             add(jRadioExternal);
+            add(jRadioStreaming);
         }
     }
 
@@ -10,6 +10,7 @@ import java.io.IOException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Iterator;
 import org.apache.commons.logging.Log;
@@ -82,354 +83,1439 @@ public final class Configuration
      */
     public static final String DEFAULT_MERGE_KEY = "defaultMerge";
 
+    /**
+     * Key for setting the merge method.
+     */
+    public static final String STREAMING_MERGE_KEY = "streamingMerge";
+
     /**
      * Key for setting the command line argument.
      */
-    public static final String ARGUMENT_KEY = "argument";
+    public static final String ARGUMENT_KEY = "argument";
+
+    /**
+     * Key for output format argument.
+     */
+    public static final String OUTPUT_FMT_KEY = "outputFmt";
+
+    /**
+     * Key for the size of the queue between the splitter and the workers.
+     */
+    public static final String QUEUE_SIZE_KEY = "queueSize";
+
+    /**
+     * Key for setting whether to split the input file in parallel.
+     */
+    public static final String PARALLEL_SPLIT_KEY = "parallelSplit";
+
+    /**
+     * Key for the number of records packed into each chunk.
+     */
+    public static final String RECORDS_KEY = "recordsPerChunk";
+
+    /**
+     * Key for the target size of each chunk in bytes.
+     */
+    public static final String CHUNK_SIZE_KEY = "chunkSize";
+
+    /**
+     * Key for setting whether to tune the records per chunk while running.
+     */
+    public static final String ADAPTIVE_BATCH_KEY = "adaptiveBatching";
+
+    /**
+     * Key for the directory the runtime models are kept in.
+     */
+    public static final String MODEL_DIR_KEY = "modelDir";
+
+    /**
+     * Key for setting whether the workers steal work from each other.
+     */
+    public static final String WORK_STEALING_KEY = "workStealing";
+
+    /**
+     * Key for the number of chunks dealt to a worker at a time.
+     */
+    public static final String STEAL_BLOCK_KEY = "stealBlockSize";
+
+    /**
+     * Key for running the executable on stdin and stdout.
+     */
+    public static final String PIPE_MODE_KEY = "pipeMode";
+
+    /**
+     * Key for the largest result kept in memory in pipe mode.
+     */
+    public static final String SPILL_SIZE_KEY = "spillSize";
+
+    /**
+     * Key for keeping one process per worker running for all of its chunks.
+     */
+    public static final String COPROCESS_MODE_KEY = "coprocessMode";
+
+    /**
+     * Key for keeping the results in a cache between runs.
+     */
+    public static final String RESULT_CACHE_KEY = "resultCache";
+
+    /**
+     * Key for the directory the result cache is kept in.
+     */
+    public static final String CACHE_DIR_KEY = "cacheDir";
+
+    /**
+     * Key for the most bytes kept in the result cache.
+     */
+    public static final String CACHE_SIZE_KEY = "cacheSize";
+
+    /**
+     * Key for running identical chunks only once.
+     */
+    public static final String DEDUPLICATE_KEY = "deduplicate";
+
+    /**
+     * Key for the directories the chunks are written to.
+     */
+    public static final String SCRATCH_DIRS_KEY = "scratchDirs";
+
+    /**
+     * Key for the memory-backed directory small chunks are written to.
+     */
+    public static final String FAST_SCRATCH_DIR_KEY = "fastScratchDir";
+
+    /**
+     * Key for the largest chunk written to the fast scratch directory.
+     */
+    public static final String FAST_SCRATCH_SIZE_KEY = "fastScratchSize";
+
+    /**
+     * Key for the free space kept on the fast scratch directory.
+     */
+    public static final String FAST_SCRATCH_RESERVE_KEY = "fastScratchReserve";
+
+    /**
+     * Key for keeping a journal so an interrupted run can be resumed.
+     */
+    public static final String JOURNAL_KEY = "journal";
+
+    /**
+     * Key for tuning the number of running workers to the throughput.
+     */
+    public static final String AUTO_THREADS_KEY = "autoThreads";
+
+    /**
+     * Key for the most workers running at once in auto mode.
+     */
+    public static final String MAX_THREADS_KEY = "maxThreads";
+
+    /**
+     * Key for the shortest time between changes to the number of running
+     * workers.
+     */
+    public static final String AUTO_INTERVAL_KEY = "autoInterval";
+
+    /**
+     * Key for holding back processes while memory or CPU is short.
+     */
+    public static final String ADMISSION_KEY = "admission";
+
+    /**
+     * Key for the memory kept free by holding back processes.
+     */
+    public static final String ADMIT_RESERVE_KEY = "admitMinFreeMemory";
+
+    /**
+     * Key for the load per CPU above which processes are held back.
+     */
+    public static final String ADMIT_MAX_LOAD_KEY = "admitMaxLoad";
+
+    /**
+     * The key for pinning each worker's processes to its own CPUs.
+     */
+    public static final String PINNING_KEY = "pinning";
+
+    /**
+     * The key for the port remote agents connect to.
+     */
+    public static final String COORDINATOR_PORT_KEY = "coordinatorPort";
+
+    /**
+     * The key for running backups of the slowest chunks at the end of the run.
+     */
+    public static final String SPECULATIVE_KEY = "speculative";
+
+    /**
+     * The key for the multiple of the median runtime a chunk may take.
+     */
+    public static final String TIMEOUT_FACTOR_KEY = "timeoutFactor";
+
+    /**
+     * The key for the shortest time a chunk may take before it is killed.
+     */
+    public static final String MIN_TIMEOUT_KEY = "minTimeout";
+
+    /**
+     * The key for how often a failed chunk is tried again.
+     */
+    public static final String RETRIES_KEY = "retries";
+
+    /**
+     * The key for the pause before a failed chunk is first tried again.
+     */
+    public static final String RETRY_BACKOFF_KEY = "retryBackoff";
+
+    /**
+     * The key for publishing the pool's metrics over JMX.
+     */
+    public static final String JMX_KEY = "jmx";
+
+    /**
+     * The key for writing a timeline of the run.
+     */
+    public static final String TRACE_KEY = "trace";
+
+    /**
+     * The key for measuring what each chunk's processes use.
+     */
+    public static final String ACCOUNTING_KEY = "accounting";
+
+    /**
+     * Key for running the chunks' processes without a thread each.
+     */
+    public static final String ASYNC_KEY = "asyncMode";
+
+    /**
+     * Key for the largest log kept of a chunk's process output.
+     */
+    public static final String LOG_SIZE_KEY = "logSize";
+
+    /**
+     * Key for the number of rotated logs kept of a chunk's output.
+     */
+    public static final String LOG_ROTATIONS_KEY = "logRotations";
+
+    /**
+     * Key for using the executable's stdout as the chunk's result.
+     */
+    public static final String STDOUT_RESULT_KEY = "stdoutResult";
+
+    /**
+     * The key for the address the coordinator listens on for agents.
+     */
+    public static final String COORDINATOR_BIND_KEY = "coordinatorBind";
+
+    /**
+     * The key for the secret agents have to send to be let in.
+     */
+    public static final String COORDINATOR_SECRET_KEY = "coordinatorSecret";
+
+    /**
+     * The Log.
+     */
+    private static final Log LOG = LogFactory.getLog(Configuration.class);
+
+    /**
+     * The default number of chunks that can wait for a worker.
+     */
+    private static final int DEFAULT_QUEUE_SIZE = 1024;
+
+    /**
+     * The default number of chunks dealt to a worker at a time.
+     */
+    private static final int DEFAULT_STEAL_BLOCK_SIZE = 16;
+
+    /**
+     * The default largest result kept in memory in pipe mode, in bytes.
+     */
+    private static final long DEFAULT_SPILL_SIZE = 1L << 20;
+
+    /**
+     * The default largest log of a chunk's process output, in bytes.
+     */
+    private static final long DEFAULT_LOG_SIZE = 1L << 20;
+
+    /**
+     * The default number of rotated logs kept of a chunk's output.
+     */
+    private static final int DEFAULT_LOG_ROTATIONS = 1;
+
+    /**
+     * The default most bytes kept in the result cache.
+     */
+    private static final long DEFAULT_CACHE_SIZE = 1L << 30;
+
+    /**
+     * The default largest chunk written to the fast scratch directory.
+     */
+    private static final long DEFAULT_FAST_SCRATCH_SIZE = 1L << 20;
+
+    /**
+     * The default bytes kept free on the fast scratch directory.
+     */
+    private static final long DEFAULT_FAST_SCRATCH_RESERVE = 256L << 20;
+
+    /**
+     * The default shortest time between changes to the number of running
+     * workers, in milliseconds.
+     */
+    private static final long DEFAULT_AUTO_INTERVAL = 2000;
+
+    /**
+     * The default bytes of memory kept free by holding back processes.
+     */
+    private static final long DEFAULT_ADMIT_RESERVE = 512L << 20;
+
+    /**
+     * The default load per CPU above which processes are held back.
+     */
+    private static final double DEFAULT_ADMIT_MAX_LOAD = 1.0;
+
+    /**
+     * The default shortest time in milliseconds a chunk may take before it is
+     * killed.
+     */
+    private static final long DEFAULT_MIN_TIMEOUT = 10000;
+
+    /**
+     * The default pause in milliseconds before a failed chunk is tried again.
+     */
+    private static final long DEFAULT_RETRY_BACKOFF = 1000;
+
+    /**
+     * The number of threads used.
+     */
+    private int numberOfThreads;
+    
+    /**
+     * The name of the input file.
+     */
+    private String inputFileName;
+     
+    /**
+     * The name of the input directory file.
+     */
+    private String inputFileDirName;
+
+    /**
+     * The regex pattern to split the input file on.
+     */
+    private String splitPattern;
+
+    /**
+     * The directory where the output should go.
+     */
+    private String outDirName;
+
+    /**
+     * The path to the executable.
+     */
+    private String execPath;
+
+    /**
+     * Whether or not to make a stats file.
+     */
+    private boolean makeStats;
+
+    /**
+     * Number of header lines in an output file from the executable.
+     */
+    private int numberOfHeaderLines;
+
+    /**
+     * The method used to merge the results.
+     */
+    private int mergeMethod = -1;
+
+    /**
+     * Whether or not to save the config file.
+     */
+    private boolean save;
+
+    /**
+     * The arguments for the command line.
+     */
+    private String argument;
+
+    /**
+     * The output format: true for directories or false for files.
+     */
+    private boolean outputFmt;
+
+    /**
+     * The most chunks that can wait between the splitter and the workers.
+     */
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+
+    /**
+     * Whether or not to split the input file on several threads.
+     */
+    private boolean parallelSplit;
+
+    /**
+     * The number of records packed into each chunk.
+     */
+    private int recordsPerChunk = 1;
+
+    /**
+     * The target size of each chunk in bytes, or 0 for no target.
+     */
+    private long chunkSize;
+
+    /**
+     * Whether or not to tune the records per chunk from the runtimes.
+     */
+    private boolean adaptiveBatching;
+
+    /**
+     * The directory the learned runtime models are kept in, or null for the
+     * output directory.
+     */
+    private String modelDir;
+
+    /**
+     * Whether or not each worker gets its own deque of chunks.
+     */
+    private boolean workStealing;
+
+    /**
+     * The number of chunks dealt to a worker's deque at a time.
+     */
+    private int stealBlockSize = DEFAULT_STEAL_BLOCK_SIZE;
+
+    /**
+     * True iff chunks are piped through the executable's stdin and stdout.
+     */
+    private boolean pipeMode;
+
+    /**
+     * The largest result in bytes kept in memory in pipe mode.
+     */
+    private long spillSize = DEFAULT_SPILL_SIZE;
+
+    /**
+     * True iff each worker keeps one process running for all of its chunks.
+     */
+    private boolean coprocessMode;
+
+    /**
+     * True iff results are kept in a cache between runs.
+     */
+    private boolean resultCache;
+
+    /**
+     * The directory the result cache is kept in.
+     */
+    private String cacheDir = System.getProperty("user.home")
+        + "/.epframework/cache";
+
+    /**
+     * The most bytes kept in the result cache.
+     */
+    private long cacheSize = DEFAULT_CACHE_SIZE;
+
+    /**
+     * True iff identical chunks are only run once.
+     */
+    private boolean deduplicate;
+
+    /**
+     * The directories the chunks are written to, separated by the path separator.
+     */
+    private String scratchDirs = "/tmp";
+
+    /**
+     * The memory-backed directory small chunks are written to, or null.
+     */
+    private String fastScratchDir;
+
+    /**
+     * The largest chunk in bytes written to the fast scratch directory.
+     */
+    private long fastScratchSize = DEFAULT_FAST_SCRATCH_SIZE;
+
+    /**
+     * The bytes kept free on the fast scratch directory.
+     */
+    private long fastScratchReserve = DEFAULT_FAST_SCRATCH_RESERVE;
+
+    /**
+     * True iff a journal is kept so an interrupted run can be resumed.
+     */
+    private boolean journal;
+
+    /**
+     * True iff the number of running workers is tuned to the throughput.
+     */
+    private boolean autoThreads;
+
+    /**
+     * The most workers running at once in auto mode, or 0 for twice the cores.
+     */
+    private int maxThreads;
+
+    /**
+     * The shortest time between changes to the number of running workers, in
+     * milliseconds.
+     */
+    private long autoInterval = DEFAULT_AUTO_INTERVAL;
+
+    /**
+     * True iff processes are held back while memory or CPU is short.
+     */
+    private boolean admission;
+
+    /**
+     * The bytes of memory kept free by holding back processes.
+     */
+    private long admitMinFreeMemory = DEFAULT_ADMIT_RESERVE;
+
+    /**
+     * The load per CPU above which processes are held back, or 0.
+     */
+    private double admitMaxLoad = DEFAULT_ADMIT_MAX_LOAD;
+
+    /**
+     * Whether each worker's processes are pinned to its own CPUs and memory node.
+     */
+    private boolean pinning;
+
+    /**
+     * The port remote agents connect to, or 0 to run on this machine only.
+     */
+    private int coordinatorPort;
+
+    /**
+     * Whether idle workers run backups of the slowest chunks at the end of the run.
+     */
+    private boolean speculative;
+
+    /**
+     * The multiple of the median runtime a chunk may take before it is killed, or 0 for no limit.
+     */
+    private double timeoutFactor;
+
+    /**
+     * The shortest time in milliseconds a chunk may take before it is killed.
+     */
+    private long minTimeout = DEFAULT_MIN_TIMEOUT;
+
+    /**
+     * How often a failed chunk is tried again.
+     */
+    private int retries;
+
+    /**
+     * The pause in milliseconds before a failed chunk is first tried again, doubling with each retry.
+     */
+    private long retryBackoff = DEFAULT_RETRY_BACKOFF;
+
+    /**
+     * Whether the pool's metrics are published over JMX.
+     */
+    private boolean jmx;
+
+    /**
+     * Whether a timeline of the run is written for a trace viewer.
+     */
+    private boolean trace;
+
+    /**
+     * Whether the CPU time, memory and IO of each chunk's processes are measured.
+     */
+    private boolean accounting;
+
+    /**
+     * True iff the processes are reaped by one thread instead of a worker each.
+     */
+    private boolean asyncMode;
+
+    /**
+     * The largest log of a chunk's output in bytes before it is rotated.
+     */
+    private long logSize = DEFAULT_LOG_SIZE;
+
+    /**
+     * The number of rotated logs kept of each chunk's output.
+     */
+    private int logRotations = DEFAULT_LOG_ROTATIONS;
+
+    /**
+     * True iff the executable's stdout is written to the out file.
+     */
+    private boolean stdoutResult;
+
+    /**
+     * The address the coordinator listens on, or null for every interface.
+     */
+    private String coordinatorBind;
+
+    /**
+     * The secret agents have to send, or null to let any agent in.
+     */
+    private String coordinatorSecret;
+    
+    /**
+     * Constructs a configuration file from a map.
+     * @param map - the map that holds the configuration settings
+     */
+    public Configuration(final Map<String, Object> map)
+    {
+        loadConfig(map);
+
+        // Check to make sure necessary fields were filled
+        boolean crash = false;
+        if ((this.inputFileDirName == null && this.inputFileName == null) || 
+                (this.inputFileDirName != null && this.inputFileName != null))
+        {
+            LOG.fatal("An input file OR directory must be selected");
+            crash = true;
+        }
+        else if (this.outDirName == null)
+        {
+            LOG.fatal("An output directory must be selected");
+            crash = true;
+        }
+        else if (this.execPath == null)
+        {
+            crash = true;
+            LOG.fatal("An executable must be selected");
+        }
+        else if (this.mergeMethod == -1)
+        {
+            crash = true;
+            LOG.fatal("A merge method must be selected");
+        }
+
+        if (crash)
+        {
+            System.exit(1);
+        }
+        else if (this.save)
+        {
+            saveConfig();
+        }
+    }
+
+    /**
+     * Constructs a configuration file from a past configuration file that was
+     * saved to the disk.
+     *
+     * @param fileName - the path to the file on disk
+     * @throws IOException - if there is any problem reading the file
+     */
+    public Configuration(final String fileName) throws IOException
+    {
+        // Read into the form the map constructor takes, the flags as booleans
+        // and everything else as text
+        final Map<String, Object> map = new LinkedHashMap<String, Object>();
+        final JsonFactory jf = new JsonFactory();
+        final JsonParser jp = jf.createParser(new File(fileName));
+        jp.nextToken();
+
+        while (jp.nextToken() != JsonToken.END_OBJECT)
+        {
+            final String fieldName = jp.getCurrentName();
+            final JsonToken token = jp.nextToken();
+            if (token == JsonToken.VALUE_TRUE || token == JsonToken.VALUE_FALSE)
+            {
+                map.put(fieldName, jp.getBooleanValue());
+            }
+            else
+            {
+                map.put(fieldName, jp.getText());
+            }
+        }
+        jp.close();
+        loadConfig(map);
+    }
+
+    /**
+     * Sets the settings in a map.
+     *
+     * @param map - the settings by key, the flags as booleans and everything
+     * else as text
+     */
+    private void loadConfig(final Map<String, Object> map)
+    {
+        final Iterator<String> it = map.keySet().iterator();
+        while (it.hasNext()) 
+        {
+            final String key = it.next();
+            final Object val = map.get(key);
+            LOG.debug(key + " -> " + val);
+            if (!loadInput(key, val) && !loadOutput(key, val)
+                    && !loadExecution(key, val) && !loadStorage(key, val)
+                    && !loadRecovery(key, val) && !loadMonitoring(key, val))
+            {
+                assert(false);
+            }
+        }
+    }
+
+    /**
+     * Sets a setting of how the input is read and split into chunks.
+     *
+     * @param key - the key of the setting
+     * @param val - its value
+     * @return whether the key is one of these settings
+     */
+    private boolean loadInput(final String key, final Object val)
+    {
+        switch(key)
+        {
+            case IN_FILE_KEY:
+                this.inputFileName = (String) val;
+                break;
+            case IN_FILE_DIR_KEY:
+                this.inputFileDirName = (String) val;
+                break;
+            case SPLIT_PATTERN_KEY:
+                this.splitPattern = (String) val;
+                break;
+            case NUM_HEADER_KEY:
+                this.numberOfHeaderLines = Integer.valueOf((String) val);
+                break;
+            case PARALLEL_SPLIT_KEY:
+                this.parallelSplit = (boolean) val;
+                break;
+            case RECORDS_KEY:
+                this.recordsPerChunk = Integer.valueOf((String) val);
+                break;
+            case CHUNK_SIZE_KEY:
+                this.chunkSize = Long.valueOf((String) val);
+                break;
+            case ADAPTIVE_BATCH_KEY:
+                this.adaptiveBatching = (boolean) val;
+                break;
+            case MODEL_DIR_KEY:
+                this.modelDir = (String) val;
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sets a setting of how the results are merged and written.
+     *
+     * @param key - the key of the setting
+     * @param val - its value
+     * @return whether the key is one of these settings
+     */
+    private boolean loadOutput(final String key, final Object val)
+    {
+        switch(key)
+        {
+            case OUT_FILE_KEY:
+                this.outDirName = (String) val;
+                break;
+            case STATS_KEY:
+                this.makeStats = (boolean) val;
+                break;
+            case SAVE_KEY:
+                this.save = (boolean) val;
+                break;
+            case DEFAULT_MERGE_KEY:
+                if ((boolean) val)
+                {
+                    this.mergeMethod = 0;
+                }
+                break;
+            case CUSTOM_MERGE_KEY:
+                if ((boolean) val)
+                {
+                    this.mergeMethod = 1;
+                }
+                break;
+            case EXTERNAL_MERGE_KEY:
+                if ((boolean) val)
+                {
+                    this.mergeMethod = 2;
+                }
+                break;
+            case STREAMING_MERGE_KEY:
+                if ((boolean) val)
+                {
+                    this.mergeMethod = 3;
+                }
+                break;
+            case OUTPUT_FMT_KEY:
+                this.outputFmt = (boolean) val;
+                break;
+            case STDOUT_RESULT_KEY:
+                this.stdoutResult = (boolean) val;
+                break;
+            case JOURNAL_KEY:
+                this.journal = (boolean) val;
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sets a setting of how the executable is run and by how many workers.
+     *
+     * @param key - the key of the setting
+     * @param val - its value
+     * @return whether the key is one of these settings
+     */
+    private boolean loadExecution(final String key, final Object val)
+    {
+        switch(key)
+        {
+            case EXEC_LOC_KEY:
+                this.execPath = (String) val;
+                break;
+            case ARGUMENT_KEY:
+                this.argument = (String) val;
+                break;
+            case NUM_PROCESSES_KEY:
+                this.numberOfThreads = Integer.valueOf((String) val);
+                break;
+            case QUEUE_SIZE_KEY:
+                this.queueSize = Integer.valueOf((String) val);
+                break;
+            case WORK_STEALING_KEY:
+                this.workStealing = (boolean) val;
+                break;
+            case STEAL_BLOCK_KEY:
+                this.stealBlockSize = Integer.valueOf((String) val);
+                break;
+            case PIPE_MODE_KEY:
+                this.pipeMode = (boolean) val;
+                break;
+            case SPILL_SIZE_KEY:
+                this.spillSize = Long.valueOf((String) val);
+                break;
+            case COPROCESS_MODE_KEY:
+                this.coprocessMode = (boolean) val;
+                break;
+            case ASYNC_KEY:
+                this.asyncMode = (boolean) val;
+                break;
+            case AUTO_THREADS_KEY:
+                this.autoThreads = (boolean) val;
+                break;
+            case MAX_THREADS_KEY:
+                this.maxThreads = Integer.valueOf((String) val);
+                break;
+            case AUTO_INTERVAL_KEY:
+                this.autoInterval = Long.valueOf((String) val);
+                break;
+            case ADMISSION_KEY:
+                this.admission = (boolean) val;
+                break;
+            case ADMIT_RESERVE_KEY:
+                this.admitMinFreeMemory = Long.valueOf((String) val);
+                break;
+            case ADMIT_MAX_LOAD_KEY:
+                this.admitMaxLoad = Double.valueOf((String) val);
+                break;
+            case PINNING_KEY:
+                this.pinning = (boolean) val;
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sets a setting of the result cache and the scratch directories.
+     *
+     * @param key - the key of the setting
+     * @param val - its value
+     * @return whether the key is one of these settings
+     */
+    private boolean loadStorage(final String key, final Object val)
+    {
+        switch(key)
+        {
+            case RESULT_CACHE_KEY:
+                this.resultCache = (boolean) val;
+                break;
+            case CACHE_DIR_KEY:
+                this.cacheDir = (String) val;
+                break;
+            case CACHE_SIZE_KEY:
+                this.cacheSize = Long.valueOf((String) val);
+                break;
+            case DEDUPLICATE_KEY:
+                this.deduplicate = (boolean) val;
+                break;
+            case SCRATCH_DIRS_KEY:
+                this.scratchDirs = (String) val;
+                break;
+            case FAST_SCRATCH_DIR_KEY:
+                this.fastScratchDir = (String) val;
+                break;
+            case FAST_SCRATCH_SIZE_KEY:
+                this.fastScratchSize = Long.valueOf((String) val);
+                break;
+            case FAST_SCRATCH_RESERVE_KEY:
+                this.fastScratchReserve = Long.valueOf((String) val);
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sets a setting of how stragglers and failed chunks are handled and
+     * how the logs are kept.
+     *
+     * @param key - the key of the setting
+     * @param val - its value
+     * @return whether the key is one of these settings
+     */
+    private boolean loadRecovery(final String key, final Object val)
+    {
+        switch(key)
+        {
+            case SPECULATIVE_KEY:
+                this.speculative = (boolean) val;
+                break;
+            case TIMEOUT_FACTOR_KEY:
+                this.timeoutFactor = Double.valueOf((String) val);
+                break;
+            case MIN_TIMEOUT_KEY:
+                this.minTimeout = Long.valueOf((String) val);
+                break;
+            case RETRIES_KEY:
+                this.retries = Integer.valueOf((String) val);
+                break;
+            case RETRY_BACKOFF_KEY:
+                this.retryBackoff = Long.valueOf((String) val);
+                break;
+            case LOG_SIZE_KEY:
+                this.logSize = Long.valueOf((String) val);
+                break;
+            case LOG_ROTATIONS_KEY:
+                this.logRotations = Integer.valueOf((String) val);
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Sets a setting of how the run is monitored or spread over agents.
+     *
+     * @param key - the key of the setting
+     * @param val - its value
+     * @return whether the key is one of these settings
+     */
+    private boolean loadMonitoring(final String key, final Object val)
+    {
+        switch(key)
+        {
+            case JMX_KEY:
+                this.jmx = (boolean) val;
+                break;
+            case TRACE_KEY:
+                this.trace = (boolean) val;
+                break;
+            case ACCOUNTING_KEY:
+                this.accounting = (boolean) val;
+                break;
+            case COORDINATOR_PORT_KEY:
+                this.coordinatorPort = Integer.valueOf((String) val);
+                break;
+            case COORDINATOR_BIND_KEY:
+                this.coordinatorBind = (String) val;
+                break;
+            case COORDINATOR_SECRET_KEY:
+                this.coordinatorSecret = (String) val;
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+
+    /**
+     * @return the number of threads the program will use
+     */
+    public int getNumberOfThreads()
+    {
+        return this.numberOfThreads;
+    }
+
+    /**
+     * @return the path to the input file
+     */
+    public String getInputFile()
+    {
+        return this.inputFileName;
+    }
+
+    /**
+     * @return the path to the input directory of files
+     */
+    public String getInputDirectory()
+    {
+        return this.inputFileDirName;
+    }
+
+    /**
+     * @return the regex pattern used the split the input file
+     */
+    public String getSplitPattern()
+    {
+        return this.splitPattern;
+    }
+
+    /**
+     * @return the directory for the final output
+     */
+    public String getOutputDirectory()
+    {
+        return this.outDirName;
+    }
+
+    /**
+     * @return the path to the executable
+     */
+    public String getExecutable()
+    {
+        return this.execPath;
+    }
+
+    /**
+     * @return the number of header lines to copy to the final output
+     */
+    public int getNumHeaderLines()
+    {
+        return this.numberOfHeaderLines;
+    }
+
+    /**
+     * @return true iff the user wants a statistics file created after the
+     * workers have all finished
+     */
+    public boolean makeStats()
+    {
+        return this.makeStats;
+    }
+
+    /**
+     * @return the method used to merge the results
+     */
+    public int getMergeMethod()
+    {
+        return this.mergeMethod;
+    }
 
     /**
-     * Key for output format argument.
+     * @return the args for the command line 
      */
-    public static final String OUTPUT_FMT_KEY = "outputFmt";
+    public String getArguments()
+    {
+        return this.argument;
+    }
 
     /**
-     * The Log.
+     * @return true iff the output should be in directories
      */
-    private static final Log LOG = LogFactory.getLog(Configuration.class);
+    public boolean getOutputSetting()
+    {
+        return this.outputFmt;
+    }
 
     /**
-     * The number of threads used.
+     * @return the most chunks that can wait between the splitter and the
+     * workers
      */
-    private int numberOfThreads;
-    
+    public int getQueueSize()
+    {
+        return this.queueSize;
+    }
+
     /**
-     * The name of the input file.
+     * @return true iff the input file should be memory-mapped and split on
+     * several threads
      */
-    private String inputFileName;
-     
+    public boolean splitInParallel()
+    {
+        return this.parallelSplit;
+    }
+
     /**
-     * The name of the input directory file.
+     * @return the number of records packed into each chunk
      */
-    private String inputFileDirName;
+    public int getRecordsPerChunk()
+    {
+        return this.recordsPerChunk;
+    }
 
     /**
-     * The regex pattern to split the input file on.
+     * @return the target size of each chunk in bytes, or 0 for no target
      */
-    private String splitPattern;
+    public long getChunkSize()
+    {
+        return this.chunkSize;
+    }
 
     /**
-     * The directory where the output should go.
+     * @return true iff the records per chunk should be tuned from the runtimes of
+     * the finished chunks
      */
-    private String outDirName;
+    public boolean useAdaptiveBatching()
+    {
+        return this.adaptiveBatching;
+    }
 
     /**
-     * The path to the executable.
+     * @return the directory the learned runtime models of the executables are
+     * kept in, the output directory unless another was set
      */
-    private String execPath;
+    public String getModelDirectory()
+    {
+        if (this.modelDir == null)
+        {
+            return getOutputDirectory();
+        }
+        return this.modelDir;
+    }
 
     /**
-     * Whether or not to make a stats file.
+     * @return true iff each worker should get its own deque of chunks and steal
+     * from the others when it runs out
      */
-    private boolean makeStats;
+    public boolean useWorkStealing()
+    {
+        return this.workStealing;
+    }
 
     /**
-     * Number of header lines in an output file from the executable.
+     * @return the number of chunks dealt to a worker's deque at a time
      */
-    private int numberOfHeaderLines;
+    public int getStealBlockSize()
+    {
+        return this.stealBlockSize;
+    }
 
     /**
-     * The method used to merge the results.
+     * @return true iff the chunks should be written to the executable's stdin and
+     * its stdout kept as the result, instead of using in and out files
      */
-    private int mergeMethod = -1;
+    public boolean usePipeMode()
+    {
+        return this.pipeMode;
+    }
 
     /**
-     * Whether or not to save the config file.
+     * @return the largest result in bytes kept in memory in pipe mode; larger
+     * results are written to the chunk's out file
      */
-    private boolean save;
+    public long getSpillSize()
+    {
+        return this.spillSize;
+    }
 
     /**
-     * The arguments for the command line.
+     * @return true iff each worker should keep one process running and send it
+     * the paths of its chunks one at a time; takes the place of pipe mode
      */
-    private String argument;
+    public boolean useCoprocessMode()
+    {
+        return this.coprocessMode;
+    }
 
     /**
-     * The output format: true for directories or false for files.
+     * @return true iff results should be kept in a cache between runs so chunks
+     * seen before are not run again
      */
-    private boolean outputFmt;
-    
+    public boolean useResultCache()
+    {
+        return this.resultCache;
+    }
+
     /**
-     * Constructs a configuration file from a map.
-     * @param map - the map that holds the configuration settings
+     * @return the directory the result cache is kept in
      */
-    public Configuration(final Map<String, Object> map)
+    public String getCacheDirectory()
     {
-        loadConfig(map);
+        return this.cacheDir;
+    }
 
-        // Check to make sure necessary fields were filled
-        boolean crash = false;
-        if ((this.inputFileDirName == null && this.inputFileName == null) || 
-                (this.inputFileDirName != null && this.inputFileName != null))
-        {
-            LOG.fatal("An input file OR directory must be selected");
-            crash = true;
-        }
-        else if (this.outDirName == null)
-        {
-            LOG.fatal("An output directory must be selected");
-            crash = true;
-        }
-        else if (this.execPath == null)
-        {
-            crash = true;
-            LOG.fatal("An executable must be selected");
-        }
-        else if (this.mergeMethod == -1)
-        {
-            crash = true;
-            LOG.fatal("A merge method must be selected");
-        }
+    /**
+     * @return the most bytes kept in the result cache; the least recently used
+     * results are removed past this
+     */
+    public long getCacheSize()
+    {
+        return this.cacheSize;
+    }
 
-        if (crash)
+    /**
+     * @return true iff chunks with the same content should only be run once
+     * per run
+     */
+    public boolean useDeduplication()
+    {
+        return this.deduplicate;
+    }
+
+    /**
+     * @return the directories the chunks are written to, separated by the path
+     * separator; the chunks are spread across them
+     */
+    public String getScratchDirectories()
+    {
+        return this.scratchDirs;
+    }
+
+    /**
+     * @return the memory-backed directory, such as /dev/shm, small chunks are
+     * written to first, or null to not use one
+     */
+    public String getFastScratchDirectory()
+    {
+        return this.fastScratchDir;
+    }
+
+    /**
+     * @return the largest chunk in bytes written to the fast scratch directory
+     */
+    public long getFastScratchSize()
+    {
+        return this.fastScratchSize;
+    }
+
+    /**
+     * @return the bytes kept free on the fast scratch directory; chunks go to
+     * the other scratch directories once it is this full
+     */
+    public long getFastScratchReserve()
+    {
+        return this.fastScratchReserve;
+    }
+
+    /**
+     * @return true iff a journal of the run should be kept in the output directory
+     * so an interrupted run can be resumed
+     */
+    public boolean useJournal()
+    {
+        return this.journal;
+    }
+
+    /**
+     * @return true iff the number of running workers should be tuned while the
+     * run goes on to get the most records done per second
+     */
+    public boolean useAutoThreads()
+    {
+        return this.autoThreads;
+    }
+
+    /**
+     * @return the most workers running at once in auto mode
+     */
+    public int getMaxThreads()
+    {
+        if (this.maxThreads > 0)
         {
-            System.exit(1);
+            return this.maxThreads;
         }
-        else if (this.save)
+        return 2 * Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * @return the number of workers to create: the most that can run at once
+     * in auto mode, otherwise the number of threads
+     */
+    public int getPoolSize()
+    {
+        if (this.autoThreads)
         {
-            saveConfig();
+            return getMaxThreads();
         }
+        return this.numberOfThreads;
     }
 
     /**
-     * Constructs a configuration file from a past configuration file that was
-     * saved to the disk.
-     *
-     * @param fileName - the path to the file on disk
-     * @throws IOException - if there is any problem reading the file
+     * @return the shortest time between changes to the number of running
+     * workers in auto mode, in milliseconds
      */
-    public Configuration(final String fileName) throws IOException
+    public long getAutoInterval()
     {
-        final JsonFactory jf = new JsonFactory();
-        final JsonParser jp = jf.createParser(new File(fileName));
-        jp.nextToken();
+        return this.autoInterval;
+    }
 
-        while (jp.nextToken() != JsonToken.END_OBJECT)
-        {
-            final String fieldName = jp.getCurrentName();
-            jp.nextToken();
-            switch(fieldName)
-            {
-                case IN_FILE_KEY:
-                    this.inputFileName = jp.getText();
-                    break;
-                case IN_FILE_DIR_KEY:
-                    this.inputFileDirName = jp.getText();
-                    break;
-                case SPLIT_PATTERN_KEY:
-                    this.splitPattern = jp.getText();
-                    break;
-                case OUT_FILE_KEY:
-                    this.outDirName = jp.getText();
-                    break;
-                case EXEC_LOC_KEY:
-                    this.execPath = jp.getText();
-                    break;
-                case NUM_PROCESSES_KEY:
-                    this.numberOfThreads = jp.getIntValue();
-                    break;
-                case STATS_KEY:
-                    this.makeStats = jp.getBooleanValue();
-                    break;
-                case NUM_HEADER_KEY:
-                    this.numberOfHeaderLines = jp.getIntValue();
-                    break;
-                case DEFAULT_MERGE_KEY:
-                    if (jp.getBooleanValue())
-                    {
-                        this.mergeMethod = 0;
-                    }
-                    break;
-                case CUSTOM_MERGE_KEY:
-                    if (jp.getBooleanValue())
-                    {
-                        this.mergeMethod = 1;
-                    }
-                    break;
-                case EXTERNAL_MERGE_KEY:
-                    if (jp.getBooleanValue())
-                    {
-                        this.mergeMethod = 2;
-                    }
-                    break;
-                case ARGUMENT_KEY:
-                    this.argument = jp.getText();
-                    break;
-                case OUTPUT_FMT_KEY:
-                    this.outputFmt = jp.getBooleanValue();
-                    break;
-                 default:
-                    assert(false);
-            }
-        }
-        jp.close();
+    /**
+     * @return true iff new processes should be held back while the machine is
+     * short of memory or CPU
+     */
+    public boolean useAdmission()
+    {
+        return this.admission;
     }
 
-    private void loadConfig(final Map<String, Object> map)
+    /**
+     * @return the bytes of memory kept free by holding back processes
+     */
+    public long getAdmitMinFreeMemory()
+    {
+        return this.admitMinFreeMemory;
+    }
+
+    /**
+     * @return the load average per CPU above which processes are held back, or 0
+     * for no limit
+     */
+    public double getAdmitMaxLoad()
+    {
+        return this.admitMaxLoad;
+    }
+
+    /**
+     * @return true iff each worker's processes should be pinned to its own CPUs
+     * and memory node
+     */
+    public boolean usePinning()
     {
-         final Iterator<String> it = map.keySet().iterator();
-         while (it.hasNext()) 
-         {
-             final String key = it.next();
-             final Object val = map.get(key);
-             LOG.debug(key + " -> " + val);
-             switch(key)
-             {
-                 case IN_FILE_KEY:
-                     this.inputFileName = (String) val;
-                     break;
-                 case IN_FILE_DIR_KEY:
-                     this.inputFileDirName = (String) val;
-                     break;
-                 case SPLIT_PATTERN_KEY:
-                     this.splitPattern = (String) val;
-                     break;
-                 case OUT_FILE_KEY:
-                     this.outDirName = (String) val;
-                     break;
-                 case EXEC_LOC_KEY:
-                     this.execPath = (String) val;
-                     break;
-                 case NUM_PROCESSES_KEY:
-                     this.numberOfThreads = Integer.valueOf((String) val);
-                     break;
-                 case STATS_KEY:
-                     this.makeStats = (boolean) val;
-                     break;
-                 case NUM_HEADER_KEY:
-                     this.numberOfHeaderLines = Integer.valueOf((String) val);
-                     break;
-                 case SAVE_KEY:
-                     this.save = (boolean) val;
-                     break;
-                 case DEFAULT_MERGE_KEY:
-                     if ((boolean) val)
-                     {
-                         this.mergeMethod = 0;
-                     }
-                     break;
-                 case CUSTOM_MERGE_KEY:
-                     if ((boolean) val)
-                     {
-                         this.mergeMethod = 1;
-                     }
-                     break;
-                 case EXTERNAL_MERGE_KEY:
-                     if ((boolean) val)
-                     {
-                         this.mergeMethod = 2;
-                     }
-                     break;
-                 case ARGUMENT_KEY:
-                     this.argument = (String) val;
-                     break;
-                 case OUTPUT_FMT_KEY:
-                     this.outputFmt = (boolean) val;
-                     break;
-                 default:
-                     assert(false);
-             }
-         }
+        return this.pinning;
+    }
 
+    /**
+     * @return the port remote agents connect to, or 0 to run on this machine
+     * only
+     */
+    public int getCoordinatorPort()
+    {
+        return this.coordinatorPort;
+    }
 
+    /**
+     * @return true iff idle workers should run backups of the slowest chunks at
+     * the end of the run
+     */
+    public boolean useSpeculation()
+    {
+        return this.speculative;
     }
 
+    /**
+     * @return the multiple of the median runtime a chunk may take before it is
+     * killed, or 0 for no limit
+     */
+    public double getTimeoutFactor()
+    {
+        return this.timeoutFactor;
+    }
 
     /**
-     * @return the number of threads the program will use
+     * @return the shortest time in milliseconds a chunk may take before it is
+     * killed
      */
-    public int getNumberOfThreads()
+    public long getMinTimeout()
     {
-        return this.numberOfThreads;
+        return this.minTimeout;
     }
 
     /**
-     * @return the path to the input file
+     * @return how often a failed chunk is tried again
      */
-    public String getInputFile()
+    public int getRetries()
     {
-        return this.inputFileName;
+        return this.retries;
     }
 
     /**
-     * @return the path to the input directory of files
+     * @return the pause in milliseconds before a failed chunk is first tried
+     * again, doubling with each retry
      */
-    public String getInputDirectory()
+    public long getRetryBackoff()
     {
-        return this.inputFileDirName;
+        return this.retryBackoff;
     }
 
     /**
-     * @return the regex pattern used the split the input file
+     * @return true iff the pool's live metrics should be published as an MBean
      */
-    public String getSplitPattern()
+    public boolean useJmx()
     {
-        return this.splitPattern;
+        return this.jmx;
     }
 
     /**
-     * @return the directory for the final output
+     * @return true iff a Chrome trace of every chunk's steps should be written to
+     * trace.json in the output directory
      */
-    public String getOutputDirectory()
+    public boolean makeTrace()
     {
-        return this.outDirName;
+        return this.trace;
     }
 
     /**
-     * @return the path to the executable
+     * @return true iff the CPU time, memory and IO of each chunk's processes should
+     * be measured from /proc for the stats
      */
-    public String getExecutable()
+    public boolean useAccounting()
     {
-        return this.execPath;
+        return this.accounting;
     }
 
     /**
-     * @return the number of header lines to copy to the final output
+     * @return true iff the chunks' processes should be started by one thread and
+     * reaped by another, with numProcesses as the limit on how many run at once
      */
-    public int getNumHeaderLines()
+    public boolean useAsyncMode()
     {
-        return this.numberOfHeaderLines;
+        return this.asyncMode;
     }
 
     /**
-     * @return true iff the user wants a statistics file created after the
-     * workers have all finished
+     * @return the largest log in bytes of a chunk's process output before it is
+     * rotated, or 0 to throw the output away
      */
-    public boolean makeStats()
+    public long getLogSize()
     {
-        return this.makeStats;
+        return this.logSize;
     }
 
     /**
-     * @return the method used to merge the results
+     * @return the number of rotated logs kept of each chunk's output besides the
+     * current one
      */
-    public int getMergeMethod()
+    public int getLogRotations()
     {
-        return this.mergeMethod;
+        return this.logRotations;
     }
 
     /**
-     * @return the args for the command line 
+     * @return true iff the executable's stdout should be written to the chunk's out
+     * file as its result, with only stderr going to the chunk's log
      */
-    public String getArguments()
+    public boolean useStdoutResult()
     {
-        return this.argument;
+        return this.stdoutResult;
     }
 
     /**
-     * @return true iff the output should be in directories
+     * @return the address the coordinator listens on for agents, or null for
+     * every interface
      */
-    public boolean getOutputSetting()
+    public String getCoordinatorBind()
     {
-        return this.outputFmt;
+        return this.coordinatorBind;
+    }
+
+    /**
+     * @return the secret agents have to send to be let in, or null to let any
+     * agent in
+     */
+    public String getCoordinatorSecret()
+    {
+        return this.coordinatorSecret;
     }
 
     /**
@@ -471,7 +1557,68 @@ public final class Configuration
             jg.writeBooleanField(EXTERNAL_MERGE_KEY, this.mergeMethod == 2);
             jg.writeBooleanField(CUSTOM_MERGE_KEY, this.mergeMethod == 1);
             jg.writeBooleanField(DEFAULT_MERGE_KEY, this.mergeMethod == 0);
+            jg.writeBooleanField(STREAMING_MERGE_KEY, this.mergeMethod == 3);
             jg.writeBooleanField(OUTPUT_FMT_KEY, this.outputFmt);
+            jg.writeNumberField(QUEUE_SIZE_KEY, this.queueSize);
+            jg.writeBooleanField(PARALLEL_SPLIT_KEY, this.parallelSplit);
+            jg.writeNumberField(RECORDS_KEY, this.recordsPerChunk);
+            jg.writeNumberField(CHUNK_SIZE_KEY, this.chunkSize);
+            jg.writeBooleanField(ADAPTIVE_BATCH_KEY, this.adaptiveBatching);
+            if (this.modelDir != null)
+            {
+                jg.writeStringField(MODEL_DIR_KEY, this.modelDir);
+            }
+            jg.writeBooleanField(WORK_STEALING_KEY, this.workStealing);
+            jg.writeNumberField(STEAL_BLOCK_KEY, this.stealBlockSize);
+            jg.writeBooleanField(PIPE_MODE_KEY, this.pipeMode);
+            jg.writeNumberField(SPILL_SIZE_KEY, this.spillSize);
+            jg.writeBooleanField(COPROCESS_MODE_KEY, this.coprocessMode);
+            jg.writeBooleanField(RESULT_CACHE_KEY, this.resultCache);
+            if (this.cacheDir != null)
+            {
+                jg.writeStringField(CACHE_DIR_KEY, this.cacheDir);
+            }
+            jg.writeNumberField(CACHE_SIZE_KEY, this.cacheSize);
+            jg.writeBooleanField(DEDUPLICATE_KEY, this.deduplicate);
+            if (this.scratchDirs != null)
+            {
+                jg.writeStringField(SCRATCH_DIRS_KEY, this.scratchDirs);
+            }
+            if (this.fastScratchDir != null)
+            {
+                jg.writeStringField(FAST_SCRATCH_DIR_KEY, this.fastScratchDir);
+            }
+            jg.writeNumberField(FAST_SCRATCH_SIZE_KEY, this.fastScratchSize);
+            jg.writeNumberField(FAST_SCRATCH_RESERVE_KEY, this.fastScratchReserve);
+            jg.writeBooleanField(JOURNAL_KEY, this.journal);
+            jg.writeBooleanField(AUTO_THREADS_KEY, this.autoThreads);
+            jg.writeNumberField(MAX_THREADS_KEY, this.maxThreads);
+            jg.writeNumberField(AUTO_INTERVAL_KEY, this.autoInterval);
+            jg.writeBooleanField(ADMISSION_KEY, this.admission);
+            jg.writeNumberField(ADMIT_RESERVE_KEY, this.admitMinFreeMemory);
+            jg.writeNumberField(ADMIT_MAX_LOAD_KEY, this.admitMaxLoad);
+            jg.writeBooleanField(PINNING_KEY, this.pinning);
+            jg.writeNumberField(COORDINATOR_PORT_KEY, this.coordinatorPort);
+            jg.writeBooleanField(SPECULATIVE_KEY, this.speculative);
+            jg.writeNumberField(TIMEOUT_FACTOR_KEY, this.timeoutFactor);
+            jg.writeNumberField(MIN_TIMEOUT_KEY, this.minTimeout);
+            jg.writeNumberField(RETRIES_KEY, this.retries);
+            jg.writeNumberField(RETRY_BACKOFF_KEY, this.retryBackoff);
+            jg.writeBooleanField(JMX_KEY, this.jmx);
+            jg.writeBooleanField(TRACE_KEY, this.trace);
+            jg.writeBooleanField(ACCOUNTING_KEY, this.accounting);
+            jg.writeBooleanField(ASYNC_KEY, this.asyncMode);
+            jg.writeNumberField(LOG_SIZE_KEY, this.logSize);
+            jg.writeNumberField(LOG_ROTATIONS_KEY, this.logRotations);
+            jg.writeBooleanField(STDOUT_RESULT_KEY, this.stdoutResult);
+            if (this.coordinatorBind != null)
+            {
+                jg.writeStringField(COORDINATOR_BIND_KEY, this.coordinatorBind);
+            }
+            if (this.coordinatorSecret != null)
+            {
+                jg.writeStringField(COORDINATOR_SECRET_KEY, this.coordinatorSecret);
+            }
             jg.writeEndObject();
             jg.close();
             LOG.info("Configuration saved");
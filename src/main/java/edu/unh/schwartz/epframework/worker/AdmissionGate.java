@@ -0,0 +1,261 @@
+package edu.unh.schwartz.epframework.worker;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Holds back new processes while the machine is short of memory or CPU. A
+ * chunk is let in when the load average is under the limit for the CPUs the
+ * cgroup allows, and when one more process of the peak size seen so far fits
+ * in the memory that would be left. The memory counted is what is available
+ * plus what the running processes hold, less a reserve kept free. One chunk is
+ * always let in when none are running, so the run can not stall.
+ *
+ * The peak size is the largest peak resident set of the executable's
+ * processes, sampled from <code>/proc</code> while they run.
+ */
+final class AdmissionGate
+{
+    /**
+     * The Log.
+     */
+    private static final Log LOG = LogFactory.getLog(AdmissionGate.class);
+
+    /**
+     * How often the machine and the processes are checked, in milliseconds.
+     */
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * The bytes of memory kept free.
+     */
+    private final long reserve;
+
+    /**
+     * The most load per CPU, or 0 for no limit.
+     */
+    private final double maxLoad;
+
+    /**
+     * The current resident set of each running process, by process id.
+     */
+    private final ConcurrentMap<Long, Long> running;
+
+    /**
+     * The number of chunks let in and not yet done.
+     */
+    private int admitted;
+
+    /**
+     * The largest peak resident set seen, in bytes.
+     */
+    private volatile long peak;
+
+    /**
+     * True iff the last check held a chunk back, to log only the changes.
+     */
+    private boolean waiting;
+
+    /**
+     * Constructs a gate.
+     *
+     * @param reserve - the bytes of memory to keep free
+     * @param maxLoad - the most load per CPU, or 0 for no limit
+     */
+    AdmissionGate(final long reserve, final double maxLoad)
+    {
+        this.reserve = reserve;
+        this.maxLoad = maxLoad;
+        this.running = new ConcurrentHashMap<Long, Long>();
+
+        final Thread sampler = new Thread("AdmissionSampler")
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    while (true)
+                    {
+                        sample();
+                        Thread.sleep(POLL_MILLIS);
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    LOG.debug("Admission sampler stopped");
+                }
+            }
+        };
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    /**
+     * Waits until a chunk may start.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized void admit() throws InterruptedException
+    {
+        while (this.admitted > 0 && !roomForOneMore())
+        {
+            wait(POLL_MILLIS);
+        }
+        // A chunk let in only because nothing is running may come after the
+        // shortage is over too, and then the next hold has to be logged
+        if (this.waiting && (this.admitted > 0 || roomForOneMore()))
+        {
+            LOG.info("Admitting chunks again");
+            this.waiting = false;
+        }
+        this.admitted++;
+    }
+
+    /**
+     * Tells the gate a chunk that was let in is done.
+     */
+    synchronized void done()
+    {
+        this.admitted--;
+        notifyAll();
+    }
+
+    /**
+     * Tells the gate about a process that was started, so its memory is
+     * watched.
+     *
+     * @param p - the process
+     */
+    void started(final Process p)
+    {
+        final long pid = ProcFs.pid(p);
+        if (pid > 0)
+        {
+            this.running.put(pid, 0L);
+        }
+    }
+
+    /**
+     * Tells the gate a process has exited.
+     *
+     * @param p - the process
+     */
+    void finished(final Process p)
+    {
+        this.running.remove(ProcFs.pid(p));
+    }
+
+    /**
+     * Raises the peak to one seen in an earlier run.
+     *
+     * @param p - the peak resident set in bytes
+     */
+    void raisePeak(final long p)
+    {
+        if (p > this.peak)
+        {
+            this.peak = p;
+        }
+    }
+
+    /**
+     * @return the largest peak resident set seen, in bytes
+     */
+    long getPeak()
+    {
+        return this.peak;
+    }
+
+    /**
+     * Checks whether the machine has room for another process.
+     *
+     * @return true iff another chunk may start
+     */
+    private boolean roomForOneMore()
+    {
+        final double cpus = ProcFs.cpus();
+        final double load = ProcFs.loadAverage();
+        if (this.maxLoad > 0 && load >= 0 && load >= this.maxLoad * cpus)
+        {
+            holding("load " + load + " on " + cpus + " CPUs");
+            return false;
+        }
+
+        final long avail = ProcFs.availableMemory();
+        if (avail < 0)
+        {
+            return true;
+        }
+        long held = 0;
+        for (final Long rss : this.running.values())
+        {
+            held += rss;
+        }
+
+        // Each process needs room for its peak, whether it has reached it yet
+        final long need = Math.max(1, this.peak);
+        final long budget = avail + held - this.reserve;
+        if (budget < need * (this.admitted + 1))
+        {
+            holding((avail >> 20) + "MB available, " + (need >> 20)
+                    + "MB per process");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Logs why chunks are held back, once each time it starts.
+     *
+     * @param why - the reason
+     */
+    private void holding(final String why)
+    {
+        if (!this.waiting)
+        {
+            LOG.info("Holding back chunks: " + why);
+            this.waiting = true;
+        }
+    }
+
+    /**
+     * Updates the memory of the running processes and the peak.
+     */
+    private void sample()
+    {
+        if (this.running.isEmpty())
+        {
+            return;
+        }
+
+        // Count what the processes started as well, such as the executable
+        // under a wrapper
+        final Map<Long, List<Long>> children = ProcFs.children();
+        for (final Map.Entry<Long, Long> e : this.running.entrySet())
+        {
+            final long pid = e.getKey();
+            final long rss = ProcFs.rss(pid);
+            long total = rss;
+            long hwm = ProcFs.peakRss(pid);
+            for (final long child : ProcFs.descendants(pid, children))
+            {
+                total += Math.max(0, ProcFs.rss(child));
+                hwm = Math.max(hwm, ProcFs.peakRss(child));
+            }
+            if (rss >= 0)
+            {
+                // Only if it has not exited in the meantime
+                this.running.replace(pid, total);
+            }
+            if (hwm > this.peak)
+            {
+                this.peak = hwm;
+            }
+        }
+    }
+}
@@ -0,0 +1,367 @@
+package edu.unh.schwartz.epframework.worker;
+
+import edu.unh.schwartz.epframework.Chunk;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs chunks for a <code>Coordinator</code> on another machine. The agent
+ * connects, learns the command line from the coordinator and runs the chunks
+ * it is sent on its own workers, with the same runners as a local
+ * <code>Worker</code>. It keeps up to two chunks per worker on hand, asking
+ * for more in batches as they finish, and sends each result back as soon as
+ * it is done. The executable has to be at the same path as on the
+ * coordinator. If the coordinator has a secret, the agent sends the one in
+ * the <code>EPFRAMEWORK_SECRET</code> environment variable, so it is not seen
+ * on the command line.
+ */
+public final class Agent
+{
+    /**
+     * The Log.
+     */
+    private static final Log LOG = LogFactory.getLog(Agent.class);
+
+    /**
+     * The environment variable the secret is read from.
+     */
+    public static final String SECRET_ENV = "EPFRAMEWORK_SECRET";
+
+    /**
+     * Stands in for a chunk to tell a worker to stop.
+     */
+    private static final Chunk STOP = new Chunk("stop", new File("."));
+
+    /**
+     * The host of the coordinator.
+     */
+    private final String host;
+
+    /**
+     * The port of the coordinator.
+     */
+    private final int port;
+
+    /**
+     * The number of workers.
+     */
+    private final int workers;
+
+    /**
+     * The secret the coordinator lets agents in with.
+     */
+    private final String secret;
+
+    /**
+     * The chunks sent by the coordinator and not yet started.
+     */
+    private final BlockingQueue<Chunk> chunks;
+
+    /**
+     * The stream to the coordinator.
+     */
+    private DataOutputStream out;
+
+    /**
+     * The number of chunks asked for and not yet finished.
+     */
+    private int outstanding;
+
+    /**
+     * Constructs an agent.
+     *
+     * @param host - the host of the coordinator
+     * @param port - the port of the coordinator
+     * @param workers - the number of chunks to run at once
+     * @param secret - the secret the coordinator lets agents in with, or
+     * null if it has none
+     */
+    public Agent(final String host, final int port, final int workers,
+            final String secret)
+    {
+        this.host = host;
+        this.port = port;
+        this.workers = Math.max(1, workers);
+        if (secret == null)
+        {
+            this.secret = "";
+        }
+        else
+        {
+            this.secret = secret;
+        }
+        this.chunks = new LinkedBlockingQueue<Chunk>();
+    }
+
+    /**
+     * Connects to the coordinator and runs chunks until it has no more.
+     *
+     * @throws IOException if the connection fails
+     */
+    public void run() throws IOException
+    {
+        final File scratch = Files.createTempDirectory("epframework-agent")
+            .toFile();
+        final Thread[] threads = new Thread[this.workers];
+        try (final Socket socket = new Socket(this.host, this.port))
+        {
+            final DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(
+                        socket.getOutputStream()));
+
+            // Learn what to run
+            this.out.writeUTF(Coordinator.HELLO);
+            this.out.writeUTF(this.secret);
+            this.out.writeInt(this.workers);
+            this.out.flush();
+            final String exec;
+            try
+            {
+                exec = in.readUTF();
+            }
+            catch (EOFException e)
+            {
+                throw new IOException("turned away by the coordinator; "
+                        + "check " + SECRET_ENV, e);
+            }
+            Worker.setExecutable(exec);
+            Worker.setArguments(in.readUTF());
+            Worker.setOutputDirs(false);
+            Worker.setPipeMode(in.readBoolean(), in.readLong());
+            Worker.setCoprocessMode(in.readBoolean());
+            final int retries = in.readInt();
+            final long backoff = in.readLong();
+            final double timeoutFactor = in.readDouble();
+            final long minTimeout = in.readLong();
+            ChunkTimeouts timeouts = null;
+            if (timeoutFactor > 0)
+            {
+                timeouts = new ChunkTimeouts(timeoutFactor, minTimeout);
+            }
+            Worker.setRetries(retries, backoff, timeouts);
+            final long logSize = in.readLong();
+            final int logRotations = in.readInt();
+            Worker.setProcessOutput(new ProcessOutput(
+                        new File(scratch, "logs"), logSize, logRotations,
+                        in.readBoolean()));
+            LOG.info("Connected to " + this.host + ":" + this.port);
+
+            for (int i = 0; i < threads.length; i++)
+            {
+                threads[i] = new Thread("AgentWorker-" + i)
+                {
+                    @Override
+                    public void run()
+                    {
+                        work();
+                    }
+                };
+                threads[i].start();
+            }
+            try
+            {
+                ask();
+                receive(in, scratch);
+            }
+            finally
+            {
+                // Let the workers finish before the connection is closed
+                stop(threads);
+            }
+        }
+        finally
+        {
+            delete(scratch);
+        }
+        LOG.info("Agent finished");
+    }
+
+    /**
+     * Tells the workers to stop once the chunks they have are run, and waits
+     * for them.
+     *
+     * @param threads - the workers
+     */
+    private void stop(final Thread[] threads)
+    {
+        for (int i = 0; i < threads.length; i++)
+        {
+            this.chunks.add(STOP);
+        }
+        for (final Thread t : threads)
+        {
+            try
+            {
+                t.join();
+            }
+            catch (InterruptedException e)
+            {
+                LOG.error("stop: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reads chunks from the coordinator until it sends the end or hangs up.
+     *
+     * @param in - the stream from the coordinator
+     * @param scratch - the directory for the chunks
+     * @throws IOException if the connection fails
+     */
+    private void receive(final DataInputStream in, final File scratch)
+        throws IOException
+    {
+        while (true)
+        {
+            final int type = in.read();
+            if (type < 0 || type == Coordinator.END)
+            {
+                return;
+            }
+            else if (type != Coordinator.CHUNK)
+            {
+                throw new IOException("unknown message " + type);
+            }
+
+            final int index = in.readInt();
+            final Chunk c = new Chunk(Integer.toString(index),
+                    new File(scratch, Integer.toString(index)));
+            c.setIndex(index);
+            c.getDirectory().mkdirs();
+            try (final FileOutputStream fos =
+                    new FileOutputStream(c.getInFileName()))
+            {
+                Coordinator.readFrames(in, fos);
+            }
+            this.chunks.add(c);
+        }
+    }
+
+    /**
+     * Runs chunks until told to stop.
+     */
+    private void work()
+    {
+        final ChunkRunner runner =
+            Worker.createRunner(Collections.<String>emptyList());
+        try
+        {
+            Chunk c = this.chunks.take();
+            while (c != STOP)
+            {
+                final long start = System.currentTimeMillis();
+                try
+                {
+                    runner.run(c);
+                    done(c, System.currentTimeMillis() - start);
+                }
+                catch (IOException e)
+                {
+                    LOG.error("work: " + e.getMessage());
+                    failed(c, e.getMessage());
+                }
+                c.clean();
+                ask();
+                c = this.chunks.take();
+            }
+        }
+        catch (InterruptedException|IOException e)
+        {
+            LOG.error("work: " + e.getMessage());
+        }
+        finally
+        {
+            runner.close();
+        }
+    }
+
+    /**
+     * Asks for enough chunks to keep two per worker on hand, once it is down
+     * to one per worker.
+     *
+     * @throws IOException if the connection fails
+     */
+    private synchronized void ask() throws IOException
+    {
+        if (this.outstanding <= this.workers)
+        {
+            final int n = 2 * this.workers - this.outstanding;
+            this.outstanding += n;
+            this.out.writeByte(Coordinator.REQUEST);
+            this.out.writeInt(n);
+            this.out.flush();
+        }
+    }
+
+    /**
+     * Sends a result to the coordinator.
+     *
+     * @param c - the chunk that was run
+     * @param runtime - the time it took in milliseconds
+     * @throws IOException if the connection fails
+     */
+    private synchronized void done(final Chunk c, final long runtime)
+        throws IOException
+    {
+        // Open the result first so a missing one fails before anything is sent
+        try (final InputStream result = c.openOutput())
+        {
+            this.outstanding--;
+            this.out.writeByte(Coordinator.DONE);
+            this.out.writeInt(c.getIndex());
+            this.out.writeLong(runtime);
+            Coordinator.writeFrames(result, this.out);
+        }
+        this.out.flush();
+    }
+
+    /**
+     * Deletes a file or a directory and everything in it.
+     *
+     * @param file - the file or directory
+     */
+    private static void delete(final File file)
+    {
+        final File[] files = file.listFiles();
+        if (files != null)
+        {
+            for (final File f : files)
+            {
+                delete(f);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Tells the coordinator a chunk failed.
+     *
+     * @param c - the chunk that failed
+     * @param message - what went wrong
+     * @throws IOException if the connection fails
+     */
+    private synchronized void failed(final Chunk c, final String message)
+        throws IOException
+    {
+        this.outstanding--;
+        this.out.writeByte(Coordinator.FAILED);
+        this.out.writeInt(c.getIndex());
+        this.out.writeUTF(String.valueOf(message));
+        this.out.flush();
+    }
+}
@@ -0,0 +1,705 @@
+package edu.unh.schwartz.epframework.worker;
+
+import edu.unh.schwartz.epframework.Chunk;
+import edu.unh.schwartz.epframework.Trace;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs the chunks without a worker thread blocked on each process, for
+ * thousands of chunks at once whose processes mostly wait, such as tools
+ * that call out over the network. A feeder thread takes a chunk from the
+ * scheduler whenever a semaphore has a permit, one thread starts the
+ * processes, and one reaper thread watches every running process and
+ * finishes its chunk once it exits. How many run at once is only the number
+ * of permits, so a high limit costs a process each and not a thread each.
+ *
+ * The processes are set up by a <code>ProcessRunner</code>, and failed chunks
+ * are retried and slow ones killed as decided by a
+ * <code>RetryingRunner</code>. A chunk being retried keeps its permit and is
+ * started again by the same thread as new chunks once its pause is over.
+ */
+final class AsyncEngine
+{
+    /**
+     * The Log.
+     */
+    private static final Log LOG = LogFactory.getLog(AsyncEngine.class);
+
+    /**
+     * The shortest pause between looks at the running processes in
+     * milliseconds.
+     */
+    private static final long MIN_POLL_MILLIS = 1;
+
+    /**
+     * The longest pause between looks at the running processes in
+     * milliseconds.
+     */
+    private static final long MAX_POLL_MILLIS = 50;
+
+    /**
+     * The scheduler the chunks are taken from.
+     */
+    private final ChunkScheduler queue;
+
+    /**
+     * The listeners to tell about finished chunks.
+     */
+    private final List<ChunkListener> listeners;
+
+    /**
+     * One permit per chunk that may run at once.
+     */
+    private final Semaphore permits;
+
+    /**
+     * The number of chunks that may run at once.
+     */
+    private final int concurrency;
+
+    /**
+     * Sets up the processes.
+     */
+    private final ProcessRunner starter;
+
+    /**
+     * Decides when failed chunks are retried and how long chunks may run.
+     */
+    private final RetryingRunner retrying;
+
+    /**
+     * Holds back new processes while the machine is short, or null.
+     */
+    private final AdmissionGate gate;
+
+    /**
+     * Measures what the processes use, or null.
+     */
+    private final ResourceMonitor monitor;
+
+    /**
+     * The chunks to start, new ones at once and retries once their pause is
+     * over, and marks to look whether the run is done.
+     */
+    private final DelayQueue<Start> starts;
+
+    /**
+     * The slots of the chunks that may run at once that are free, so the
+     * metrics can tell them apart.
+     */
+    private final Deque<Integer> slots;
+
+    /**
+     * The processes started and not yet reaped.
+     */
+    private final Queue<Launch> running;
+
+    /**
+     * The live metrics published over JMX, or null.
+     */
+    private volatile PoolMetrics metrics;
+
+    /**
+     * True once the scheduler is closed and empty.
+     */
+    private boolean fed;
+
+    /**
+     * The number of chunks taken and not yet finished, including those
+     * waiting to be retried.
+     */
+    private int outstanding;
+
+    /**
+     * The sum of the runtimes of the chunks finished.
+     */
+    private long runTime;
+
+    /**
+     * The number of chunks run.
+     */
+    private int chunksRun;
+
+    /**
+     * The number of records run.
+     */
+    private long recordsRun;
+
+    /**
+     * Constructs an engine.
+     *
+     * @param queue - the scheduler to take the chunks from
+     * @param listeners - the listeners to tell about finished chunks
+     * @param concurrency - the number of chunks that may run at once
+     * @param starter - sets up the processes
+     * @param retrying - decides when failed chunks are retried and how long
+     * chunks may run
+     * @param gate - holds back new processes while the machine is short, or
+     * null
+     * @param monitor - measures what the processes use, or null
+     */
+    AsyncEngine(final ChunkScheduler queue,
+            final List<ChunkListener> listeners, final int concurrency,
+            final ProcessRunner starter, final RetryingRunner retrying,
+            final AdmissionGate gate, final ResourceMonitor monitor)
+    {
+        this.queue = queue;
+        this.listeners = listeners;
+        this.concurrency = Math.max(1, concurrency);
+        this.permits = new Semaphore(this.concurrency);
+        this.starter = starter;
+        this.retrying = retrying;
+        this.gate = gate;
+        this.monitor = monitor;
+        this.starts = new DelayQueue<Start>();
+        this.slots = new ArrayDeque<Integer>(this.concurrency);
+        for (int i = 0; i < this.concurrency; i++)
+        {
+            this.slots.add(i);
+        }
+        this.running = new ConcurrentLinkedQueue<Launch>();
+    }
+
+    /**
+     * Set the metrics kept up to date while the chunks run.
+     *
+     * @param m - the metrics, or null to not keep any
+     */
+    void setMetrics(final PoolMetrics m)
+    {
+        this.metrics = m;
+    }
+
+    /**
+     * Runs every chunk in the scheduler and waits for the last one to
+     * finish. The scheduler has to be closed by the splitter.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void run() throws InterruptedException
+    {
+        LOG.info("Running up to " + this.concurrency + " chunks at once");
+        final Thread reaper = new Thread("Reaper")
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    reap();
+                }
+                catch (InterruptedException e)
+                {
+                    LOG.debug("Reaper stopped");
+                }
+            }
+        };
+        reaper.setDaemon(true);
+        reaper.start();
+        final Thread feeder = new Thread("Feeder")
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    feed();
+                }
+                catch (InterruptedException e)
+                {
+                    LOG.debug("Feeder stopped");
+                }
+            }
+        };
+        feeder.setDaemon(true);
+        feeder.start();
+
+        try
+        {
+            while (true)
+            {
+                final Start s = this.starts.take();
+                if (s.chunk != null)
+                {
+                    launch(s);
+                    continue;
+                }
+                synchronized (this)
+                {
+                    if (this.fed && this.outstanding == 0)
+                    {
+                        break;
+                    }
+                }
+            }
+        }
+        finally
+        {
+            feeder.interrupt();
+            reaper.interrupt();
+        }
+    }
+
+    /**
+     * Takes a chunk from the scheduler whenever a permit is free and passes
+     * it on to be started, until the scheduler is closed and empty.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void feed() throws InterruptedException
+    {
+        while (true)
+        {
+            this.permits.acquire();
+            final Chunk c = this.queue.take(0);
+            if (c == null)
+            {
+                this.permits.release();
+                synchronized (this)
+                {
+                    this.fed = true;
+                }
+                this.starts.add(new Start(null, 0, 0, 0));
+                return;
+            }
+            Trace.taken(c);
+            final int slot;
+            synchronized (this)
+            {
+                this.outstanding++;
+                slot = this.slots.removeFirst();
+            }
+            this.starts.add(new Start(c, 0, slot, 0));
+        }
+    }
+
+    /**
+     * Starts a process on a chunk and hands it to the reaper.
+     *
+     * @param s - the chunk, its attempt and its slot
+     * @throws InterruptedException if interrupted while waiting to be let in
+     */
+    private void launch(final Start s) throws InterruptedException
+    {
+        final Chunk c = s.chunk;
+        if (s.attempt == 0)
+        {
+            LOG.info("Starting chunk " + c.getName());
+            final PoolMetrics m = this.metrics;
+            if (m != null)
+            {
+                m.started(s.slot);
+            }
+        }
+        if (this.gate != null)
+        {
+            this.gate.admit();
+        }
+
+        final Launch l = new Launch(c, s.attempt, s.slot);
+        try
+        {
+            final ProcessBuilder pb = this.starter.prepare(c);
+            if (this.monitor != null)
+            {
+                l.usage = this.monitor.prepare(pb);
+            }
+            final long spawn = Trace.now();
+            l.proc = pb.start();
+            Trace.record("spawn", c, spawn);
+            l.drain = this.starter.drain(l.proc, c);
+        }
+        catch (IOException e)
+        {
+            if (this.gate != null)
+            {
+                this.gate.done();
+            }
+            completed(l, e.getMessage());
+            return;
+        }
+
+        l.start = System.currentTimeMillis();
+        l.traced = Trace.now();
+        if (this.gate != null)
+        {
+            this.gate.started(l.proc);
+        }
+        if (l.usage != null)
+        {
+            this.monitor.watch(l.usage, l.proc);
+        }
+        l.watch = this.retrying.watch(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                l.timedOut = true;
+
+                // Keep what it wrote so far, as the kill may close its
+                // streams
+                l.drain.pump();
+                ProcFs.killTree(l.proc);
+            }
+        });
+        this.running.add(l);
+    }
+
+    /**
+     * Looks at the running processes until interrupted, reading the output
+     * they have written and finishing the chunk of each one that has exited.
+     * The pause between looks grows while nothing happens, so an idle run
+     * costs little and a busy one is reaped quickly.
+     *
+     * @throws InterruptedException if interrupted
+     */
+    private void reap() throws InterruptedException
+    {
+        long pause = MIN_POLL_MILLIS;
+        while (true)
+        {
+            boolean busy = false;
+            final Iterator<Launch> it = this.running.iterator();
+            while (it.hasNext())
+            {
+                final Launch l = it.next();
+                final int code;
+                try
+                {
+                    code = l.proc.exitValue();
+                }
+                catch (IllegalThreadStateException e)
+                {
+                    // Still running; keep its pipe from filling up
+                    if (l.drain.pump())
+                    {
+                        busy = true;
+                    }
+                    continue;
+                }
+                it.remove();
+                busy = true;
+                exited(l, code);
+            }
+
+            if (busy)
+            {
+                pause = MIN_POLL_MILLIS;
+            }
+            else
+            {
+                pause = Math.min(MAX_POLL_MILLIS, pause * 2);
+            }
+            Thread.sleep(pause);
+        }
+    }
+
+    /**
+     * Releases what a process held once it has exited and finishes its
+     * chunk.
+     *
+     * @param l - the launch
+     * @param code - the exit code of the process
+     */
+    private void exited(final Launch l, final int code)
+    {
+        final Chunk c = l.chunk;
+        Trace.record("execute", c, l.traced);
+        if (l.watch != null)
+        {
+            l.watch.cancel();
+        }
+        l.drain.close();
+        close(l.proc);
+        if (l.usage != null)
+        {
+            this.monitor.finish(l.usage, c);
+        }
+        if (this.gate != null)
+        {
+            this.gate.finished(l.proc);
+            this.gate.done();
+        }
+
+        if (l.timedOut)
+        {
+            completed(l, l.drain.withLog(RetryingRunner.killed(l.watch.getLimit())));
+        }
+        else if (code != 0)
+        {
+            completed(l, l.drain.withLog("exited with " + code));
+        }
+        else
+        {
+            completed(l, null);
+        }
+    }
+
+    /**
+     * Finishes a chunk whose process has exited, retrying it if it failed
+     * and has retries left.
+     *
+     * @param l - the launch
+     * @param failure - why it failed, or null if it succeeded
+     */
+    private void completed(final Launch l, final String failure)
+    {
+        final Chunk c = l.chunk;
+        if (failure == null)
+        {
+            final long time = System.currentTimeMillis() - l.start;
+            this.retrying.succeeded(time);
+            c.setRuntime(time);
+            LOG.info("Finished chunk " + c.getName() + " in " + time);
+            synchronized (this)
+            {
+                this.runTime += time;
+                this.chunksRun++;
+                this.recordsRun += c.getRecords();
+            }
+            for (final ChunkListener cl : this.listeners)
+            {
+                cl.chunkFinished(c);
+            }
+        }
+        else if (this.retrying.canRetry(l.attempt))
+        {
+            final long pause = this.retrying.pause(l.attempt);
+            LOG.warn("Chunk " + c.getName() + " failed (" + failure
+                    + "), retrying in " + pause + "ms");
+            c.resetResult();
+            this.starts.add(new Start(c, l.attempt + 1, l.slot, pause));
+            return;
+        }
+        else
+        {
+            final String reason = RetryingRunner.failure(l.attempt, failure);
+            LOG.error("Chunk " + c.getName() + " failed: " + reason);
+            c.setFailure(reason);
+            c.dropContent();
+            for (final ChunkListener cl : this.listeners)
+            {
+                cl.chunkFailed(c);
+            }
+        }
+
+        final PoolMetrics m = this.metrics;
+        if (m != null)
+        {
+            m.ended(l.slot);
+        }
+        final boolean last;
+        synchronized (this)
+        {
+            this.slots.add(l.slot);
+            this.outstanding--;
+            last = this.fed && this.outstanding == 0;
+        }
+        this.permits.release();
+        if (last)
+        {
+            // Wake the starting thread to see that the run is done
+            this.starts.add(new Start(null, 0, 0, 0));
+        }
+    }
+
+    /**
+     * Closes the pipes to a process that has exited, so thousands of them do
+     * not hold on to file descriptors until they are collected.
+     *
+     * @param p - the process
+     */
+    private static void close(final Process p)
+    {
+        try
+        {
+            p.getOutputStream().close();
+            p.getInputStream().close();
+            p.getErrorStream().close();
+        }
+        catch (IOException e)
+        {
+            LOG.debug("close: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the sum of the runtimes of the chunks run
+     */
+    synchronized long getRunTime()
+    {
+        return this.runTime;
+    }
+
+    /**
+     * @return the number of chunks run
+     */
+    synchronized int getChunksRun()
+    {
+        return this.chunksRun;
+    }
+
+    /**
+     * @return the number of records run
+     */
+    synchronized long getRecordsRun()
+    {
+        return this.recordsRun;
+    }
+
+    /**
+     * @return the number of chunks that may run at once
+     */
+    int getConcurrency()
+    {
+        return this.concurrency;
+    }
+
+    /**
+     * A process started for a chunk.
+     */
+    private static final class Launch
+    {
+        /**
+         * The chunk.
+         */
+        private final Chunk chunk;
+
+        /**
+         * The number of times the chunk failed before.
+         */
+        private final int attempt;
+
+        /**
+         * The slot the chunk runs in.
+         */
+        private final int slot;
+
+        /**
+         * The process, once started.
+         */
+        private Process proc;
+
+        /**
+         * Reads the process's output.
+         */
+        private OutputDrain drain;
+
+        /**
+         * What the process uses, or null.
+         */
+        private ResourceMonitor.Usage usage;
+
+        /**
+         * When the process started in milliseconds.
+         */
+        private long start;
+
+        /**
+         * When the process started, for the trace.
+         */
+        private long traced;
+
+        /**
+         * Kills the process once it has run too long, or null if chunks have
+         * no limit.
+         */
+        private ChunkTimeouts.Watch watch;
+
+        /**
+         * True once the process was killed for running too long.
+         */
+        private volatile boolean timedOut;
+
+        /**
+         * Constructs a launch.
+         *
+         * @param chunk - the chunk
+         * @param attempt - the number of times the chunk failed before
+         * @param slot - the slot the chunk runs in
+         */
+        Launch(final Chunk chunk, final int attempt, final int slot)
+        {
+            this.chunk = chunk;
+            this.attempt = attempt;
+            this.slot = slot;
+        }
+    }
+
+    /**
+     * A chunk to start once its pause is over, or with no chunk, a mark to
+     * look whether the run is done.
+     */
+    private static final class Start implements Delayed
+    {
+        /**
+         * The chunk, or null for a mark.
+         */
+        private final Chunk chunk;
+
+        /**
+         * The number of times the chunk failed before.
+         */
+        private final int attempt;
+
+        /**
+         * The slot the chunk runs in.
+         */
+        private final int slot;
+
+        /**
+         * When the chunk may start, in nanoseconds of
+         * <code>System.nanoTime</code>.
+         */
+        private final long due;
+
+        /**
+         * Constructs a start.
+         *
+         * @param chunk - the chunk, or null for a mark
+         * @param attempt - the number of times the chunk failed before
+         * @param slot - the slot the chunk runs in
+         * @param pause - how long to wait before starting it in milliseconds
+         */
+        Start(final Chunk chunk, final int attempt, final int slot,
+                final long pause)
+        {
+            this.chunk = chunk;
+            this.attempt = attempt;
+            this.slot = slot;
+            this.due = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(pause);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long getDelay(final TimeUnit unit)
+        {
+            return unit.convert(this.due - System.nanoTime(),
+                    TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int compareTo(final Delayed other)
+        {
+            return Long.compare(this.due, ((Start) other).due);
+        }
+    }
+}
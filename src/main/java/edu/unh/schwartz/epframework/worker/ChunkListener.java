@@ -0,0 +1,27 @@
+package edu.unh.schwartz.epframework.worker;
+
+import edu.unh.schwartz.epframework.Chunk;
+
+/**
+ * Gets told by the <code>Worker</code>s each time they finish running a chunk,
+ * or give up on one.
+ * Listeners are called on the worker's thread, so they must be thread-safe and
+ * should return quickly.
+ */
+public interface ChunkListener
+{
+    /**
+     * Called after the executable has finished with a chunk.
+     *
+     * @param c - the chunk that was run
+     */
+    void chunkFinished(final Chunk c);
+
+    /**
+     * Called after a chunk has failed for good. The chunk has no result and
+     * is left out of the merge.
+     *
+     * @param c - the chunk that failed
+     */
+    void chunkFailed(final Chunk c);
+}
@@ -0,0 +1,145 @@
+package edu.unh.schwartz.epframework.worker;
+
+import edu.unh.schwartz.epframework.Chunk;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue that hands <code>Chunk</code>s from the splitter to the
+ * <code>Worker</code>s while the split is still running. The splitter closes
+ * the queue once the input is exhausted, after which the workers drain what is
+ * left and stop. Of the chunks waiting, the one with the largest expected cost
+ * is handed out first, so a larger queue gives the ordering more to work with.
+ */
+public final class ChunkQueue implements ChunkScheduler
+{
+    /**
+     * The chunks waiting to be run.
+     */
+    private final Queue<Chunk> chunks;
+
+    /**
+     * The most chunks that can be waiting at once.
+     */
+    private final int capacity;
+
+    /**
+     * Guards the queue and the closed flag.
+     */
+    private final ReentrantLock lock;
+
+    /**
+     * Signalled when a chunk is added or the queue is closed.
+     */
+    private final Condition notEmpty;
+
+    /**
+     * Signalled when a chunk is removed.
+     */
+    private final Condition notFull;
+
+    /**
+     * True once the producer has no more chunks to add.
+     */
+    private boolean closed;
+
+    /**
+     * Constructs an empty queue.
+     *
+     * @param capacity - the most chunks that can be waiting at once
+     */
+    public ChunkQueue(final int capacity)
+    {
+        this.chunks = new PriorityQueue<Chunk>();
+        this.capacity = Math.max(1, capacity);
+        this.lock = new ReentrantLock();
+        this.notEmpty = this.lock.newCondition();
+        this.notFull = this.lock.newCondition();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(final Chunk c) throws InterruptedException
+    {
+        this.lock.lockInterruptibly();
+        try
+        {
+            while (this.chunks.size() >= this.capacity)
+            {
+                this.notFull.await();
+            }
+            this.chunks.add(c);
+            this.notEmpty.signal();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Chunk take(final int worker) throws InterruptedException
+    {
+        this.lock.lockInterruptibly();
+        try
+        {
+            while (this.chunks.isEmpty() && !this.closed)
+            {
+                this.notEmpty.await();
+            }
+
+            final Chunk c = this.chunks.poll();
+            if (c != null)
+            {
+                this.notFull.signal();
+            }
+            return c;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+    {
+        this.lock.lock();
+        try
+        {
+            this.closed = true;
+            this.notEmpty.signalAll();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.chunks.size();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package edu.unh.schwartz.epframework.worker;
+
+import edu.unh.schwartz.epframework.Chunk;
+import java.io.IOException;
+
+/**
+ * Runs the executable on a <code>Chunk</code>. Each <code>Worker</code> has its
+ * own runner, so a runner may keep state from one chunk to the next.
+ */
+interface ChunkRunner
+{
+    /**
+     * Runs the executable on a chunk and waits for it to finish.
+     *
+     * @param c - the chunk to run
+     * @throws IOException if the process can not be started or its IO fails
+     * @throws InterruptedException if interrupted while waiting on the process
+     */
+    void run(final Chunk c) throws IOException, InterruptedException;
+
+    /**
+     * Ends the run of a chunk early by killing its process, if the runner is
+     * still running that chunk. Called from another thread.
+     *
+     * @param c - the chunk
+     */
+    void cancel(final Chunk c);
+
+    /**
+     * Releases whatever the runner holds once the worker has finished.
+     */
+    void close();
+}
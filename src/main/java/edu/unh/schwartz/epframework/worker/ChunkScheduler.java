@@ -0,0 +1,39 @@
+package edu.unh.schwartz.epframework.worker;
+
+import edu.unh.schwartz.epframework.Chunk;
+
+/**
+ * Hands the <code>Chunk</code>s made by the splitter out to the
+ * <code>Worker</code>s. The splitter adds chunks while the workers are running
+ * and closes the scheduler once the input is exhausted.
+ */
+public interface ChunkScheduler
+{
+    /**
+     * Adds a chunk, waiting for room if too many chunks are waiting already.
+     *
+     * @param c - the chunk to add
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    void put(final Chunk c) throws InterruptedException;
+
+    /**
+     * Removes the next chunk for a worker, waiting for one if none are ready.
+     *
+     * @param worker - the id number of the worker asking
+     * @return the next chunk or null if the scheduler is closed and empty
+     * @throws InterruptedException if interrupted while waiting for a chunk
+     */
+    Chunk take(final int worker) throws InterruptedException;
+
+    /**
+     * Marks the end of the input. Workers waiting for a chunk are woken up so
+     * they can stop.
+     */
+    void close();
+
+    /**
+     * @return the number of chunks currently waiting
+     */
+    int size();
+}
@@ -0,0 +1,290 @@
+package edu.unh.schwartz.epframework.worker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides how long a chunk may run before it is killed. The limit is a
+ * multiple of the median runtime of the latest chunks that succeeded, but
+ * never under a floor. Until a chunk has succeeded there is no limit, and the
+ * chunks already running get theirs once the first one does.
+ *
+ * One thread keeps the time and hands each kill to a pool, so a kill that is
+ * slow to read <code>/proc</code> or start <code>kill</code> does not hold up
+ * the other timeouts.
+ */
+final class ChunkTimeouts
+{
+    /**
+     * The number of latest runtimes the median is taken over.
+     */
+    private static final int SAMPLE = 1001;
+
+    /**
+     * The multiple of the median runtime a chunk may take.
+     */
+    private final double factor;
+
+    /**
+     * The shortest limit in milliseconds.
+     */
+    private final long floor;
+
+    /**
+     * The latest runtimes in the order they came, as a ring.
+     */
+    private final long[] recent;
+
+    /**
+     * The same runtimes in order of length, the first <code>count</code>
+     * used.
+     */
+    private final long[] sorted;
+
+    /**
+     * The number of runtimes kept.
+     */
+    private int count;
+
+    /**
+     * Where in the ring the next runtime goes.
+     */
+    private int next;
+
+    /**
+     * The watches of chunks started before any chunk succeeded.
+     */
+    private final List<Watch> pending;
+
+    /**
+     * Fires the timeouts.
+     */
+    private final ScheduledThreadPoolExecutor timer;
+
+    /**
+     * Runs the kills.
+     */
+    private final ExecutorService killers;
+
+    /**
+     * Constructs the timeouts.
+     *
+     * @param factor - the multiple of the median runtime a chunk may take
+     * @param floor - the shortest limit in milliseconds
+     */
+    ChunkTimeouts(final double factor, final long floor)
+    {
+        this.factor = factor;
+        this.floor = floor;
+        this.recent = new long[SAMPLE];
+        this.sorted = new long[SAMPLE];
+        this.pending = new ArrayList<Watch>();
+        this.timer = new ScheduledThreadPoolExecutor(1,
+                daemons("ChunkTimeouts"));
+
+        // Chunks that finish in time cancel their timeouts, so do not keep
+        // them queued
+        this.timer.setRemoveOnCancelPolicy(true);
+        this.killers = Executors.newCachedThreadPool(daemons("ChunkKiller"));
+    }
+
+    /**
+     * Records the runtime of a chunk that succeeded, dropping the oldest
+     * once there are enough. The chunks waiting for a limit get it.
+     *
+     * @param runtime - the runtime in milliseconds
+     */
+    synchronized void succeeded(final long runtime)
+    {
+        if (this.count == SAMPLE)
+        {
+            remove(this.recent[this.next]);
+        }
+        this.recent[this.next] = runtime;
+        this.next = (this.next + 1) % SAMPLE;
+        int i = Arrays.binarySearch(this.sorted, 0, this.count, runtime);
+        if (i < 0)
+        {
+            i = -i - 1;
+        }
+        System.arraycopy(this.sorted, i, this.sorted, i + 1, this.count - i);
+        this.sorted[i] = runtime;
+        this.count++;
+
+        if (!this.pending.isEmpty())
+        {
+            final long limit = limit();
+            for (final Watch w : this.pending)
+            {
+                w.arm(limit);
+            }
+            this.pending.clear();
+        }
+    }
+
+    /**
+     * @return the time a chunk may run in milliseconds, or 0 for no limit
+     */
+    synchronized long limit()
+    {
+        if (this.count == 0)
+        {
+            return 0;
+        }
+        final long median = this.sorted[this.count / 2];
+        return Math.max(this.floor, (long) (this.factor * median));
+    }
+
+    /**
+     * Starts timing a chunk that was just started.
+     *
+     * @param kill - kills the chunk once its time is up
+     * @return the watch, to cancel once the chunk is done
+     */
+    synchronized Watch watch(final Runnable kill)
+    {
+        final Watch w = new Watch(kill);
+        final long limit = limit();
+        if (limit == 0)
+        {
+            this.pending.add(w);
+        }
+        else
+        {
+            w.arm(limit);
+        }
+        return w;
+    }
+
+    /**
+     * Takes a runtime out of the sorted ones.
+     *
+     * @param runtime - the runtime
+     */
+    private void remove(final long runtime)
+    {
+        final int i = Arrays.binarySearch(this.sorted, 0, this.count, runtime);
+        System.arraycopy(this.sorted, i + 1, this.sorted, i,
+                this.count - i - 1);
+        this.count--;
+    }
+
+    /**
+     * @param name - the start of the threads' names
+     * @return a factory of daemon threads
+     */
+    private static ThreadFactory daemons(final String name)
+    {
+        return new ThreadFactory()
+        {
+            private final AtomicInteger threads = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r)
+            {
+                final Thread t = new Thread(r,
+                        name + "-" + threads.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * The timing of one run of a chunk.
+     */
+    final class Watch
+    {
+        /**
+         * Kills the chunk.
+         */
+        private final Runnable kill;
+
+        /**
+         * When the chunk started in milliseconds.
+         */
+        private final long start;
+
+        /**
+         * The chunk's limit in milliseconds, or 0 until it has one.
+         */
+        private volatile long limit;
+
+        /**
+         * Fires the kill, or null until the chunk has a limit.
+         */
+        private Future<?> fire;
+
+        /**
+         * True once the chunk is done.
+         */
+        private boolean cancelled;
+
+        /**
+         * Constructs a watch.
+         *
+         * @param kill - kills the chunk
+         */
+        Watch(final Runnable kill)
+        {
+            this.kill = kill;
+            this.start = System.currentTimeMillis();
+        }
+
+        /**
+         * @return the chunk's limit in milliseconds, or 0 if it had none
+         */
+        long getLimit()
+        {
+            return this.limit;
+        }
+
+        /**
+         * Stops timing the chunk once it is done.
+         */
+        void cancel()
+        {
+            synchronized (ChunkTimeouts.this)
+            {
+                this.cancelled = true;
+                pending.remove(this);
+                if (this.fire != null)
+                {
+                    this.fire.cancel(false);
+                }
+            }
+        }
+
+        /**
+         * Gives the chunk its limit, counted from when it started.
+         *
+         * @param l - the limit in milliseconds
+         */
+        private void arm(final long l)
+        {
+            if (this.cancelled)
+            {
+                return;
+            }
+            this.limit = l;
+            final long delay = Math.max(0,
+                    this.start + l - System.currentTimeMillis());
+            this.fire = timer.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    killers.execute(kill);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+}
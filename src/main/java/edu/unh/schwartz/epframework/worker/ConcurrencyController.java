@@ -0,0 +1,214 @@
+package edu.unh.schwartz.epframework.worker;
+
+import edu.unh.schwartz.epframework.Chunk;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Tunes the number of running <code>Worker</code>s to the throughput of the
+ * run. It measures the records finished per second and moves the limit by one
+ * worker. It keeps going the same way while the throughput holds up and turns
+ * around once it drops, so the limit climbs to the best number of workers.
+ *
+ * A measurement lasts at least the interval and until every running worker
+ * has finished a couple of chunks, so chunks that run longer than the
+ * interval stretch it instead of leaving it with one completion or none to
+ * go on. After a few turns the limit is settled on the number of workers with
+ * the best throughput seen, and is only tuned again if the throughput later
+ * drops well below what it was once settled.
+ */
+final class ConcurrencyController extends Thread implements ChunkListener
+{
+    /**
+     * The Log.
+     */
+    private static final Log LOG =
+        LogFactory.getLog(ConcurrencyController.class);
+
+    /**
+     * How much the throughput may drop before the direction is reversed, to
+     * allow for noise.
+     */
+    private static final double TOLERANCE = 0.05;
+
+    /**
+     * The chunks each running worker has to finish for a measurement.
+     */
+    private static final int CHUNKS_PER_WORKER = 2;
+
+    /**
+     * The fewest chunks a measurement is taken over.
+     */
+    private static final int MIN_CHUNKS = 4;
+
+    /**
+     * The number of turns before the limit is settled.
+     */
+    private static final int MAX_REVERSALS = 3;
+
+    /**
+     * How much the throughput has to drop once settled for the limit to be
+     * tuned again.
+     */
+    private static final double RETUNE_DROP = 0.25;
+
+    /**
+     * The limit being tuned.
+     */
+    private final ConcurrencyLimit limit;
+
+    /**
+     * The most workers that may run at once.
+     */
+    private final int max;
+
+    /**
+     * The shortest time between changes, in milliseconds.
+     */
+    private final long interval;
+
+    /**
+     * The records finished since the last change.
+     */
+    private final AtomicLong finished;
+
+    /**
+     * The chunks finished since the last change.
+     */
+    private final AtomicInteger chunks;
+
+    /**
+     * Constructs a controller.
+     *
+     * @param limit - the limit to tune
+     * @param max - the most workers that may run at once
+     * @param interval - the shortest time between changes, in milliseconds
+     */
+    ConcurrencyController(final ConcurrencyLimit limit, final int max,
+            final long interval)
+    {
+        super("ConcurrencyController");
+        setDaemon(true);
+        this.limit = limit;
+        this.max = max;
+        this.interval = interval;
+        this.finished = new AtomicLong();
+        this.chunks = new AtomicInteger();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void chunkFinished(final Chunk c)
+    {
+        this.finished.addAndGet(c.getRecords());
+        this.chunks.incrementAndGet();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void chunkFailed(final Chunk c)
+    {
+        // Only the records finished count toward the throughput
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run()
+    {
+        int step = 1;
+        int reversals = 0;
+        double last = -1;
+        double best = -1;
+        int bestLimit = this.limit.getLimit();
+        boolean settled = false;
+        double baseline = -1;
+        long start = System.nanoTime();
+        try
+        {
+            while (!isInterrupted())
+            {
+                Thread.sleep(this.interval);
+                final int current = this.limit.getLimit();
+                if (this.chunks.get() < Math.max(MIN_CHUNKS,
+                            CHUNKS_PER_WORKER * current))
+                {
+                    // Not enough to measure yet, such as while chunks are
+                    // long or the split is behind
+                    continue;
+                }
+                final long now = System.nanoTime();
+                final long records = this.finished.getAndSet(0);
+                this.chunks.set(0);
+                final double rate = records * 1e9 / (now - start);
+                start = now;
+
+                if (settled && baseline < 0)
+                {
+                    // The throughput at the settled limit, to watch from now
+                    baseline = rate;
+                    continue;
+                }
+                if (settled)
+                {
+                    if (rate >= baseline * (1 - RETUNE_DROP))
+                    {
+                        continue;
+                    }
+                    LOG.info("Throughput fell to " + (long) rate
+                            + " records/s, tuning the running workers again");
+                    settled = false;
+                    reversals = 0;
+                    last = -1;
+                    best = -1;
+                }
+
+                if (rate > best)
+                {
+                    best = rate;
+                    bestLimit = current;
+                }
+                if (last >= 0 && rate < last * (1 - TOLERANCE))
+                {
+                    step = -step;
+                    reversals++;
+                }
+                last = rate;
+
+                if (reversals >= MAX_REVERSALS)
+                {
+                    // Turning back and forth around the best, so stay there
+                    LOG.info("Settled on " + bestLimit + " running workers ("
+                            + (long) best + " records/s at best)");
+                    this.limit.setLimit(bestLimit);
+                    settled = true;
+                    baseline = -1;
+                    continue;
+                }
+
+                int next = current + step;
+                if (next < 1 || next > this.max)
+                {
+                    step = -step;
+                    next = current + step;
+                }
+                next = Math.max(1, Math.min(this.max, next));
+
+                LOG.info("Running workers " + current + " -> " + next
+                        + " (" + (long) rate + " records/s)");
+                this.limit.setLimit(next);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            LOG.debug("Concurrency controller stopped");
+        }
+    }
+}
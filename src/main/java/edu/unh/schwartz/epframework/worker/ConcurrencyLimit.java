@@ -0,0 +1,118 @@
+package edu.unh.schwartz.epframework.worker;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits how many <code>Worker</code>s run a chunk at once. Unlike a
+ * semaphore, the limit can be lowered while the workers are running: the
+ * workers over the new limit finish their current chunk and then wait.
+ */
+final class ConcurrencyLimit
+{
+    /**
+     * Guards the limit and the count.
+     */
+    private final ReentrantLock lock;
+
+    /**
+     * Signalled when a slot may have opened up.
+     */
+    private final Condition free;
+
+    /**
+     * The most workers that may run at once.
+     */
+    private int limit;
+
+    /**
+     * The number of workers running.
+     */
+    private int active;
+
+    /**
+     * Constructs a limit.
+     *
+     * @param limit - the most workers that may run at once
+     */
+    ConcurrencyLimit(final int limit)
+    {
+        this.lock = new ReentrantLock();
+        this.free = this.lock.newCondition();
+        this.limit = Math.max(1, limit);
+    }
+
+    /**
+     * Waits until the worker may run.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void acquire() throws InterruptedException
+    {
+        this.lock.lockInterruptibly();
+        try
+        {
+            while (this.active >= this.limit)
+            {
+                this.free.await();
+            }
+            this.active++;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Gives up the worker's slot.
+     */
+    void release()
+    {
+        this.lock.lock();
+        try
+        {
+            this.active--;
+            this.free.signal();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Changes the most workers that may run at once.
+     *
+     * @param l - the new limit
+     */
+    void setLimit(final int l)
+    {
+        this.lock.lock();
+        try
+        {
+            this.limit = Math.max(1, l);
+            this.free.signalAll();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * @return the most workers that may run at once
+     */
+    int getLimit()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.limit;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+}
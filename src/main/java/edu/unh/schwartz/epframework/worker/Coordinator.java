@@ -0,0 +1,768 @@
+package edu.unh.schwartz.epframework.worker;
+
+import edu.unh.schwartz.epframework.Chunk;
+import edu.unh.schwartz.epframework.Trace;
+import edu.unh.schwartz.epframework.config.Configuration;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Hands chunks to <code>Agent</code>s on other machines over TCP, alongside
+ * the local <code>Worker</code>s. Each agent asks for chunks in batches, runs
+ * them and sends the results back, which are written to the chunks' out files
+ * before the listeners are told, just as for a local worker. The chunks an
+ * agent had when its connection was lost go to the next agent that asks, or
+ * are run here if no agent is left to take them.
+ *
+ * After a handshake, where the agent sends the shared secret and names its
+ * number of workers and is sent the command line, execution mode, retries
+ * and timeouts, the messages are:
+ * <ul>
+ * <li>agent: <code>R n</code> asks for n more chunks</li>
+ * <li>coordinator: <code>C index content</code> a chunk to run</li>
+ * <li>coordinator: <code>E</code> no more chunks are coming</li>
+ * <li>agent: <code>D index runtime result</code> a chunk's result</li>
+ * <li>agent: <code>F index message</code> a chunk failed</li>
+ * </ul>
+ * Content and results are sent as a run of length-prefixed frames ended by an
+ * empty one, so they are streamed rather than held in memory.
+ */
+final class Coordinator extends Thread
+{
+    /**
+     * The Log.
+     */
+    private static final Log LOG = LogFactory.getLog(Coordinator.class);
+
+    /**
+     * The first thing an agent sends, to catch strangers and old versions.
+     */
+    static final String HELLO = "epframework-agent 4";
+
+    /**
+     * Asks for chunks.
+     */
+    static final byte REQUEST = 'R';
+
+    /**
+     * Carries a chunk.
+     */
+    static final byte CHUNK = 'C';
+
+    /**
+     * Marks the end of the chunks.
+     */
+    static final byte END = 'E';
+
+    /**
+     * Carries a result.
+     */
+    static final byte DONE = 'D';
+
+    /**
+     * Reports a failed chunk.
+     */
+    static final byte FAILED = 'F';
+
+    /**
+     * The number of connections waiting to be accepted.
+     */
+    private static final int BACKLOG = 50;
+
+    /**
+     * The largest frame of content or result.
+     */
+    private static final int FRAME_SIZE = 64 * 1024;
+
+    /**
+     * The socket agents connect to.
+     */
+    private final ServerSocket server;
+
+    /**
+     * The scheduler the splitter feeds.
+     */
+    private final ChunkScheduler queue;
+
+    /**
+     * The listeners to tell about finished chunks.
+     */
+    private final List<ChunkListener> listeners;
+
+    /**
+     * The id the first agent takes chunks from the scheduler as, after the
+     * local workers.
+     */
+    private final int firstId;
+
+    /**
+     * The run's configuration, parts of which are sent to the agents.
+     */
+    private final Configuration config;
+
+    /**
+     * The chunks from lost agents, waiting for another one.
+     */
+    private final LinkedList<Chunk> retry;
+
+    /**
+     * The connected agents.
+     */
+    private final List<Link> links;
+
+    /**
+     * The number of agents still connected.
+     */
+    private int live;
+
+    /**
+     * The number of chunks sent to agents and not yet back.
+     */
+    private int inFlight;
+
+    /**
+     * The number of links taking a chunk from the scheduler right now.
+     */
+    private int taking;
+
+    /**
+     * True once the scheduler is closed and empty.
+     */
+    private boolean exhausted;
+
+    /**
+     * Constructs a coordinator listening on a port, on the address in the
+     * configuration or else every interface.
+     *
+     * @param port - the port agents connect to
+     * @param queue - the scheduler the splitter feeds
+     * @param listeners - the listeners to tell about finished chunks
+     * @param firstId - the id the first agent uses with the scheduler
+     * @param config - the run's configuration
+     * @throws IOException if the address is unknown or the port can not
+     * be listened on
+     */
+    Coordinator(final int port, final ChunkScheduler queue,
+            final List<ChunkListener> listeners, final int firstId,
+            final Configuration config) throws IOException
+    {
+        super("Coordinator");
+        setDaemon(true);
+        InetAddress bind = null;
+        if (config.getCoordinatorBind() != null
+                && !config.getCoordinatorBind().isEmpty())
+        {
+            bind = InetAddress.getByName(config.getCoordinatorBind());
+        }
+        else if (config.getCoordinatorSecret() == null
+                || config.getCoordinatorSecret().isEmpty())
+        {
+            LOG.warn("Any machine that can reach port " + port
+                    + " can join as an agent; set coordinatorBind or "
+                    + "coordinatorSecret to keep strangers out");
+        }
+        this.server = new ServerSocket(port, BACKLOG, bind);
+        this.queue = queue;
+        this.listeners = listeners;
+        this.firstId = firstId;
+        this.config = config;
+        this.retry = new LinkedList<Chunk>();
+        this.links = new ArrayList<Link>();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run()
+    {
+        LOG.info("Waiting for agents on port " + this.server.getLocalPort());
+        int id = this.firstId;
+        try
+        {
+            while (true)
+            {
+                final Socket s = this.server.accept();
+                final Link l = new Link(s, id);
+                id++;
+                synchronized (this)
+                {
+                    this.links.add(l);
+                    this.live++;
+                }
+                l.start();
+            }
+        }
+        catch (IOException e)
+        {
+            // Closed by finish
+            LOG.debug("run: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Tells the coordinator the scheduler has been emptied by the local
+     * workers.
+     */
+    synchronized void exhausted()
+    {
+        this.exhausted = true;
+        notifyAll();
+    }
+
+    /**
+     * Waits until every chunk handed to an agent is back, then lets the
+     * agents go. If the last agent is lost once the scheduler is empty, the
+     * chunks it had are handed back instead of waiting for another one.
+     *
+     * @return the chunks of lost agents that no agent was left to take, to
+     * be run here
+     */
+    List<Chunk> finish()
+    {
+        final List<Chunk> left = new ArrayList<Chunk>();
+        synchronized (this)
+        {
+            boolean logged = false;
+            while (!this.exhausted || this.taking > 0 || this.inFlight > 0
+                    || !this.retry.isEmpty())
+            {
+                if (this.exhausted && this.taking == 0 && this.inFlight == 0
+                        && this.live == 0)
+                {
+                    LOG.warn("No agents left to run " + this.retry.size()
+                            + " chunks of lost agents; running them here");
+                    left.addAll(this.retry);
+                    this.retry.clear();
+                    break;
+                }
+                if (!logged && this.links.isEmpty())
+                {
+                    LOG.info("Waiting for an agent to connect");
+                    logged = true;
+                }
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException e)
+                {
+                    LOG.error("finish: " + e.getMessage());
+                    return left;
+                }
+            }
+        }
+
+        try
+        {
+            this.server.close();
+        }
+        catch (IOException e)
+        {
+            LOG.error("finish: " + e.getMessage());
+        }
+        final List<Link> all;
+        synchronized (this)
+        {
+            all = new ArrayList<Link>(this.links);
+        }
+        for (final Link l : all)
+        {
+            try
+            {
+                l.join();
+            }
+            catch (InterruptedException e)
+            {
+                LOG.error("finish: " + e.getMessage());
+            }
+        }
+        return left;
+    }
+
+    /**
+     * Takes the next chunk for an agent: one from a lost agent if there is
+     * any, else one from the scheduler.
+     *
+     * @param id - the agent's id with the scheduler
+     * @return the chunk or null if every chunk is done
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private Chunk next(final int id) throws InterruptedException
+    {
+        while (true)
+        {
+            synchronized (this)
+            {
+                if (!this.retry.isEmpty())
+                {
+                    this.inFlight++;
+                    return this.retry.removeFirst();
+                }
+                if (this.exhausted)
+                {
+                    if (this.taking == 0 && this.inFlight == 0)
+                    {
+                        return null;
+                    }
+
+                    // An agent may still be lost and its chunks come back
+                    wait();
+                    continue;
+                }
+                this.taking++;
+            }
+
+            Chunk c = null;
+            try
+            {
+                c = this.queue.take(id);
+                if (c != null)
+                {
+                    Trace.taken(c);
+                }
+            }
+            finally
+            {
+                synchronized (this)
+                {
+                    this.taking--;
+                    if (c == null)
+                    {
+                        this.exhausted = true;
+                    }
+                    else
+                    {
+                        this.inFlight++;
+                    }
+                    notifyAll();
+                }
+            }
+            if (c != null)
+            {
+                return c;
+            }
+        }
+    }
+
+    /**
+     * Marks a chunk sent to an agent as back.
+     */
+    private synchronized void returned()
+    {
+        this.inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Marks an agent as gone.
+     */
+    private synchronized void left()
+    {
+        this.live--;
+        notifyAll();
+    }
+
+    /**
+     * Checks the secret an agent sent against the configured one, taking
+     * the same time however much of it matches.
+     *
+     * @param secret - the secret the agent sent
+     * @return true iff the agent may join
+     */
+    private boolean admits(final String secret)
+    {
+        String expected = config.getCoordinatorSecret();
+        if (expected == null)
+        {
+            expected = "";
+        }
+        return MessageDigest.isEqual(
+                expected.getBytes(StandardCharsets.UTF_8),
+                secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Puts the chunks of a lost agent up for another agent.
+     *
+     * @param chunks - the chunks
+     */
+    private synchronized void requeue(final List<Chunk> chunks)
+    {
+        this.retry.addAll(chunks);
+        this.inFlight -= chunks.size();
+        notifyAll();
+    }
+
+    /**
+     * Sends a stream as frames ended by an empty one.
+     *
+     * @param in - the stream to send
+     * @param out - where to send it
+     * @throws IOException if either stream fails
+     */
+    static void writeFrames(final InputStream in, final DataOutputStream out)
+        throws IOException
+    {
+        final byte[] buf = new byte[FRAME_SIZE];
+        int n = in.read(buf);
+        while (n >= 0)
+        {
+            if (n > 0)
+            {
+                out.writeInt(n);
+                out.write(buf, 0, n);
+            }
+            n = in.read(buf);
+        }
+        out.writeInt(0);
+    }
+
+    /**
+     * Receives frames ended by an empty one.
+     *
+     * @param in - where to receive them from
+     * @param out - where to write them
+     * @throws IOException if either stream fails
+     */
+    static void readFrames(final DataInputStream in, final OutputStream out)
+        throws IOException
+    {
+        final byte[] buf = new byte[FRAME_SIZE];
+        int n = in.readInt();
+        while (n > 0)
+        {
+            if (n > FRAME_SIZE)
+            {
+                throw new IOException("frame of " + n + " bytes");
+            }
+            in.readFully(buf, 0, n);
+            out.write(buf, 0, n);
+            n = in.readInt();
+        }
+    }
+
+    /**
+     * The connection to one agent. Reads the agent's messages on its own
+     * thread while a second thread sends chunks as the agent asks for them.
+     */
+    private final class Link extends Thread
+    {
+        /**
+         * The connection.
+         */
+        private final Socket socket;
+
+        /**
+         * The agent's id with the scheduler.
+         */
+        private final int id;
+
+        /**
+         * The chunks sent to the agent and not yet back, by index.
+         */
+        private final Map<Integer, Chunk> sent;
+
+        /**
+         * The number of chunks the agent asked for and has not been sent.
+         */
+        private int credit;
+
+        /**
+         * True once the connection is gone.
+         */
+        private boolean closed;
+
+        /**
+         * The stream to the agent.
+         */
+        private DataOutputStream out;
+
+        /**
+         * Constructs a link.
+         *
+         * @param socket - the connection
+         * @param id - the agent's id with the scheduler
+         */
+        Link(final Socket socket, final int id)
+        {
+            super("Agent-" + socket.getRemoteSocketAddress());
+            setDaemon(true);
+            this.socket = socket;
+            this.id = id;
+            this.sent = new HashMap<Integer, Chunk>();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run()
+        {
+            Thread sender = null;
+            try
+            {
+                final DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(this.socket.getInputStream()));
+                this.out = new DataOutputStream(new BufferedOutputStream(
+                            this.socket.getOutputStream()));
+
+                // Check who is calling and tell it what to run
+                if (!HELLO.equals(in.readUTF()))
+                {
+                    throw new IOException("not an agent");
+                }
+                if (!admits(in.readUTF()))
+                {
+                    throw new IOException("wrong secret");
+                }
+                final int workers = in.readInt();
+                this.out.writeUTF(config.getExecutable());
+                this.out.writeUTF(config.getArguments());
+                this.out.writeBoolean(config.usePipeMode());
+                this.out.writeLong(config.getSpillSize());
+                this.out.writeBoolean(config.useCoprocessMode());
+                this.out.writeInt(config.getRetries());
+                this.out.writeLong(config.getRetryBackoff());
+                this.out.writeDouble(config.getTimeoutFactor());
+                this.out.writeLong(config.getMinTimeout());
+                this.out.writeLong(config.getLogSize());
+                this.out.writeInt(config.getLogRotations());
+                this.out.writeBoolean(config.useStdoutResult()
+                        && !config.usePipeMode()
+                        && !config.useCoprocessMode());
+                this.out.flush();
+                LOG.info("Agent " + getName() + " joined with " + workers
+                        + " workers");
+
+                sender = new Thread(getName() + "-sender")
+                {
+                    @Override
+                    public void run()
+                    {
+                        send();
+                    }
+                };
+                sender.setDaemon(true);
+                sender.start();
+
+                receive(in);
+            }
+            catch (IOException e)
+            {
+                LOG.warn("Lost agent " + getName() + ": " + e.getMessage());
+            }
+            finally
+            {
+                lost();
+                left();
+                if (sender != null)
+                {
+                    try
+                    {
+                        sender.join();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        LOG.error("run: " + e.getMessage());
+                    }
+                }
+            }
+        }
+
+        /**
+         * Reads the agent's requests and results until it hangs up.
+         *
+         * @param in - the stream from the agent
+         * @throws IOException if the connection fails
+         */
+        private void receive(final DataInputStream in) throws IOException
+        {
+            while (true)
+            {
+                final int type = in.read();
+                if (type < 0)
+                {
+                    return;
+                }
+                else if (type == REQUEST)
+                {
+                    final int n = in.readInt();
+                    synchronized (this)
+                    {
+                        this.credit += n;
+                        notifyAll();
+                    }
+                }
+                else if (type == DONE)
+                {
+                    final Chunk c = remove(in.readInt());
+                    final long runtime = in.readLong();
+                    c.getDirectory().mkdirs();
+                    try (final FileOutputStream fos =
+                            new FileOutputStream(c.getOutFileName()))
+                    {
+                        readFrames(in, fos);
+                    }
+                    c.dropContent();
+                    c.setRuntime(runtime);
+                    for (final ChunkListener l : listeners)
+                    {
+                        l.chunkFinished(c);
+                    }
+                    returned();
+                }
+                else if (type == FAILED)
+                {
+                    final Chunk c = remove(in.readInt());
+                    c.setFailure(in.readUTF());
+                    LOG.error("Chunk " + c.getName() + " failed on "
+                            + getName() + ": " + c.getFailure());
+                    c.dropContent();
+                    for (final ChunkListener l : listeners)
+                    {
+                        l.chunkFailed(c);
+                    }
+                    returned();
+                }
+                else
+                {
+                    throw new IOException("unknown message " + type);
+                }
+            }
+        }
+
+        /**
+         * Sends chunks while the agent has asked for more, until every chunk
+         * is done or the connection is gone.
+         */
+        private void send()
+        {
+            try
+            {
+                while (true)
+                {
+                    synchronized (this)
+                    {
+                        while (this.credit == 0 && !this.closed)
+                        {
+                            wait();
+                        }
+                        if (this.closed)
+                        {
+                            return;
+                        }
+                        this.credit--;
+                    }
+
+                    final Chunk c = next(this.id);
+                    if (c == null)
+                    {
+                        this.out.writeByte(END);
+                        this.out.flush();
+                        return;
+                    }
+
+                    synchronized (this)
+                    {
+                        this.sent.put(c.getIndex(), c);
+                        if (this.closed)
+                        {
+                            // Lost while taking it, so the chunk goes back
+                            lost();
+                            return;
+                        }
+                    }
+                    this.out.writeByte(CHUNK);
+                    this.out.writeInt(c.getIndex());
+                    try (final InputStream content = c.openInput())
+                    {
+                        writeFrames(content, this.out);
+                    }
+                    this.out.flush();
+                }
+            }
+            catch (InterruptedException|IOException e)
+            {
+                LOG.debug("send: " + e.getMessage());
+                close();
+            }
+        }
+
+        /**
+         * Takes a chunk the agent sent back off the sent list.
+         *
+         * @param index - the chunk's index
+         * @return the chunk
+         * @throws IOException if the chunk was not sent to this agent
+         */
+        private synchronized Chunk remove(final int index) throws IOException
+        {
+            final Chunk c = this.sent.remove(index);
+            if (c == null)
+            {
+                throw new IOException("unknown chunk " + index);
+            }
+            return c;
+        }
+
+        /**
+         * Closes the connection and puts the chunks the agent still had up
+         * for the other agents.
+         */
+        private void lost()
+        {
+            close();
+            final List<Chunk> back;
+            synchronized (this)
+            {
+                back = new ArrayList<Chunk>(this.sent.values());
+                this.sent.clear();
+            }
+            if (!back.isEmpty())
+            {
+                LOG.warn("Requeueing " + back.size() + " chunks of "
+                        + getName());
+                requeue(back);
+            }
+        }
+
+        /**
+         * Closes the connection and wakes up the sender.
+         */
+        private void close()
+        {
+            synchronized (this)
+            {
+                this.closed = true;
+                notifyAll();
+            }
+            try
+            {
+                this.socket.close();
+            }
+            catch (IOException e)
+            {
+                LOG.debug("close: " + e.getMessage());
+            }
+        }
+    }
+}
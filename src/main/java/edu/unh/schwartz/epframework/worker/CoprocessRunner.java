@@ -0,0 +1,340 @@
+package edu.unh.schwartz.epframework.worker;
+
+import edu.unh.schwartz.epframework.Chunk;
+import edu.unh.schwartz.epframework.Trace;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps one long-lived process running and hands it the chunks one at a time,
+ * so an executable with a slow start up only pays for it once per worker.
+ *
+ * For each chunk a line with the paths of its in and out files, separated by
+ * a tab, is written to the process's stdin. A tab is used as the paths may
+ * hold spaces. The process runs the chunk, writes its result to the out file,
+ * then prints one line on stdout: <code>ok</code> if the chunk succeeded or
+ * anything else to report an error. The process should exit when its stdin is
+ * closed, and is killed if it has not within a few seconds. If it exits early
+ * it is restarted and the chunk is tried once more. The <code>@</code> and <code>$</code> arguments are left out
+ * of the process's command line.
+ */
+final class CoprocessRunner implements ChunkRunner
+{
+    /**
+     * The Log.
+     */
+    private static final Log LOG = LogFactory.getLog(CoprocessRunner.class);
+
+    /**
+     * The reply that marks a chunk as done.
+     */
+    private static final String OK = "ok";
+
+    /**
+     * How long the process has to exit once its stdin is closed, in
+     * milliseconds.
+     */
+    private static final long STOP_GRACE_MILLIS = 5000;
+
+    /**
+     * The pause between checks that the process has exited, in milliseconds.
+     */
+    private static final long STOP_POLL_MILLIS = 10;
+
+    /**
+     * The command line of the executable.
+     */
+    private final List<String> commands;
+
+    /**
+     * Whether the Chunks need output files or output directories.
+     */
+    private final boolean outputDirs;
+
+    /**
+     * Watches the memory of the processes, or null.
+     */
+    private final AdmissionGate gate;
+
+    /**
+     * Measures what the processes use, or null.
+     */
+    private final ResourceMonitor monitor;
+
+    /**
+     * The running process, or null if it has to be started.
+     */
+    private volatile Process proc;
+
+    /**
+     * The chunk being run, or null.
+     */
+    private volatile Chunk current;
+
+    /**
+     * True iff the current chunk was cancelled.
+     */
+    private volatile boolean cancelled;
+
+    /**
+     * The process's stdin.
+     */
+    private Writer requests;
+
+    /**
+     * The process's stdout.
+     */
+    private BufferedReader replies;
+
+    /**
+     * Constructs a runner. The process is started with the first chunk.
+     *
+     * @param exec - the path to the executable
+     * @param arguments - the arguments for the executable
+     * @param outputDirs - true iff output directories are supposed to be used
+     * @param gate - watches the memory of the processes, or null
+     * @param monitor - measures what the processes use, or null
+     * @param launcher - the command to put before the executable, if any
+     */
+    CoprocessRunner(final String exec, final String[] arguments,
+            final boolean outputDirs, final AdmissionGate gate,
+            final ResourceMonitor monitor, final List<String> launcher)
+    {
+        this.monitor = monitor;
+        this.gate = gate;
+        this.commands = new ArrayList<String>(launcher);
+        this.commands.add(exec);
+        for (final String a : arguments)
+        {
+            if (!a.isEmpty() && !a.equals("@") && !a.equals("$"))
+            {
+                this.commands.add(a);
+            }
+        }
+        this.outputDirs = outputDirs;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run(final Chunk c) throws IOException, InterruptedException
+    {
+        // Get the chunk ready for output
+        c.createOutFile(this.outputDirs);
+        this.cancelled = false;
+        this.current = c;
+        try
+        {
+            runCurrent(c);
+        }
+        finally
+        {
+            this.current = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void cancel(final Chunk c)
+    {
+        final Process p = this.proc;
+        if (this.current == c && p != null)
+        {
+            this.cancelled = true;
+            ProcFs.killTree(p);
+        }
+    }
+
+    /**
+     * Sends a chunk to the process, restarting it once if it exits.
+     *
+     * @param c - the chunk to run
+     * @throws IOException if the process fails on the chunk
+     */
+    private void runCurrent(final Chunk c) throws IOException
+    {
+        String reply;
+        try
+        {
+            reply = send(c);
+        }
+        catch (IOException e)
+        {
+            reply = null;
+        }
+
+        if (reply == null && this.cancelled)
+        {
+            // Killed on purpose, so the next chunk gets a new process
+            stop();
+            throw new IOException("chunk " + c.getName() + " was cancelled");
+        }
+        else if (reply == null)
+        {
+            // The process died, so start a new one and try again
+            LOG.warn("Restarting " + this.commands.get(0) + " after chunk "
+                    + c.getName());
+            stop();
+            reply = send(c);
+            if (reply == null)
+            {
+                stop();
+                throw new IOException("process exited on chunk "
+                        + c.getName());
+            }
+        }
+
+        if (!reply.equals(OK))
+        {
+            throw new IOException("chunk " + c.getName() + ": " + reply);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+    {
+        stop();
+    }
+
+    /**
+     * Sends a chunk to the process, starting it if needed, and waits for the
+     * reply.
+     *
+     * @param c - the chunk to run
+     * @return the reply or null if the process exited
+     * @throws IOException if the process can not be started or written to
+     */
+    private String send(final Chunk c) throws IOException
+    {
+        if (this.proc == null)
+        {
+            final ProcessBuilder pb = new ProcessBuilder(this.commands);
+            pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+            final long spawn = Trace.now();
+            this.proc = pb.start();
+            Trace.record("spawn", c, spawn);
+            if (this.gate != null)
+            {
+                this.gate.started(this.proc);
+            }
+            this.requests = new OutputStreamWriter(this.proc.getOutputStream());
+            this.replies = new BufferedReader(
+                    new InputStreamReader(this.proc.getInputStream()));
+        }
+
+        // The process outlives the chunk, so only what it uses from here on
+        // is the chunk's
+        ResourceMonitor.Usage usage = null;
+        if (this.monitor != null)
+        {
+            usage = this.monitor.watchFromNow(this.proc);
+        }
+        final long start = Trace.now();
+        String reply = null;
+        try
+        {
+            this.requests.write(c.getInFileName() + "\t" + c.getOutFileName()
+                    + "\n");
+            this.requests.flush();
+            reply = this.replies.readLine();
+        }
+        finally
+        {
+            Trace.record("execute", c, start);
+            if (usage != null)
+            {
+                this.monitor.finish(usage, c);
+            }
+        }
+        return reply;
+    }
+
+    /**
+     * Closes the process's stdin so it can exit, then ends it if it has not
+     * within the grace period.
+     */
+    private void stop()
+    {
+        if (this.proc == null)
+        {
+            return;
+        }
+
+        try
+        {
+            this.requests.close();
+        }
+        catch (IOException e)
+        {
+            LOG.debug("stop: " + e.getMessage());
+        }
+        if (!waitForExit(this.proc))
+        {
+            LOG.warn(this.commands.get(0) + " did not exit when its stdin "
+                    + "was closed; killing it");
+            ProcFs.killTree(this.proc);
+        }
+        try
+        {
+            this.replies.close();
+        }
+        catch (IOException e)
+        {
+            LOG.debug("stop: " + e.getMessage());
+        }
+        if (this.gate != null)
+        {
+            this.gate.finished(this.proc);
+        }
+        this.proc = null;
+    }
+
+    /**
+     * Waits for a process to exit, but not past the grace period.
+     *
+     * @param p - the process
+     * @return true iff it exited
+     */
+    private static boolean waitForExit(final Process p)
+    {
+        final long deadline = System.currentTimeMillis() + STOP_GRACE_MILLIS;
+        while (true)
+        {
+            try
+            {
+                p.exitValue();
+                return true;
+            }
+            catch (IllegalThreadStateException e)
+            {
+                // Still running
+            }
+            if (System.currentTimeMillis() >= deadline)
+            {
+                return false;
+            }
+            try
+            {
+                Thread.sleep(STOP_POLL_MILLIS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+}
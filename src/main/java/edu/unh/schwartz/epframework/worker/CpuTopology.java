@@ -0,0 +1,525 @@
+package edu.unh.schwartz.epframework.worker;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The CPUs this process may use, grouped into physical cores and NUMA nodes as
+ * read from <code>/sys/devices/system</code>. Splits them into a fixed set of
+ * CPUs for each worker so the processes it starts stay on one node. Whole
+ * physical cores are handed out while there are enough of them; only after
+ * that do workers get single hyperthreads, the first thread of each core
+ * before its siblings.
+ *
+ * The processes are bound with <code>numactl</code>, which binds their memory
+ * to the node as well, or with <code>taskset</code> where numactl is not
+ * installed.
+ */
+final class CpuTopology
+{
+    /**
+     * The Log.
+     */
+    private static final Log LOG = LogFactory.getLog(CpuTopology.class);
+
+    /**
+     * The sysfs directory for the CPUs.
+     */
+    private static final String CPU_DIR = "/sys/devices/system/cpu";
+
+    /**
+     * The sysfs directory for the NUMA nodes.
+     */
+    private static final String NODE_DIR = "/sys/devices/system/node";
+
+    /**
+     * The physical cores of each node, each core a sorted list of its
+     * hardware threads.
+     */
+    private final Map<Integer, List<List<Integer>>> nodes;
+
+    /**
+     * The path to numactl, or null if it is not installed.
+     */
+    private final String numactl;
+
+    /**
+     * The path to taskset, or null if it is not installed.
+     */
+    private final String taskset;
+
+    /**
+     * Constructs a topology.
+     *
+     * @param nodes - the physical cores of each node
+     * @param numactl - the path to numactl, or null
+     * @param taskset - the path to taskset, or null
+     */
+    private CpuTopology(final Map<Integer, List<List<Integer>>> nodes,
+            final String numactl, final String taskset)
+    {
+        this.nodes = nodes;
+        this.numactl = numactl;
+        this.taskset = taskset;
+    }
+
+    /**
+     * Reads the topology of the CPUs this process may use.
+     *
+     * @return the topology, or null if it can not be read or the processes
+     * can not be bound
+     */
+    static CpuTopology read()
+    {
+        final String numactl = findCommand("numactl");
+        final String taskset = findCommand("taskset");
+        if (numactl == null && taskset == null)
+        {
+            LOG.warn("Neither numactl nor taskset was found, not pinning");
+            return null;
+        }
+
+        List<Integer> allowed = parseList(readField("/proc/self/status",
+                    "Cpus_allowed_list:"));
+        if (allowed.isEmpty())
+        {
+            allowed = parseList(readLine(CPU_DIR + "/online"));
+        }
+        if (allowed.isEmpty())
+        {
+            LOG.warn("The CPUs could not be read, not pinning");
+            return null;
+        }
+
+        // Which node each CPU is on, node 0 if the machine has no NUMA
+        final Map<Integer, Integer> nodeOf = new TreeMap<Integer, Integer>();
+        final File[] nodeDirs = new File(NODE_DIR).listFiles();
+        if (nodeDirs != null)
+        {
+            for (final File d : nodeDirs)
+            {
+                if (d.getName().matches("node[0-9]+"))
+                {
+                    final int node = Integer.parseInt(d.getName().substring(4));
+                    for (final int cpu : parseList(readLine(d + "/cpulist")))
+                    {
+                        nodeOf.put(cpu, node);
+                    }
+                }
+            }
+        }
+
+        // Group the hardware threads by node and physical core
+        final Map<Integer, Map<String, List<Integer>>> cores =
+            new TreeMap<Integer, Map<String, List<Integer>>>();
+        for (final int cpu : allowed)
+        {
+            Integer node = nodeOf.get(cpu);
+            if (node == null)
+            {
+                node = 0;
+            }
+            final String topo = CPU_DIR + "/cpu" + cpu + "/topology/";
+            String core = readLine(topo + "physical_package_id") + ":"
+                + readLine(topo + "core_id");
+            if (readLine(topo + "core_id") == null)
+            {
+                // Without a topology every CPU counts as its own core
+                core = "cpu" + cpu;
+            }
+
+            if (!cores.containsKey(node))
+            {
+                cores.put(node, new TreeMap<String, List<Integer>>());
+            }
+            final Map<String, List<Integer>> onNode = cores.get(node);
+            if (!onNode.containsKey(core))
+            {
+                onNode.put(core, new ArrayList<Integer>());
+            }
+            onNode.get(core).add(cpu);
+        }
+
+        final Map<Integer, List<List<Integer>>> nodes =
+            new TreeMap<Integer, List<List<Integer>>>();
+        for (final Map.Entry<Integer, Map<String, List<Integer>>> e :
+                cores.entrySet())
+        {
+            final List<List<Integer>> list =
+                new ArrayList<List<Integer>>(e.getValue().values());
+            for (final List<Integer> core : list)
+            {
+                Collections.sort(core);
+            }
+            nodes.put(e.getKey(), list);
+        }
+        if (numactl == null && nodes.size() > 1)
+        {
+            LOG.warn("numactl was not found, memory is not bound to the nodes");
+        }
+        return new CpuTopology(nodes, numactl, taskset);
+    }
+
+    /**
+     * @return the number of nodes
+     */
+    int getNodes()
+    {
+        return this.nodes.size();
+    }
+
+    /**
+     * Splits the CPUs between the workers. Each node gets a share of the
+     * workers in proportion to its size, and the node's CPUs are split
+     * between them.
+     *
+     * @param workers - the number of workers
+     * @return the CPUs of each worker
+     */
+    Slot[] assign(final int workers)
+    {
+        int cores = 0;
+        for (final List<List<Integer>> c : this.nodes.values())
+        {
+            cores += c.size();
+        }
+        final boolean wholeCores = workers <= cores;
+
+        // What gets handed out on each node: whole cores, or single threads
+        final List<Integer> nodeIds = new ArrayList<Integer>();
+        final List<List<List<Integer>>> units =
+            new ArrayList<List<List<Integer>>>();
+        int total = 0;
+        for (final Map.Entry<Integer, List<List<Integer>>> e :
+                this.nodes.entrySet())
+        {
+            List<List<Integer>> u = e.getValue();
+            if (!wholeCores)
+            {
+                u = threads(u);
+            }
+            nodeIds.add(e.getKey());
+            units.add(u);
+            total += u.size();
+        }
+
+        // Share the workers out by size, the remainders to the biggest parts
+        final int[] share = new int[units.size()];
+        int given = 0;
+        for (int i = 0; i < share.length; i++)
+        {
+            share[i] = workers * units.get(i).size() / total;
+            given += share[i];
+        }
+        while (given < workers)
+        {
+            int best = 0;
+            double most = -1;
+            for (int i = 0; i < share.length; i++)
+            {
+                final double left =
+                    (double) workers * units.get(i).size() / total - share[i];
+                if (left > most)
+                {
+                    most = left;
+                    best = i;
+                }
+            }
+            share[best]++;
+            given++;
+        }
+
+        final Slot[] slots = new Slot[workers];
+        int next = 0;
+        for (int i = 0; i < share.length; i++)
+        {
+            final List<List<Integer>> u = units.get(i);
+            for (int j = 0; j < share[i]; j++)
+            {
+                final TreeSet<Integer> cpus = new TreeSet<Integer>();
+                if (share[i] <= u.size())
+                {
+                    final int from = j * u.size() / share[i];
+                    final int to = (j + 1) * u.size() / share[i];
+                    for (final List<Integer> unit : u.subList(from, to))
+                    {
+                        cpus.addAll(unit);
+                    }
+                }
+                else
+                {
+                    // More workers than threads, so some have to share
+                    cpus.addAll(u.get(j % u.size()));
+                }
+                final List<Integer> list = new ArrayList<Integer>(cpus);
+                final int node = nodeIds.get(i);
+                slots[next] = new Slot(list, node,
+                        launcher(formatList(list), node));
+                next++;
+            }
+        }
+        return slots;
+    }
+
+    /**
+     * Builds the command that starts a process bound to some CPUs.
+     *
+     * @param cpus - the CPU list
+     * @param node - the memory node
+     * @return the command to put before the executable
+     */
+    private List<String> launcher(final String cpus, final int node)
+    {
+        if (this.numactl != null)
+        {
+            return Arrays.asList(this.numactl, "--physcpubind=" + cpus,
+                    "--membind=" + node);
+        }
+        return Arrays.asList(this.taskset, "-c", cpus);
+    }
+
+    /**
+     * Finds a command on the path.
+     *
+     * @param name - the name of the command
+     * @return the path to the command, or null if it is not found
+     */
+    private static String findCommand(final String name)
+    {
+        final String path = System.getenv("PATH");
+        if (path == null)
+        {
+            return null;
+        }
+        for (final String dir : path.split(File.pathSeparator))
+        {
+            final File f = new File(dir, name);
+            if (f.isFile() && f.canExecute())
+            {
+                return f.getAbsolutePath();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Lists the hardware threads of some cores as units of one, the first
+     * thread of every core before the second of any.
+     *
+     * @param cores - the cores
+     * @return the threads
+     */
+    private static List<List<Integer>> threads(final List<List<Integer>> cores)
+    {
+        final List<List<Integer>> threads = new ArrayList<List<Integer>>();
+        boolean more = true;
+        for (int t = 0; more; t++)
+        {
+            more = false;
+            for (final List<Integer> core : cores)
+            {
+                if (t < core.size())
+                {
+                    threads.add(Arrays.asList(core.get(t)));
+                    more = true;
+                }
+            }
+        }
+        return threads;
+    }
+
+    /**
+     * Parses a CPU list such as <code>0-3,8-11</code>.
+     *
+     * @param list - the list, or null
+     * @return the CPUs
+     */
+    static List<Integer> parseList(final String list)
+    {
+        final List<Integer> cpus = new ArrayList<Integer>();
+        if (list == null || list.isEmpty())
+        {
+            return cpus;
+        }
+        try
+        {
+            for (final String part : list.split(","))
+            {
+                final String[] range = part.trim().split("-");
+                final int from = Integer.parseInt(range[0]);
+                int to = from;
+                if (range.length > 1)
+                {
+                    to = Integer.parseInt(range[1]);
+                }
+                for (int cpu = from; cpu <= to; cpu++)
+                {
+                    cpus.add(cpu);
+                }
+            }
+        }
+        catch (NumberFormatException e)
+        {
+            LOG.warn("parseList: " + e.getMessage());
+            cpus.clear();
+        }
+        return cpus;
+    }
+
+    /**
+     * Writes CPUs as a list such as <code>0-3,8-11</code>.
+     *
+     * @param cpus - the CPUs in order
+     * @return the list
+     */
+    static String formatList(final List<Integer> cpus)
+    {
+        final StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (i < cpus.size())
+        {
+            int j = i;
+            while (j + 1 < cpus.size() && cpus.get(j + 1) == cpus.get(j) + 1)
+            {
+                j++;
+            }
+            if (sb.length() > 0)
+            {
+                sb.append(',');
+            }
+            sb.append(cpus.get(i));
+            if (j > i)
+            {
+                sb.append('-').append(cpus.get(j));
+            }
+            i = j + 1;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Reads the value of a line of a file such as
+     * <code>Cpus_allowed_list:	0-3</code>.
+     *
+     * @param file - the file
+     * @param name - the start of the line
+     * @return the value or null
+     */
+    private static String readField(final String file, final String name)
+    {
+        try (final BufferedReader br = new BufferedReader(
+                    new FileReader(file)))
+        {
+            String line = br.readLine();
+            while (line != null)
+            {
+                if (line.startsWith(name))
+                {
+                    return line.substring(name.length()).trim();
+                }
+                line = br.readLine();
+            }
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+        return null;
+    }
+
+    /**
+     * Reads the first line of a file.
+     *
+     * @param file - the file
+     * @return the line or null if it can not be read
+     */
+    private static String readLine(final String file)
+    {
+        try (final BufferedReader br = new BufferedReader(
+                    new FileReader(file)))
+        {
+            final String line = br.readLine();
+            if (line == null)
+            {
+                return null;
+            }
+            return line.trim();
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * The CPUs and memory node one worker's processes are bound to.
+     */
+    static final class Slot
+    {
+        /**
+         * The CPUs.
+         */
+        private final List<Integer> cpus;
+
+        /**
+         * The memory node.
+         */
+        private final int node;
+
+        /**
+         * The command to put before the executable.
+         */
+        private final List<String> launcher;
+
+        /**
+         * Constructs a slot.
+         *
+         * @param cpus - the CPUs in order
+         * @param node - the memory node
+         * @param launcher - the command to put before the executable
+         */
+        Slot(final List<Integer> cpus, final int node,
+                final List<String> launcher)
+        {
+            this.cpus = cpus;
+            this.node = node;
+            this.launcher = launcher;
+        }
+
+        /**
+         * @return the command to put before the executable
+         */
+        List<String> getLauncher()
+        {
+            return this.launcher;
+        }
+
+        /**
+         * @return the memory node
+         */
+        int getNode()
+        {
+            return this.node;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString()
+        {
+            return formatList(this.cpus);
+        }
+    }
+}
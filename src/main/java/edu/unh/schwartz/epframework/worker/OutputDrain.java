@@ -0,0 +1,390 @@
+package edu.unh.schwartz.epframework.worker;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Reads what a process writes to its stdout or stderr into the chunk's log,
+ * so a chatty process never fills its pipe and blocks. The log is only
+ * created once the process writes something. Once it reaches its size cap it
+ * is renamed to <code>.1</code>, the older ones moving up to the number of
+ * rotations kept, and a new log is started, so a process that writes without
+ * end keeps only its latest output on disk.
+ *
+ * A drain is either run on a thread from a shared pool, reading until the
+ * process closes the stream, or pumped now and then by a thread that watches
+ * many processes, reading only what is there so it never blocks.
+ */
+final class OutputDrain implements Runnable
+{
+    /**
+     * The Log.
+     */
+    private static final Log LOG = LogFactory.getLog(OutputDrain.class);
+
+    /**
+     * The size of the buffer the output is read into.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * How long to wait for the rest of the output once the process has
+     * exited, in milliseconds. A child it left running may still hold the
+     * stream open.
+     */
+    private static final long GRACE_MILLIS = 2000;
+
+    /**
+     * The threads drains are run on. They are kept for later drains once
+     * their process is done.
+     */
+    private static final ExecutorService POOL =
+        Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r)
+            {
+                final Thread t = new Thread(r,
+                        "OutputDrain-" + count.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    /**
+     * The output of the process.
+     */
+    private final InputStream in;
+
+    /**
+     * The log, or null to throw the output away.
+     */
+    private final File log;
+
+    /**
+     * The inode of the pipe the output comes through, or -1 if it is not
+     * known.
+     */
+    private final long pipe;
+
+    /**
+     * The largest log in bytes before it is rotated.
+     */
+    private final long cap;
+
+    /**
+     * The number of rotated logs kept.
+     */
+    private final int rotations;
+
+    /**
+     * The buffer the output is read into.
+     */
+    private final byte[] buffer;
+
+    /**
+     * The log being written, or null until there is output.
+     */
+    private OutputStream out;
+
+    /**
+     * The bytes in the log being written.
+     */
+    private long written;
+
+    /**
+     * The bytes read in all.
+     */
+    private long total;
+
+    /**
+     * True once the stream has ended.
+     */
+    private boolean done;
+
+    /**
+     * Constructs a drain.
+     *
+     * @param in - the output of the process
+     * @param log - the log, or null to throw the output away
+     * @param pipe - the inode of the pipe the output comes through, or -1
+     * if it is not known
+     * @param cap - the largest log in bytes before it is rotated
+     * @param rotations - the number of rotated logs kept
+     */
+    OutputDrain(final InputStream in, final File log, final long pipe,
+            final long cap, final int rotations)
+    {
+        this.in = in;
+        this.log = log;
+        this.pipe = pipe;
+        this.cap = cap;
+        this.rotations = rotations;
+        this.buffer = new byte[BUFFER_SIZE];
+    }
+
+    /**
+     * Starts reading on a pool thread.
+     */
+    void start()
+    {
+        POOL.execute(this);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run()
+    {
+        try
+        {
+            int n = this.in.read(this.buffer);
+            while (n >= 0)
+            {
+                write(n);
+                n = this.in.read(this.buffer);
+            }
+        }
+        catch (IOException e)
+        {
+            // Such as when the stream is closed under it
+            LOG.debug("run: " + e.getMessage());
+        }
+        finally
+        {
+            end();
+        }
+    }
+
+    /**
+     * Reads whatever output is waiting without blocking. A stream closed
+     * under it, as when its process is destroyed, is the end of the output.
+     *
+     * @return true iff there was any
+     */
+    synchronized boolean pump()
+    {
+        boolean any = false;
+        if (this.done)
+        {
+            return any;
+        }
+        try
+        {
+            int n = Math.min(this.in.available(), BUFFER_SIZE);
+            while (n > 0)
+            {
+                n = this.in.read(this.buffer, 0, n);
+                if (n > 0)
+                {
+                    write(n);
+                    any = true;
+                }
+                n = Math.min(this.in.available(), BUFFER_SIZE);
+            }
+        }
+        catch (IOException e)
+        {
+            // Such as when the stream is closed under it
+            LOG.debug("pump: " + e.getMessage());
+            end();
+        }
+        return any;
+    }
+
+    /**
+     * Reads the rest of the output of a pumped process that has exited and
+     * closes the log. The process is gone, so all it wrote is waiting in the
+     * pipe.
+     */
+    void close()
+    {
+        pump();
+        end();
+    }
+
+    /**
+     * Waits for a drain on a pool thread to read the rest of the output of a
+     * process that has exited, but not past the grace period, in case a
+     * child of the process still holds the stream. Once it is over, the
+     * processes still holding the stream are killed so the pool thread is
+     * not blocked on it for good, and if that does not end it the stream is
+     * closed.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void finish() throws InterruptedException
+    {
+        if (awaitEnd())
+        {
+            return;
+        }
+        final int killed = ProcFs.killHolders(this.pipe);
+        LOG.warn("Output still open after its process exited; killed "
+                + killed + " processes holding it");
+        if (killed > 0 && awaitEnd())
+        {
+            return;
+        }
+        LOG.warn("Closing the output, which is left out of " + this.log);
+        try
+        {
+            this.in.close();
+        }
+        catch (IOException e)
+        {
+            LOG.error("finish: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Waits for the stream to end, but not past the grace period.
+     *
+     * @return true iff it ended
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private synchronized boolean awaitEnd() throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + GRACE_MILLIS;
+        long left = GRACE_MILLIS;
+        while (!this.done && left > 0)
+        {
+            wait(left);
+            left = deadline - System.currentTimeMillis();
+        }
+        return this.done;
+    }
+
+    /**
+     * Adds where the output can be read to a message about the process.
+     *
+     * @param message - the message
+     * @return the message, with the log if there is one
+     */
+    String withLog(final String message)
+    {
+        final File f = getLog();
+        if (f == null)
+        {
+            return message;
+        }
+        return message + ", output in " + f;
+    }
+
+    /**
+     * @return the log, or null if there was no output or it was thrown away
+     */
+    synchronized File getLog()
+    {
+        if (this.total == 0)
+        {
+            return null;
+        }
+        return this.log;
+    }
+
+    /**
+     * Writes the output read into the buffer to the log, rotating it
+     * whenever it is full.
+     *
+     * @param n - the number of bytes read
+     */
+    private synchronized void write(final int n)
+    {
+        this.total += n;
+        if (this.log == null)
+        {
+            return;
+        }
+
+        try
+        {
+            int offset = 0;
+            while (offset < n)
+            {
+                if (this.out == null)
+                {
+                    // Only runs that have output get a logs directory
+                    this.log.getParentFile().mkdirs();
+                    this.out = new FileOutputStream(this.log);
+                    this.written = 0;
+                }
+                final int length = (int) Math.min(n - offset,
+                        this.cap - this.written);
+                this.out.write(this.buffer, offset, length);
+                this.written += length;
+                offset += length;
+                if (this.written >= this.cap)
+                {
+                    rotate();
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            LOG.error("write: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Closes the full log and moves it and the older logs up one, dropping
+     * the oldest.
+     *
+     * @throws IOException if the log can not be closed
+     */
+    private void rotate() throws IOException
+    {
+        this.out.close();
+        this.out = null;
+        if (this.rotations == 0)
+        {
+            // The next write starts the log over
+            return;
+        }
+        final String name = this.log.getPath();
+        new File(name + "." + this.rotations).delete();
+        for (int i = this.rotations - 1; i > 0; i--)
+        {
+            new File(name + "." + i).renameTo(new File(name + "." + (i + 1)));
+        }
+        this.log.renameTo(new File(name + ".1"));
+    }
+
+    /**
+     * Closes the log once the stream has ended.
+     */
+    private synchronized void end()
+    {
+        if (this.done)
+        {
+            return;
+        }
+        this.done = true;
+        try
+        {
+            if (this.out != null)
+            {
+                this.out.close();
+                this.out = null;
+            }
+            this.in.close();
+        }
+        catch (IOException e)
+        {
+            LOG.error("end: " + e.getMessage());
+        }
+        notifyAll();
+    }
+}
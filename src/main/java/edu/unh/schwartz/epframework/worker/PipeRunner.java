@@ -0,0 +1,291 @@
+package edu.unh.schwartz.epframework.worker;
+
+import edu.unh.schwartz.epframework.Chunk;
+import edu.unh.schwartz.epframework.Trace;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Starts a new process for each chunk, writes the chunk's content to its stdin
+ * and keeps what it prints on stdout as the result. Nothing is written to disk
+ * unless the result grows past the spill size, in which case the rest of it
+ * goes to the chunk's out file. The <code>@</code> and <code>$</code> arguments
+ * are left out, and stderr goes to the framework's own stderr.
+ */
+final class PipeRunner implements ChunkRunner
+{
+    /**
+     * The Log.
+     */
+    private static final Log LOG = LogFactory.getLog(PipeRunner.class);
+
+    /**
+     * The size of the buffer used to copy to and from the process.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The command line of the executable.
+     */
+    private final List<String> commands;
+
+    /**
+     * The largest result in bytes kept in memory.
+     */
+    private final long spillSize;
+
+    /**
+     * Watches the memory of the processes, or null.
+     */
+    private final AdmissionGate gate;
+
+    /**
+     * Measures what the processes use, or null.
+     */
+    private final ResourceMonitor monitor;
+
+    /**
+     * The chunk being run, or null.
+     */
+    private volatile Chunk current;
+
+    /**
+     * The process running the current chunk, or null.
+     */
+    private volatile Process proc;
+
+    /**
+     * Constructs a runner.
+     *
+     * @param exec - the path to the executable
+     * @param arguments - the arguments for the executable
+     * @param spillSize - the largest result in bytes kept in memory
+     * @param gate - watches the memory of the processes, or null
+     * @param monitor - measures what the processes use, or null
+     * @param launcher - the command to put before the executable, if any
+     */
+    PipeRunner(final String exec, final String[] arguments,
+            final long spillSize, final AdmissionGate gate,
+            final ResourceMonitor monitor, final List<String> launcher)
+    {
+        this.monitor = monitor;
+        this.gate = gate;
+        this.commands = new ArrayList<String>(launcher);
+        this.commands.add(exec);
+        for (final String a : arguments)
+        {
+            if (!a.isEmpty() && !a.equals("@") && !a.equals("$"))
+            {
+                this.commands.add(a);
+            }
+        }
+        this.spillSize = spillSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run(final Chunk c) throws IOException, InterruptedException
+    {
+        final ProcessBuilder pb = new ProcessBuilder(this.commands);
+        pb.redirectError(ProcessBuilder.Redirect.INHERIT);
+        if (c.getDirectory().isDirectory())
+        {
+            // Only chunks read from files have a directory yet
+            pb.directory(c.getDirectory());
+        }
+        ResourceMonitor.Usage usage = null;
+        if (this.monitor != null)
+        {
+            usage = this.monitor.prepare(pb);
+        }
+        final long spawn = Trace.now();
+        final Process p = pb.start();
+        Trace.record("spawn", c, spawn);
+        this.proc = p;
+        this.current = c;
+        if (this.gate != null)
+        {
+            this.gate.started(p);
+        }
+        if (usage != null)
+        {
+            this.monitor.watch(usage, p);
+        }
+
+        final int code;
+        final long start = Trace.now();
+        try
+        {
+            // Feed stdin on its own thread so a process that prints while it
+            // reads can not block on a full pipe
+            final Thread feeder = new Feeder(c, p.getOutputStream());
+            feeder.start();
+            final long drain = Trace.now();
+            try
+            {
+                capture(c, p.getInputStream());
+            }
+            finally
+            {
+                Trace.record("drain", c, drain);
+                feeder.join();
+            }
+            code = p.waitFor();
+        }
+        finally
+        {
+            Trace.record("execute", c, start);
+            if (usage != null)
+            {
+                this.monitor.finish(usage, c);
+            }
+            this.current = null;
+            this.proc = null;
+            if (this.gate != null)
+            {
+                this.gate.finished(p);
+            }
+        }
+        if (code != 0)
+        {
+            // Keep the content in case the chunk is tried again
+            throw new IOException("exited with " + code);
+        }
+        c.dropContent();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void cancel(final Chunk c)
+    {
+        final Process p = this.proc;
+        if (this.current == c && p != null)
+        {
+            ProcFs.killTree(p);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+    {
+        // No-op
+    }
+
+    /**
+     * Reads the result from the process's stdout, keeping it in memory until
+     * it grows past the spill size.
+     *
+     * @param c - the chunk being run
+     * @param stdout - the process's stdout
+     * @throws IOException if the result can not be read or spilled
+     */
+    private void capture(final Chunk c, final InputStream stdout)
+        throws IOException
+    {
+        final byte[] buf = new byte[BUFFER_SIZE];
+        final ByteArrayOutputStream mem = new ByteArrayOutputStream();
+        OutputStream spill = null;
+        try (final InputStream in = stdout)
+        {
+            int n = in.read(buf);
+            while (n >= 0)
+            {
+                if (spill == null && mem.size() + n > this.spillSize)
+                {
+                    c.getDirectory().mkdirs();
+                    spill = new FileOutputStream(c.getOutFileName());
+                    mem.writeTo(spill);
+                    mem.reset();
+                }
+
+                if (spill == null)
+                {
+                    mem.write(buf, 0, n);
+                }
+                else
+                {
+                    spill.write(buf, 0, n);
+                }
+                n = in.read(buf);
+            }
+        }
+        finally
+        {
+            if (spill != null)
+            {
+                spill.close();
+            }
+        }
+
+        if (spill == null)
+        {
+            c.setOutput(mem.toByteArray());
+        }
+    }
+
+    /**
+     * Writes a chunk's content to the stdin of its process.
+     */
+    private static final class Feeder extends Thread
+    {
+        /**
+         * The chunk being run.
+         */
+        private final Chunk chunk;
+
+        /**
+         * The process's stdin.
+         */
+        private final OutputStream stdin;
+
+        /**
+         * Constructs a feeder.
+         *
+         * @param chunk - the chunk being run
+         * @param stdin - the process's stdin
+         */
+        Feeder(final Chunk chunk, final OutputStream stdin)
+        {
+            super("Feeder " + chunk.getName());
+            this.chunk = chunk;
+            this.stdin = stdin;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run()
+        {
+            final byte[] buf = new byte[BUFFER_SIZE];
+            try (final OutputStream out = this.stdin;
+                final InputStream in = this.chunk.openInput())
+            {
+                int n = in.read(buf);
+                while (n >= 0)
+                {
+                    out.write(buf, 0, n);
+                    n = in.read(buf);
+                }
+            }
+            catch (IOException e)
+            {
+                LOG.error("feed: " + e.getMessage());
+            }
+        }
+    }
+}
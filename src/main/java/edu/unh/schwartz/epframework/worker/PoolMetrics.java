@@ -0,0 +1,357 @@
+package edu.unh.schwartz.epframework.worker;
+
+import edu.unh.schwartz.epframework.Chunk;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Keeps the live state of the pool for JMX tools. Everything is kept in
+ * atomic counters, so the workers never wait on a lock to update them and a
+ * JMX client reading them never holds up a worker.
+ *
+ * Runtimes go into a histogram of power of two buckets. The throughput is
+ * counted in one slot per second over the last minute; each slot holds the
+ * second it counts in its upper bits and the count in its lower bits, so a
+ * slot is moved on to a new second and counted in with one compare and set.
+ */
+public final class PoolMetrics implements PoolMetricsMBean, ChunkListener
+{
+    /**
+     * The Log.
+     */
+    private static final Log LOG = LogFactory.getLog(PoolMetrics.class);
+
+    /**
+     * The name the metrics are registered under.
+     */
+    private static final String NAME = "edu.unh.schwartz.epframework:"
+        + "type=WorkerPool";
+
+    /**
+     * The number of buckets in the runtime histogram. The last one holds
+     * everything over 2^23 ms, about two hours.
+     */
+    private static final int BUCKETS = 25;
+
+    /**
+     * The number of seconds the throughput is averaged over.
+     */
+    private static final int WINDOW = 60;
+
+    /**
+     * The number of bits of a throughput slot that hold its count.
+     */
+    private static final int COUNT_BITS = 24;
+
+    /**
+     * The scheduler the chunks wait in.
+     */
+    private final ChunkScheduler queue;
+
+    /**
+     * When the pool started, in milliseconds.
+     */
+    private final long start;
+
+    /**
+     * The number of chunks running.
+     */
+    private final AtomicInteger inFlight;
+
+    /**
+     * The number of chunks finished.
+     */
+    private final AtomicLong completed;
+
+    /**
+     * The number of chunks that failed for good.
+     */
+    private final AtomicLong failed;
+
+    /**
+     * The sum of the runtimes of the chunks finished.
+     */
+    private final AtomicLong totalRuntime;
+
+    /**
+     * The number of chunks finished in each runtime bucket.
+     */
+    private final AtomicLongArray histogram;
+
+    /**
+     * The chunks finished in each of the last seconds, with the second.
+     */
+    private final AtomicLongArray window;
+
+    /**
+     * The time each worker has spent running chunks.
+     */
+    private final AtomicLongArray busy;
+
+    /**
+     * When each worker started its current chunk, or 0 if it is idle.
+     */
+    private final AtomicLongArray since;
+
+    /**
+     * Constructs the metrics.
+     *
+     * @param queue - the scheduler the chunks wait in
+     * @param workers - the number of local workers
+     */
+    PoolMetrics(final ChunkScheduler queue, final int workers)
+    {
+        this.queue = queue;
+        this.start = System.currentTimeMillis();
+        this.inFlight = new AtomicInteger();
+        this.completed = new AtomicLong();
+        this.failed = new AtomicLong();
+        this.totalRuntime = new AtomicLong();
+        this.histogram = new AtomicLongArray(BUCKETS);
+        this.window = new AtomicLongArray(WINDOW);
+        this.busy = new AtomicLongArray(workers);
+        this.since = new AtomicLongArray(workers);
+    }
+
+    /**
+     * Publishes the metrics on the platform MBean server.
+     */
+    void register()
+    {
+        try
+        {
+            final MBeanServer server =
+                ManagementFactory.getPlatformMBeanServer();
+            server.registerMBean(this, new ObjectName(NAME));
+            LOG.info("Published the pool's metrics as " + NAME);
+        }
+        catch (JMException e)
+        {
+            LOG.error("register: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Removes the metrics from the platform MBean server.
+     */
+    void unregister()
+    {
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer()
+                .unregisterMBean(new ObjectName(NAME));
+        }
+        catch (JMException e)
+        {
+            LOG.error("unregister: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Tells the metrics a worker started a chunk.
+     *
+     * @param worker - the id of the worker
+     */
+    void started(final int worker)
+    {
+        this.inFlight.incrementAndGet();
+        this.since.set(worker, System.currentTimeMillis());
+    }
+
+    /**
+     * Tells the metrics a worker's chunk returned, whether or not it
+     * succeeded.
+     *
+     * @param worker - the id of the worker
+     */
+    void ended(final int worker)
+    {
+        final long begun = this.since.getAndSet(worker, 0);
+        this.busy.addAndGet(worker, System.currentTimeMillis() - begun);
+        this.inFlight.decrementAndGet();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void chunkFinished(final Chunk c)
+    {
+        final long runtime = c.getRuntime();
+        this.completed.incrementAndGet();
+        this.totalRuntime.addAndGet(runtime);
+        this.histogram.incrementAndGet(bucket(runtime));
+
+        // Count it in this second's slot, starting the slot over if it last
+        // counted an older second
+        final long second = System.currentTimeMillis() / 1000;
+        final int i = (int) (second % WINDOW);
+        while (true)
+        {
+            final long v = this.window.get(i);
+            long next = (second << COUNT_BITS) + 1;
+            if (v >>> COUNT_BITS == second)
+            {
+                next = v + 1;
+            }
+            if (this.window.compareAndSet(i, v, next))
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void chunkFailed(final Chunk c)
+    {
+        this.failed.incrementAndGet();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getQueueDepth()
+    {
+        return this.queue.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getInFlight()
+    {
+        return this.inFlight.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getCompleted()
+    {
+        return this.completed.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getFailed()
+    {
+        return this.failed.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getMeanRuntime()
+    {
+        final long n = this.completed.get();
+        if (n == 0)
+        {
+            return 0;
+        }
+        return this.totalRuntime.get() / n;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String[] getRuntimeBuckets()
+    {
+        final String[] names = new String[BUCKETS];
+        for (int i = 0; i < BUCKETS - 1; i++)
+        {
+            names[i] = "<= " + ((1L << i) - 1) + "ms";
+        }
+        names[BUCKETS - 1] = "> " + ((1L << (BUCKETS - 2)) - 1) + "ms";
+        return names;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long[] getRuntimeHistogram()
+    {
+        final long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            counts[i] = this.histogram.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double getThroughput()
+    {
+        final long now = System.currentTimeMillis();
+        final long second = now / 1000;
+        long sum = 0;
+        for (int i = 0; i < WINDOW; i++)
+        {
+            final long v = this.window.get(i);
+            if (second - (v >>> COUNT_BITS) < WINDOW)
+            {
+                sum += v & ((1L << COUNT_BITS) - 1);
+            }
+        }
+
+        // Early in the run the window is not full yet
+        final double seconds = Math.min(WINDOW, (now - this.start) / 1000.0);
+        if (seconds <= 0)
+        {
+            return 0;
+        }
+        return sum / seconds;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public double[] getWorkerBusyRatios()
+    {
+        final long now = System.currentTimeMillis();
+        final double elapsed = Math.max(1, now - this.start);
+        final double[] ratios = new double[this.busy.length()];
+        for (int i = 0; i < ratios.length; i++)
+        {
+            long time = this.busy.get(i);
+            final long begun = this.since.get(i);
+            if (begun > 0)
+            {
+                time += now - begun;
+            }
+            ratios[i] = time / elapsed;
+        }
+        return ratios;
+    }
+
+    /**
+     * @param runtime - a runtime in milliseconds
+     * @return the histogram bucket it goes in
+     */
+    private static int bucket(final long runtime)
+    {
+        final int b = 64 - Long.numberOfLeadingZeros(Math.max(0, runtime));
+        return Math.min(b, BUCKETS - 1);
+    }
+}
@@ -0,0 +1,55 @@
+package edu.unh.schwartz.epframework.worker;
+
+/**
+ * The live state of a <code>WorkerPool</code>, as seen by JMX tools such as
+ * jconsole. Runtimes are in milliseconds.
+ */
+public interface PoolMetricsMBean
+{
+    /**
+     * @return the number of chunks waiting in the scheduler
+     */
+    int getQueueDepth();
+
+    /**
+     * @return the number of chunk processes running on this machine
+     */
+    int getInFlight();
+
+    /**
+     * @return the number of chunks finished
+     */
+    long getCompleted();
+
+    /**
+     * @return the number of chunks that failed for good
+     */
+    long getFailed();
+
+    /**
+     * @return the average runtime of the chunks finished
+     */
+    long getMeanRuntime();
+
+    /**
+     * @return the upper bound of each bucket of the runtime histogram
+     */
+    String[] getRuntimeBuckets();
+
+    /**
+     * @return the number of chunks finished in each bucket of the runtime
+     * histogram
+     */
+    long[] getRuntimeHistogram();
+
+    /**
+     * @return the chunks finished per second over the last minute
+     */
+    double getThroughput();
+
+    /**
+     * @return the share of the time each local worker has spent running a
+     * chunk since the pool started
+     */
+    double[] getWorkerBusyRatios();
+}
@@ -0,0 +1,654 @@
+package edu.unh.schwartz.epframework.worker;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Reads the state of the machine and of processes from <code>/proc</code> and
+ * the cgroup filesystem. Every method returns a negative value when the
+ * information is not available, such as on a system without
+ * <code>/proc</code>.
+ */
+final class ProcFs
+{
+    /**
+     * The Log.
+     */
+    private static final Log LOG = LogFactory.getLog(ProcFs.class);
+
+    /**
+     * The root of the cgroup filesystem.
+     */
+    private static final String CGROUP = "/sys/fs/cgroup";
+
+    /**
+     * How /proc names the file a descriptor that is a pipe points to, before
+     * the pipe's inode.
+     */
+    private static final String PIPE = "pipe:[";
+
+    /**
+     * The number of bytes in a kB as used by /proc.
+     */
+    private static final long KB = 1024;
+
+    /**
+     * The milliseconds in a clock tick of /proc/[pid]/stat. USER_HZ is 100
+     * on every Linux platform.
+     */
+    private static final long TICK_MILLIS = 10;
+
+    private ProcFs()
+    {
+        // Prevent instantiation
+    }
+
+    /**
+     * @return the bytes of memory available for new processes, taking the
+     * cgroup memory limit into account, or -1
+     */
+    static long availableMemory()
+    {
+        long avail = readField("/proc/meminfo", "MemAvailable:") * KB;
+        if (avail < 0)
+        {
+            avail = -1;
+        }
+
+        final long limit = cgroupValue("memory", "memory.limit_in_bytes",
+                "memory.max");
+        final long usage = cgroupValue("memory", "memory.usage_in_bytes",
+                "memory.current");
+        // An unlimited cgroup reports a huge limit
+        if (limit > 0 && limit < Long.MAX_VALUE / 2 && usage >= 0)
+        {
+            final long room = Math.max(0, limit - usage);
+            if (avail < 0 || room < avail)
+            {
+                avail = room;
+            }
+        }
+        return avail;
+    }
+
+    /**
+     * @return the load average over the last minute, or -1
+     */
+    static double loadAverage()
+    {
+        final String line = readLine("/proc/loadavg");
+        if (line == null)
+        {
+            return -1;
+        }
+        try
+        {
+            return Double.parseDouble(line.split(" ")[0]);
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * @return the number of CPUs the process may use, taking the cgroup CPU
+     * quota into account
+     */
+    static double cpus()
+    {
+        double cpus = Runtime.getRuntime().availableProcessors();
+
+        // cgroup v1 keeps the quota and period apart, v2 in one file
+        long quota = cgroupValue("cpu", "cpu.cfs_quota_us", null);
+        long period = cgroupValue("cpu", "cpu.cfs_period_us", null);
+        final String max = readLine(cgroupFile("cpu", "cpu.max"));
+        if (max != null)
+        {
+            final String[] parts = max.split(" ");
+            if (parts.length == 2 && !parts[0].equals("max"))
+            {
+                quota = parse(parts[0]);
+                period = parse(parts[1]);
+            }
+        }
+        if (quota > 0 && period > 0)
+        {
+            cpus = Math.min(cpus, (double) quota / period);
+        }
+        return cpus;
+    }
+
+    /**
+     * @param pid - the process id
+     * @return the resident set size of the process in bytes, or -1
+     */
+    static long rss(final long pid)
+    {
+        return readField("/proc/" + pid + "/status", "VmRSS:") * KB;
+    }
+
+    /**
+     * @param pid - the process id
+     * @return the peak resident set size of the process in bytes, or -1
+     */
+    static long peakRss(final long pid)
+    {
+        return readField("/proc/" + pid + "/status", "VmHWM:") * KB;
+    }
+
+    /**
+     * Reads the CPU time of a process, including the children it has waited
+     * for.
+     *
+     * @param pid - the process id
+     * @return the user and system time in milliseconds, or null
+     */
+    static long[] cpuTime(final long pid)
+    {
+        return cpuTime("/proc/" + pid + "/stat");
+    }
+
+    /**
+     * Reads the CPU time from a copy of a /proc/[pid]/stat file.
+     *
+     * @param file - the file
+     * @return the user and system time in milliseconds, or null
+     */
+    static long[] cpuTime(final String file)
+    {
+        final String[] fields = statFields(readLine(file));
+        if (fields == null || fields.length < 15)
+        {
+            return null;
+        }
+
+        // utime, stime, cutime and cstime are fields 14 to 17
+        final long user = parse(fields[11]) + parse(fields[13]);
+        final long system = parse(fields[12]) + parse(fields[14]);
+        return new long[] {user * TICK_MILLIS, system * TICK_MILLIS};
+    }
+
+    /**
+     * Reads the bytes a process has read and written through system calls,
+     * including the children it has waited for.
+     *
+     * @param pid - the process id
+     * @return the bytes read and written, or null
+     */
+    static long[] io(final long pid)
+    {
+        return io("/proc/" + pid + "/io");
+    }
+
+    /**
+     * Reads the bytes read and written from a copy of a /proc/[pid]/io file.
+     *
+     * @param file - the file
+     * @return the bytes read and written, or null
+     */
+    static long[] io(final String file)
+    {
+        final long read = readField(file, "rchar:");
+        final long written = readField(file, "wchar:");
+        if (read < 0 || written < 0)
+        {
+            return null;
+        }
+        return new long[] {read, written};
+    }
+
+    /**
+     * Finds the id of a process. Uses <code>Process.pid()</code> where the
+     * platform has it and otherwise the field the Unix implementation keeps
+     * it in.
+     *
+     * @param p - the process
+     * @return the process id, or -1
+     */
+    static long pid(final Process p)
+    {
+        try
+        {
+            final Method m = Process.class.getMethod("pid");
+            return ((Number) m.invoke(p)).longValue();
+        }
+        catch (ReflectiveOperationException e)
+        {
+            try
+            {
+                final Field f = p.getClass().getDeclaredField("pid");
+                f.setAccessible(true);
+                return f.getLong(p);
+            }
+            catch (ReflectiveOperationException|RuntimeException ex)
+            {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Kills a process and every process it started with SIGKILL, so neither
+     * a chunk that ignores SIGTERM nor its helpers outlive it or keep its
+     * pipes open. The tree is read from <code>/proc</code> before anything
+     * is killed; where there is no /proc only the process itself is killed.
+     * Where its id can not be found or kill can not be run, the process is
+     * only destroyed.
+     *
+     * @param p - the process
+     */
+    static void killTree(final Process p)
+    {
+        final long root = pid(p);
+        if (root <= 0)
+        {
+            p.destroy();
+            return;
+        }
+        final List<Long> tree = new ArrayList<Long>();
+        try
+        {
+            p.exitValue();
+        }
+        catch (IllegalThreadStateException e)
+        {
+            // Still running, so its id has not been reused
+            tree.add(root);
+        }
+        tree.addAll(descendants(root));
+        if (!kill(tree))
+        {
+            p.destroy();
+        }
+    }
+
+    /**
+     * Finds the pipe a process has open on a file descriptor, such as the
+     * stdout the framework reads.
+     *
+     * @param pid - the process id
+     * @param fd - the file descriptor
+     * @return the pipe's inode, or -1 if it is not a pipe or can not be read
+     */
+    static long pipe(final long pid, final int fd)
+    {
+        if (pid <= 0)
+        {
+            return -1;
+        }
+        try
+        {
+            final String link = Files.readSymbolicLink(
+                    Paths.get("/proc/" + pid + "/fd/" + fd)).toString();
+            if (link.startsWith(PIPE) && link.endsWith("]"))
+            {
+                return parse(link.substring(PIPE.length(),
+                            link.length() - 1));
+            }
+        }
+        catch (IOException|UnsupportedOperationException e)
+        {
+            LOG.debug("pipe: " + e.getMessage());
+        }
+        return -1;
+    }
+
+    /**
+     * Kills every other process that has a pipe open, and every process it
+     * started, such as the children a chunk's process left behind holding
+     * its stdout after it exited. Processes whose descriptors can not be
+     * read are left alone.
+     *
+     * @param inode - the pipe's inode
+     * @return the number of processes killed
+     */
+    static int killHolders(final long inode)
+    {
+        final File[] procs = new File("/proc").listFiles();
+        if (inode < 0 || procs == null)
+        {
+            return 0;
+        }
+        final String self = readSelf();
+        final String target = PIPE + inode + "]";
+        final Map<Long, List<Long>> children = children();
+        final List<Long> found = new ArrayList<Long>();
+        for (final File f : procs)
+        {
+            if (!f.getName().matches("[0-9]+") || f.getName().equals(self))
+            {
+                continue;
+            }
+            final File[] fds = new File(f, "fd").listFiles();
+            if (fds == null)
+            {
+                continue;
+            }
+            for (final File fd : fds)
+            {
+                try
+                {
+                    if (Files.readSymbolicLink(fd.toPath()).toString()
+                            .equals(target))
+                    {
+                        final long pid = Long.parseLong(f.getName());
+                        found.add(pid);
+                        found.addAll(descendants(pid, children));
+                        break;
+                    }
+                }
+                catch (IOException e)
+                {
+                    // Closed while looking
+                    continue;
+                }
+            }
+        }
+        kill(found);
+        return found.size();
+    }
+
+    /**
+     * @return the id of this process as /proc names it, or null
+     */
+    private static String readSelf()
+    {
+        try
+        {
+            return Files.readSymbolicLink(Paths.get("/proc/self")).toString();
+        }
+        catch (IOException|UnsupportedOperationException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Sends processes SIGKILL.
+     *
+     * @param pids - the process ids
+     * @return true iff kill was run
+     */
+    private static boolean kill(final List<Long> pids)
+    {
+        if (pids.isEmpty())
+        {
+            return true;
+        }
+        final List<String> commands = new ArrayList<String>();
+        commands.add("kill");
+        commands.add("-KILL");
+        for (final long pid : pids)
+        {
+            commands.add(Long.toString(pid));
+        }
+        try
+        {
+            new ProcessBuilder(commands).start().waitFor();
+            return true;
+        }
+        catch (IOException|InterruptedException e)
+        {
+            LOG.warn("kill: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Finds the processes started by a process, directly or not.
+     *
+     * @param pid - the process id
+     * @return the ids of its descendants
+     */
+    static List<Long> descendants(final long pid)
+    {
+        return descendants(pid, children());
+    }
+
+    /**
+     * Maps each process to the processes it started, so the trees of several
+     * processes can be found with one pass over <code>/proc</code>.
+     *
+     * @return the children of each process by process id
+     */
+    static Map<Long, List<Long>> children()
+    {
+        final Map<Long, List<Long>> children = new HashMap<Long, List<Long>>();
+        final File[] procs = new File("/proc").listFiles();
+        if (procs == null)
+        {
+            return children;
+        }
+        for (final File f : procs)
+        {
+            if (!f.getName().matches("[0-9]+"))
+            {
+                continue;
+            }
+            final long pid = Long.parseLong(f.getName());
+            final String[] fields = statFields(readLine(f + "/stat"));
+            if (fields == null)
+            {
+                continue;
+            }
+            final long parent = parse(fields[1]);
+            if (!children.containsKey(parent))
+            {
+                children.put(parent, new ArrayList<Long>());
+            }
+            children.get(parent).add(pid);
+        }
+        return children;
+    }
+
+    /**
+     * Finds the processes started by a process, directly or not.
+     *
+     * @param pid - the process id
+     * @param children - the children of each process
+     * @return the ids of its descendants
+     */
+    static List<Long> descendants(final long pid,
+            final Map<Long, List<Long>> children)
+    {
+        final List<Long> found = new ArrayList<Long>();
+        final LinkedList<Long> todo = new LinkedList<Long>();
+        todo.add(pid);
+        while (!todo.isEmpty())
+        {
+            final List<Long> next = children.get(todo.removeFirst());
+            if (next != null)
+            {
+                found.addAll(next);
+                todo.addAll(next);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Splits the fields of a /proc/[pid]/stat line that come after the name,
+     * so the state is at 0 and the parent at 1.
+     *
+     * @param stat - the line, or null
+     * @return the fields or null if there is no line
+     */
+    private static String[] statFields(final String stat)
+    {
+        if (stat == null)
+        {
+            return null;
+        }
+
+        // The name may hold spaces, so count the fields after it
+        return stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+    }
+
+    /**
+     * Reads a number from a line of a /proc file such as
+     * <code>MemAvailable:  5247888 kB</code>.
+     *
+     * @param file - the file
+     * @param name - the start of the line
+     * @return the number or -1
+     */
+    private static long readField(final String file, final String name)
+    {
+        try (final BufferedReader br = new BufferedReader(
+                    new FileReader(file)))
+        {
+            String line = br.readLine();
+            while (line != null)
+            {
+                if (line.startsWith(name))
+                {
+                    final String[] parts =
+                        line.substring(name.length()).trim().split("\\s+");
+                    return parse(parts[0]);
+                }
+                line = br.readLine();
+            }
+        }
+        catch (IOException e)
+        {
+            return -1;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads a number from a cgroup file of either cgroup version.
+     *
+     * @param controller - the v1 controller, such as memory
+     * @param v1 - the name of the file in cgroup v1
+     * @param v2 - the name of the file in cgroup v2, or null
+     * @return the number or -1
+     */
+    private static long cgroupValue(final String controller, final String v1,
+            final String v2)
+    {
+        String line = readLine(cgroupFile(controller, v1));
+        if (line == null && v2 != null)
+        {
+            line = readLine(cgroupFile(controller, v2));
+        }
+        if (line == null || line.equals("max"))
+        {
+            return -1;
+        }
+        return parse(line);
+    }
+
+    /**
+     * Finds a cgroup file for this process. Looks in the process's own
+     * cgroup first, then at the root, which is what a container sees.
+     *
+     * @param controller - the v1 controller, such as memory
+     * @param name - the name of the file
+     * @return the path of the file, or null if there is none
+     */
+    private static String cgroupFile(final String controller,
+            final String name)
+    {
+        String v1Path = "";
+        String v2Path = "";
+        try (final BufferedReader br = new BufferedReader(
+                    new FileReader("/proc/self/cgroup")))
+        {
+            String line = br.readLine();
+            while (line != null)
+            {
+                final String[] parts = line.split(":", 3);
+                if (parts.length == 3 && parts[0].equals("0"))
+                {
+                    v2Path = parts[2];
+                }
+                else if (parts.length == 3
+                        && (parts[1] + ",").contains(controller + ","))
+                {
+                    v1Path = parts[2];
+                }
+                line = br.readLine();
+            }
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+
+        final String[] candidates = {
+            CGROUP + "/" + controller + v1Path + "/" + name,
+            CGROUP + "/" + controller + "/" + name,
+            CGROUP + v2Path + "/" + name,
+            CGROUP + "/" + name,
+        };
+        for (final String c : candidates)
+        {
+            if (new File(c).isFile())
+            {
+                return c;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the first line of a file.
+     *
+     * @param file - the file, or null
+     * @return the line or null if it can not be read
+     */
+    private static String readLine(final String file)
+    {
+        if (file == null)
+        {
+            return null;
+        }
+        try (final BufferedReader br = new BufferedReader(
+                    new FileReader(file)))
+        {
+            final String line = br.readLine();
+            if (line == null)
+            {
+                return null;
+            }
+            return line.trim();
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Parses a number.
+     *
+     * @param s - the text
+     * @return the number or -1 if it is not one
+     */
+    private static long parse(final String s)
+    {
+        try
+        {
+            return Long.parseLong(s);
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package edu.unh.schwartz.epframework.worker;
+
+import edu.unh.schwartz.epframework.Chunk;
+import java.io.File;
+import java.io.InputStream;
+
+/**
+ * Decides where the stdout and stderr of a chunk's process go. Both go to
+ * the chunk's log in the logs directory, or, if stdout is the chunk's
+ * result, stdout goes straight to the out file and only stderr to the log.
+ */
+final class ProcessOutput
+{
+    /**
+     * The file descriptor of a process's stdout.
+     */
+    private static final int STDOUT = 1;
+
+    /**
+     * The file descriptor of a process's stderr.
+     */
+    private static final int STDERR = 2;
+
+    /**
+     * The directory the logs go in.
+     */
+    private final File dir;
+
+    /**
+     * The largest log in bytes before it is rotated, or 0 to throw the
+     * output away.
+     */
+    private final long cap;
+
+    /**
+     * The number of rotated logs kept.
+     */
+    private final int rotations;
+
+    /**
+     * Whether stdout is the chunk's result.
+     */
+    private final boolean stdoutResult;
+
+    /**
+     * Constructs the settings.
+     *
+     * @param dir - the directory the logs go in
+     * @param cap - the largest log in bytes before it is rotated, or 0 to
+     * throw the output away
+     * @param rotations - the number of rotated logs kept
+     * @param stdoutResult - true iff stdout is the chunk's result
+     */
+    ProcessOutput(final File dir, final long cap, final int rotations,
+            final boolean stdoutResult)
+    {
+        this.dir = dir;
+        this.cap = cap;
+        this.rotations = Math.max(0, rotations);
+        this.stdoutResult = stdoutResult;
+    }
+
+    /**
+     * Points a process's output at the chunk's out file or the drain, before
+     * it is started.
+     *
+     * @param pb - the process's builder
+     * @param c - the chunk
+     */
+    void redirect(final ProcessBuilder pb, final Chunk c)
+    {
+        if (this.stdoutResult)
+        {
+            pb.redirectOutput(new File(c.getOutFileName()));
+        }
+        else
+        {
+            pb.redirectErrorStream(true);
+        }
+    }
+
+    /**
+     * Makes the drain for a process that was just started.
+     *
+     * @param p - the process
+     * @param c - the chunk it runs
+     * @return the drain, not yet started
+     */
+    OutputDrain drain(final Process p, final Chunk c)
+    {
+        InputStream in = p.getInputStream();
+        int fd = STDOUT;
+        if (this.stdoutResult)
+        {
+            in = p.getErrorStream();
+            fd = STDERR;
+        }
+        File log = null;
+        if (this.cap > 0)
+        {
+            log = new File(this.dir, c.getName() + ".log");
+        }
+        return new OutputDrain(in, log, ProcFs.pipe(ProcFs.pid(p), fd),
+                this.cap, this.rotations);
+    }
+}
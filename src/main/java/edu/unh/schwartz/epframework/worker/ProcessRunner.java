@@ -0,0 +1,225 @@
+package edu.unh.schwartz.epframework.worker;
+
+import edu.unh.schwartz.epframework.Chunk;
+import edu.unh.schwartz.epframework.Trace;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Starts a new process for each chunk with the chunk's in and out files in
+ * place of the <code>@</code> and <code>$</code> arguments. A process that
+ * exits with an error fails its chunk.
+ */
+final class ProcessRunner implements ChunkRunner
+{
+    /**
+     * The path to the executable.
+     */
+    private final String exec;
+
+    /**
+     * The arguments for the executable.
+     */
+    private final String[] arguments;
+
+    /**
+     * Whether the Chunks need output files or output directories.
+     */
+    private final boolean outputDirs;
+
+    /**
+     * Watches the memory of the processes, or null.
+     */
+    private final AdmissionGate gate;
+
+    /**
+     * Measures what the processes use, or null.
+     */
+    private final ResourceMonitor monitor;
+
+    /**
+     * The command to put before the executable, such as one binding it to
+     * some CPUs.
+     */
+    private final List<String> launcher;
+
+    /**
+     * Where the processes' stdout and stderr go.
+     */
+    private final ProcessOutput output;
+
+    /**
+     * The chunk being run, or null.
+     */
+    private volatile Chunk current;
+
+    /**
+     * The process running the current chunk, or null.
+     */
+    private volatile Process proc;
+
+    /**
+     * Constructs a runner.
+     *
+     * @param exec - the path to the executable
+     * @param arguments - the arguments for the executable
+     * @param outputDirs - true iff output directories are supposed to be used
+     * @param gate - watches the memory of the processes, or null
+     * @param monitor - measures what the processes use, or null
+     * @param launcher - the command to put before the executable, if any
+     * @param output - where the processes' stdout and stderr go
+     */
+    ProcessRunner(final String exec, final String[] arguments,
+            final boolean outputDirs, final AdmissionGate gate,
+            final ResourceMonitor monitor, final List<String> launcher,
+            final ProcessOutput output)
+    {
+        this.output = output;
+        this.monitor = monitor;
+        this.launcher = launcher;
+        this.gate = gate;
+        this.exec = exec;
+        this.arguments = arguments;
+        this.outputDirs = outputDirs;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run(final Chunk c) throws IOException, InterruptedException
+    {
+        final ProcessBuilder pb = prepare(c);
+        ResourceMonitor.Usage usage = null;
+        if (this.monitor != null)
+        {
+            usage = this.monitor.prepare(pb);
+        }
+        final long spawn = Trace.now();
+        final Process p = pb.start();
+        Trace.record("spawn", c, spawn);
+        final OutputDrain drain = drain(p, c);
+        drain.start();
+        this.proc = p;
+        this.current = c;
+        if (this.gate != null)
+        {
+            this.gate.started(p);
+        }
+        if (usage != null)
+        {
+            this.monitor.watch(usage, p);
+        }
+        final int code;
+        final long start = Trace.now();
+        try
+        {
+            code = p.waitFor();
+            drain.finish();
+        }
+        finally
+        {
+            Trace.record("execute", c, start);
+            if (usage != null)
+            {
+                this.monitor.finish(usage, c);
+            }
+            this.current = null;
+            this.proc = null;
+            if (this.gate != null)
+            {
+                this.gate.finished(p);
+            }
+        }
+        if (code != 0)
+        {
+            throw new IOException(drain.withLog("exited with " + code));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void cancel(final Chunk c)
+    {
+        final Process p = this.proc;
+        if (this.current == c && p != null)
+        {
+            ProcFs.killTree(p);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+    {
+        // No-op
+    }
+
+    /**
+     * Gets a chunk ready for output and sets up its process, with its
+     * arguments, directory and output, but does not start it.
+     *
+     * @param c - the chunk
+     * @return the builder for the process
+     * @throws IOException if the out file can not be created
+     */
+    ProcessBuilder prepare(final Chunk c) throws IOException
+    {
+        c.createOutFile(this.outputDirs);
+        final ProcessBuilder pb = createProcess(c);
+        pb.directory(c.getDirectory());
+        this.output.redirect(pb, c);
+        return pb;
+    }
+
+    /**
+     * Makes the drain for a process that was just started.
+     *
+     * @param p - the process
+     * @param c - the chunk it runs
+     * @return the drain, not yet started
+     */
+    OutputDrain drain(final Process p, final Chunk c)
+    {
+        return this.output.drain(p, c);
+    }
+
+    /**
+     * Create the process.
+     * @param c - the chunk of work being done
+     */
+    private ProcessBuilder createProcess(final Chunk c)
+    {
+        // Get the location of the in and out files
+        final String in = c.getInFileName();
+        final String out = c.getOutFileName();
+
+        // Create the executable
+        final List<String> commands = new ArrayList<String>(this.launcher);
+        commands.add(this.exec);
+
+        // Add the arguments in
+        for (String a : this.arguments)
+        {
+            if (a.equals("@"))
+            {
+                commands.add(in);
+            }
+            else if (a.equals("$"))
+            {
+                commands.add(out);
+            }
+            else
+            {
+                commands.add(a);
+            }
+        }
+
+        return new ProcessBuilder(commands);
+    }
+}
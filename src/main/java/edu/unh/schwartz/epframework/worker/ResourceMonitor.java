@@ -0,0 +1,311 @@
+package edu.unh.schwartz.epframework.worker;
+
+import edu.unh.schwartz.epframework.Chunk;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Measures what each chunk's processes use, from <code>/proc</code>. A
+ * sampler thread reads the CPU time, resident set and IO of every process
+ * being watched and of the processes it started, and keeps the largest
+ * totals seen. The CPU time and IO of a process include the children it has
+ * waited for, so helpers that exit between samples are still counted.
+ *
+ * What a process does after the last sample would be missed, so a process
+ * started for a chunk is run under a small shell that waits for it and then
+ * copies its own <code>stat</code> and <code>io</code> files, which by then
+ * hold the process's whole CPU time and IO. The resident set can only be
+ * sampled.
+ */
+final class ResourceMonitor
+{
+    /**
+     * The Log.
+     */
+    private static final Log LOG = LogFactory.getLog(ResourceMonitor.class);
+
+    /**
+     * How often the processes are sampled in milliseconds.
+     */
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * The variable that tells the shell where to copy the files.
+     */
+    private static final String USAGE_VAR = "EPF_USAGE";
+
+    /**
+     * The shell that runs the command and copies its totals once it exits.
+     */
+    private static final List<String> WRAPPER = Arrays.asList("/bin/sh", "-c",
+            "\"$@\"; s=$?; cat /proc/$$/stat > \"$" + USAGE_VAR + ".stat\"; "
+            + "cat /proc/$$/io > \"$" + USAGE_VAR + "\"; exit $s", "sh");
+
+    /**
+     * The usages being measured.
+     */
+    private final Set<Usage> watched;
+
+    /**
+     * Constructs a monitor and starts its sampler.
+     */
+    ResourceMonitor()
+    {
+        this.watched = Collections.newSetFromMap(
+                new ConcurrentHashMap<Usage, Boolean>());
+        final Thread sampler = new Thread("ResourceSampler")
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    while (true)
+                    {
+                        sample();
+                        Thread.sleep(POLL_MILLIS);
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    LOG.debug("Resource sampler stopped");
+                }
+            }
+        };
+        sampler.setDaemon(true);
+        sampler.start();
+    }
+
+    /**
+     * Runs a process that is about to be started under the shell that
+     * copies its totals.
+     *
+     * @param pb - the process's builder
+     * @return the usage to pass to <code>watch</code>
+     * @throws IOException if the file for the totals can not be made
+     */
+    Usage prepare(final ProcessBuilder pb) throws IOException
+    {
+        final File account = File.createTempFile("epframework-usage", "");
+        // The builder may share its command with the runner, so make a new one
+        final List<String> command = new ArrayList<String>(WRAPPER);
+        command.addAll(pb.command());
+        pb.command(command);
+        pb.environment().put(USAGE_VAR, account.getPath());
+        return new Usage(account);
+    }
+
+    /**
+     * Starts measuring a process that was just started.
+     *
+     * @param u - the usage from <code>prepare</code>
+     * @param p - the process
+     */
+    void watch(final Usage u, final Process p)
+    {
+        u.start(ProcFs.pid(p));
+        this.watched.add(u);
+    }
+
+    /**
+     * Starts measuring what a running process uses from now on, such as a
+     * co-process about to be sent a chunk.
+     *
+     * @param p - the process
+     * @return the usage to pass to <code>finish</code>
+     */
+    Usage watchFromNow(final Process p)
+    {
+        final Usage u = new Usage(null);
+        u.start(ProcFs.pid(p));
+        this.watched.add(u);
+        return u;
+    }
+
+    /**
+     * Stops measuring and records the usage on a chunk.
+     *
+     * @param u - the usage
+     * @param c - the chunk the process ran
+     */
+    void finish(final Usage u, final Chunk c)
+    {
+        this.watched.remove(u);
+        u.finish();
+        u.record(c);
+    }
+
+    /**
+     * Samples every process being watched.
+     */
+    private void sample()
+    {
+        if (this.watched.isEmpty())
+        {
+            return;
+        }
+        final Map<Long, List<Long>> children = ProcFs.children();
+        for (final Usage u : this.watched)
+        {
+            u.sample(children);
+        }
+    }
+
+    /**
+     * The largest totals seen for a process and its descendants.
+     */
+    static final class Usage
+    {
+        /**
+         * The file the shell copies the totals to, or null if the process
+         * outlives the chunk.
+         */
+        private final File account;
+
+        /**
+         * The user and system CPU time, bytes read and bytes written at the
+         * first sample, if they do not count.
+         */
+        private final long[] base = new long[4];
+
+        /**
+         * The process id, or -1 until it is started.
+         */
+        private long pid = -1;
+
+        /**
+         * The largest user and system CPU time, bytes read and bytes written
+         * seen.
+         */
+        private final long[] max = new long[4];
+
+        /**
+         * The largest resident set seen in bytes.
+         */
+        private long peakRss;
+
+        /**
+         * Constructs a usage.
+         *
+         * @param account - the file the shell copies the totals to, or null
+         * if the process outlives the chunk and only what it uses from now on
+         * counts
+         */
+        Usage(final File account)
+        {
+            this.account = account;
+        }
+
+        /**
+         * Takes the first sample.
+         *
+         * @param p - the process id
+         */
+        synchronized void start(final long p)
+        {
+            this.pid = p;
+            sample(ProcFs.children());
+            if (this.account == null)
+            {
+                System.arraycopy(this.max, 0, this.base, 0, this.max.length);
+            }
+        }
+
+        /**
+         * Takes the totals from the shell once the process has exited, or
+         * samples a process that is still running once more.
+         */
+        synchronized void finish()
+        {
+            if (this.account == null)
+            {
+                sample(ProcFs.children());
+                return;
+            }
+
+            final File stat = new File(this.account.getPath() + ".stat");
+            final long[] cpu = ProcFs.cpuTime(stat.getPath());
+            final long[] io = ProcFs.io(this.account.getPath());
+            if (cpu != null)
+            {
+                this.max[0] = Math.max(this.max[0], cpu[0]);
+                this.max[1] = Math.max(this.max[1], cpu[1]);
+            }
+            if (io != null)
+            {
+                this.max[2] = Math.max(this.max[2], io[0]);
+                this.max[3] = Math.max(this.max[3], io[1]);
+            }
+            stat.delete();
+            this.account.delete();
+        }
+
+        /**
+         * Adds up the process and its descendants.
+         *
+         * @param children - the children of each process
+         */
+        synchronized void sample(final Map<Long, List<Long>> children)
+        {
+            if (this.pid < 0)
+            {
+                return;
+            }
+            final List<Long> tree = new ArrayList<Long>();
+            tree.add(this.pid);
+            tree.addAll(ProcFs.descendants(this.pid, children));
+
+            final long[] total = new long[4];
+            long rss = 0;
+            for (final long p : tree)
+            {
+                final long[] cpu = ProcFs.cpuTime(p);
+                final long[] io = ProcFs.io(p);
+                if (cpu != null)
+                {
+                    total[0] += cpu[0];
+                    total[1] += cpu[1];
+                }
+                if (io != null)
+                {
+                    total[2] += io[0];
+                    total[3] += io[1];
+                }
+                rss += Math.max(0, ProcFs.rss(p));
+                if (this.account != null)
+                {
+                    // The high water mark covers peaks between samples,
+                    // but only over the process's whole life
+                    rss = Math.max(rss, ProcFs.peakRss(p));
+                }
+            }
+
+            for (int i = 0; i < total.length; i++)
+            {
+                this.max[i] = Math.max(this.max[i], total[i]);
+            }
+            this.peakRss = Math.max(this.peakRss, rss);
+        }
+
+        /**
+         * Records the usage on a chunk.
+         *
+         * @param c - the chunk
+         */
+        synchronized void record(final Chunk c)
+        {
+            c.setUsage(this.max[0] - this.base[0], this.max[1] - this.base[1],
+                    this.peakRss, this.max[2] - this.base[2],
+                    this.max[3] - this.base[3]);
+        }
+    }
+}
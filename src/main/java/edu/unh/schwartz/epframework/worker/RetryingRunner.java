@@ -0,0 +1,252 @@
+package edu.unh.schwartz.epframework.worker;
+
+import edu.unh.schwartz.epframework.Chunk;
+import java.io.IOException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Wraps a runner to kill chunks that run too long and to run failed chunks
+ * again. A chunk fails when its process exits with an error, is killed for
+ * running too long, or can not be run at all. It is tried again after a pause
+ * that doubles each time, until it has been retried as often as allowed.
+ * A chunk cancelled from outside, such as by a winning backup, is not retried.
+ */
+final class RetryingRunner implements ChunkRunner
+{
+    /**
+     * The Log.
+     */
+    private static final Log LOG = LogFactory.getLog(RetryingRunner.class);
+
+    /**
+     * The runner that runs the chunks.
+     */
+    private final ChunkRunner runner;
+
+    /**
+     * How often a failed chunk is tried again.
+     */
+    private final int retries;
+
+    /**
+     * The pause before the first retry in milliseconds.
+     */
+    private final long backoff;
+
+    /**
+     * Decides how long a chunk may run, or null for no limit.
+     */
+    private final ChunkTimeouts timeouts;
+
+    /**
+     * The chunk that was cancelled from outside, or null.
+     */
+    private volatile Chunk cancelled;
+
+    /**
+     * True iff the last run was killed for taking too long.
+     */
+    private volatile boolean timedOut;
+
+    /**
+     * Constructs a runner.
+     *
+     * @param runner - the runner that runs the chunks
+     * @param retries - how often a failed chunk is tried again
+     * @param backoff - the pause before the first retry in milliseconds
+     * @param timeouts - decides how long a chunk may run, or null
+     */
+    RetryingRunner(final ChunkRunner runner, final int retries,
+            final long backoff, final ChunkTimeouts timeouts)
+    {
+        this.runner = runner;
+        this.retries = retries;
+        this.backoff = backoff;
+        this.timeouts = timeouts;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run(final Chunk c) throws IOException, InterruptedException
+    {
+        for (int attempt = 0; true; attempt++)
+        {
+            try
+            {
+                runOnce(c);
+                return;
+            }
+            catch (IOException e)
+            {
+                if (this.cancelled == c)
+                {
+                    throw e;
+                }
+                if (!canRetry(attempt))
+                {
+                    throw new IOException(failure(attempt, e.getMessage()), e);
+                }
+                LOG.warn("Chunk " + c.getName() + " failed (" + e.getMessage()
+                        + "), retrying in " + pause(attempt) + "ms");
+            }
+
+            Thread.sleep(pause(attempt));
+
+            // Cancelled while waiting, so the next try would be wasted
+            if (this.cancelled == c)
+            {
+                throw new IOException("chunk " + c.getName()
+                        + " was cancelled");
+            }
+            c.resetResult();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void cancel(final Chunk c)
+    {
+        this.cancelled = c;
+        this.runner.cancel(c);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+    {
+        this.runner.close();
+    }
+
+    /**
+     * Runs a chunk once, killing it if it runs past its limit.
+     *
+     * @param c - the chunk
+     * @throws IOException if the chunk failed or was killed
+     * @throws InterruptedException if interrupted while waiting on it
+     */
+    private void runOnce(final Chunk c)
+        throws IOException, InterruptedException
+    {
+        if (this.timeouts == null)
+        {
+            this.runner.run(c);
+            return;
+        }
+
+        this.timedOut = false;
+        final ChunkTimeouts.Watch watch = watch(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                timedOut = true;
+                runner.cancel(c);
+            }
+        });
+        final long start = System.currentTimeMillis();
+        try
+        {
+            this.runner.run(c);
+        }
+        catch (IOException e)
+        {
+            if (this.timedOut)
+            {
+                throw new IOException(killed(watch.getLimit()), e);
+            }
+            throw e;
+        }
+        finally
+        {
+            watch.cancel();
+        }
+        if (this.timedOut)
+        {
+            // The process died without its runner noticing
+            throw new IOException(killed(watch.getLimit()));
+        }
+        succeeded(System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Starts timing a chunk that was just started, so it is killed once it
+     * runs past its limit.
+     *
+     * @param kill - kills the chunk
+     * @return the watch, to cancel once the chunk is done, or null if chunks
+     * have no limit
+     */
+    ChunkTimeouts.Watch watch(final Runnable kill)
+    {
+        if (this.timeouts == null)
+        {
+            return null;
+        }
+        return this.timeouts.watch(kill);
+    }
+
+    /**
+     * Adds the runtime of a chunk that succeeded to the timeouts.
+     *
+     * @param runtime - the runtime in milliseconds
+     */
+    void succeeded(final long runtime)
+    {
+        if (this.timeouts != null)
+        {
+            this.timeouts.succeeded(runtime);
+        }
+    }
+
+    /**
+     * @param attempt - the number of times the chunk failed before its
+     * last run
+     * @return true iff a chunk whose last run failed is tried again
+     */
+    boolean canRetry(final int attempt)
+    {
+        return attempt < this.retries;
+    }
+
+    /**
+     * @param attempt - the number of times the chunk failed before its
+     * last run
+     * @return the pause before trying it again in milliseconds, doubling
+     * with each retry
+     */
+    long pause(final int attempt)
+    {
+        return this.backoff << attempt;
+    }
+
+    /**
+     * @param limit - the limit the chunk ran past in milliseconds
+     * @return why the chunk was killed
+     */
+    static String killed(final long limit)
+    {
+        return "killed after " + limit + "ms";
+    }
+
+    /**
+     * @param attempt - the number of times the chunk failed before its
+     * last run
+     * @param message - why the last run failed
+     * @return why the chunk failed for good
+     */
+    static String failure(final int attempt, final String message)
+    {
+        if (attempt == 0)
+        {
+            return message;
+        }
+        return "failed " + (attempt + 1) + " times, last: " + message;
+    }
+}
@@ -0,0 +1,369 @@
+package edu.unh.schwartz.epframework.worker;
+
+import edu.unh.schwartz.epframework.Chunk;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs backups of straggling chunks at the end of a run, as MapReduce does.
+ * Once the scheduler is empty, a worker with nothing to do takes the chunk
+ * that has been running longest and runs it again in a directory of its own.
+ * Only chunks that have run longer than the average chunk are backed up, and
+ * each only once. Whichever run succeeds first wins and the other one is
+ * killed. A run that fails leaves the chunk to the other, so the chunk only
+ * fails once both have. A winning backup's result is renamed over the
+ * original's once the original's process is gone, so the result is never
+ * written by both.
+ */
+final class Speculator
+{
+    /**
+     * The Log.
+     */
+    private static final Log LOG = LogFactory.getLog(Speculator.class);
+
+    /**
+     * How often an idle worker looks for a straggler, in milliseconds.
+     */
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * The chunks being run, oldest first.
+     */
+    private final Map<Chunk, Attempt> running;
+
+    /**
+     * The number of chunks finished.
+     */
+    private long finished;
+
+    /**
+     * The sum of the runtimes of the chunks finished, in milliseconds.
+     */
+    private long totalTime;
+
+    /**
+     * The number of backups that won.
+     */
+    private int won;
+
+    /**
+     * Constructs a speculator.
+     */
+    Speculator()
+    {
+        this.running = new LinkedHashMap<Chunk, Attempt>();
+    }
+
+    /**
+     * Tells the speculator a worker started a chunk.
+     *
+     * @param c - the chunk
+     * @param runner - the runner running it
+     */
+    synchronized void started(final Chunk c, final ChunkRunner runner)
+    {
+        this.running.put(c, new Attempt(c, runner));
+    }
+
+    /**
+     * Tells the speculator a worker's run of a chunk returned. Kills the
+     * backup if this run won. A run that failed while the backup is still
+     * running leaves the chunk to the backup.
+     *
+     * @param c - the chunk
+     * @param failure - why the run failed, or null if it succeeded
+     * @return true iff this run decides the chunk and its result or failure
+     * should be used
+     */
+    synchronized boolean originalDone(final Chunk c,
+            final IOException failure)
+    {
+        final Attempt a = this.running.get(c);
+        a.originalDone = true;
+        notifyAll();
+        if (a.claimed)
+        {
+            return false;
+        }
+        if (failure != null && a.backup != null && !a.backupFailed)
+        {
+            // The backup may still succeed
+            a.failure = failure;
+            return false;
+        }
+
+        a.claimed = true;
+        this.running.remove(c);
+        record(System.currentTimeMillis() - a.start);
+        if (a.backup != null)
+        {
+            a.backupRunner.cancel(a.backup);
+        }
+        return true;
+    }
+
+    /**
+     * Waits for a chunk worth backing up and makes a copy of it to run.
+     *
+     * @param runner - the runner that will run the backup
+     * @return the attempt with its backup chunk, or null once nothing is left
+     * running
+     * @throws InterruptedException if interrupted while waiting
+     */
+    Attempt straggler(final ChunkRunner runner) throws InterruptedException
+    {
+        while (true)
+        {
+            final Attempt a;
+            synchronized (this)
+            {
+                if (this.running.isEmpty())
+                {
+                    return null;
+                }
+                a = pick();
+                if (a == null)
+                {
+                    wait(POLL_MILLIS);
+                    continue;
+                }
+                a.backup = new Chunk(a.chunk.getName() + "-backup",
+                        new File(a.chunk.getDirectory().getPath() + "-backup"));
+                a.backup.setIndex(a.chunk.getIndex());
+                a.backupRunner = runner;
+            }
+
+            try
+            {
+                copyContent(a.chunk, a.backup);
+                return a;
+            }
+            catch (IOException e)
+            {
+                // Such as when the original just finished and dropped its
+                // content, so there is nothing to back up
+                LOG.debug("straggler: " + e.getMessage());
+                a.backup.clean();
+            }
+        }
+    }
+
+    /**
+     * Tells the speculator a backup returned. If it won, kills the original
+     * and waits for its run to return before moving the result over.
+     *
+     * @param a - the attempt
+     * @param runtime - the time the backup took in milliseconds
+     * @return true iff the backup won and the original holds its result
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean backupDone(final Attempt a, final long runtime)
+        throws InterruptedException
+    {
+        synchronized (this)
+        {
+            if (a.claimed)
+            {
+                return false;
+            }
+            a.claimed = true;
+            a.runner.cancel(a.chunk);
+            while (!a.originalDone)
+            {
+                wait();
+            }
+            this.running.remove(a.chunk);
+            record(runtime);
+            this.won++;
+        }
+
+        try
+        {
+            a.chunk.takeResult(a.backup);
+            a.chunk.setRuntime(runtime);
+            LOG.info("The backup of chunk " + a.chunk.getName() + " won");
+            return true;
+        }
+        catch (IOException e)
+        {
+            LOG.error("backupDone: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Tells the speculator a backup failed. If the original has failed too,
+     * the chunk has failed.
+     *
+     * @param a - the attempt
+     * @return why the original failed if the chunk has failed, or null if
+     * the original is still running or already decided the chunk
+     */
+    synchronized IOException backupFailed(final Attempt a)
+    {
+        a.backupFailed = true;
+        if (a.claimed || a.failure == null)
+        {
+            return null;
+        }
+        a.claimed = true;
+        this.running.remove(a.chunk);
+        return a.failure;
+    }
+
+    /**
+     * @return the number of backups that finished first
+     */
+    synchronized int getWon()
+    {
+        return this.won;
+    }
+
+    /**
+     * Finds the chunk that has run longest, if it has run longer than the
+     * average and has no backup yet.
+     *
+     * @return the attempt or null
+     */
+    private Attempt pick()
+    {
+        if (this.finished == 0)
+        {
+            return null;
+        }
+        final long now = System.currentTimeMillis();
+        final long average = this.totalTime / this.finished;
+        for (final Attempt a : this.running.values())
+        {
+            // The oldest come first
+            if (a.backup == null && !a.claimed && now - a.start > average)
+            {
+                return a;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a runtime to the average.
+     *
+     * @param runtime - the runtime in milliseconds
+     */
+    private void record(final long runtime)
+    {
+        this.finished++;
+        this.totalTime += runtime;
+    }
+
+    /**
+     * Copies the content of a chunk into the in file of its backup.
+     *
+     * @param from - the chunk
+     * @param to - the backup
+     * @throws IOException if the content can not be copied
+     */
+    private static void copyContent(final Chunk from, final Chunk to)
+        throws IOException
+    {
+        to.getDirectory().mkdirs();
+        try (final InputStream in = from.openInput();
+            final OutputStream out = new FileOutputStream(to.getInFileName()))
+        {
+            final byte[] buf = new byte[64 * 1024];
+            int n = in.read(buf);
+            while (n >= 0)
+            {
+                out.write(buf, 0, n);
+                n = in.read(buf);
+            }
+        }
+    }
+
+    /**
+     * A chunk being run and its backup, if it has one.
+     */
+    static final class Attempt
+    {
+        /**
+         * The chunk.
+         */
+        private final Chunk chunk;
+
+        /**
+         * The runner running the chunk.
+         */
+        private final ChunkRunner runner;
+
+        /**
+         * When the chunk was started.
+         */
+        private final long start;
+
+        /**
+         * The copy of the chunk for the backup, or null.
+         */
+        private Chunk backup;
+
+        /**
+         * The runner running the backup, or null.
+         */
+        private ChunkRunner backupRunner;
+
+        /**
+         * True once one of the runs has won.
+         */
+        private boolean claimed;
+
+        /**
+         * True once the original run has returned.
+         */
+        private boolean originalDone;
+
+        /**
+         * Why the original run failed while the backup was running, or null.
+         */
+        private IOException failure;
+
+        /**
+         * True once the backup has failed.
+         */
+        private boolean backupFailed;
+
+        /**
+         * Constructs an attempt.
+         *
+         * @param chunk - the chunk
+         * @param runner - the runner running it
+         */
+        Attempt(final Chunk chunk, final ChunkRunner runner)
+        {
+            this.chunk = chunk;
+            this.runner = runner;
+            this.start = System.currentTimeMillis();
+        }
+
+        /**
+         * @return the chunk
+         */
+        Chunk getChunk()
+        {
+            return this.chunk;
+        }
+
+        /**
+         * @return the copy of the chunk for the backup
+         */
+        Chunk getBackup()
+        {
+            return this.backup;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package edu.unh.schwartz.epframework.worker;
+
+import edu.unh.schwartz.epframework.Chunk;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Gives every <code>Worker</code> its own deque of chunks instead of one shared
+ * queue. The splitter deals the chunks out in contiguous blocks, each worker
+ * takes from the head of its own deque, and a worker whose deque is empty
+ * steals from the tail of the others. Taking and stealing are lock-free; the
+ * lock is only used to park workers when there is nothing to take at all.
+ *
+ * Chunks keep their input order within a deque, so the cost ordering of
+ * <code>ChunkQueue</code> does not apply here.
+ */
+public final class WorkStealingScheduler implements ChunkScheduler
+{
+    /**
+     * How long an idle worker parks before looking for work again, in
+     * milliseconds.
+     */
+    private static final long PARK_MILLIS = 10;
+
+    /**
+     * The deque of each worker.
+     */
+    private final List<ConcurrentLinkedDeque<Chunk>> deques;
+
+    /**
+     * The number of chunks dealt to a deque before moving to the next one.
+     */
+    private final int blockSize;
+
+    /**
+     * Limits the number of chunks waiting.
+     */
+    private final Semaphore room;
+
+    /**
+     * The number of chunks waiting.
+     */
+    private final AtomicInteger waiting;
+
+    /**
+     * The number of workers parked with nothing to take.
+     */
+    private final AtomicInteger parked;
+
+    /**
+     * Guards parking.
+     */
+    private final ReentrantLock lock;
+
+    /**
+     * Signalled when chunks are added or the scheduler is closed.
+     */
+    private final Condition ready;
+
+    /**
+     * True once the producer has no more chunks to add.
+     */
+    private volatile boolean closed;
+
+    /**
+     * The deque the next chunk is dealt to.
+     */
+    private int target;
+
+    /**
+     * The number of chunks dealt to the target deque so far.
+     */
+    private int dealt;
+
+    /**
+     * Constructs an empty scheduler.
+     *
+     * @param workers - the number of workers
+     * @param blockSize - the number of chunks dealt to a worker at a time
+     * @param capacity - the most chunks that can be waiting at once
+     */
+    public WorkStealingScheduler(final int workers, final int blockSize,
+            final int capacity)
+    {
+        this.deques = new ArrayList<ConcurrentLinkedDeque<Chunk>>();
+        for (int i = 0; i < Math.max(1, workers); i++)
+        {
+            this.deques.add(new ConcurrentLinkedDeque<Chunk>());
+        }
+        this.blockSize = Math.max(1, blockSize);
+        this.room = new Semaphore(Math.max(1, capacity));
+        this.waiting = new AtomicInteger();
+        this.parked = new AtomicInteger();
+        this.lock = new ReentrantLock();
+        this.ready = this.lock.newCondition();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(final Chunk c) throws InterruptedException
+    {
+        this.room.acquire();
+
+        // Deal the chunks out in contiguous blocks
+        this.waiting.incrementAndGet();
+        this.deques.get(this.target).addLast(c);
+        this.dealt++;
+        if (this.dealt == this.blockSize)
+        {
+            this.dealt = 0;
+            this.target = (this.target + 1) % this.deques.size();
+        }
+
+        if (this.parked.get() > 0)
+        {
+            wake();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Chunk take(final int worker) throws InterruptedException
+    {
+        final int own = worker % this.deques.size();
+        Chunk c = poll(own);
+        while (c == null && !(this.closed && this.waiting.get() == 0))
+        {
+            park();
+            c = poll(own);
+        }
+        return c;
+    }
+
+    /**
+     * Takes from the head of a worker's own deque, or steals from the tail of
+     * another one.
+     *
+     * @param own - the index of the worker's deque
+     * @return a chunk or null if every deque was empty
+     */
+    private Chunk poll(final int own)
+    {
+        Chunk c = this.deques.get(own).pollFirst();
+        for (int i = 1; c == null && i < this.deques.size(); i++)
+        {
+            c = this.deques.get((own + i) % this.deques.size()).pollLast();
+        }
+
+        if (c != null)
+        {
+            this.waiting.decrementAndGet();
+            this.room.release();
+        }
+        return c;
+    }
+
+    /**
+     * Waits until a chunk may be ready. Wakes up on its own after a short
+     * time in case a signal was missed.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private void park() throws InterruptedException
+    {
+        this.lock.lockInterruptibly();
+        try
+        {
+            this.parked.incrementAndGet();
+            if (this.waiting.get() == 0 && !this.closed)
+            {
+                this.ready.await(PARK_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+        finally
+        {
+            this.parked.decrementAndGet();
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Wakes up the parked workers.
+     */
+    private void wake()
+    {
+        this.lock.lock();
+        try
+        {
+            this.ready.signalAll();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close()
+    {
+        this.closed = true;
+        wake();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size()
+    {
+        return this.waiting.get();
+    }
+}
@@ -1,9 +1,10 @@
 package edu.unh.schwartz.epframework.worker;
 
 import edu.unh.schwartz.epframework.Chunk;
+import edu.unh.schwartz.epframework.Trace;
+import java.io.File;
 import java.io.IOException;
-import java.util.concurrent.PriorityBlockingQueue;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import org.apache.commons.logging.Log; 
 import org.apache.commons.logging.LogFactory;
@@ -30,6 +31,62 @@ public final class Worker extends Thread
      */
     private static boolean outputDirs;
 
+    /**
+     * Whether the chunks are piped through stdin and stdout.
+     */
+    private static boolean pipe;
+
+    /**
+     * The largest result in bytes kept in memory in pipe mode.
+     */
+    private static long spillSize;
+
+    /**
+     * Whether each worker keeps one process running for all of its chunks.
+     */
+    private static boolean coprocess;
+
+    /**
+     * Holds back new processes while the machine is short of memory or CPU,
+     * or null.
+     */
+    private static AdmissionGate gate;
+
+    /**
+     * Runs backups of the slowest chunks at the end of the run, or null.
+     */
+    private static Speculator speculator;
+
+    /**
+     * The live metrics published over JMX, or null.
+     */
+    private static PoolMetrics metrics;
+
+    /**
+     * Measures what each chunk's processes use, or null.
+     */
+    private static ResourceMonitor monitor;
+
+    /**
+     * Where the processes' stdout and stderr go.
+     */
+    private static ProcessOutput output;
+
+    /**
+     * How often a failed chunk is tried again.
+     */
+    private static int retries;
+
+    /**
+     * The pause before the first retry in milliseconds.
+     */
+    private static long retryBackoff;
+
+    /**
+     * Decides how long a chunk may run, or null for no limit.
+     */
+    private static ChunkTimeouts timeouts;
+
     /**
      * The Log.
      */
@@ -38,7 +95,27 @@ public final class Worker extends Thread
     /**
      * The queue of pieces to do work on.
      */
-    private PriorityBlockingQueue<Chunk> queue;
+    private ChunkScheduler queue;
+
+    /**
+     * The listeners to tell about finished chunks.
+     */
+    private List<ChunkListener> listeners;
+
+    /**
+     * Runs the executable on the chunks.
+     */
+    private ChunkRunner runner;
+
+    /**
+     * Limits how many workers run a chunk at once.
+     */
+    private ConcurrencyLimit limit;
+
+    /**
+     * The CPUs this worker's processes are bound to, or null.
+     */
+    private CpuTopology.Slot slot;
     
     /**
      * The id number of this worker.
@@ -55,16 +132,38 @@ public final class Worker extends Thread
      */
     private int chunksRun;
 
+    /**
+     * The number of records run by this worker.
+     */
+    private long recordsRun;
+
     /**
      * Creates a worker.
      *
      * @param idNum - the id number of this worker
      * @param queue - the queue for the worker to take chunks from
+     * @param listeners - the listeners to tell about finished chunks
+     * @param limit - limits how many workers run a chunk at once
+     * @param slot - the CPUs to bind the processes to, or null
      */
-    public Worker(final int idNum, final PriorityBlockingQueue<Chunk> queue)
+    Worker(final int idNum, final ChunkScheduler queue,
+            final List<ChunkListener> listeners, final ConcurrencyLimit limit,
+            final CpuTopology.Slot slot)
     {
+        super("Worker-" + idNum);
         this.queue = queue;
+        this.listeners = listeners;
+        this.limit = limit;
+        this.slot = slot;
         this.idNum = idNum;
+        if (slot == null)
+        {
+            this.runner = createRunner(Collections.<String>emptyList());
+        }
+        else
+        {
+            this.runner = createRunner(slot.getLauncher());
+        }
         this.runTime = 0;
         this.chunksRun = 0;
     }
@@ -78,6 +177,12 @@ public final class Worker extends Thread
     {
         LOG.debug("setExecutable: " + e);
         exec = e;
+        if (e.contains(File.separator))
+        {
+            // The process runs in the chunk's directory, so a relative path
+            // would no longer resolve
+            exec = new File(e).getAbsolutePath();
+        }
     }
     
     /**
@@ -101,36 +206,46 @@ public final class Worker extends Thread
         outputDirs = dirs;
     }
 
+    /**
+     * Set whether the chunks are piped through the executable's stdin and
+     * stdout instead of in and out files.
+     *
+     * @param p - true iff the chunks should be piped
+     * @param spill - the largest result in bytes to keep in memory
+     */
+    public static void setPipeMode(final boolean p, final long spill)
+    {
+        pipe = p;
+        spillSize = spill;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void run()
     {
-        // Until we run out of chunks
-        while (this.queue.size() != 0)
+        // Until the splitter is done and the queue is empty
+        Chunk c = nextChunk();
+        while (c != null)
         {
-            // Grab a chunk and get it ready for output
-            final Chunk c = this.queue.poll();
-            c.createOutFile(outputDirs);
-
             try
             {
-                // Create the process
-                final ProcessBuilder pb = createProcess(c);
-                pb.redirectErrorStream(true);
-
-                // Start the work and capture the time it takes to run
-                LOG.info("Starting chunk " + c.getName() + " on Worker " + 
-                        this.idNum);
-                final long start = System.currentTimeMillis();
-                final Process proc = pb.start();
-                proc.waitFor();
-                final long end = System.currentTimeMillis();
-                c.setRuntime(end - start);
-                runTime += (end - start);
-                LOG.info("Finished chunk " + c.getName()+ "(Worker " + 
-                        this.idNum + ") in " + (end - start));
+                if (gate != null)
+                {
+                    gate.admit();
+                }
+                try
+                {
+                    runChunk(c);
+                }
+                finally
+                {
+                    if (gate != null)
+                    {
+                        gate.done();
+                    }
+                }
             }
             catch (InterruptedException|IOException e)
             {
@@ -138,42 +253,337 @@ public final class Worker extends Thread
             }
 
             this.chunksRun++;
+            this.limit.release();
+            c = nextChunk();
         }
+
+        // Help out with the chunks still running
+        try
+        {
+            while (speculator != null && runBackup())
+            {
+                continue;
+            }
+        }
+        catch (InterruptedException e)
+        {
+            LOG.error("run: " + e.getMessage());
+        }
+        this.runner.close();
         LOG.info("Worker " + this.idNum + " has finished");
     }
     
     /**
-     * Create the process.
-     * @param c - the chunk of work being done
+     * Runs a chunk and tells the listeners once it is done.
+     *
+     * @param c - the chunk
+     * @throws IOException if the process can not be started or its IO fails
+     * @throws InterruptedException if interrupted while waiting on the process
+     */
+    private void runChunk(final Chunk c) 
+        throws IOException, InterruptedException
+    {
+        // Start the work and capture the time it takes to run
+        LOG.info("Starting chunk " + c.getName() + " on Worker " + 
+                this.idNum);
+        final long start = System.currentTimeMillis();
+        if (speculator != null)
+        {
+            speculator.started(c, this.runner);
+        }
+        if (metrics != null)
+        {
+            metrics.started(this.idNum);
+        }
+        IOException failure = null;
+        boolean won = true;
+        final long traced = Trace.now();
+        try
+        {
+            this.runner.run(c);
+        }
+        catch (IOException e)
+        {
+            failure = e;
+        }
+        finally
+        {
+            Trace.record("chunk", c, traced);
+            if (metrics != null)
+            {
+                metrics.ended(this.idNum);
+            }
+            if (speculator != null)
+            {
+                won = speculator.originalDone(c, failure);
+            }
+        }
+        if (!won)
+        {
+            LOG.info("Chunk " + c.getName() + " is left to its backup");
+            return;
+        }
+        else if (failure != null)
+        {
+            failed(c, failure);
+            return;
+        }
+        final long end = System.currentTimeMillis();
+        c.setRuntime(end - start);
+        runTime += (end - start);
+        recordsRun += c.getRecords();
+        LOG.info("Finished chunk " + c.getName()+ "(Worker " + 
+                this.idNum + ") in " + (end - start));
+
+        for (final ChunkListener l : this.listeners)
+        {
+            l.chunkFinished(c);
+        }
+    }
+
+    /**
+     * Records a chunk that failed for good, so it is left out of the merge,
+     * and tells the listeners.
+     *
+     * @param c - the chunk
+     * @param e - why it failed
+     */
+    private void failed(final Chunk c, final IOException e)
+    {
+        LOG.error("Chunk " + c.getName() + " failed: " + e.getMessage());
+        c.setFailure(e.getMessage());
+        c.dropContent();
+        for (final ChunkListener l : this.listeners)
+        {
+            l.chunkFailed(c);
+        }
+    }
+
+    /**
+     * Runs a backup of the chunk that has been running longest, once there
+     * is one worth backing up.
+     *
+     * @return false once no chunks are left running
+     * @throws InterruptedException if interrupted while waiting
      */
-    private ProcessBuilder createProcess(final Chunk c)
+    private boolean runBackup() throws InterruptedException
     {
-        // Get the location of the in and out files
-        final String in = c.getInFileName();
-        final String out = c.getOutFileName();
+        final Speculator.Attempt a = speculator.straggler(this.runner);
+        if (a == null)
+        {
+            return false;
+        }
 
-        // Create the executable
-        final List<String> commands = new ArrayList<String>();
-        commands.add(exec);
-        
-        // Add the arguments in
-        for (String a : arguments)
+        final Chunk b = a.getBackup();
+        LOG.info("Starting a backup of chunk " + a.getChunk().getName()
+                + " on Worker " + this.idNum);
+        this.limit.acquire();
+        if (metrics != null)
         {
-            if (a.equals("@"))
+            metrics.started(this.idNum);
+        }
+        final long start = System.currentTimeMillis();
+        final long traced = Trace.now();
+        boolean succeeded = false;
+        try
+        {
+            this.runner.run(b);
+            succeeded = true;
+        }
+        catch (IOException e)
+        {
+            // Such as when it was killed because the original won; a backup
+            // that failed leaves the chunk to the original
+            LOG.debug("runBackup: " + e.getMessage());
+        }
+        finally
+        {
+            Trace.record("backup", a.getChunk(), traced);
+            if (metrics != null)
             {
-                commands.add(in);
+                metrics.ended(this.idNum);
             }
-            else if (a.equals("$"))
+            this.limit.release();
+        }
+
+        final long time = System.currentTimeMillis() - start;
+        final Chunk c = a.getChunk();
+        if (succeeded && speculator.backupDone(a, time))
+        {
+            runTime += time;
+            recordsRun += c.getRecords();
+            for (final ChunkListener l : this.listeners)
+            {
+                l.chunkFinished(c);
+            }
+        }
+        else if (!succeeded)
+        {
+            // If the original failed first, the chunk failed both times
+            final IOException failure = speculator.backupFailed(a);
+            if (failure != null)
+            {
+                failed(c, failure);
+            }
+        }
+        b.clean();
+        return true;
+    }
+
+    /**
+     * Waits until this worker may run and then for the next chunk from the
+     * splitter.
+     *
+     * @return the next chunk or null if there is no more work
+     */
+    private Chunk nextChunk()
+    {
+        try
+        {
+            this.limit.acquire();
+            final Chunk c = this.queue.take(this.idNum);
+            if (c == null)
             {
-                commands.add(out);
+                this.limit.release();
             }
             else
             {
-                commands.add(a);
+                Trace.taken(c);
             }
+            return c;
+        }
+        catch (InterruptedException e)
+        {
+            LOG.error("nextChunk: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Set whether each worker keeps one process running and sends it the
+     * chunks one at a time.
+     *
+     * @param c - true iff a long-lived process should be used
+     */
+    public static void setCoprocessMode(final boolean c)
+    {
+        coprocess = c;
+    }
+
+    /**
+     * Set the gate that holds back new processes while the machine is short
+     * of memory or CPU.
+     *
+     * @param g - the gate, or null to start processes right away
+     */
+    static void setAdmissionGate(final AdmissionGate g)
+    {
+        gate = g;
+    }
+
+    /**
+     * Set the speculator that runs backups of the slowest chunks once the
+     * scheduler is empty.
+     *
+     * @param s - the speculator, or null to not run backups
+     */
+    static void setSpeculator(final Speculator s)
+    {
+        speculator = s;
+    }
+
+    /**
+     * Set the metrics the workers keep up to date while they run chunks.
+     *
+     * @param m - the metrics, or null to not keep any
+     */
+    static void setMetrics(final PoolMetrics m)
+    {
+        metrics = m;
+    }
+
+    /**
+     * Set the monitor that measures what each chunk's processes use. Has to
+     * be set before the workers are made.
+     *
+     * @param m - the monitor, or null to not measure
+     */
+    static void setResourceMonitor(final ResourceMonitor m)
+    {
+        monitor = m;
+    }
+
+    /**
+     * Set where the processes' stdout and stderr go. Has to be set before the
+     * workers are made.
+     *
+     * @param o - where the output goes
+     */
+    static void setProcessOutput(final ProcessOutput o)
+    {
+        output = o;
+    }
+
+    /**
+     * Set how failed chunks are retried and how long a chunk may run.
+     *
+     * @param r - how often a failed chunk is tried again
+     * @param backoff - the pause before the first retry in milliseconds
+     * @param t - decides how long a chunk may run, or null for no limit
+     */
+    static void setRetries(final int r, final long backoff,
+            final ChunkTimeouts t)
+    {
+        retries = r;
+        retryBackoff = backoff;
+        timeouts = t;
+    }
+
+    /**
+     * Creates the runner for the execution mode that was set.
+     *
+     * @param launcher - the command to put before the executable
+     * @return the runner
+     */
+    static ChunkRunner createRunner(final List<String> launcher)
+    {
+        final ChunkRunner runner;
+        if (coprocess)
+        {
+            runner = new CoprocessRunner(exec, arguments, outputDirs, gate,
+                    monitor, launcher);
         }
+        else if (pipe)
+        {
+            runner = new PipeRunner(exec, arguments, spillSize, gate, monitor,
+                    launcher);
+        }
+        else
+        {
+            runner = new ProcessRunner(exec, arguments, outputDirs, gate,
+                    monitor, launcher, output);
+        }
+        return new RetryingRunner(runner, retries, retryBackoff, timeouts);
+    }
 
-        return new ProcessBuilder(commands);
+    /**
+     * Creates an engine that runs the chunks with the executable that was set
+     * without a worker thread for each.
+     *
+     * @param queue - the scheduler to take the chunks from
+     * @param listeners - the listeners to tell about finished chunks
+     * @param concurrency - the number of chunks that may run at once
+     * @return the engine
+     */
+    static AsyncEngine createEngine(final ChunkScheduler queue,
+            final List<ChunkListener> listeners, final int concurrency)
+    {
+        final ProcessRunner starter = new ProcessRunner(exec, arguments,
+                outputDirs, gate, monitor, Collections.<String>emptyList(),
+                output);
+        return new AsyncEngine(queue, listeners, concurrency, starter,
+                new RetryingRunner(starter, retries, retryBackoff, timeouts),
+                gate, monitor);
     }
 
     /**
@@ -191,4 +601,21 @@ public final class Worker extends Thread
     {
         return this.chunksRun;
     }
+
+    /**
+     * @return the number of records run by this thread
+     */
+    public long getRecordsRun()
+    {
+        return this.recordsRun;
+    }
+
+    /**
+     * @return the CPUs this worker's processes are bound to, or null if they
+     * are not bound
+     */
+    CpuTopology.Slot getSlot()
+    {
+        return this.slot;
+    }
 }
@@ -2,7 +2,10 @@ package edu.unh.schwartz.epframework.worker;
 
 import edu.unh.schwartz.epframework.Chunk;
 import edu.unh.schwartz.epframework.config.Configuration;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import org.apache.commons.logging.Log; 
 import org.apache.commons.logging.LogFactory;
 
@@ -21,40 +24,254 @@ public final class WorkerPool
      */
     private Worker[] workers;
 
+    /**
+     * The listeners to tell about finished chunks.
+     */
+    private List<ChunkListener> listeners;
+
+    /**
+     * Limits how many workers run a chunk at once.
+     */
+    private ConcurrencyLimit limit;
+
+    /**
+     * Tunes the limit in auto mode, or null.
+     */
+    private ConcurrencyController controller;
+
+    /**
+     * Holds back new processes while the machine is short, or null.
+     */
+    private AdmissionGate gate;
+
+    /**
+     * Hands chunks to agents on other machines, or null.
+     */
+    private Coordinator coordinator;
+
+    /**
+     * Runs backups of the slowest chunks, or null.
+     */
+    private Speculator speculator;
+
+    /**
+     * The live metrics published over JMX, or null.
+     */
+    private PoolMetrics metrics;
+
+    /**
+     * Runs the chunks without a worker thread each in async mode, or null.
+     */
+    private AsyncEngine engine;
+
     /**
      * Constructs the workers.
      *
      * @param config - information for the run
-     * @param chunks - the work for the workers
+     * @param chunks - the queue the splitter feeds the work through
      */
-    public WorkerPool(final Configuration config, 
-        final PriorityBlockingQueue<Chunk> chunks)
+    public WorkerPool(final Configuration config, final ChunkScheduler chunks)
     {
         // Set the executable information in the worker
         Worker.setExecutable(config.getExecutable());
         Worker.setArguments(config.getArguments());
         Worker.setOutputDirs(config.getOutputSetting());
+        Worker.setPipeMode(config.usePipeMode(), config.getSpillSize());
+        Worker.setCoprocessMode(config.useCoprocessMode());
+        if (config.useAdmission())
+        {
+            gate = new AdmissionGate(config.getAdmitMinFreeMemory(),
+                    config.getAdmitMaxLoad());
+        }
+        Worker.setAdmissionGate(gate);
+        if (config.useSpeculation() && !config.useAsyncMode())
+        {
+            speculator = new Speculator();
+        }
+        Worker.setSpeculator(speculator);
+        ChunkTimeouts timeouts = null;
+        if (config.getTimeoutFactor() > 0)
+        {
+            timeouts = new ChunkTimeouts(config.getTimeoutFactor(),
+                    config.getMinTimeout());
+        }
+        Worker.setRetries(config.getRetries(), config.getRetryBackoff(),
+                timeouts);
+        ResourceMonitor monitor = null;
+        if (config.useAccounting())
+        {
+            monitor = new ResourceMonitor();
+        }
+        Worker.setResourceMonitor(monitor);
+
+        // Drain each process's output into its chunk's log
+        boolean stdoutResult = config.useStdoutResult();
+        if (stdoutResult && (config.getOutputSetting()
+                    || config.usePipeMode() || config.useCoprocessMode()))
+        {
+            LOG.error("stdoutResult needs out files; ignoring it");
+            stdoutResult = false;
+        }
+        Worker.setProcessOutput(new ProcessOutput(
+                    new File(config.getOutputDirectory(), "logs"),
+                    config.getLogSize(), config.getLogRotations(),
+                    stdoutResult));
 
         // Initialize the threads
-        workers = new Worker[config.getNumberOfThreads()];
+        listeners = new CopyOnWriteArrayList<ChunkListener>();
+        workers = new Worker[config.getPoolSize()];
+        if (config.useAsyncMode())
+        {
+            // The pool size is only a limit on the processes; no workers
+            if (config.usePipeMode() || config.useCoprocessMode()
+                    || config.useSpeculation() || config.useAutoThreads()
+                    || config.usePinning())
+            {
+                LOG.error("asyncMode only runs processes on in and out files;"
+                        + " ignoring pipeMode, coprocessMode, speculative,"
+                        + " autoThreads and pinning");
+            }
+            engine = Worker.createEngine(chunks, listeners, workers.length);
+            workers = new Worker[0];
+            limit = new ConcurrencyLimit(0);
+        }
+        else if (config.useAutoThreads())
+        {
+            // Start near the number of cores and tune from there
+            limit = new ConcurrencyLimit(Math.min(workers.length,
+                        Runtime.getRuntime().availableProcessors()));
+            controller = new ConcurrencyController(limit, workers.length,
+                    config.getAutoInterval());
+            listeners.add(controller);
+        }
+        else
+        {
+            limit = new ConcurrencyLimit(workers.length);
+        }
+
+        // Give each worker its own CPUs if asked to
+        CpuTopology.Slot[] slots = new CpuTopology.Slot[workers.length];
+        if (config.usePinning() && engine == null)
+        {
+            final CpuTopology topology = CpuTopology.read();
+            if (topology != null)
+            {
+                slots = topology.assign(workers.length);
+                LOG.info("Pinning " + workers.length + " workers on "
+                        + topology.getNodes() + " NUMA nodes");
+            }
+        }
         for (int i = 0; i < workers.length; i++)
         {
-            workers[i] = new Worker(i, chunks);
+            workers[i] = new Worker(i, chunks, listeners, limit, slots[i]);
+        }
+
+        // Let JMX tools watch the run
+        if (config.useJmx())
+        {
+            // The engine's chunks are told apart by the slot they run in,
+            // and there is room for the worker that runs the chunks of lost
+            // agents
+            int running = workers.length;
+            if (engine != null)
+            {
+                running = engine.getConcurrency();
+            }
+            metrics = new PoolMetrics(chunks, Math.max(1, running));
+            listeners.add(metrics);
+        }
+        Worker.setMetrics(metrics);
+        if (engine != null)
+        {
+            engine.setMetrics(metrics);
+        }
+
+        // Let agents on other machines help. Output directories can not be
+        // sent back, so they are run here only.
+        if (config.getCoordinatorPort() > 0 && config.getOutputSetting())
+        {
+            LOG.error("Agents can not be used with output directories");
+        }
+        else if (config.getCoordinatorPort() > 0)
+        {
+            try
+            {
+                coordinator = new Coordinator(config.getCoordinatorPort(),
+                        chunks, listeners, workers.length, config);
+            }
+            catch (IOException e)
+            {
+                LOG.error("WorkerPool: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Adds a listener that is told each time a worker finishes a chunk.
+     *
+     * @param l - the listener
+     */
+    public void addListener(final ChunkListener l)
+    {
+        listeners.add(l);
+    }
+
+    /**
+     * Tells the pool how much memory the executable needed in earlier runs,
+     * so it does not start too many processes before it has seen one.
+     *
+     * @param peak - the peak resident set in bytes, or 0 if it is not known
+     */
+    public void setPeakRss(final long peak)
+    {
+        if (gate != null)
+        {
+            gate.raisePeak(peak);
+        }
+    }
+
+    /**
+     * @return the peak resident set of the executable seen in this run in
+     * bytes, or 0 if it was not measured
+     */
+    public long getPeakRss()
+    {
+        if (gate == null)
+        {
+            return 0;
         }
+        return gate.getPeak();
     }
 
     /**
-     * Start the workers.
+     * Start the workers and wait for them to finish. The workers stop once the
+     * queue has been closed by the splitter and emptied.
      */
     public void start()
     {
+        if (metrics != null)
+        {
+            metrics.register();
+        }
         for (int i = 0; i < workers.length; i++)
         {
             workers[i].start();
         }
+        if (controller != null)
+        {
+            controller.start();
+        }
+        if (coordinator != null)
+        {
+            coordinator.start();
+        }
 
         try
         {
+            if (engine != null)
+            {
+                engine.run();
+            }
             for (int i = 0; i < workers.length; i++)
             {
                 workers[i].join();
@@ -66,9 +283,71 @@ public final class WorkerPool
             System.exit(1);
         }
 
+        if (controller != null)
+        {
+            controller.interrupt();
+        }
+
+        // Wait for the chunks still out with the agents
+        if (coordinator != null)
+        {
+            if (workers.length > 0 || engine != null)
+            {
+                coordinator.exhausted();
+            }
+            final List<Chunk> left = coordinator.finish();
+            if (!left.isEmpty())
+            {
+                runLeftovers(left);
+            }
+        }
+
+        if (speculator != null)
+        {
+            LOG.info(speculator.getWon() + " backups finished first");
+        }
+        if (metrics != null)
+        {
+            metrics.unregister();
+        }
         LOG.info("Workers finished");
     }
 
+    /**
+     * Runs the chunks of lost agents that no agent was left to take on a
+     * worker of their own, now that the other workers are done. If they can
+     * not be handed to it, they fail.
+     *
+     * @param left - the chunks
+     */
+    private void runLeftovers(final List<Chunk> left)
+    {
+        final ChunkQueue queue = new ChunkQueue(left.size());
+        try
+        {
+            for (final Chunk c : left)
+            {
+                queue.put(c);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            LOG.error("runLeftovers: " + e.getMessage());
+            for (final Chunk c : left)
+            {
+                c.setFailure("agent lost");
+                c.dropContent();
+                for (final ChunkListener l : listeners)
+                {
+                    l.chunkFailed(c);
+                }
+            }
+            return;
+        }
+        queue.close();
+        new Worker(0, queue, listeners, new ConcurrencyLimit(1), null).run();
+    }
+
     /**
      * @return the statistics for the <code>Worker</code> in a csv table
      */
@@ -76,16 +355,66 @@ public final class WorkerPool
     {
         // Print the stats
         final StringBuilder sb = new StringBuilder();
-        sb.append("Thread #,Runtime(ms),Chunks Run,Avg Time Per Chunk(ms)\n");
+        sb.append("Thread #,Runtime(ms),Chunks Run,Avg Time Per Chunk(ms),");
+        sb.append("Records,Records/s,CPUs,Node\n");
         final String comma = ",";
         for (int i = 0; i < workers.length; i++)
         {
             final long runtime = workers[i].getRunTime();
             final int chunks = workers[i].getChunksRun();
             sb.append(i).append(comma).append(runtime).append(comma);
-            sb.append(chunks).append(comma).append(runtime / chunks);
+            sb.append(chunks).append(comma);
+            if (chunks > 0)
+            {
+                sb.append(runtime / chunks);
+            }
+            else
+            {
+                sb.append(0);
+            }
+
+            // The throughput of the slot, to compare pinned and unpinned runs
+            final long records = workers[i].getRecordsRun();
+            sb.append(comma).append(records).append(comma);
+            if (runtime > 0)
+            {
+                sb.append(records * 1000 / runtime);
+            }
+            else
+            {
+                sb.append(0);
+            }
+            sb.append(comma);
+            final CpuTopology.Slot slot = workers[i].getSlot();
+            if (slot != null)
+            {
+                sb.append('"').append(slot).append('"').append(comma);
+                sb.append(slot.getNode());
+            }
+            else
+            {
+                sb.append(comma);
+            }
             sb.append('\n');
         }
+        if (engine != null)
+        {
+            // The engine has no threads of its own, so it is one row
+            final long runtime = engine.getRunTime();
+            final int chunks = engine.getChunksRun();
+            sb.append("async").append(comma).append(runtime).append(comma);
+            sb.append(chunks).append(comma);
+            if (chunks > 0)
+            {
+                sb.append(runtime / chunks);
+            }
+            else
+            {
+                sb.append(0);
+            }
+            sb.append(comma).append(engine.getRecordsRun()).append(comma);
+            sb.append(comma).append(comma).append('\n');
+        }
         sb.append('\n');
         return sb.toString();
     }
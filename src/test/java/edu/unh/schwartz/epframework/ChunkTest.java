@@ -0,0 +1,115 @@
+package edu.unh.schwartz.epframework;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks that results are merged with the same bytes whether they are copied
+ * as they are or line by line, from the out file or from memory.
+ */
+public class ChunkTest
+{
+    /**
+     * Results with every kind of line ending.
+     */
+    private static final String[] RESULTS = {
+        "a\nb\nc\n",
+        "a\nb\nc",
+        "a\r\nb\r\nc\r\n",
+        "a\r\nb\nc\rd",
+        "h1\r\nh2\r\na\r\n",
+        "\r\n\r\n",
+        "",
+    };
+
+    /**
+     * Holds the chunks.
+     */
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    /**
+     * Puts the number of header lines back.
+     */
+    @After
+    public void noHeader()
+    {
+        Chunk.setHeaderLines(0);
+    }
+
+    /**
+     * A result in the out file is merged as the line reader would merge it.
+     *
+     * @throws Exception if a chunk can not be set up
+     */
+    @Test
+    public void outFileMatchesLines() throws Exception
+    {
+        for (int header = 0; header <= 2; header++)
+        {
+            Chunk.setHeaderLines(header);
+            for (int i = 0; i < RESULTS.length; i++)
+            {
+                final Chunk c = new Chunk("out" + header + i,
+                        this.tmp.newFolder("out" + header + i));
+                Runs.write(new File(c.getOutFileName()), RESULTS[i]);
+                assertEquals(c.getResult(), transfer(c));
+            }
+        }
+    }
+
+    /**
+     * A result kept in memory is merged as the line reader would merge it.
+     *
+     * @throws Exception if a chunk can not be set up
+     */
+    @Test
+    public void keptResultMatchesLines() throws Exception
+    {
+        for (int header = 0; header <= 2; header++)
+        {
+            Chunk.setHeaderLines(header);
+            for (int i = 0; i < RESULTS.length; i++)
+            {
+                final Chunk c = new Chunk("kept" + header + i,
+                        this.tmp.newFolder("kept" + header + i));
+                c.setOutput(RESULTS[i].getBytes(StandardCharsets.UTF_8));
+                assertEquals(c.getResult(), transfer(c));
+            }
+        }
+    }
+
+    /**
+     * A result with "\r\n" line endings is merged with "\n" ones.
+     *
+     * @throws Exception if the chunk can not be set up
+     */
+    @Test
+    public void crlfIsNormalised() throws Exception
+    {
+        final Chunk c = new Chunk("crlf", this.tmp.newFolder("crlf"));
+        Runs.write(new File(c.getOutFileName()), "a\r\nb\r\n");
+        assertEquals("a\nb\n", transfer(c));
+    }
+
+    /**
+     * @param c - a chunk that was run
+     * @return what <code>transferResult</code> writes for it
+     * @throws IOException if the result can not be read
+     */
+    private static String transfer(final Chunk c) throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        c.transferResult(Channels.newChannel(out));
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,146 @@
+package edu.unh.schwartz.epframework;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Interrupts runs by failing a chunk, which keeps the journal, and runs them
+ * again to check that only the chunks that did not finish are run.
+ */
+public class JournalTest
+{
+    /**
+     * Holds the input, executable and output.
+     */
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    /**
+     * A run picked up from its journal runs only the chunk that failed, and
+     * removes the journal once it is merged.
+     *
+     * @throws Exception if a run can not be set up
+     */
+    @Test(timeout = 60000)
+    public void resumeRunsOnlyUnfinishedChunks() throws Exception
+    {
+        final File in = Runs.records(this.tmp.newFile("in.txt"), 20);
+        final File out = this.tmp.newFolder("out");
+        final File runs = this.tmp.newFolder("runs");
+        final File fail = this.tmp.newFile("fail");
+        final Map<String, Object> settings =
+            Runs.settings(in, out, failing(runs, fail, 3));
+        settings.put("journal", true);
+
+        String output = Runs.run(this.tmp.newFile("first.json"), settings);
+        assertFalse(output.contains(">rec3\n"));
+        assertEquals(20, runs.list().length);
+        assertTrue(new File(out, "journal").exists());
+
+        assertTrue(fail.delete());
+        clear(runs);
+        output = Runs.run(this.tmp.newFile("second.json"), settings);
+        assertEquals(Runs.read(in), output);
+        assertEquals(1, runs.list().length);
+        assertFalse(new File(out, "journal").exists());
+    }
+
+    /**
+     * The chunks given the result of another chunk with the same content are
+     * journaled as done with that chunk's out file, so a resumed run does not
+     * run them either.
+     *
+     * @throws Exception if a run can not be set up
+     */
+    @Test(timeout = 60000)
+    public void sharedResultsAreJournaled() throws Exception
+    {
+        // Each record three times, then the one that fails
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 15; i++)
+        {
+            sb.append(">rec").append(i % 5).append("\nACGT\n\n");
+        }
+        sb.append(">rec5\nACGT\n\n");
+        final File in = this.tmp.newFile("in.txt");
+        Runs.write(in, sb.toString());
+        final File out = this.tmp.newFolder("out");
+        final File runs = this.tmp.newFolder("runs");
+        final File fail = this.tmp.newFile("fail");
+        final Map<String, Object> settings =
+            Runs.settings(in, out, failing(runs, fail, 5));
+        settings.put("journal", true);
+        settings.put("deduplicate", true);
+        settings.put("numProcesses", 1);
+
+        Runs.run(this.tmp.newFile("first.json"), settings);
+        assertEquals(6, runs.list().length);
+
+        // Every chunk but the one that failed is done, those with the same
+        // content with the same out file
+        final Map<Integer, String> done = new HashMap<Integer, String>();
+        for (final String line
+                : Runs.read(new File(out, "journal")).split("\n"))
+        {
+            final String[] parts = line.split(" ", 5);
+            if (parts[0].equals("done"))
+            {
+                done.put(Integer.valueOf(parts[1]), parts[4]);
+            }
+        }
+        assertEquals(15, done.size());
+        for (int i = 5; i < 15; i++)
+        {
+            assertEquals(done.get(i % 5), done.get(i));
+        }
+
+        assertTrue(fail.delete());
+        clear(runs);
+        final String output = Runs.run(this.tmp.newFile("second.json"),
+                settings);
+        assertEquals(Runs.read(in), output);
+        assertEquals(1, runs.list().length);
+    }
+
+    /**
+     * Makes an executable that leaves a file for each run and fails on a
+     * record while a file exists.
+     *
+     * @param runs - the directory the runs leave their files in
+     * @param fail - the file that makes it fail
+     * @param record - the number of the record it fails on
+     * @return the executable
+     * @throws Exception if it can not be written
+     */
+    private File failing(final File runs, final File fail, final int record)
+        throws Exception
+    {
+        return Runs.script(this.tmp.newFile("failing.sh"),
+                "touch \"" + runs.getAbsolutePath() + "/$$\"\n"
+                + "if [ -e \"" + fail.getAbsolutePath() + "\" ]"
+                + " && grep -qx '>rec" + record + "' \"$1\"\n"
+                + "then\n"
+                + "    exit 1\n"
+                + "fi\n"
+                + "cp \"$1\" \"$2\"\n");
+    }
+
+    /**
+     * @param dir - a directory to empty
+     */
+    private static void clear(final File dir)
+    {
+        for (final File f : dir.listFiles())
+        {
+            f.delete();
+        }
+    }
+}
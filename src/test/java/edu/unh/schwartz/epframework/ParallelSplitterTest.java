@@ -0,0 +1,117 @@
+package edu.unh.schwartz.epframework;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Splits the same input with the parallel splitter and the serial one and
+ * checks that they make the same chunks. Each chunk's result is its input
+ * after a marker line, so the merged output shows where the chunks were cut.
+ */
+public class ParallelSplitterTest
+{
+    /**
+     * The number of records, enough for the input to be scanned in several
+     * byte ranges.
+     */
+    private static final int RECORDS = 80000;
+
+    /**
+     * The line each chunk's result starts with.
+     */
+    private static final String MARKER = "[chunk]\n";
+
+    /**
+     * Holds the input, executable and output.
+     */
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    /**
+     * Batching by a number of records gives the same chunks, with characters
+     * of more than one byte.
+     *
+     * @throws Exception if a run can not be set up
+     */
+    @Test(timeout = 120000)
+    public void sameChunksByRecords() throws Exception
+    {
+        assertSameChunks(1500, 0, "ACGT\u00e9\u00df\u20ac");
+    }
+
+    /**
+     * Batching by a number of bytes gives the same chunks. The sizes are
+     * taken in the default charset, so the records are kept to ASCII.
+     *
+     * @throws Exception if a run can not be set up
+     */
+    @Test(timeout = 120000)
+    public void sameChunksByBytes() throws Exception
+    {
+        assertSameChunks(RECORDS, 65536, "ACGT");
+    }
+
+    /**
+     * Runs the input through both splitters and compares the outputs.
+     *
+     * @param records - the number of records per chunk
+     * @param bytes - the target size of a chunk in bytes, or 0
+     * @param sequence - the start of the second line of each record
+     * @throws Exception if a run can not be set up
+     */
+    private void assertSameChunks(final int records, final int bytes,
+            final String sequence) throws Exception
+    {
+        // Records with CRLF line ends
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < RECORDS; i++)
+        {
+            sb.append(">rec").append(i).append("\r\n");
+            sb.append(sequence).append(i).append("ACGT\r\n\r\n");
+        }
+        final File in = this.tmp.newFile("in.txt");
+        Runs.write(in, sb.toString());
+        final File exec = Runs.script(this.tmp.newFile("mark.sh"),
+                "{ printf '[chunk]\\n'; cat \"$1\"; } > \"$2\"\n");
+
+        final Map<String, Object> settings =
+            Runs.settings(in, this.tmp.newFolder("serial"), exec);
+        settings.put("recordsPerChunk", records);
+        settings.put("chunkSize", bytes);
+        final String serial = Runs.run(this.tmp.newFile("serial.json"),
+                settings);
+
+        settings.put("outFile", this.tmp.newFolder("parallel")
+                .getAbsolutePath());
+        settings.put("parallelSplit", true);
+        final String parallel = Runs.run(this.tmp.newFile("parallel.json"),
+                settings);
+
+        assertTrue(count(serial, MARKER) > 10);
+        assertEquals(RECORDS, count(serial, ">rec"));
+        assertEquals(serial, parallel);
+    }
+
+    /**
+     * @param s - a string
+     * @param part - a part of it
+     * @return the number of times the part is found in the string
+     */
+    private static int count(final String s, final String part)
+    {
+        int n = 0;
+        int i = s.indexOf(part);
+        while (i >= 0)
+        {
+            n++;
+            i = s.indexOf(part, i + part.length());
+        }
+        return n;
+    }
+}
@@ -0,0 +1,106 @@
+package edu.unh.schwartz.epframework;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs the same input twice with a cache directory and checks that the
+ * second run takes its results from the cache, except for the chunks whose
+ * content changed.
+ */
+public class ResultCacheTest
+{
+    /**
+     * The number of records, one per chunk.
+     */
+    private static final int RECORDS = 10;
+
+    /**
+     * Holds the input, executable, cache and output.
+     */
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    /**
+     * A second run of the same input runs no chunks.
+     *
+     * @throws Exception if a run can not be set up
+     */
+    @Test(timeout = 60000)
+    public void sameInputHits() throws Exception
+    {
+        final File in = Runs.records(this.tmp.newFile("in.txt"), RECORDS);
+        final File runs = this.tmp.newFolder("runs");
+        final Map<String, Object> settings = settings(in, runs);
+
+        assertEquals(Runs.read(in),
+                Runs.run(this.tmp.newFile("first.json"), settings));
+        assertEquals(RECORDS, runs.list().length);
+
+        clear(runs);
+        settings.put("outFile", this.tmp.newFolder("again").getAbsolutePath());
+        assertEquals(Runs.read(in),
+                Runs.run(this.tmp.newFile("second.json"), settings));
+        assertEquals(0, runs.list().length);
+    }
+
+    /**
+     * A chunk whose content changed misses and is run, while the others are
+     * still taken from the cache.
+     *
+     * @throws Exception if a run can not be set up
+     */
+    @Test(timeout = 60000)
+    public void changedChunkMisses() throws Exception
+    {
+        final File in = Runs.records(this.tmp.newFile("in.txt"), RECORDS);
+        final File runs = this.tmp.newFolder("runs");
+        final Map<String, Object> settings = settings(in, runs);
+        Runs.run(this.tmp.newFile("first.json"), settings);
+
+        clear(runs);
+        Runs.write(in, Runs.read(in).replace("ACGT3ACGT", "TTTT3TTTT"));
+        settings.put("outFile", this.tmp.newFolder("again").getAbsolutePath());
+        assertEquals(Runs.read(in),
+                Runs.run(this.tmp.newFile("second.json"), settings));
+        assertEquals(1, runs.list().length);
+    }
+
+    /**
+     * Makes the settings for a cached run whose executable leaves a file for
+     * each chunk it runs.
+     *
+     * @param in - the input file
+     * @param runs - the directory the runs leave their files in
+     * @return the settings
+     * @throws Exception if the executable can not be written
+     */
+    private Map<String, Object> settings(final File in, final File runs)
+        throws Exception
+    {
+        final File exec = Runs.script(this.tmp.newFile("counted.sh"),
+                "touch \"" + runs.getAbsolutePath() + "/$$\"\n"
+                + "cp \"$1\" \"$2\"\n");
+        final Map<String, Object> settings =
+            Runs.settings(in, this.tmp.newFolder("out"), exec);
+        settings.put("resultCache", true);
+        settings.put("cacheDir", this.tmp.newFolder("cache").getAbsolutePath());
+        return settings;
+    }
+
+    /**
+     * @param dir - a directory to empty
+     */
+    private static void clear(final File dir)
+    {
+        for (final File f : dir.listFiles())
+        {
+            f.delete();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package edu.unh.schwartz.epframework;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Helps the tests run the framework from end to end: writes executables
+ * and configuration files and runs them as the command line would.
+ */
+public final class Runs
+{
+    /**
+     * Not instantiable.
+     */
+    private Runs()
+    {
+    }
+
+    /**
+     * Makes the settings for a run that splits on blank lines and merges
+     * the results in order, to be changed by the test.
+     *
+     * @param in - the input file
+     * @param out - the output directory
+     * @param exec - the executable, called with the in and out files
+     * @return the settings
+     */
+    public static Map<String, Object> settings(final File in, final File out,
+            final File exec)
+    {
+        final Map<String, Object> settings =
+            new LinkedHashMap<String, Object>();
+        settings.put("inFile", in.getAbsolutePath());
+        settings.put("split", "^$");
+        settings.put("outFile", out.getAbsolutePath());
+        settings.put("execLoc", exec.getAbsolutePath());
+        settings.put("argument", "@ $");
+        settings.put("numProcesses", 4);
+        settings.put("numHeaderLines", 0);
+        settings.put("stats", false);
+        settings.put("defaultMerge", true);
+        settings.put("customMerge", false);
+        settings.put("externalMerge", false);
+        settings.put("outputFmt", false);
+        return settings;
+    }
+
+    /**
+     * Writes the settings to a configuration file and runs it.
+     *
+     * @param config - the configuration file to write
+     * @param settings - the settings
+     * @return the merged output
+     * @throws IOException if the configuration or output can not be read or
+     * written
+     */
+    public static String run(final File config,
+            final Map<String, Object> settings) throws IOException
+    {
+        final StringBuilder sb = new StringBuilder("{");
+        String comma = "";
+        for (final Map.Entry<String, Object> e : settings.entrySet())
+        {
+            sb.append(comma).append(quote(e.getKey())).append(": ");
+            if (e.getValue() instanceof String)
+            {
+                sb.append(quote((String) e.getValue()));
+            }
+            else
+            {
+                sb.append(e.getValue());
+            }
+            comma = ", ";
+        }
+        sb.append("}");
+        write(config, sb.toString());
+
+        EPFramework.main(new String[] {config.getAbsolutePath()});
+        return read(new File((String) settings.get("outFile"), "output"));
+    }
+
+    /**
+     * Writes an executable shell script.
+     *
+     * @param f - the file
+     * @param body - the commands, after the #! line
+     * @return the file
+     * @throws IOException if it can not be written
+     */
+    public static File script(final File f, final String body)
+        throws IOException
+    {
+        write(f, "#!/bin/sh\n" + body);
+        if (!f.setExecutable(true))
+        {
+            throw new IOException("can not make " + f + " executable");
+        }
+        return f;
+    }
+
+    /**
+     * Makes an input of records split by blank lines.
+     *
+     * @param f - the file
+     * @param records - the number of records
+     * @return the file
+     * @throws IOException if it can not be written
+     */
+    public static File records(final File f, final int records)
+        throws IOException
+    {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < records; i++)
+        {
+            sb.append(">rec").append(i).append('\n');
+            sb.append("ACGT").append(i).append("ACGT\n\n");
+        }
+        write(f, sb.toString());
+        return f;
+    }
+
+    /**
+     * @param f - a file
+     * @param content - what to write to it
+     * @throws IOException if it can not be written
+     */
+    public static void write(final File f, final String content)
+        throws IOException
+    {
+        Files.write(f.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param f - a file
+     * @return the content of the file
+     * @throws IOException if it can not be read
+     */
+    public static String read(final File f) throws IOException
+    {
+        return new String(Files.readAllBytes(f.toPath()),
+                StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param s - a string
+     * @return the string as a JSON string
+     */
+    private static String quote(final String s)
+    {
+        return "\"" + s.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
@@ -0,0 +1,60 @@
+package edu.unh.schwartz.epframework;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks where the runtime models are kept.
+ */
+public class RuntimeModelTest
+{
+    /**
+     * Holds the input, output and home directory.
+     */
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    /**
+     * A run that names no model directory keeps its model in the output
+     * directory and writes nothing to the home directory.
+     *
+     * @throws Exception if the run can not be set up
+     */
+    @Test(timeout = 60000)
+    public void modelIsKeptWithTheOutput() throws Exception
+    {
+        final File in = Runs.records(this.tmp.newFile("in.txt"), 10);
+        final File out = this.tmp.newFolder("out");
+        final File exec = Runs.script(this.tmp.newFile("cp.sh"),
+                "cp \"$1\" \"$2\"\n");
+        final File home = this.tmp.newFolder("home");
+        final String user = System.getProperty("user.home");
+        System.setProperty("user.home", home.getAbsolutePath());
+        try
+        {
+            Runs.run(this.tmp.newFile("config.json"),
+                    Runs.settings(in, out, exec));
+        }
+        finally
+        {
+            System.setProperty("user.home", user);
+        }
+
+        assertEquals(0, home.list().length);
+        int models = 0;
+        for (final String name : out.list())
+        {
+            if (name.startsWith("model-") && name.endsWith(".json"))
+            {
+                models++;
+            }
+        }
+        assertEquals(1, models);
+        assertTrue(new File(out, "output").exists());
+    }
+}
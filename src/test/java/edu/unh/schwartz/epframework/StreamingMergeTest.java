@@ -0,0 +1,102 @@
+package edu.unh.schwartz.epframework;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Merges the results while the chunks are still running and checks that the
+ * output is in input order and has a single header.
+ */
+public class StreamingMergeTest
+{
+    /**
+     * The number of records, one per chunk.
+     */
+    private static final int RECORDS = 20;
+
+    /**
+     * Holds the input, executable and output.
+     */
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    /**
+     * Chunks that finish before the ones ahead of them are held until those
+     * are written.
+     *
+     * @throws Exception if the run can not be set up
+     */
+    @Test(timeout = 60000)
+    public void resultsInInputOrder() throws Exception
+    {
+        final File in = Runs.records(this.tmp.newFile("in.txt"), RECORDS);
+        final File exec = Runs.script(this.tmp.newFile("backwards.sh"),
+                number()
+                + "sleep 0.$((9 - n % 10))\n"
+                + "cp \"$1\" \"$2\"\n");
+
+        final String output = Runs.run(this.tmp.newFile("config.json"),
+                settings(in, exec));
+
+        assertEquals(Runs.read(in), output);
+    }
+
+    /**
+     * The header is written once, taken from a chunk that succeeded when the
+     * first chunk failed.
+     *
+     * @throws Exception if the run can not be set up
+     */
+    @Test(timeout = 60000)
+    public void headerWrittenOnce() throws Exception
+    {
+        final File in = Runs.records(this.tmp.newFile("in.txt"), RECORDS);
+        final File exec = Runs.script(this.tmp.newFile("header.sh"),
+                number()
+                + "if [ \"$n\" = 0 ]\n"
+                + "then\n"
+                + "    exit 1\n"
+                + "fi\n"
+                + "{ echo '# header'; cat \"$1\"; } > \"$2\"\n");
+        final Map<String, Object> settings = settings(in, exec);
+        settings.put("numHeaderLines", 1);
+
+        final String output = Runs.run(this.tmp.newFile("config.json"),
+                settings);
+
+        final String input = Runs.read(in);
+        assertEquals("# header\n" + input.substring(input.indexOf(">rec1\n")),
+                output);
+    }
+
+    /**
+     * @return the commands that set n to the number of the chunk's record
+     */
+    private static String number()
+    {
+        return "n=$(sed -n 's/^>rec//p' \"$1\")\n";
+    }
+
+    /**
+     * Makes the settings for a streaming merge.
+     *
+     * @param in - the input file
+     * @param exec - the executable
+     * @return the settings
+     * @throws Exception if the output directory can not be made
+     */
+    private Map<String, Object> settings(final File in, final File exec)
+        throws Exception
+    {
+        final Map<String, Object> settings =
+            Runs.settings(in, this.tmp.newFolder("out"), exec);
+        settings.put("defaultMerge", false);
+        settings.put("streamingMerge", true);
+        return settings;
+    }
+}
@@ -0,0 +1,184 @@
+package edu.unh.schwartz.epframework.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import edu.unh.schwartz.epframework.Runs;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs a coordinator with two agents on this machine and loses both of them
+ * part-way, one while the other can take its chunks and then the other, so
+ * its chunks are run by the coordinator. The merged output has to be the same
+ * as that of a local run.
+ */
+public class CoordinatorTest
+{
+    /**
+     * The number of records, one per chunk.
+     */
+    private static final int RECORDS = 40;
+
+    /**
+     * The address the coordinator listens on.
+     */
+    private static final String LOCALHOST = "127.0.0.1";
+
+    /**
+     * Holds the input, executable and output.
+     */
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    /**
+     * The merged output of a run whose agents are lost matches a local run.
+     *
+     * @throws Exception if a run can not be set up
+     */
+    @Test(timeout = 120000)
+    public void lostAgentsMatchLocalRun() throws Exception
+    {
+        final File in = Runs.records(this.tmp.newFile("in.txt"), RECORDS);
+        final File started = this.tmp.newFolder("started");
+        final File exec = Runs.script(this.tmp.newFile("slow.sh"),
+                "touch \"" + started.getAbsolutePath() + "/$$\"\n"
+                + "sleep 0.2\n"
+                + "cp \"$1\" \"$2\"\n");
+
+        final int port = freePort();
+        final Map<String, Object> settings =
+            Runs.settings(in, this.tmp.newFolder("out"), exec);
+        settings.put("numProcesses", 1);
+        settings.put("coordinatorPort", port);
+        settings.put("coordinatorBind", LOCALHOST);
+        final File config = this.tmp.newFile("coordinator.json");
+        final String[] merged = new String[1];
+        final Exception[] error = new Exception[1];
+        final Thread coordinator = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    merged[0] = Runs.run(config, settings);
+                }
+                catch (IOException e)
+                {
+                    error[0] = e;
+                }
+            }
+        };
+        coordinator.start();
+        awaitListening(port);
+
+        final Process first = agent(port, "first");
+        final Process second = agent(port, "second");
+        awaitStarted(started, RECORDS / 4);
+        ProcFs.killTree(second);
+        awaitStarted(started, RECORDS / 2);
+        ProcFs.killTree(first);
+        first.waitFor();
+        second.waitFor();
+        coordinator.join();
+        final String local = Runs.run(this.tmp.newFile("local.json"),
+                Runs.settings(in, this.tmp.newFolder("local"), exec));
+
+        assertNull(error[0]);
+        assertEquals(local, merged[0]);
+        assertEquals(Runs.read(in), merged[0]);
+    }
+
+    /**
+     * Starts an agent in a JVM of its own, so it can be killed as if its
+     * machine went down.
+     *
+     * @param port - the port of the coordinator
+     * @param name - the name of its log
+     * @return the agent's process
+     * @throws IOException if it can not be started
+     */
+    private Process agent(final int port, final String name)
+        throws IOException
+    {
+        final String java = System.getProperty("java.home") + File.separator
+            + "bin" + File.separator + "java";
+        final ProcessBuilder pb = new ProcessBuilder(java, "-cp",
+                System.getProperty("java.class.path"),
+                "edu.unh.schwartz.epframework.EPFramework", "--agent",
+                LOCALHOST + ":" + port, "2");
+        pb.redirectErrorStream(true);
+        pb.redirectOutput(this.tmp.newFile(name + ".log"));
+        return pb.start();
+    }
+
+    /**
+     * @return a port no one listens on
+     * @throws IOException if no port can be found
+     */
+    private static int freePort() throws IOException
+    {
+        try (final ServerSocket s = new ServerSocket(0))
+        {
+            return s.getLocalPort();
+        }
+    }
+
+    /**
+     * Waits for the coordinator to listen on a port. The sockets are looked
+     * up in <code>/proc</code>, as connecting would be taken for an agent.
+     * Java may listen on an IPv6 socket even for an IPv4 address.
+     *
+     * @param port - the port
+     * @throws Exception if the sockets can not be read or interrupted while
+     * waiting
+     */
+    private static void awaitListening(final int port) throws Exception
+    {
+        final String local = String.format(":%04X", port);
+        while (true)
+        {
+            for (final String table : new String[] {"tcp", "tcp6"})
+            {
+                for (final String line : Files.readAllLines(
+                            Paths.get("/proc/net", table),
+                            StandardCharsets.UTF_8))
+                {
+                    // The local address and the state, where 0A is listening
+                    final String[] fields = line.trim().split("\\s+");
+                    if (fields[1].endsWith(local) && fields[3].equals("0A"))
+                    {
+                        return;
+                    }
+                }
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * Waits for a number of chunks to have been started, here or on an
+     * agent.
+     *
+     * @param started - the directory each run of a chunk leaves a file in
+     * @param n - the number of chunks
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private static void awaitStarted(final File started, final int n)
+        throws InterruptedException
+    {
+        while (started.list().length < n)
+        {
+            Thread.sleep(20);
+        }
+    }
+}
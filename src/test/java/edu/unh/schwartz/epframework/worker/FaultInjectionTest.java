@@ -0,0 +1,213 @@
+package edu.unh.schwartz.epframework.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import edu.unh.schwartz.epframework.Chunk;
+import edu.unh.schwartz.epframework.Runs;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs chunks through executables that fail, fail once or hang, and checks
+ * that failures are reported, retried and killed as configured.
+ */
+public class FaultInjectionTest
+{
+    /**
+     * The content of each chunk.
+     */
+    private static final String CONTENT = "record 1\nrecord 2\n";
+
+    /**
+     * Holds the chunks, executables and output.
+     */
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    /**
+     * A process that exits with an error fails its chunk.
+     *
+     * @throws Exception if the chunk can not be set up
+     */
+    @Test(timeout = 30000)
+    public void nonZeroExitFails() throws Exception
+    {
+        final File exec = Runs.script(this.tmp.newFile("fail.sh"), "exit 3\n");
+        try
+        {
+            runner(exec, 0, null).run(chunk("fail"));
+            fail("the chunk did not fail");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage().contains("exited with 3"));
+        }
+    }
+
+    /**
+     * A chunk whose process fails once succeeds when it is retried.
+     *
+     * @throws Exception if the chunk fails
+     */
+    @Test(timeout = 30000)
+    public void retrySucceedsAfterTransientFailure() throws Exception
+    {
+        final File exec = Runs.script(this.tmp.newFile("once.sh"),
+                "if [ ! -e \"$1.tried\" ]\n"
+                + "then\n"
+                + "    touch \"$1.tried\"\n"
+                + "    exit 1\n"
+                + "fi\n"
+                + "cp \"$1\" \"$2\"\n");
+        final Chunk c = chunk("once");
+        runner(exec, 2, null).run(c);
+
+        assertTrue(new File(c.getInFileName() + ".tried").exists());
+        assertEquals(CONTENT, Runs.read(new File(c.getOutFileName())));
+    }
+
+    /**
+     * A chunk that hangs, even one that ignores SIGTERM, is killed once it
+     * runs past its limit.
+     *
+     * @throws Exception if the chunk can not be set up
+     */
+    @Test(timeout = 30000)
+    public void hungChunkIsKilledAtTimeout() throws Exception
+    {
+        final File exec = Runs.script(this.tmp.newFile("hang.sh"),
+                "trap '' TERM\n"
+                + "while :\n"
+                + "do\n"
+                + "    sleep 1\n"
+                + "done\n");
+        final ChunkTimeouts timeouts = new ChunkTimeouts(3, 500);
+        timeouts.succeeded(100);
+        final long start = System.currentTimeMillis();
+        try
+        {
+            runner(exec, 0, timeouts).run(chunk("hang"));
+            fail("the chunk was not killed");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage().contains("killed after 500ms"));
+        }
+        assertTrue(System.currentTimeMillis() - start < 10000);
+    }
+
+    /**
+     * A chunk started before any chunk has succeeded gets its limit once
+     * one does.
+     *
+     * @throws Exception if the chunk can not be set up
+     */
+    @Test(timeout = 30000)
+    public void firstChunksGetALimitLater() throws Exception
+    {
+        final File exec = Runs.script(this.tmp.newFile("hang.sh"),
+                "while :\n"
+                + "do\n"
+                + "    sleep 1\n"
+                + "done\n");
+        final ChunkTimeouts timeouts = new ChunkTimeouts(3, 500);
+        final Thread first = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(200);
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+                timeouts.succeeded(100);
+            }
+        };
+        first.start();
+        try
+        {
+            runner(exec, 0, timeouts).run(chunk("hang"));
+            fail("the chunk was not killed");
+        }
+        catch (IOException e)
+        {
+            assertTrue(e.getMessage().contains("killed after 500ms"));
+        }
+    }
+
+    /**
+     * The chunks that fail for good are left out of the output and listed
+     * in failures.csv.
+     *
+     * @throws Exception if the run can not be set up
+     */
+    @Test(timeout = 60000)
+    public void failuresAreReported() throws Exception
+    {
+        final File in = Runs.records(this.tmp.newFile("in.txt"), 20);
+        final File out = this.tmp.newFolder("out");
+        final File exec = Runs.script(this.tmp.newFile("some.sh"),
+                "if grep -qx '>rec7' \"$1\"\n"
+                + "then\n"
+                + "    exit 5\n"
+                + "fi\n"
+                + "cp \"$1\" \"$2\"\n");
+        final Map<String, Object> settings = Runs.settings(in, out, exec);
+        settings.put("retries", 1);
+        settings.put("retryBackoff", 10);
+        final String output = Runs.run(this.tmp.newFile("config.json"),
+                settings);
+
+        assertFalse(output.contains(">rec7\n"));
+        assertTrue(output.contains(">rec8\n"));
+        final String failures = Runs.read(new File(out, "failures.csv"));
+        assertTrue(failures.startsWith("Chunk #,Index,Reason\n"));
+        assertTrue(failures.contains("failed 2 times, last: exited with 5"));
+    }
+
+    /**
+     * Makes a chunk with its in file in a directory of its own.
+     *
+     * @param name - the name of the chunk
+     * @return the chunk
+     * @throws IOException if the in file can not be written
+     */
+    private Chunk chunk(final String name) throws IOException
+    {
+        final Chunk c = new Chunk(name, this.tmp.newFolder(name));
+        Runs.write(new File(c.getInFileName()), CONTENT);
+        return c;
+    }
+
+    /**
+     * Makes a runner for an executable called with the arguments "@ $".
+     *
+     * @param exec - the executable
+     * @param retries - how often a failed chunk is tried again
+     * @param timeouts - decides how long a chunk may run, or null
+     * @return the runner
+     * @throws IOException if the logs directory can not be made
+     */
+    private ChunkRunner runner(final File exec, final int retries,
+            final ChunkTimeouts timeouts) throws IOException
+    {
+        return new RetryingRunner(new ProcessRunner(exec.getAbsolutePath(),
+                    new String[] {"@", "$"}, false, null, null,
+                    Collections.<String>emptyList(),
+                    new ProcessOutput(this.tmp.newFolder("logs-" + exec.getName()),
+                        1024 * 1024, 1, false)),
+                retries, 10, timeouts);
+    }
+}
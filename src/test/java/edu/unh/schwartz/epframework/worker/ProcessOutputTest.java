@@ -0,0 +1,169 @@
+package edu.unh.schwartz.epframework.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import edu.unh.schwartz.epframework.Chunk;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs chunks whose processes write far more than a pipe holds, or leave a
+ * child holding their output, and checks that the chunks still complete and
+ * that the logs stay within their cap.
+ */
+public class ProcessOutputTest
+{
+    /**
+     * The largest log in bytes before it is rotated.
+     */
+    private static final long LOG_SIZE = 256 * 1024;
+
+    /**
+     * The number of rotated logs kept.
+     */
+    private static final int ROTATIONS = 2;
+
+    /**
+     * The content of each chunk.
+     */
+    private static final String CONTENT = "record 1\nrecord 2\n";
+
+    /**
+     * Holds the chunks and logs.
+     */
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    /**
+     * A chunk whose process writes megabytes to stderr completes, and only
+     * the latest output is kept, in logs of at most the cap.
+     *
+     * @throws Exception if the chunk can not be run
+     */
+    @Test(timeout = 60000)
+    public void chattyChunkCompletesWithRotatedLogs() throws Exception
+    {
+        final File logs = this.tmp.newFolder("logs");
+        final Chunk c = chunk("chatty");
+        runner(new File("examples/chatty.sh"), logs).run(c);
+
+        assertEquals(CONTENT, read(new File(c.getOutFileName())));
+        final File log = new File(logs, "chatty.log");
+        assertTrue(log.exists());
+        assertTrue(log.length() <= LOG_SIZE);
+        for (int i = 1; i <= ROTATIONS; i++)
+        {
+            final File rotated = new File(logs, "chatty.log." + i);
+            assertTrue(rotated.exists());
+            assertEquals(LOG_SIZE, rotated.length());
+        }
+        assertFalse(new File(logs, "chatty.log." + (ROTATIONS + 1)).exists());
+    }
+
+    /**
+     * A chunk whose process exits while a child it started still holds its
+     * output completes soon after the grace period.
+     *
+     * @throws Exception if the chunk can not be run
+     */
+    @Test(timeout = 30000)
+    public void orphanHoldingOutputDoesNotBlock() throws Exception
+    {
+        final File script = this.tmp.newFile("orphan.sh");
+        Files.write(script.toPath(), ("#!/bin/sh\n"
+                    + "sleep 600 &\n"
+                    + "sleep 1\n"
+                    + "cp \"$1\" \"$2\"\n").getBytes(StandardCharsets.UTF_8));
+        assertTrue(script.setExecutable(true));
+
+        final Chunk c = chunk("orphan");
+        runner(script, this.tmp.newFolder("logs")).run(c);
+
+        assertEquals(CONTENT, read(new File(c.getOutFileName())));
+    }
+
+    /**
+     * A pumped process that is destroyed, which closes its streams, keeps
+     * the output it wrote before, and its drain ends without an error.
+     *
+     * @throws Exception if the process can not be run
+     */
+    @Test(timeout = 30000)
+    public void destroyedProcessKeepsItsOutput() throws Exception
+    {
+        final File script = this.tmp.newFile("hang.sh");
+        Files.write(script.toPath(), ("#!/bin/sh\n"
+                    + "echo before kill\n"
+                    + "while :\n"
+                    + "do\n"
+                    + "    sleep 1\n"
+                    + "done\n").getBytes(StandardCharsets.UTF_8));
+        assertTrue(script.setExecutable(true));
+
+        final Process p = new ProcessBuilder(script.getAbsolutePath()).start();
+        final File log = new File(this.tmp.newFolder("logs"), "hang.log");
+        final OutputDrain drain = new OutputDrain(p.getInputStream(), log, -1,
+                LOG_SIZE, ROTATIONS);
+        while (!drain.pump())
+        {
+            Thread.sleep(10);
+        }
+        ProcFs.killTree(p);
+        p.destroy();
+        p.waitFor();
+
+        assertFalse(drain.pump());
+        drain.close();
+        assertEquals("before kill\n", read(log));
+        assertEquals(log, drain.getLog());
+    }
+
+    /**
+     * Makes a chunk with its in file in a directory of its own.
+     *
+     * @param name - the name of the chunk
+     * @return the chunk
+     * @throws IOException if the in file can not be written
+     */
+    private Chunk chunk(final String name) throws IOException
+    {
+        final Chunk c = new Chunk(name, this.tmp.newFolder(name));
+        Files.write(new File(c.getInFileName()).toPath(),
+                CONTENT.getBytes(StandardCharsets.UTF_8));
+        return c;
+    }
+
+    /**
+     * Makes a runner for an executable called with the arguments "@ $".
+     *
+     * @param exec - the executable
+     * @param logs - the directory the logs go in
+     * @return the runner
+     */
+    private static ProcessRunner runner(final File exec, final File logs)
+    {
+        return new ProcessRunner(exec.getAbsolutePath(),
+                new String[] {"@", "$"}, false, null, null,
+                Collections.<String>emptyList(),
+                new ProcessOutput(logs, LOG_SIZE, ROTATIONS, false));
+    }
+
+    /**
+     * @param f - a file
+     * @return the content of the file
+     * @throws IOException if it can not be read
+     */
+    private static String read(final File f) throws IOException
+    {
+        return new String(Files.readAllBytes(f.toPath()),
+                StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,102 @@
+package edu.unh.schwartz.epframework.worker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import edu.unh.schwartz.epframework.Runs;
+import java.io.File;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs a straggling chunk whose original run fails while its backup is still
+ * running, and checks that the backup decides the chunk.
+ */
+public class SpeculatorTest
+{
+    /**
+     * The number of records, one per chunk.
+     */
+    private static final int RECORDS = 20;
+
+    /**
+     * Holds the input, executable and output.
+     */
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    /**
+     * A backup that succeeds after the original failed gives the chunk its
+     * result.
+     *
+     * @throws Exception if the run can not be set up
+     */
+    @Test(timeout = 60000)
+    public void backupSucceedsAfterOriginalFails() throws Exception
+    {
+        final File in = Runs.records(this.tmp.newFile("in.txt"), RECORDS);
+        final File out = this.tmp.newFolder("out");
+        final String output = Runs.run(this.tmp.newFile("config.json"),
+                settings(in, out, "cp \"$1\" \"$2\"\n"));
+
+        assertEquals(Runs.read(in), output);
+        assertFalse(new File(out, "failures.csv").exists());
+    }
+
+    /**
+     * A chunk fails once both its original run and its backup have failed.
+     *
+     * @throws Exception if the run can not be set up
+     */
+    @Test(timeout = 60000)
+    public void chunkFailsWhenBothFail() throws Exception
+    {
+        final File in = Runs.records(this.tmp.newFile("in.txt"), RECORDS);
+        final File out = this.tmp.newFolder("out");
+        final String output = Runs.run(this.tmp.newFile("config.json"),
+                settings(in, out, "exit 2\n"));
+
+        assertFalse(output.contains(">rec3\n"));
+        final String failures = Runs.read(new File(out, "failures.csv"));
+        assertTrue(failures.contains("exited with 1"));
+    }
+
+    /**
+     * Makes the settings for a run with backups where the original run of
+     * the record numbered 3 straggles and then fails.
+     *
+     * @param in - the input file
+     * @param out - the output directory
+     * @param backup - what the backup of that record does once it has taken
+     * longer than the original
+     * @return the settings
+     * @throws Exception if the executable can not be written
+     */
+    private Map<String, Object> settings(final File in, final File out,
+            final String backup) throws Exception
+    {
+        final File exec = Runs.script(this.tmp.newFile("straggler.sh"),
+                "if ! grep -qx '>rec3' \"$1\"\n"
+                + "then\n"
+                + "    sleep 0.05\n"
+                + "    cp \"$1\" \"$2\"\n"
+                + "    exit 0\n"
+                + "fi\n"
+                + "case \"$1\" in\n"
+                + "*-backup/in)\n"
+                + "    sleep 1.5\n"
+                + "    " + backup
+                + "    ;;\n"
+                + "*)\n"
+                + "    sleep 1\n"
+                + "    exit 1\n"
+                + "    ;;\n"
+                + "esac\n");
+        final Map<String, Object> settings = Runs.settings(in, out, exec);
+        settings.put("speculative", true);
+        return settings;
+    }
+}